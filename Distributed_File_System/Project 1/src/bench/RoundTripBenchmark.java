@@ -0,0 +1,537 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import common.Path;
+import rmi.RMIException;
+import rmi.Skeleton;
+import rmi.Stub;
+
+/** Measures round trips from stubs to a skeleton over loopback.
+
+    <p>
+    Each case is a kind of call: a call taking and returning nothing, a call
+    passing and returning a small <code>Path</code>, calls passing and
+    returning <code>byte[]</code> payloads of 4 KB, 64 KB and 1 MB, and a call
+    whose server method throws an exception. Each case is run by 1, 16 and 256
+    concurrent callers sharing one stub, as the threads of a client share its
+    stubs. Calls always go over a TCP connection, even though the skeleton is
+    in the same virtual machine.
+
+    <p>
+    For each case and number of callers, the calls run for a warm-up period
+    and are then measured for a fixed time. The benchmark reports the calls
+    completed per second, the median and 99th percentile latency of a call,
+    and the bytes allocated per call by all threads of the virtual machine,
+    stub and skeleton together. Allocation is reported only on runtimes which
+    can measure it per thread.
+
+    <p>
+    Results may be saved to a file and later used as a baseline: when a
+    baseline is given, each result is followed by its change in throughput
+    and in 99th percentile latency from the baseline. A change to the
+    transport or codec can then be measured by saving results before the
+    change and comparing against them after.
+
+    <p>
+    Usage: <code>java bench.RoundTripBenchmark [options]</code>, with the
+    options:
+
+    <pre>
+    -time seconds      measured time for each run, default 3
+    -warmup seconds    warm-up time for each run, default 2
+    -callers n,n,...   numbers of concurrent callers, default 1,16,256
+    -cases name,...    cases to run, default all: null, path, bytes-4k,
+                       bytes-64k, bytes-1m, exception
+    -save file         write the results to a file
+    -baseline file     compare the results with a saved file
+    </pre>
+
+    The 1 MB case with 256 callers keeps about a gigabyte of payloads in
+    flight, so the virtual machine may need a larger heap, for example
+    <code>-Xmx2g</code>. <code>make bench</code> runs the benchmark with
+    suitable settings.
+ */
+public class RoundTripBenchmark
+{
+    /** Remote interface with one method for each kind of call. */
+    public interface Echo
+    {
+        /** Does nothing.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        void ping() throws RMIException;
+
+        /** Returns its argument.
+
+            @param path A path.
+            @return <code>path</code>.
+            @throws RMIException If the call cannot be completed.
+         */
+        Path path(Path path) throws RMIException;
+
+        /** Returns its argument.
+
+            @param data An array of bytes.
+            @return <code>data</code>.
+            @throws RMIException If the call cannot be completed.
+         */
+        byte[] bytes(byte[] data) throws RMIException;
+
+        /** Always throws <code>IllegalStateException</code>.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        void fail() throws RMIException;
+    }
+
+    /** Server object. */
+    private static class EchoServer implements Echo
+    {
+        @Override
+        public void ping()
+        {
+        }
+
+        @Override
+        public Path path(Path path)
+        {
+            return path;
+        }
+
+        @Override
+        public byte[] bytes(byte[] data)
+        {
+            return data;
+        }
+
+        @Override
+        public void fail()
+        {
+            throw new IllegalStateException("expected by the benchmark");
+        }
+    }
+
+    /** A kind of call. */
+    private abstract static class Case
+    {
+        final String name;
+
+        Case(String name)
+        {
+            this.name = name;
+        }
+
+        /** Makes one call.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        abstract void call(Echo stub) throws RMIException;
+    }
+
+    /** The cases, in the order in which they are run. */
+    private static final Case[] CASES = {
+        new Case("null")
+        {
+            @Override
+            void call(Echo stub) throws RMIException
+            {
+                stub.ping();
+            }
+        },
+        new Case("path")
+        {
+            final Path path = new Path("/directory/subdirectory/file.txt");
+
+            @Override
+            void call(Echo stub) throws RMIException
+            {
+                stub.path(path);
+            }
+        },
+        bytes("bytes-4k", 4 * 1024),
+        bytes("bytes-64k", 64 * 1024),
+        bytes("bytes-1m", 1024 * 1024),
+        new Case("exception")
+        {
+            @Override
+            void call(Echo stub) throws RMIException
+            {
+                try
+                {
+                    stub.fail();
+                }
+                catch(IllegalStateException e)
+                {
+                    return;
+                }
+                throw new IllegalStateException("call did not throw");
+            }
+        }
+    };
+
+    /** Returns a case sending and receiving an array of the given size. */
+    private static Case bytes(String name, int size)
+    {
+        final byte[] data = new byte[size];
+        for(int i = 0; i < size; ++i)
+            data[i] = (byte)(i * 31);
+
+        return new Case(name)
+        {
+            @Override
+            void call(Echo stub) throws RMIException
+            {
+                stub.bytes(data);
+            }
+        };
+    }
+
+    /** The result of one run. */
+    private static class Result
+    {
+        String name;
+        int callers;
+        double throughput;
+        double p50;
+        double p99;
+        double allocated;
+
+        /** Returns the key under which the result is saved. */
+        String key()
+        {
+            return name + "/" + callers;
+        }
+    }
+
+    /** Runs the benchmark.
+
+        @param args Options, as described above.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        double time = 3;
+        double warmup = 2;
+        int[] callers = {1, 16, 256};
+        List<String> names = null;
+        String save = null;
+        String baseline = null;
+
+        for(int i = 0; i < args.length; ++i)
+        {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            if(value == null)
+                usage("missing value for " + args[i]);
+
+            if(args[i].equals("-time"))
+                time = Double.parseDouble(value);
+            else if(args[i].equals("-warmup"))
+                warmup = Double.parseDouble(value);
+            else if(args[i].equals("-callers"))
+            {
+                String[] parts = value.split(",");
+                callers = new int[parts.length];
+                for(int j = 0; j < parts.length; ++j)
+                    callers[j] = Integer.parseInt(parts[j].trim());
+            }
+            else if(args[i].equals("-cases"))
+                names = Arrays.asList(value.split(","));
+            else if(args[i].equals("-save"))
+                save = value;
+            else if(args[i].equals("-baseline"))
+                baseline = value;
+            else
+                usage("unknown option " + args[i]);
+            ++i;
+        }
+
+        Map<String, Result> base =
+            baseline == null ? null : load(baseline);
+
+        Stub.setLocalCalls(false);
+        Skeleton<Echo> skeleton =
+            new Skeleton<Echo>(Echo.class, new EchoServer());
+        skeleton.setWorkerPool(256, 4096);
+        skeleton.start();
+        Echo stub = Stub.create(Echo.class, skeleton);
+
+        List<Result> results = new ArrayList<Result>();
+        System.out.println(String.format("%-10s %7s %12s %10s %10s %12s",
+                                         "case", "callers", "calls/s",
+                                         "p50 us", "p99 us", "bytes/call"));
+        try
+        {
+            for(Case c : CASES)
+            {
+                if(names != null && !names.contains(c.name))
+                    continue;
+
+                for(int n : callers)
+                {
+                    Result result = run(c, stub, n, warmup, time);
+                    results.add(result);
+                    print(result, base == null ? null
+                                               : base.get(result.key()));
+                }
+            }
+        }
+        finally
+        {
+            skeleton.stop();
+        }
+
+        if(save != null)
+            save(save, results);
+    }
+
+    /** Prints a usage message and exits. */
+    private static void usage(String problem)
+    {
+        System.err.println(problem);
+        System.err.println("usage: java bench.RoundTripBenchmark"
+                           + " [-time s] [-warmup s] [-callers n,...]"
+                           + " [-cases name,...] [-save file]"
+                           + " [-baseline file]");
+        System.exit(2);
+    }
+
+    /** Runs one case with the given number of callers.
+
+        @param c The case.
+        @param stub The stub shared by all callers.
+        @param callers The number of concurrent callers.
+        @param warmup Seconds to run before measuring.
+        @param time Seconds to measure.
+        @return The measurements.
+     */
+    private static Result run(final Case c, final Echo stub, int callers,
+                              double warmup, double time) throws Exception
+    {
+        final Caller[] threads = new Caller[callers];
+        for(int i = 0; i < callers; ++i)
+        {
+            threads[i] = new Caller(c, stub, "bench-caller-" + i);
+            threads[i].start();
+        }
+
+        Thread.sleep((long)(warmup * 1000));
+
+        long[] allocatedBefore = allocated();
+        long start = System.nanoTime();
+        for(Caller thread : threads)
+            thread.measuring = true;
+
+        Thread.sleep((long)(time * 1000));
+
+        for(Caller thread : threads)
+            thread.measuring = false;
+        long elapsed = System.nanoTime() - start;
+        long[] allocatedAfter = allocated();
+
+        for(Caller thread : threads)
+            thread.running = false;
+
+        int count = 0;
+        for(Caller thread : threads)
+        {
+            thread.join();
+            if(thread.failure != null)
+                throw new Exception("Call failed in case " + c.name,
+                                    thread.failure);
+            count += thread.count;
+        }
+
+        long[] latencies = new long[count];
+        int at = 0;
+        for(Caller thread : threads)
+        {
+            System.arraycopy(thread.latencies, 0, latencies, at,
+                             thread.count);
+            at += thread.count;
+        }
+        Arrays.sort(latencies);
+
+        Result result = new Result();
+        result.name = c.name;
+        result.callers = callers;
+        result.throughput = count / (elapsed / 1e9);
+        result.p50 = percentile(latencies, 0.50) / 1000.0;
+        result.p99 = percentile(latencies, 0.99) / 1000.0;
+        result.allocated = allocatedBefore == null || count == 0 ? -1
+            : (double)(total(allocatedAfter) - total(allocatedBefore))
+              / count;
+        return result;
+    }
+
+    /** A thread making calls until stopped, recording the latency of each
+        call made while measuring.
+     */
+    private static class Caller extends Thread
+    {
+        private final Case c;
+        private final Echo stub;
+        volatile boolean running = true;
+        volatile boolean measuring = false;
+        long[] latencies = new long[1024];
+        int count = 0;
+        Throwable failure;
+
+        Caller(Case c, Echo stub, String name)
+        {
+            super(name);
+            this.c = c;
+            this.stub = stub;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while(running)
+                {
+                    long start = System.nanoTime();
+                    c.call(stub);
+                    long latency = System.nanoTime() - start;
+
+                    if(!measuring)
+                        continue;
+                    if(count == latencies.length)
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    latencies[count++] = latency;
+                }
+            }
+            catch(Throwable t)
+            {
+                failure = t;
+            }
+        }
+    }
+
+    /** Returns the value at the given fraction of a sorted array, or zero if
+        it is empty.
+     */
+    private static long percentile(long[] sorted, double fraction)
+    {
+        if(sorted.length == 0)
+            return 0;
+
+        int index = (int)Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /** Returns the bytes allocated so far by each live thread, or
+        <code>null</code> if the runtime cannot measure them.
+     */
+    private static long[] allocated()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean))
+            return null;
+
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)bean;
+        if(!threads.isThreadAllocatedMemorySupported()
+           || !threads.isThreadAllocatedMemoryEnabled())
+            return null;
+
+        return threads.getThreadAllocatedBytes(threads.getAllThreadIds());
+    }
+
+    /** Returns the sum of the counts of live threads, ignoring threads which
+        have exited, for which the runtime returns -1.
+     */
+    private static long total(long[] counts)
+    {
+        long sum = 0;
+        for(long count : counts)
+        {
+            if(count > 0)
+                sum += count;
+        }
+        return sum;
+    }
+
+    /** Prints a result, with its change from a baseline if there is one. */
+    private static void print(Result result, Result base)
+    {
+        String line = String.format("%-10s %7d %12.0f %10.1f %10.1f %12s",
+            result.name, result.callers, result.throughput, result.p50,
+            result.p99, result.allocated < 0 ? "n/a"
+                : String.format("%.0f", result.allocated));
+
+        if(base != null)
+        {
+            line += String.format("   calls/s %+6.1f%%  p99 %+6.1f%%",
+                100 * (result.throughput / base.throughput - 1),
+                100 * (result.p99 / base.p99 - 1));
+        }
+
+        System.out.println(line);
+    }
+
+    /** Writes results to a file, one tab-separated line each. */
+    private static void save(String file, List<Result> results)
+        throws IOException
+    {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try
+        {
+            for(Result result : results)
+            {
+                out.println(result.name + "\t" + result.callers + "\t"
+                            + result.throughput + "\t" + result.p50 + "\t"
+                            + result.p99 + "\t" + result.allocated);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /** Reads results written by <code>save</code>. */
+    private static Map<String, Result> load(String file) throws IOException
+    {
+        Map<String, Result> results = new HashMap<String, Result>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try
+        {
+            String line;
+            while((line = in.readLine()) != null)
+            {
+                String[] fields = line.split("\t");
+                if(fields.length < 6)
+                    continue;
+
+                Result result = new Result();
+                result.name = fields[0];
+                result.callers = Integer.parseInt(fields[1]);
+                result.throughput = Double.parseDouble(fields[2]);
+                result.p50 = Double.parseDouble(fields[3]);
+                result.p99 = Double.parseDouble(fields[4]);
+                result.allocated = Double.parseDouble(fields[5]);
+                results.put(result.key(), result);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return results;
+    }
+}
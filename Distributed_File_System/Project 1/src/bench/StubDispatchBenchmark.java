@@ -0,0 +1,188 @@
+package bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import rmi.RMIException;
+import rmi.Skeleton;
+import rmi.Stub;
+
+/** Measures the cost of dispatching a call through a stub, apart from the
+    network.
+
+    <p>
+    The stub calls a skeleton in the same virtual machine, passing arguments by
+    reference, so that neither marshaling nor a connection is involved and
+    what remains is the work of the stub and skeleton themselves: finding the
+    method called, checking the call's deadline and limits, and invoking the
+    server object. For comparison, the same calls are made directly on the
+    server object, and through a reflective proxy which dispatches as stubs
+    once did: by comparing method names and calling <code>Method.invoke</code>.
+    Finally, the stub is measured with arguments copied by marshaling, as is
+    the default for calls within one virtual machine. The stub figures include
+    the skeleton's timing and counting of each call for its metrics.
+
+    <p>
+    Usage: <code>java bench.StubDispatchBenchmark [calls]</code>. The default
+    is 2000000 calls of each kind per round. Each figure is the best of five
+    rounds, after a round to warm up. The sum of the results of every call to
+    <code>add</code> is printed at the end, so that the calls cannot be
+    optimized away.
+ */
+public class StubDispatchBenchmark
+{
+    /** Remote interface with a call taking nothing and a call taking
+        primitive arguments.
+     */
+    public interface Target
+    {
+        /** Does nothing.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        void ping() throws RMIException;
+
+        /** Adds two numbers.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        int add(int a, int b) throws RMIException;
+    }
+
+    /** Server object. */
+    private static class TargetServer implements Target
+    {
+        @Override
+        public void ping()
+        {
+        }
+
+        @Override
+        public int add(int a, int b)
+        {
+            return a + b;
+        }
+    }
+
+    /** Invocation handler dispatching by method name and reflection. */
+    private static class ReflectiveHandler implements InvocationHandler
+    {
+        private final Object server;
+
+        ReflectiveHandler(Object server)
+        {
+            this.server = server;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable
+        {
+            if(method.getName() == "equals")
+                return proxy == args[0];
+            else if(method.getName() == "hashCode")
+                return System.identityHashCode(proxy);
+            else if(method.getName() == "toString")
+                return "reflective proxy";
+
+            try
+            {
+                return method.invoke(server, args);
+            }
+            catch(InvocationTargetException e)
+            {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /** Runs the benchmark.
+
+        @param args Optional number of calls per round.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+
+        TargetServer server = new TargetServer();
+        Skeleton<Target> skeleton =
+            new Skeleton<Target>(Target.class, server);
+        skeleton.start();
+
+        Target stub = Stub.create(Target.class, skeleton);
+        Target reflective = (Target)Proxy.newProxyInstance(
+            Target.class.getClassLoader(), new Class<?>[] {Target.class},
+            new ReflectiveHandler(server));
+
+        long sum = 0;
+        try
+        {
+            Stub.setPassByReference(true);
+            sum += report("direct", server, calls);
+            sum += report("reflective proxy", reflective, calls);
+            sum += report("stub, by reference", stub, calls);
+
+            Stub.setPassByReference(false);
+            sum += report("stub, copied", stub, calls / 10);
+        }
+        finally
+        {
+            Stub.setPassByReference(false);
+            skeleton.stop();
+        }
+
+        System.out.println("checksum " + sum);
+    }
+
+    /** Measures one way of calling and prints the result.
+
+        @param name Name of the way of calling, for the report.
+        @param target The object to call.
+        @param calls Number of calls of each kind per round.
+        @return The sum of the results of the calls to <code>add</code>.
+     */
+    private static long report(String name, Target target, int calls)
+        throws RMIException
+    {
+        long sum = round(target, calls)[2];
+
+        long ping = Long.MAX_VALUE;
+        long add = Long.MAX_VALUE;
+        for(int i = 0; i < 5; ++i)
+        {
+            long[] times = round(target, calls);
+            ping = Math.min(ping, times[0]);
+            add = Math.min(add, times[1]);
+            sum += times[2];
+        }
+
+        System.out.println(String.format("%-20s ping %8.1f ns   add %8.1f ns",
+                                         name, (double)ping / calls,
+                                         (double)add / calls));
+        return sum;
+    }
+
+    /** Makes one round of calls.
+
+        @return The total times, in nanoseconds, taken by the calls to
+                <code>ping</code> and to <code>add</code>, and the sum of the
+                results of the calls to <code>add</code>.
+     */
+    private static long[] round(Target target, int calls) throws RMIException
+    {
+        long start = System.nanoTime();
+        for(int i = 0; i < calls; ++i)
+            target.ping();
+        long ping = System.nanoTime() - start;
+
+        long sum = 0;
+        start = System.nanoTime();
+        for(int i = 0; i < calls; ++i)
+            sum += target.add(i, 1);
+        long add = System.nanoTime() - start;
+
+        return new long[] {ping, add, sum};
+    }
+}
@@ -0,0 +1,182 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rmi.RMIException;
+import rmi.Skeleton;
+import rmi.Stub;
+
+/** Compares skeleton execution on platform threads and on virtual threads.
+
+    <p>
+    A number of clients each make one call which blocks inside the server
+    object, as calls to the naming server's <code>lock</code> do while another
+    client holds the lock. Once every call is blocked, the benchmark reports
+    how long it took for all of them to arrive, how many platform threads the
+    skeleton is using, and how much heap is in use. The calls are then released
+    and the time for all of them to return is reported.
+
+    <p>
+    Usage: <code>java bench.ThreadModeBenchmark [callers]</code>. The default
+    is 2000 callers. The virtual thread mode is skipped if the Java runtime
+    does not provide virtual threads. Large numbers of callers may require a
+    higher limit on open files, since each client thread may hold its own
+    connection while the pool is growing.
+ */
+public class ThreadModeBenchmark
+{
+    /** Remote interface whose single method blocks until released. */
+    public interface Gate
+    {
+        /** Blocks until the benchmark releases all callers.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        void pass() throws RMIException;
+    }
+
+    /** Server object counting the calls blocked in <code>pass</code>. */
+    private static class GateServer implements Gate
+    {
+        final AtomicInteger waiting = new AtomicInteger();
+        final CountDownLatch open = new CountDownLatch(1);
+
+        @Override
+        public void pass()
+        {
+            waiting.incrementAndGet();
+            boolean interrupted = false;
+            while(true)
+            {
+                try
+                {
+                    open.await();
+                    break;
+                }
+                catch(InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Runs the benchmark in each available mode.
+
+        @param args Optional number of callers.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int callers = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        run("platform", false, callers);
+
+        try
+        {
+            run("virtual", true, callers);
+        }
+        catch(UnsupportedOperationException e)
+        {
+            System.out.println("virtual: skipped (" + e.getMessage() + ")");
+        }
+    }
+
+    /** Runs one measurement.
+
+        @param name Name of the mode, for the report.
+        @param virtual Whether the skeleton uses virtual threads.
+        @param callers Number of concurrent blocked calls.
+     */
+    private static void run(String name, boolean virtual, int callers)
+        throws Exception
+    {
+        GateServer gate = new GateServer();
+        Skeleton<Gate> skeleton = new Skeleton<Gate>(Gate.class, gate);
+        skeleton.setVirtualThreads(virtual);
+        skeleton.start();
+
+        final Gate blocked = Stub.create(Gate.class, skeleton);
+        final AtomicInteger failures = new AtomicInteger();
+
+        int threadsBefore = serverThreads();
+        long heapBefore = usedHeap();
+
+        long start = System.nanoTime();
+        List<Thread> clients = new ArrayList<Thread>();
+        for(int i = 0; i < callers; ++i)
+        {
+            // Clients run on small platform threads in both modes, so that
+            // only the server side differs between runs.
+            Thread client = new Thread(null, new Runnable() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        blocked.pass();
+                    }
+                    catch(RMIException e)
+                    {
+                        failures.incrementAndGet();
+                    }
+                }
+            }, "bench-client-" + i, 64 * 1024);
+            client.setDaemon(true);
+            client.start();
+            clients.add(client);
+        }
+
+        while(gate.waiting.get() + failures.get() < callers)
+            Thread.sleep(1);
+        long parked = System.nanoTime() - start;
+
+        int threads = serverThreads() - threadsBefore;
+        long heap = usedHeap() - heapBefore;
+
+        start = System.nanoTime();
+        gate.open.countDown();
+        for(Thread client : clients)
+            client.join();
+        long released = System.nanoTime() - start;
+
+        skeleton.stop();
+
+        System.out.println(name + ": " + callers + " callers, "
+                           + failures.get() + " failed");
+        System.out.println("  time to block all calls  "
+                           + (parked / 1000000) + " ms");
+        System.out.println("  server platform threads  " + threads);
+        System.out.println("  heap in use              "
+                           + (heap / (1024 * 1024)) + " MB");
+        System.out.println("  time to release all      "
+                           + (released / 1000000) + " ms");
+    }
+
+    /** Counts live platform threads started by skeletons. Virtual threads are
+        not included.
+     */
+    private static int serverThreads()
+    {
+        int count = 0;
+        for(Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            String name = thread.getName();
+            if(name.startsWith("rmi-worker-") || name.startsWith("Thread-"))
+                ++count;
+        }
+        return count;
+    }
+
+    /** Returns the heap in use after a garbage collection. */
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,8 @@
+/** Benchmarks for the RMI library.
+
+    <p>
+    Each benchmark is a program run from the source directory, for example
+    <code>java bench.ThreadModeBenchmark</code>. They are not part of the
+    distributed filesystem and are not included in the jar file.
+ */
+package bench;
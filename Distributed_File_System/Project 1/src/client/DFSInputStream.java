@@ -238,8 +238,7 @@ public class DFSInputStream extends InputStream
 
         // Copy bytes from the buffer that was received over the network into
         // the buffer provided by the caller.
-        for(int index = 0; index < read_length; ++index)
-            buffer[buffer_offset + index] = result[index];
+        System.arraycopy(result, 0, buffer, buffer_offset, read_length);
 
         // Return the number of bytes read.
         return read_length;
@@ -204,9 +204,7 @@ public class DFSOutputStream extends OutputStream
         else
         {
             data = new byte[write_length];
-
-            for(int index = 0; index < write_length; ++index)
-                data[index] = buffer[buffer_offset + index];
+            System.arraycopy(buffer, buffer_offset, data, 0, write_length);
         }
 
         // Send the write request to the server. If the write request succeds,
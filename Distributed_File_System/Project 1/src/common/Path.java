@@ -3,6 +3,7 @@ package common;
 import java.io.*;
 import java.util.*;
 
+import rmi.Codec;
 import storage.Command;
 
 /** Distributed filesystem paths.
@@ -32,6 +33,12 @@ public class Path implements Iterable<String>, Serializable, Comparable<Path>
 	 */
 	ArrayList<String> path;
 	
+	// Paths are sent in calls far more often than any other object, so they
+	// have their own compact encoding.
+	static {
+		Codec.register(Path.class, PathCodec.TAG, new PathCodec());
+	}
+	
 	/*
 	 * Constructor declarations:
 	 */
@@ -0,0 +1,43 @@
+package common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import rmi.TypeCodec;
+
+/*
+ * Wire encoding of a Path for the RMI library: the number of components,
+ * followed by each component in modified UTF-8.
+ *
+ * Paths are arguments to nearly every filesystem call. Java serialization
+ * would send the class descriptors of Path and its ArrayList with each one.
+ */
+class PathCodec implements TypeCodec<Path> {
+	// Tag identifying paths on the wire
+	static final int TAG = 32;
+
+	@Override
+	public void write(Path value, DataOutput out) throws IOException{
+		out.writeInt(value.path.size());
+		for(String component : value.path){
+			out.writeUTF(component);
+		}
+	}
+
+	@Override
+	public Path read(DataInput in) throws IOException{
+		int size = in.readInt();
+		if(size < 0){
+			throw new IOException("Bad path length " + size);
+		}
+		ArrayList<String> components = new ArrayList<String>(Math.min(size, 64));
+		for(int i = 0; i < size; i++){
+			components.add(in.readUTF());
+		}
+		Path path = new Path();
+		path.path = components;
+		return path;
+	}
+}
@@ -5,7 +5,10 @@ import java.net.InetSocketAddress;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadLocalRandom;
 
 import rmi.*;
@@ -47,6 +50,7 @@ public class NamingServer implements Service, Registration
 	public ArrayList<Command> commands;
 	public ArrayList<Storage> stubs;
 	public Branch dirTree;
+	public CopyOnWriteArrayList<Watcher> watchers;
 	/** Default naming server client service port. */
     public static final int     SERVICE_PORT = 6000;
     /** Default naming server registration port. */
@@ -87,6 +91,16 @@ public class NamingServer implements Service, Registration
     		return waiters.get(0).getKey();
     	}
     	
+    	//removes a request which is given up before it is served
+    	public void remove(int x){
+    		for(int i = 0; i < waiters.size(); i++){
+    			if(waiters.get(i).getValue() == x){
+    				waiters.remove(i);
+    				return;
+    			}
+    		}
+    	}
+    	
     	
 
     }
@@ -136,14 +150,14 @@ public class NamingServer implements Service, Registration
 	public class Leaf extends Node {
 		Command c;
 		Storage s;
-		ArrayList<Command> replicas;
+		CopyOnWriteArrayList<Command> replicas;
 		int numRequests;
 		public Leaf(String n){
 			super(n);
 		}
 		public Leaf(String n, Command c, Storage s) {
 			super(n);
-			this.replicas = new ArrayList<>();
+			this.replicas = new CopyOnWriteArrayList<>();
 			this.c = c;
 			this.s = s;
 			numRequests = 0;
@@ -169,12 +183,34 @@ public class NamingServer implements Service, Registration
         dirTree = new Branch("/",new ArrayList<Node>());
         commands = new ArrayList<Command>();
         stubs = new ArrayList<Storage>();
+        watchers = new CopyOnWriteArrayList<Watcher>();
         sport = new InetSocketAddress(SERVICE_PORT);
         rport = new InetSocketAddress(REGISTRATION_PORT);
         register = new Skeleton<Registration>(Registration.class,this,rport);
         service = new Skeleton<Service>(Service.class,this,sport);
     }
 
+    /** Sets whether the naming server runs calls on virtual threads.
+
+        <p>
+        Clients blocked in <code>lock</code> each occupy a server thread until
+        the lock is granted. With virtual threads, very many such clients can
+        be waiting at once without a platform thread for each. The setting must
+        be made before the server is started.
+
+        @param enabled <code>true</code> to use virtual threads for both the
+                       client and registration interface skeletons.
+        @throws UnsupportedOperationException If <code>enabled</code> is
+                                              <code>true</code> and the Java
+                                              runtime does not provide virtual
+                                              threads.
+     */
+    public void setVirtualThreads(boolean enabled)
+    {
+        register.setVirtualThreads(enabled);
+        service.setVirtualThreads(enabled);
+    }
+
     /** Starts the naming server.
 
         <p>
@@ -246,57 +282,45 @@ public class NamingServer implements Service, Registration
     	Node cur = dirTree;
     	Path copy = new Path(path.toString());
     	Iterator<String> it = path.iterator();
-   		while(it.hasNext()){
-       		String next = it.next();
-       		int id;
-       		Lock curlock = cur.lock;
-           	id = curlock.enq(false);
-       		while(cur.hasWrite(id)){
-       			synchronized(this){
-       				try{
-               			wait();
-               		} catch (InterruptedException e){
-               			continue;
-                	}
+    	// Requests queued so far, withdrawn if the lock is not granted
+    	ArrayList<SimpleEntry<Lock, Integer>> queued = new ArrayList<>();
+    	try{
+   			while(it.hasNext()){
+       			String next = it.next();
+       			int id;
+       			Lock curlock = cur.lock;
+           		id = curlock.enq(false);
+           		queued.add(new SimpleEntry<Lock, Integer>(curlock, id));
+       			while(cur.hasWrite(id)){
+       				await(queued);
        			}
-       			
-       		}
-       		boolean flag = false;
-       		Branch cur1 = ((Branch)cur);
-       		for(int i = 0; i < cur1.list.size(); i++){
-       			if(cur1.list.get(i).name.equals(next)){
-       				cur = cur1.list.get(i);
-       				flag = true;
+       			boolean flag = false;
+       			Branch cur1 = ((Branch)cur);
+       			for(int i = 0; i < cur1.list.size(); i++){
+       				if(cur1.list.get(i).name.equals(next)){
+       					cur = cur1.list.get(i);
+       					flag = true;
+       				}
+       			}
+       			if(!flag){
+       				throw new FileNotFoundException("Bad Path.");
        			}
        		}
-       		if(!flag){
-       			throw new FileNotFoundException("Bad Path.");
-       		}
-       	}
-   		//Now I'm at the file, gotta add my lock to its list
-   		int id;
+   			//Now I'm at the file, gotta add my lock to its list
+   			int id;
    		
-   		Lock curlock = cur.lock;
-       	id = curlock.enq(exclusive);
-    	while(cur.hasWrite(id) && !exclusive){
-   			synchronized(this){
-   				try{
-   	       			wait();
-   	       		} catch (InterruptedException e){
-   	       			continue;
-   	        	}
-   			}
-    		
-    	}
-    	while(!cur.isTop(id) && exclusive){
-   			synchronized(this){
-   				try{
-   	       			wait();
-   	       		} catch (InterruptedException e){
-   	    			continue;
-   	       		}
-   			}
-    		
+   			Lock curlock = cur.lock;
+       		id = curlock.enq(exclusive);
+       		queued.add(new SimpleEntry<Lock, Integer>(curlock, id));
+    		while(cur.hasWrite(id) && !exclusive){
+    			await(queued);
+    		}
+    		while(!cur.isTop(id) && exclusive){
+    			await(queued);
+    		}
+    	} catch (Throwable t){
+    		withdraw(queued);
+    		throw t;
     	}
     	
     	
@@ -309,9 +333,21 @@ public class NamingServer implements Service, Registration
     		
     		if(exclusive){
     			for(int i = 0; i < file.replicas.size(); i++){
-    				file.replicas.get(i).delete(copy);
+    				// Waits for each deletion, since one still pending could
+    				// be run after a later copy to the same server, and
+    				// delete the new replica.
+    				try{
+    					file.replicas.get(i).delete(copy);
+    				} catch (RMIException e){
+    					// The lock is already granted. A replica which is not
+    					// deleted is still forgotten below, so it is never
+    					// read again.
+    				}
+    			}
+    			if(!file.replicas.isEmpty()){
+    				file.replicas.clear();
+    				changed(copy);
     			}
-    			file.replicas.clear();
     			file.numRequests = 0;
     		} else {
     			file.numRequests+=1;
@@ -323,8 +359,10 @@ public class NamingServer implements Service, Registration
     					
     					try {
 							commands.get(i).copy(copy, file.s);
-						} catch (IOException e) {
-							// Never happens
+						} catch (IOException | RMIException e) {
+							// The lock is already granted, so a failed copy,
+							// even one cut short by the caller's deadline,
+							// only means no replica is added this time.
 							continue;
 						}
     					file.replicas.add(commands.get(i));
@@ -337,6 +375,32 @@ public class NamingServer implements Service, Registration
     	
     }
     
+    /*
+     * Waits for a change in the lock queues. If the waiting thread is
+     * interrupted, because the caller's deadline passed or the caller
+     * disconnected, the lock attempt is abandoned, and lock withdraws the
+     * requests it has queued.
+     */
+    private synchronized void await(ArrayList<SimpleEntry<Lock, Integer>> queued)
+    		throws RMIException {
+    	try{
+    		wait();
+    	} catch (InterruptedException e){
+    		throw new RMIException("Lock request abandoned");
+    	}
+    }
+    
+    /*
+     * Withdraws lock requests which will not be granted, and wakes the
+     * requests queued behind them.
+     */
+    private synchronized void withdraw(ArrayList<SimpleEntry<Lock, Integer>> queued){
+    	for(SimpleEntry<Lock, Integer> request : queued){
+    		request.getKey().remove(request.getValue());
+    	}
+    	notifyAll();
+    }
+    
     @Override
     public synchronized void unlock(Path path, boolean exclusive) throws RMIException {
     	try{
@@ -427,9 +491,54 @@ public class NamingServer implements Service, Registration
 
     @Override
     public String[] list(Path directory) throws FileNotFoundException
+    {
+        Branch pointer = directory(directory);
+    	// Lists the directory's children:
+        String[] li = new String[pointer.list.size()];
+    	for(int i = 0; i < pointer.list.size(); i++){
+    		li[i] = pointer.list.get(i).name;
+    	}
+    	return li;
+    }
+
+    /*
+     * Sends the entries straight from the directory's node, rather than
+     * building the whole list first. Entries added or removed while the
+     * iterator is being read may or may not be sent, as for list.
+     */
+    @Override
+    public RemoteIterator<String> listStream(Path directory)
+        throws FileNotFoundException
+    {
+        final Branch pointer = directory(directory);
+        return new RemoteIterator<String>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext(){
+                return next < pointer.list.size();
+            }
+
+            @Override
+            public String next(){
+                if(!hasNext()){
+                    throw new NoSuchElementException();
+                }
+                return pointer.list.get(next++).name;
+            }
+
+            @Override
+            public void close(){
+            }
+        };
+    }
+
+    /*
+     * Returns the node of the given directory.
+     */
+    private Branch directory(Path directory) throws FileNotFoundException
     {
     	// Creates copy of path to iterate over
-        String[] li;
         Path copy = new Path(directory.toString());
     	Iterator<String> iter = copy.iterator();
     	boolean flag = false;
@@ -456,12 +565,7 @@ public class NamingServer implements Service, Registration
     		}
     		flag = false;
     	}
-    	// Lists the directory's children:
-    	li = new String[pointer.list.size()];
-    	for(int i = 0; i < pointer.list.size(); i++){
-    		li[i] = pointer.list.get(i).name;
-    	}
-    	return li;
+    	return pointer;
     }
 
     @Override
@@ -510,6 +614,7 @@ public class NamingServer implements Service, Registration
     			//adds to dirTree and asks required storageserver to create the file.
     			pointer.list.add(newFile);
     			commands.get(r).create(file);
+    			changed(file);
     			return true;
     		}
     		if(!flag){
@@ -552,6 +657,7 @@ public class NamingServer implements Service, Registration
     			// We are in the parent of the creation spot.
     			Branch newdir = new Branch(next, new ArrayList<Node>());
     			pointer.list.add(newdir);
+    			changed(directory);
     			return true;
     		}
     		if(!flag){
@@ -595,13 +701,26 @@ public class NamingServer implements Service, Registration
 
     @Override
     public boolean delete(Path path) throws FileNotFoundException
+    {
+    	if(!deleteTree(path)){
+    		return false;
+    	}
+    	changed(path);
+    	return true;
+    }
+
+    /*
+     * Deletes a file, or a directory and everything beneath it, without
+     * notifying watchers.
+     */
+    private boolean deleteTree(Path path) throws FileNotFoundException
     {
     	
     	if(this.isDirectory(path)){
     		Branch dir = (Branch)getNode(path);
     		for(int i = 0; i < dir.list.size(); i++){
     			if(this.isDirectory(new Path(path,dir.list.get(i).name))){
-    				delete(new Path(path,dir.list.get(i).name));
+    				deleteTree(new Path(path,dir.list.get(i).name));
     			} else {
     				Leaf file = (Leaf)dir.list.get(i);
     	    		for(int j = 0; j < file.replicas.size(); j++){
@@ -683,7 +802,7 @@ public class NamingServer implements Service, Registration
     				flag = true;
     				cur = pointer.list.get(i);
     				if(cur.getClass().equals(new Leaf("test").getClass())){
-    					return ((Leaf)(cur)).s;
+    					return storageFor((Leaf)cur);
     				} else {
     					pointer = (Branch)cur;
     				}
@@ -698,6 +817,51 @@ public class NamingServer implements Service, Registration
         throw new FileNotFoundException("A miracle happened!");
     }
 
+    /*
+     * Returns the storage stub for a file, with its replicas, if it has any,
+     * to fail over to. Replicas are dropped when the file is locked for
+     * writing, so a stub obtained after that lock has none.
+     */
+    private Storage storageFor(Leaf file)
+    {
+    	List<Storage> replicas = new ArrayList<Storage>();
+    	for(Command command : file.replicas){
+    		int i = commands.indexOf(command);
+    		if(i >= 0){
+    			replicas.add(stubs.get(i));
+    		}
+    	}
+    	if(replicas.isEmpty()){
+    		return file.s;
+    	}
+    	return Stub.withFailover(file.s, replicas.toArray(new Storage[0]));
+    }
+
+    @Override
+    public void watch(Watcher watcher)
+    {
+    	if(watcher == null){
+    		throw new NullPointerException();
+    	}
+    	watchers.add(watcher);
+    }
+
+    /*
+     * Tells the watchers that an object has changed. Notifications are one
+     * way, so this does not wait for the clients; a watcher whose connection
+     * has closed is dropped.
+     */
+    private void changed(Path path)
+    {
+    	for(Watcher watcher : watchers){
+    		try{
+    			watcher.changed(path);
+    		} catch (RMIException e){
+    			watchers.remove(watcher);
+    		}
+    	}
+    }
+
     // The method register is documented in Registration.java.
     @Override
     public Path[] register(Storage client_stub, Command command_stub,
@@ -1,8 +1,14 @@
 package naming;
 
 import java.io.*;
+import java.util.Arrays;
 import common.*;
+import rmi.Cacheable;
+import rmi.Coalesce;
+import rmi.Invalidates;
+import rmi.Lane;
 import rmi.RMIException;
+import rmi.RemoteIterator;
 import storage.Storage;
 
 /** Naming server client service interface.
@@ -47,6 +53,14 @@ public interface Service
         read or write requests because it cannot monitor the true read and write
         requests - those go to the storage servers.
 
+        <p>
+        Results of <code>isDirectory</code>, <code>list</code> and storage
+        server <code>size</code> calls are cached by stubs for a short time.
+        Since other clients may have changed the file system before the lock
+        is granted, taking a lock clears every result cached by stubs in the
+        caller's virtual machine, so that calls made under the lock see those
+        changes.
+
         <p>
         When any object is locked for either kind of access, all objects along
         the path up to, but not including, the object itself, are locked for
@@ -105,6 +119,8 @@ public interface Service
                              error. This includes server shutdown while a client
                              is waiting to obtain the lock.
      */
+    @Lane("lock")
+    @Invalidates
     public void lock(Path path, boolean exclusive)
         throws RMIException, FileNotFoundException;
 
@@ -140,6 +156,8 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Cacheable(ttl = 1000)
+    @Coalesce
     public boolean isDirectory(Path path)
         throws RMIException, FileNotFoundException;
 
@@ -157,9 +175,34 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Cacheable(ttl = 1000)
+    @Coalesce
     public String[] list(Path directory)
         throws RMIException, FileNotFoundException;
 
+    /** Lists the contents of a directory, sending the entries as they are
+        read.
+
+        <p>
+        This returns the same entries as <code>list</code>, but the stub
+        receives them a block at a time, so that a very large directory need
+        not be held in memory whole by the client. The iterator should be
+        closed if it is not read to the end.
+
+        @param directory The directory to be listed.
+        @return An iterator over the directory entries. The entries are not
+                guaranteed to be in any particular order.
+        @throws FileNotFoundException If the given path does not refer to a
+                                      directory.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default RemoteIterator<String> listStream(Path directory)
+        throws RMIException, FileNotFoundException
+    {
+        return RemoteIterator.over(Arrays.asList(list(directory)).iterator());
+    }
+
     /** Creates the given file, if it does not exist.
 
         <p>
@@ -176,6 +219,7 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Invalidates
     public boolean createFile(Path file)
         throws RMIException, FileNotFoundException;
 
@@ -193,6 +237,7 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Invalidates
     public boolean createDirectory(Path directory)
         throws RMIException, FileNotFoundException;
 
@@ -211,6 +256,7 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Invalidates
     public boolean delete(Path path) throws RMIException, FileNotFoundException;
 
     /** Returns a stub for the storage server hosting a file.
@@ -228,6 +274,21 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Coalesce
     public Storage getStorage(Path file)
         throws RMIException, FileNotFoundException;
+
+    /** Asks to be told of changes to the directory tree.
+
+        <p>
+        After this call, the naming server calls <code>changed</code> on the
+        watcher for each object created or deleted, and for each file whose
+        storage server stub changes. The watcher is dropped when it can no
+        longer be reached.
+
+        @param watcher A callback returned by <code>Stub.export</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void watch(Watcher watcher) throws RMIException;
 }
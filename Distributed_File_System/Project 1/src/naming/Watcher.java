@@ -0,0 +1,34 @@
+package naming;
+
+import common.*;
+import rmi.OneWay;
+import rmi.RMIException;
+
+/** Naming server change notification interface.
+
+    <p>
+    A client implements this interface to learn of changes to the directory
+    tree, so that it may cache the results of calls to the naming server
+    rather than repeating them. The client exports its implementation with
+    <code>Stub.export</code> and passes the callback to
+    <code>Service.watch</code>; the naming server then calls it back over the
+    client's own connection.
+ */
+public interface Watcher
+{
+    /** Indicates that an object has changed.
+
+        <p>
+        The object, and every object beneath it if it is a directory, has been
+        created, deleted, or moved to different storage servers. The client
+        should discard anything it has cached about these objects, including
+        whether they exist, the contents of their parent directory, and the
+        storage server stubs obtained for them.
+
+        @param path The object that has changed.
+        @throws RMIException If the notification cannot be sent due to a
+                             network error.
+     */
+    @OneWay
+    public void changed(Path path) throws RMIException;
+}
@@ -0,0 +1,89 @@
+package rmi;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/** Asynchronous view of a remote object.
+
+    <p>
+    Calls made through an asynchronous stub return at once with a
+    <code>CompletableFuture</code>, which is completed when the skeleton
+    replies. No thread waits for the reply in the meantime, so a client may
+    have many calls outstanding at once, for example to read several blocks of
+    a file in parallel:
+
+    <pre>
+    AsyncStub&lt;Storage&gt;         storage = Stub.createAsync(storage_stub);
+    CompletableFuture&lt;byte[]&gt; block =
+        storage.call(s -&gt; s.read(file, offset, length));
+    </pre>
+
+    <p>
+    The future is completed with the method's result, or exceptionally with
+    the exception the method threw, or with an <code>RMIException</code> if
+    the call could not be completed. Futures are completed on a shared pool of
+    callback threads, never on the threads which receive replies, so dependent
+    actions may block or make further remote calls.
+
+    <p>
+    Asynchronous stubs are created with <code>Stub.createAsync</code>. They
+    use the same pooled connections as ordinary stubs, and the remote
+    interface need not be changed to be called asynchronously.
+
+    @param <T> The remote interface.
+ */
+public final class AsyncStub<T>
+{
+	/*
+	 * Data members:
+	 *
+	 * MyInvocationHandler<T> handler:
+	 * The handler of the ordinary stub for the same skeleton, which sends
+	 * the calls.
+	 *
+	 * CallRecorder<T> recorder:
+	 * Finds out which method each RemoteCall calls.
+	 *
+	 * Executor callbacks:
+	 * Completes futures, shared by all asynchronous stubs.
+	 */
+	private final MyInvocationHandler<T> handler;
+	private final CallRecorder<T> recorder;
+
+	static final Executor callbacks = Executors.newCachedThreadPool(
+		new ThreadFactory() {
+			int count = 0;
+			public synchronized Thread newThread(Runnable r){
+				Thread t = new Thread(r, "rmi-async-callback-" + (count++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	AsyncStub(MyInvocationHandler<T> handler){
+		this.handler = handler;
+		this.recorder = new CallRecorder<T>(handler.c);
+	}
+
+	/** Starts a remote call.
+
+        @param call Calls one method of the remote interface on the object it
+                    is given, and returns the result.
+        @return A future completed with the result of the remote method.
+        @throws IllegalArgumentException If <code>call</code> does not call
+                                         exactly one method of the remote
+                                         interface.
+        @throws NullPointerException If <code>call</code> is
+                                     <code>null</code>.
+	 */
+	public <R> CompletableFuture<R> call(RemoteCall<T, R> call)
+	{
+		CallRecorder.Recorded recorded = recorder.record(call);
+		@SuppressWarnings("unchecked")
+		CompletableFuture<R> result = (CompletableFuture<R>)
+			(Object)handler.invokeAsync(recorded.method, recorded.args);
+		return result;
+	}
+}
@@ -0,0 +1,236 @@
+package rmi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** A sequence of calls to one remote object, sent in a single round trip.
+
+    <p>
+    Calls are added to the batch one at a time, and are not sent until
+    <code>execute</code> is called. The skeleton then runs them one after
+    another, in the order in which they were added, and returns all their
+    results and exceptions in one reply. For example, to list several
+    directories with one request to the naming server:
+
+    <pre>
+    Batch&lt;Service&gt;              batch = Stub.createBatch(naming_stub);
+    List&lt;Batch.Result&lt;String[]&gt;&gt; listings = ...;
+
+    for(Path directory : directories)
+        listings.add(batch.add(s -&gt; s.list(directory)));
+
+    batch.execute();
+    </pre>
+
+    <p>
+    An exception thrown by one call does not prevent the later calls from
+    running. Each call's outcome is obtained from the <code>Result</code>
+    returned when it was added. A batch may be executed only once, and is not
+    safe for use by several threads at once.
+
+    @param <T> The remote interface.
+ */
+public final class Batch<T>
+{
+	/*
+	 * Data members:
+	 *
+	 * MyInvocationHandler<T> handler:
+	 * The handler of the ordinary stub for the same skeleton, which sends
+	 * the batch.
+	 *
+	 * CallRecorder<T> recorder:
+	 * Finds out which method each added RemoteCall calls.
+	 *
+	 * List<CallRecorder.Recorded> calls:
+	 * The calls added so far.
+	 *
+	 * List<Result<?>> results:
+	 * The result of each call, filled in by execute.
+	 */
+	private final MyInvocationHandler<T> handler;
+	private final CallRecorder<T> recorder;
+	private final List<CallRecorder.Recorded> calls =
+		new ArrayList<CallRecorder.Recorded>();
+	private final List<Result<?>> results = new ArrayList<Result<?>>();
+	private boolean executed = false;
+
+	Batch(MyInvocationHandler<T> handler){
+		this.handler = handler;
+		this.recorder = new CallRecorder<T>(handler.c);
+	}
+
+	/** Adds a call to the batch.
+
+        @param call Calls one method of the remote interface on the object it
+                    is given, and returns the result.
+        @return The call's result, available once the batch is executed.
+        @throws IllegalArgumentException If <code>call</code> does not call
+                                         exactly one method of the remote
+                                         interface.
+        @throws IllegalStateException If the batch has already been executed.
+        @throws NullPointerException If <code>call</code> is
+                                     <code>null</code>.
+	 */
+	public <R> Result<R> add(RemoteCall<T, R> call)
+	{
+		if(executed){
+			throw new IllegalStateException("Batch already executed");
+		}
+		calls.add(recorder.record(call));
+		Result<R> result = new Result<R>();
+		results.add(result);
+		return result;
+	}
+
+	/** Returns the number of calls in the batch. */
+	public int size()
+	{
+		return calls.size();
+	}
+
+	/** Sends all the calls to the skeleton and waits for their results.
+
+        @return The results of the calls, in the order they were added.
+        @throws RMIException If the batch could not be sent or its reply
+                             could not be received. In that case, any number
+                             of the calls may have been run.
+        @throws IllegalStateException If the batch has already been executed.
+	 */
+	public List<Result<?>> execute() throws RMIException
+	{
+		if(executed){
+			throw new IllegalStateException("Batch already executed");
+		}
+		executed = true;
+		int count = calls.size();
+		if(count == 0){
+			return Collections.emptyList();
+		}
+		MethodTable table = handler.table();
+		int[] methods = new int[count];
+		Object[][] args = new Object[count][];
+		boolean invalidates = false;
+		boolean idempotent = true;
+		for(int i = 0; i < count; i++){
+			methods[i] = table.id(calls.get(i).method);
+			args[i] = calls.get(i).args;
+			invalidates |= table.invalidates[methods[i]];
+			idempotent &= table.idempotent[methods[i]];
+		}
+		if(invalidates){
+			ResultCache.invalidateAll();
+		}
+		long deadline = handler.deadline();
+		Object[] values = new Object[count];
+		boolean[] thrown = new boolean[count];
+		Frame reply;
+		Trace.Span span = Trace.begin(handler.c.getSimpleName() + ".batch");
+		boolean failed = true;
+		try{
+			Callbacks.written();
+			byte[] request = Frame.marshalBatch(table.fingerprint, methods, args,
+				deadline != 0, span);
+			List<Long> exports = Callbacks.written();
+			long sent = span == null ? 0 : System.nanoTime();
+			reply = handler.call(Frame.BATCH, request, deadline, idempotent,
+				invalidates, exports);
+			long received = span == null ? 0 : System.nanoTime();
+			if(!reply.hasFlag(Frame.FLAG_EXCEPTION)){
+				Frame.unmarshalResults(reply.payload, values, thrown);
+				failed = false;
+			}
+			if(span != null){
+				span.phase("marshal", sent - span.start);
+				span.phase("wait", received - sent);
+				span.phase("unmarshal", System.nanoTime() - received);
+			}
+		} catch(IOException e){
+			throw new RMIException("Problem with skeleton: no data stream.", e);
+		} finally {
+			if(invalidates){
+				ResultCache.invalidateAll();
+			}
+			if(span != null){
+				span.end(failed);
+			}
+		}
+		if(reply.hasFlag(Frame.FLAG_EXCEPTION)){
+			// The skeleton could not run the batch at all
+			Object failure;
+			try{
+				failure = Frame.unmarshal(reply.payload);
+			} catch(IOException e){
+				throw new RMIException("Problem with skeleton: no data stream.", e);
+			}
+			if(failure instanceof RMIException){
+				throw (RMIException)failure;
+			}
+			throw new RMIException("Batch failed", (Throwable)failure);
+		}
+		for(int i = 0; i < count; i++){
+			results.get(i).set(values[i], thrown[i]);
+		}
+		return Collections.unmodifiableList(results);
+	}
+
+	/** The outcome of one call in a batch.
+
+        @param <R> The result type of the method called.
+	 */
+	public static final class Result<R>
+	{
+		private boolean done = false;
+		private Object value;
+		private boolean thrown;
+
+		private Result()
+		{
+		}
+
+		void set(Object value, boolean thrown){
+			this.value = value;
+			this.thrown = thrown;
+			this.done = true;
+		}
+
+		/** Returns the result of the call, or throws the exception it threw.
+
+            @return The result of the remote method.
+            @throws Exception The exception thrown by the remote method.
+            @throws IllegalStateException If the batch has not been executed.
+		 */
+		@SuppressWarnings("unchecked")
+		public R get() throws Exception
+		{
+			if(!done){
+				throw new IllegalStateException("Batch not executed");
+			}
+			if(!thrown){
+				return (R)value;
+			}
+			if(value instanceof Error){
+				throw (Error)value;
+			}
+			if(value instanceof Exception){
+				throw (Exception)value;
+			}
+			throw new RMIException("Remote method threw " + value,
+				(Throwable)value);
+		}
+
+		/** Returns <code>true</code> if the call threw an exception.
+
+            @throws IllegalStateException If the batch has not been executed.
+		 */
+		public boolean failed()
+		{
+			if(!done){
+				throw new IllegalStateException("Batch not executed");
+			}
+			return thrown;
+		}
+	}
+}
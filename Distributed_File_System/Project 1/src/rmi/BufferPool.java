@@ -0,0 +1,200 @@
+package rmi;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Reusable buffers for frame payloads, so that moving large values does not
+ * allocate a new array on every hop.
+ *
+ * Payloads are exposed as whole arrays, so arrays are pooled by their exact
+ * length rather than by size class. Transfers of file data tend to repeat
+ * the same few lengths, the block size of the reader and the frame around
+ * it, so exact lengths still hit. Only arrays of at least MIN_POOLED bytes
+ * are kept; smaller ones are cheap to allocate. At most CAPACITY bytes are
+ * kept in all, set by the rmi.buffers.pool property, and arrays of only so
+ * many distinct lengths; anything more is left to the garbage collector.
+ *
+ * Arrays are handed out with stale contents, so a taker must fill the whole
+ * array. An array may be given back only by its sole owner, once nothing
+ * refers to it; see Frame.release. An array which is never given back is
+ * simply collected, so giving back is always optional.
+ *
+ * If the rmi.buffers.direct property is true, the non-blocking transport
+ * reads and writes frames through pooled direct buffers, which the socket
+ * channel uses without first copying them to a buffer of its own. Direct
+ * buffers are pooled by power-of-two capacity, within the same limit.
+ */
+final class BufferPool {
+	/*
+	 * Data members:
+	 *
+	 * ConcurrentHashMap<Integer, ConcurrentLinkedQueue<byte[]>> arrays:
+	 * Free arrays, by length.
+	 *
+	 * ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> buffers:
+	 * Free direct buffers, by capacity.
+	 *
+	 * AtomicLong retained:
+	 * Total bytes of free arrays and buffers.
+	 */
+	static final int MIN_POOLED = 16 * 1024;
+	static final boolean DIRECT = Boolean.getBoolean("rmi.buffers.direct");
+	private static final long CAPACITY =
+		Long.getLong("rmi.buffers.pool", 64L * 1024 * 1024);
+	private static final int MAX_LENGTHS = 64;
+
+	private static final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<byte[]>>
+		arrays = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<byte[]>>();
+	private static final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>>
+		buffers = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>>();
+	private static final AtomicLong retained = new AtomicLong();
+
+	private BufferPool(){
+	}
+
+	/*
+	 * Returns an array of exactly the given length, with any contents.
+	 */
+	static byte[] take(int length){
+		if(length >= MIN_POOLED){
+			ConcurrentLinkedQueue<byte[]> free = arrays.get(length);
+			byte[] array = free == null ? null : free.poll();
+			if(array != null){
+				retained.addAndGet(-length);
+				return array;
+			}
+		}
+		return new byte[length];
+	}
+
+	/*
+	 * Gives back an array which nothing else refers to.
+	 */
+	static void give(byte[] array){
+		int length = array.length;
+		if(length < MIN_POOLED || retained.get() + length > CAPACITY){
+			return;
+		}
+		ConcurrentLinkedQueue<byte[]> free = arrays.get(length);
+		if(free == null){
+			if(arrays.size() >= MAX_LENGTHS){
+				return;
+			}
+			ConcurrentLinkedQueue<byte[]> added = new ConcurrentLinkedQueue<byte[]>();
+			free = arrays.putIfAbsent(length, added);
+			if(free == null){
+				free = added;
+			}
+		}
+		retained.addAndGet(length);
+		free.offer(array);
+	}
+
+	/*
+	 * Returns a cleared buffer with room for at least the given number of
+	 * bytes: a pooled direct buffer if direct buffers are enabled, or else a
+	 * new heap buffer of exactly that capacity.
+	 */
+	static ByteBuffer takeBuffer(int size){
+		if(!DIRECT){
+			return ByteBuffer.allocate(size);
+		}
+		int capacity = Integer.highestOneBit(Math.max(size, 1024) - 1) << 1;
+		if(capacity < 0){
+			capacity = size;
+		}
+		ConcurrentLinkedQueue<ByteBuffer> free = buffers.get(capacity);
+		ByteBuffer buffer = free == null ? null : free.poll();
+		if(buffer == null){
+			return ByteBuffer.allocateDirect(capacity);
+		}
+		retained.addAndGet(-capacity);
+		buffer.clear();
+		return buffer;
+	}
+
+	/*
+	 * Gives back a buffer returned by takeBuffer which nothing else refers
+	 * to. Heap buffers are left to the garbage collector.
+	 */
+	static void give(ByteBuffer buffer){
+		int capacity = buffer.capacity();
+		if(!buffer.isDirect() || retained.get() + capacity > CAPACITY){
+			return;
+		}
+		ConcurrentLinkedQueue<ByteBuffer> free = buffers.get(capacity);
+		if(free == null){
+			ConcurrentLinkedQueue<ByteBuffer> added =
+				new ConcurrentLinkedQueue<ByteBuffer>();
+			free = buffers.putIfAbsent(capacity, added);
+			if(free == null){
+				free = added;
+			}
+		}
+		retained.addAndGet(capacity);
+		free.offer(buffer);
+	}
+
+	/*
+	 * A growable output buffer, like ByteArrayOutputStream, whose working
+	 * array is taken from the pool and given back when its contents are
+	 * taken, so that encoding a large value does not leave a trail of
+	 * outgrown arrays.
+	 */
+	static final class Output extends OutputStream {
+		private byte[] buffer;
+		private int count = 0;
+
+		Output(){
+			buffer = new byte[256];
+		}
+
+		@Override
+		public void write(int b){
+			ensure(1);
+			buffer[count++] = (byte)b;
+		}
+
+		@Override
+		public void write(byte[] b, int offset, int length){
+			ensure(length);
+			System.arraycopy(b, offset, buffer, count, length);
+			count += length;
+		}
+
+		private void ensure(int more){
+			if(count + more <= buffer.length){
+				return;
+			}
+			long needed = (long)count + more;
+			if(needed > Frame.MAX_LENGTH){
+				throw new OutOfMemoryError("Encoded value too large");
+			}
+			int length = buffer.length;
+			while(length < needed){
+				length = (int)Math.min((long)length * 2, Frame.MAX_LENGTH);
+			}
+			byte[] grown = take(length);
+			System.arraycopy(buffer, 0, grown, 0, count);
+			give(buffer);
+			buffer = grown;
+		}
+
+		/*
+		 * Returns the contents in an array of their exact length, taken from
+		 * the pool, and gives back the working array. The output must not be
+		 * used afterwards.
+		 */
+		byte[] toByteArray(){
+			byte[] contents = take(count);
+			System.arraycopy(buffer, 0, contents, 0, count);
+			give(buffer);
+			buffer = null;
+			return contents;
+		}
+	}
+}
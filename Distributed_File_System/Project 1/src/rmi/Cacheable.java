@@ -0,0 +1,35 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Marks a remote method whose results may be cached by stubs.
+
+    <p>
+    When a method of a remote interface carries this annotation, a stub which
+    has received a normal return from the method keeps the result for
+    <code>ttl</code> milliseconds, and answers later calls with equal arguments
+    to the same remote object from its cache instead of contacting the
+    skeleton. Results are cached in one bounded cache shared by all stubs in
+    the virtual machine, which discards the least recently used results when it
+    is full. Exceptions are never cached.
+
+    <p>
+    Only methods which do not change the state of the remote object should be
+    marked. A cached result may be out of date by up to <code>ttl</code>
+    milliseconds if the remote object is changed by another virtual machine.
+    Changes made through any stub in this virtual machine, by calling a method
+    marked <code>Invalidates</code>, clear the whole cache. Other changes can
+    be made visible at once with <code>Stub.invalidate</code>.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Cacheable
+{
+    /** The time for which a result may be reused, in milliseconds. */
+    long ttl() default 1000;
+}
@@ -0,0 +1,93 @@
+package rmi;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/*
+ * Finds out which remote method a RemoteCall calls, and with what arguments,
+ * without calling it.
+ *
+ * The RemoteCall is run against a proxy for the remote interface which only
+ * notes the method and arguments it is called with, and returns a
+ * placeholder result. Used by AsyncStub and Batch, which then send the call
+ * their own way. Several threads may record calls at once.
+ */
+class CallRecorder<T> implements InvocationHandler {
+	/*
+	 * Data members:
+	 *
+	 * T proxy:
+	 * The proxy passed to RemoteCall.invoke.
+	 *
+	 * ThreadLocal<Recorded> recorded:
+	 * The call noted during the current thread's RemoteCall.invoke.
+	 */
+	private final T proxy;
+	private final ThreadLocal<Recorded> recorded = new ThreadLocal<Recorded>();
+
+	@SuppressWarnings("unchecked")
+	CallRecorder(Class<T> c){
+		proxy = (T)Proxy.newProxyInstance(c.getClassLoader(),
+			new Class<?>[]{c}, this);
+	}
+
+	/*
+	 * Runs the RemoteCall and returns the single remote method it called.
+	 * Throws IllegalArgumentException if it called none, or more than one,
+	 * or threw an exception.
+	 */
+	Recorded record(RemoteCall<T, ?> call){
+		if(call == null){
+			throw new NullPointerException();
+		}
+		Recorded result;
+		try{
+			call.invoke(proxy);
+		} catch(IllegalArgumentException e){
+			throw e;
+		} catch(Exception e){
+			// The proxy throws nothing else, so this came from the caller's
+			// own code around the remote call.
+			throw new IllegalArgumentException("Remote call threw " + e, e);
+		} finally {
+			result = recorded.get();
+			recorded.remove();
+		}
+		if(result == null){
+			throw new IllegalArgumentException("No remote method was called");
+		}
+		return result;
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args){
+		if(method.getDeclaringClass() == Object.class){
+			throw new IllegalArgumentException(method.getName()
+				+ " is not a remote method");
+		}
+		if(recorded.get() != null){
+			throw new IllegalArgumentException(
+				"Only one remote method may be called");
+		}
+		recorded.set(new Recorded(method, args));
+		Class<?> type = method.getReturnType();
+		if(type.isPrimitive() && type != void.class){
+			return Array.get(Array.newInstance(type, 1), 0);
+		}
+		return null;
+	}
+
+	/*
+	 * A method call noted by the recorder.
+	 */
+	static class Recorded {
+		final Method method;
+		final Object[] args;
+
+		Recorded(Method method, Object[] args){
+			this.method = method;
+			this.args = args;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package rmi;
+
+/** Thrown by a stub when the skeleton refuses a call because it is overloaded.
+
+    <p>
+    A skeleton rejects a call, without running it, when its worker pool and
+    call queue are both full, or when the method called already has as many
+    calls in progress as its limit allows. The call has had no effect on the
+    server, so it may safely be retried later.
+ */
+public class CallRejectedException extends RMIException
+{
+    /** Creates a <code>CallRejectedException</code> with the given message
+        string. */
+    public CallRejectedException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,346 @@
+package rmi;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Objects exported by this virtual machine to be called back by skeletons,
+ * over the connections their stubs opened.
+ *
+ * Stub.export wraps an object in a proxy whose handler is an Export. When the
+ * proxy is passed to a remote method, Codec writes its interface and export
+ * id. The skeleton decoding the call makes a proxy whose handler is a
+ * Handler holding the ServerConnection the call arrived on, so that calls on
+ * it go back to the stub's process as CALL frames on that connection. Their
+ * payload is the export id followed by an ordinary call payload, and the
+ * stub's process answers each with a REPLY frame, unless the method is
+ * OneWay.
+ *
+ * In the stub's process, the Connection's reader thread passes such frames to
+ * serve, which runs them on AsyncStub's callback threads through a Skeleton
+ * for the exported object. That skeleton is never started: it only decodes
+ * and runs calls, and encodes their results, as for any other call.
+ *
+ * A callback lives as long as the connection it arrived on. Codec notes
+ * each exported object it writes, and the stub records the ids on the
+ * connection it sends the call on. This process keeps such a connection open
+ * rather than closing it as idle while any object sent on it is still
+ * exported, and a skeleton keeps open any connection on which it has
+ * received a callback, so that the callbacks stay usable until the object is
+ * unexported and the connection is then closed. A callback decoded from a
+ * call made without a connection, by a stub in the same virtual machine, is
+ * the exported proxy itself.
+ */
+final class Callbacks {
+	/*
+	 * Data members:
+	 *
+	 * Map<Long, Export<?>> exports:
+	 * The exported objects, by export id.
+	 *
+	 * ThreadLocal<ServerConnection> origin:
+	 * The connection whose call the current thread is decoding, if any.
+	 *
+	 * ThreadLocal<List<Long>> written:
+	 * Ids of the exported objects the current thread has marshaled since it
+	 * last called written, if any.
+	 */
+	private static final ConcurrentHashMap<Long, Export<?>> exports =
+		new ConcurrentHashMap<Long, Export<?>>();
+	private static final AtomicLong nextId = new AtomicLong();
+	private static final ThreadLocal<ServerConnection> origin =
+		new ThreadLocal<ServerConnection>();
+	private static final ThreadLocal<List<Long>> written =
+		new ThreadLocal<List<Long>>();
+
+	private Callbacks(){
+	}
+
+	/*
+	 * Exports an object, returning the proxy to pass to remote methods.
+	 */
+	static <T> T export(Class<T> c, T object){
+		if(c == null || object == null){
+			throw new NullPointerException();
+		}
+		Export<T> export = new Export<T>(c, object, nextId.incrementAndGet());
+		@SuppressWarnings("unchecked")
+		T proxy = (T)Proxy.newProxyInstance(c.getClassLoader(),
+			new Class[]{c}, export);
+		export.proxy = proxy;
+		exports.put(export.id, export);
+		return proxy;
+	}
+
+	/*
+	 * Stops an exported object being called back. Returns false if the value
+	 * is not a proxy returned by export.
+	 */
+	static boolean unexport(Object callback){
+		Export<?> export = exportOf(callback);
+		if(export == null){
+			return false;
+		}
+		exports.remove(export.id);
+		return true;
+	}
+
+	/*
+	 * True while the object with the given export id is exported.
+	 */
+	static boolean exported(long id){
+		return exports.containsKey(id);
+	}
+
+	/*
+	 * Called by Codec as it writes an exported object.
+	 */
+	static void writing(Export<?> export){
+		List<Long> ids = written.get();
+		if(ids == null){
+			ids = new ArrayList<Long>();
+			written.set(ids);
+		}
+		ids.add(export.id);
+	}
+
+	/*
+	 * Returns the ids of the exported objects the current thread has written
+	 * since it last called this method, or null if there are none.
+	 */
+	static List<Long> written(){
+		List<Long> ids = written.get();
+		if(ids != null){
+			written.remove();
+		}
+		return ids;
+	}
+
+	/*
+	 * Returns the handler of a proxy returned by export, or null if the value
+	 * is not one.
+	 */
+	static Export<?> exportOf(Object value){
+		if(!Proxy.isProxyClass(value.getClass())){
+			return null;
+		}
+		InvocationHandler handler = Proxy.getInvocationHandler(value);
+		if(handler instanceof Export){
+			return (Export<?>)handler;
+		}
+		return null;
+	}
+
+	/*
+	 * Makes the given connection the one whose call the current thread is
+	 * decoding, returning the previous one to be restored.
+	 */
+	static ServerConnection receiving(ServerConnection connection){
+		ServerConnection previous = origin.get();
+		origin.set(connection);
+		return previous;
+	}
+
+	/*
+	 * Reads a callback written by Codec, after its tag.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	static Object read(DataInputStream in, String name) throws IOException{
+		long id = in.readLong();
+		ServerConnection connection = origin.get();
+		if(connection == null || !connection.canCallBack()){
+			Export<?> export = exports.get(id);
+			if(export == null || !export.c.getName().equals(name)){
+				throw new IOException("Callback " + id + " for " + name
+					+ " was not sent on a connection");
+			}
+			return export.proxy;
+		}
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		if(loader == null){
+			loader = Callbacks.class.getClassLoader();
+		}
+		Class c;
+		try{
+			c = Class.forName(name, false, loader);
+		} catch(ClassNotFoundException e){
+			throw new IOException("Cannot unmarshal callback for " + name, e);
+		}
+		if(!c.isInterface()){
+			throw new IOException("Callback type " + name + " is not an interface");
+		}
+		connection.holdCallbacks();
+		return Proxy.newProxyInstance(c.getClassLoader(), new Class[]{c},
+			new Handler(connection, c, id));
+	}
+
+	/*
+	 * Runs a CALL frame sent back by a skeleton on a callback thread, and
+	 * answers it on the connection it arrived on.
+	 */
+	static void serve(final Connection connection, final Frame frame){
+		AsyncStub.callbacks.execute(new Runnable() {
+			public void run(){
+				Frame reply;
+				try{
+					reply = call(frame);
+				} catch(Exception e){
+					try{
+						reply = new Frame(Frame.REPLY, Frame.FLAG_EXCEPTION, frame.id,
+							Frame.marshal(new RMIException("Cannot run callback: " + e)));
+					} catch(IOException e2){
+						connection.close();
+						return;
+					}
+				}
+				if(!frame.hasFlag(Frame.FLAG_ONEWAY)){
+					connection.answer(reply);
+				}
+			}
+		});
+	}
+
+	private static Frame call(Frame frame) throws Exception{
+		if(frame.payload.length < 8){
+			throw new IOException("Callback frame too short");
+		}
+		long id = 0;
+		for(int i = 0; i < 8; i++){
+			id = id << 8 | (frame.payload[i] & 0xff);
+		}
+		Export<?> export = exports.get(id);
+		if(export == null){
+			return new Frame(Frame.REPLY, Frame.FLAG_EXCEPTION, frame.id,
+				Frame.marshal(new RMIException("Callback " + id
+				+ " is no longer exported")));
+		}
+		byte[] request = BufferPool.take(frame.payload.length - 8);
+		System.arraycopy(frame.payload, 8, request, 0, request.length);
+		frame.release();
+		Frame call = new Frame(Frame.CALL, frame.flags, frame.id, request);
+		call.pooled = true;
+		try{
+			return export.skeleton.callBack(call);
+		} finally {
+			call.release();
+		}
+	}
+
+	/*
+	 * An exported object, as the handler of the proxy passed to remote
+	 * methods. Calls on the proxy in this virtual machine go straight to the
+	 * object.
+	 */
+	static final class Export<T> implements InvocationHandler {
+		final Class<T> c;
+		final long id;
+		final T object;
+		final Skeleton<T> skeleton;
+		Object proxy;
+
+		Export(Class<T> c, T object, long id){
+			this.c = c;
+			this.object = object;
+			this.id = id;
+			this.skeleton = new Skeleton<T>(c, object);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable{
+			if(method.getDeclaringClass() == Object.class){
+				if(method.getName().equals("equals")){
+					return proxy == args[0];
+				}
+				if(method.getName().equals("hashCode")){
+					return System.identityHashCode(proxy);
+				}
+				return "Callback " + id + " for " + c.getName();
+			}
+			try{
+				return method.invoke(object, args);
+			} catch(InvocationTargetException e){
+				throw e.getCause();
+			}
+		}
+	}
+
+	/*
+	 * The skeleton's side of a callback: sends each call back to the
+	 * exporting process on the connection the callback arrived on, and waits
+	 * for the reply unless the method is OneWay. Calls are given the deadline
+	 * of the call the calling thread is serving, if any.
+	 */
+	private static final class Handler<T> implements InvocationHandler {
+		private final ServerConnection connection;
+		private final Class<T> c;
+		private final MethodTable table;
+		private final long export;
+
+		Handler(ServerConnection connection, Class<T> c, long export){
+			this.connection = connection;
+			this.c = c;
+			this.table = MethodTable.of(c);
+			this.export = export;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable{
+			int id = table.id(method);
+			if(id == MethodTable.EQUALS){
+				if(args[0] == null || !Proxy.isProxyClass(args[0].getClass())){
+					return false;
+				}
+				InvocationHandler other = Proxy.getInvocationHandler(args[0]);
+				return other instanceof Handler
+					&& ((Handler<?>)other).connection == connection
+					&& ((Handler<?>)other).export == export;
+			}
+			if(id == MethodTable.HASH_CODE){
+				return (int)(export ^ (export >>> 32))
+					^ System.identityHashCode(connection);
+			}
+			if(id == MethodTable.TO_STRING){
+				return "Callback " + export + " for " + c.getName() + " at "
+					+ connection.remoteAddress();
+			}
+			long deadline = Deadline.forCall(0);
+			Frame reply;
+			Object result;
+			try{
+				byte[] request = Frame.marshalCall(table.fingerprint, id, args,
+					deadline != 0, null);
+				CompletableFuture<Frame> future = connection.callBack(export,
+					request, deadline, table.oneWay[id]);
+				if(future == null){
+					return null;
+				}
+				reply = future.get();
+				result = MyInvocationHandler.value(reply);
+			} catch(ExecutionException e){
+				if(e.getCause() instanceof RMIException){
+					throw e.getCause();
+				}
+				throw new RMIException("Callback failed", e.getCause());
+			} catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new RMIException("Interrupted waiting for callback", e);
+			} catch(IOException e){
+				throw new RMIException("Callback failed", e);
+			}
+			if(reply.hasFlag(Frame.FLAG_EXCEPTION)){
+				throw (Throwable)result;
+			}
+			return result;
+		}
+	}
+}
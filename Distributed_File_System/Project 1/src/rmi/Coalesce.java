@@ -0,0 +1,33 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Marks a remote method whose concurrent identical calls may share one
+    execution.
+
+    <p>
+    When a call to a method with this annotation reaches a skeleton while
+    another call to the same method with equal arguments is still running
+    there, the skeleton does not run the method again. The later call waits
+    for the one in progress and is answered with its result or exception.
+    Calls arriving after the method has returned run it afresh; results are
+    not kept. Arguments are compared by their encoded form, so they need no
+    <code>equals</code> method.
+
+    <p>
+    Only methods which do not change the state of the remote object should be
+    marked. A call which shares another's execution may see the state of the
+    remote object from shortly before it arrived. The annotation has no effect
+    on methods returning streamed results, or on calls passed by reference
+    within one virtual machine.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Coalesce
+{
+}
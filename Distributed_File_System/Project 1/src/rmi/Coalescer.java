@@ -0,0 +1,146 @@
+package rmi;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * The executions in progress of a skeleton's Coalesce methods, by encoded
+ * call.
+ *
+ * The first call to arrive leads a flight: it runs the method, encodes the
+ * result, and hands the encoded result to the calls which joined the flight
+ * while it ran. The flight is removed before it completes, so a call arriving
+ * afterwards starts a new one. If the leader's call is cancelled, its result
+ * may only reflect the cancellation, so the flight is abandoned instead and
+ * each waiting call runs the method itself.
+ */
+final class Coalescer {
+	static final int RUNNING = 0;
+	static final int DONE = 1;
+	static final int ABANDONED = 2;
+	static final int CANCELLED = 3;
+
+	private final ConcurrentHashMap<Key, Flight> flights =
+		new ConcurrentHashMap<Key, Flight>();
+
+	/*
+	 * Returns the flight running the call encoded in the given part of a
+	 * payload, which holds the method id and arguments. If there is none, a
+	 * new flight is started, led by the given call.
+	 */
+	Flight join(byte[] payload, int from, int to, ServerConnection.Call call){
+		Key key = new Key(Arrays.copyOfRange(payload, from, to));
+		Flight flight = new Flight(key, call);
+		Flight running = flights.putIfAbsent(key, flight);
+		return running != null ? running : flight;
+	}
+
+	/*
+	 * One execution of a method, and the calls waiting for it.
+	 */
+	final class Flight {
+		/*
+		 * Data members:
+		 *
+		 * ServerConnection.Call leader:
+		 * The call which runs the method.
+		 *
+		 * int state:
+		 * RUNNING, DONE or ABANDONED.
+		 *
+		 * byte[] encoded, boolean thrown:
+		 * The encoded result or exception, once DONE.
+		 */
+		private final Key key;
+		private final ServerConnection.Call leader;
+		private int state = RUNNING;
+		byte[] encoded;
+		boolean thrown;
+
+		private Flight(Key key, ServerConnection.Call leader){
+			this.key = key;
+			this.leader = leader;
+		}
+
+		boolean ledBy(ServerConnection.Call call){
+			return leader == call;
+		}
+
+		/*
+		 * Called by the leader with the encoded outcome of the method.
+		 */
+		void complete(byte[] encoded, boolean thrown){
+			flights.remove(key, this);
+			synchronized(this){
+				this.encoded = encoded;
+				this.thrown = thrown;
+				state = DONE;
+				notifyAll();
+			}
+		}
+
+		/*
+		 * Called by the leader if it has no outcome to share.
+		 */
+		void abandon(){
+			flights.remove(key, this);
+			synchronized(this){
+				if(state == RUNNING){
+					state = ABANDONED;
+					notifyAll();
+				}
+			}
+		}
+
+		/*
+		 * Waits for the leader. Returns DONE or ABANDONED, or CANCELLED if the
+		 * waiting call is cancelled or its deadline passes first. Cancelling
+		 * a call which has not started does not interrupt it, so the call is
+		 * checked at short intervals.
+		 */
+		synchronized int await(ServerConnection.Call call){
+			while(state == RUNNING){
+				long wait = 100;
+				if(call.deadline != 0){
+					long remaining = Deadline.remaining(call.deadline);
+					if(remaining <= 0){
+						return CANCELLED;
+					}
+					wait = Math.min(wait, remaining / 1000000 + 1);
+				}
+				if(call.isCancelled()){
+					return CANCELLED;
+				}
+				try{
+					wait(wait);
+				} catch(InterruptedException e){
+					return CANCELLED;
+				}
+			}
+			return state;
+		}
+	}
+
+	/*
+	 * An encoded call, compared by content.
+	 */
+	private static final class Key {
+		private final byte[] call;
+		private final int hash;
+
+		Key(byte[] call){
+			this.call = call;
+			this.hash = Arrays.hashCode(call);
+		}
+
+		@Override
+		public boolean equals(Object o){
+			return o instanceof Key && Arrays.equals(call, ((Key)o).call);
+		}
+
+		@Override
+		public int hashCode(){
+			return hash;
+		}
+	}
+}
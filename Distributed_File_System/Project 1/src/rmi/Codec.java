@@ -0,0 +1,471 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Binary encoding of call arguments and results.
+
+    <p>
+    Every value is written as a one-byte tag followed by its encoding. The
+    following values have built-in encodings: <code>null</code>, the primitive
+    wrapper types, <code>String</code>, <code>byte[]</code>, stubs created by
+    <code>Stub</code>, and arrays of strings or of any type with a registered
+    codec. A stub is sent as its interface name and skeleton address, with
+    those of any failover replicas, and is recreated on arrival. A callback
+    exported by <code>Stub.export</code> is sent as its interface name and
+    export id, and arrives as a proxy calling back over the connection the
+    call came on. Any other value is sent using Java serialization, so
+    it must implement <code>Serializable</code>, as before.
+
+    <p>
+    Applications may register a <code>TypeCodec</code> for their own value
+    types. Both ends of a connection must register the same codec under the
+    same tag before any call carrying such a value is made. A convenient place
+    is a static initializer in the value class itself: the classes named in a
+    remote interface's method signatures are initialized when a stub or
+    skeleton for the interface is created.
+ */
+public final class Codec
+{
+	/*
+	 * Built-in tags. Tags from FIRST_USER_TAG up are available to
+	 * registered codecs.
+	 */
+	private static final int NULL = 0;
+	private static final int TRUE = 1;
+	private static final int FALSE = 2;
+	private static final int BYTE = 3;
+	private static final int SHORT = 4;
+	private static final int CHAR = 5;
+	private static final int INT = 6;
+	private static final int LONG = 7;
+	private static final int FLOAT = 8;
+	private static final int DOUBLE = 9;
+	private static final int STRING = 10;
+	private static final int BYTES = 11;
+	private static final int ARRAY = 12;
+	private static final int STUB = 13;
+	private static final int SERIAL = 14;
+	private static final int CALLBACK = 15;
+
+	/** The smallest tag which may be given to a registered codec. */
+	public static final int FIRST_USER_TAG = 32;
+	/** The largest tag which may be given to a registered codec. */
+	public static final int LAST_USER_TAG = 255;
+
+	/*
+	 * Data members:
+	 *
+	 * ConcurrentHashMap<Class<?>, Entry> byClass:
+	 * Registered codecs, by the exact class they encode.
+	 *
+	 * AtomicReferenceArray<Entry<?>> byTag:
+	 * Registered codecs, by tag.
+	 */
+	private static final ConcurrentHashMap<Class<?>, Entry<?>> byClass =
+		new ConcurrentHashMap<Class<?>, Entry<?>>();
+	private static final AtomicReferenceArray<Entry<?>> byTag =
+		new AtomicReferenceArray<Entry<?>>(LAST_USER_TAG + 1);
+
+	private Codec(){
+	}
+
+	/** Registers a codec for values of the given class.
+
+        <p>
+        The codec is used for values whose class is exactly
+        <code>type</code>; instances of subclasses are sent using Java
+        serialization.
+
+        @param type The class of values to be encoded.
+        @param tag The tag which identifies the codec on the wire, from
+                   <code>FIRST_USER_TAG</code> to <code>LAST_USER_TAG</code>.
+        @param codec The codec.
+        @throws IllegalArgumentException If the tag is out of range, or if the
+                                         tag or class already has a different
+                                         codec.
+        @throws NullPointerException If <code>type</code> or
+                                     <code>codec</code> is <code>null</code>.
+	 */
+	public static synchronized <V> void register(Class<V> type, int tag,
+		TypeCodec<V> codec)
+	{
+		if(type == null || codec == null){
+			throw new NullPointerException();
+		}
+		if(tag < FIRST_USER_TAG || tag > LAST_USER_TAG){
+			throw new IllegalArgumentException("Tag out of range: " + tag);
+		}
+		Entry<?> existing = byTag.get(tag);
+		if(existing != null){
+			if(existing.type == type && existing.codec == codec){
+				return;
+			}
+			throw new IllegalArgumentException("Tag " + tag + " already used for "
+				+ existing.type.getName());
+		}
+		if(byClass.containsKey(type)){
+			throw new IllegalArgumentException(type.getName()
+				+ " already has a codec");
+		}
+		Entry<V> entry = new Entry<V>(type, tag, codec);
+		byClass.put(type, entry);
+		byTag.set(tag, entry);
+	}
+
+	/*
+	 * Encodes one value into an array taken from BufferPool. A byte array,
+	 * such as a block of file data, is copied once, straight into an array
+	 * of the right size.
+	 */
+	static byte[] encode(Object value) throws IOException{
+		if(value != null && value.getClass() == byte[].class){
+			byte[] b = (byte[])value;
+			byte[] encoded = BufferPool.take(1 + 4 + b.length);
+			encoded[0] = BYTES;
+			encoded[1] = (byte)(b.length >>> 24);
+			encoded[2] = (byte)(b.length >>> 16);
+			encoded[3] = (byte)(b.length >>> 8);
+			encoded[4] = (byte)b.length;
+			System.arraycopy(b, 0, encoded, 5, b.length);
+			return encoded;
+		}
+		BufferPool.Output bytes = new BufferPool.Output();
+		DataOutputStream out = new DataOutputStream(bytes);
+		write(value, out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * Decodes one value from part of an array.
+	 */
+	static Object decode(byte[] buffer, int offset, int length)
+		throws IOException{
+		return read(new DataInputStream(
+			new ByteArrayInputStream(buffer, offset, length)));
+	}
+
+	/*
+	 * Writes one value, tag first.
+	 */
+	static void write(Object value, DataOutputStream out) throws IOException{
+		if(value == null){
+			out.writeByte(NULL);
+			return;
+		}
+		Class<?> type = value.getClass();
+		Entry<?> entry;
+		MyInvocationHandler<?> stub;
+		Callbacks.Export<?> export;
+		if(type == String.class){
+			out.writeByte(STRING);
+			writeString((String)value, out);
+		} else if(type == byte[].class){
+			byte[] b = (byte[])value;
+			out.writeByte(BYTES);
+			out.writeInt(b.length);
+			out.write(b);
+		} else if(type == Integer.class){
+			out.writeByte(INT);
+			out.writeInt((Integer)value);
+		} else if(type == Long.class){
+			out.writeByte(LONG);
+			out.writeLong((Long)value);
+		} else if(type == Boolean.class){
+			out.writeByte((Boolean)value ? TRUE : FALSE);
+		} else if(type == Byte.class){
+			out.writeByte(BYTE);
+			out.writeByte((Byte)value);
+		} else if(type == Short.class){
+			out.writeByte(SHORT);
+			out.writeShort((Short)value);
+		} else if(type == Character.class){
+			out.writeByte(CHAR);
+			out.writeChar((Character)value);
+		} else if(type == Float.class){
+			out.writeByte(FLOAT);
+			out.writeFloat((Float)value);
+		} else if(type == Double.class){
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double)value);
+		} else if((entry = byClass.get(type)) != null){
+			writeRegistered(entry, value, out);
+		} else if(type.isArray() && componentTag(type.getComponentType()) >= 0){
+			Object[] array = (Object[])value;
+			out.writeByte(ARRAY);
+			out.writeByte(componentTag(type.getComponentType()));
+			out.writeInt(array.length);
+			for(Object element : array){
+				write(element, out);
+			}
+		} else if((export = Callbacks.exportOf(value)) != null){
+			out.writeByte(CALLBACK);
+			writeString(export.c.getName(), out);
+			out.writeLong(export.id);
+			Callbacks.writing(export);
+		} else if((stub = stubHandler(value)) != null){
+			out.writeByte(STUB);
+			writeString(stub.c.getName(), out);
+			writeAddress(stub.newAddress, out);
+			writeString(stub.unixPath == null ? "" : stub.unixPath, out);
+			MyInvocationHandler<?>[] failover = stub.failover;
+			out.writeShort(failover == null ? 0 : failover.length);
+			for(int i = 0; failover != null && i < failover.length; i++){
+				writeAddress(failover[i].newAddress, out);
+				writeString(failover[i].unixPath == null ? ""
+					: failover[i].unixPath, out);
+			}
+		} else {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream serial = new ObjectOutputStream(bytes);
+			serial.writeObject(value);
+			serial.close();
+			out.writeByte(SERIAL);
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+		}
+	}
+
+	/*
+	 * Reads one value written by write.
+	 */
+	static Object read(DataInputStream in) throws IOException{
+		int tag = in.readUnsignedByte();
+		switch(tag){
+		case NULL:
+			return null;
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case BYTE:
+			return in.readByte();
+		case SHORT:
+			return in.readShort();
+		case CHAR:
+			return in.readChar();
+		case INT:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case FLOAT:
+			return in.readFloat();
+		case DOUBLE:
+			return in.readDouble();
+		case STRING:
+			return readString(in);
+		case BYTES:
+			byte[] b = new byte[readLength(in)];
+			in.readFully(b);
+			return b;
+		case ARRAY:
+			Class<?> component = componentClass(in.readUnsignedByte());
+			Object[] array = (Object[])Array.newInstance(component, readLength(in));
+			for(int i = 0; i < array.length; i++){
+				Object element = read(in);
+				if(element != null && !component.isInstance(element)){
+					throw new IOException("Array element of wrong type "
+						+ element.getClass().getName());
+				}
+				array[i] = element;
+			}
+			return array;
+		case STUB:
+			return readStub(in);
+		case CALLBACK:
+			return Callbacks.read(in, readString(in));
+		case SERIAL:
+			byte[] serial = new byte[readLength(in)];
+			in.readFully(serial);
+			ObjectInputStream objects =
+				new ObjectInputStream(new ByteArrayInputStream(serial));
+			try{
+				return objects.readObject();
+			} catch(ClassNotFoundException e){
+				throw new IOException("Cannot unmarshal value", e);
+			} finally {
+				objects.close();
+			}
+		default:
+			Entry<?> entry = byTag.get(tag);
+			if(entry == null){
+				throw new IOException("Unknown type tag " + tag);
+			}
+			return entry.codec.read(in);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> void writeRegistered(Entry<V> entry, Object value,
+		DataOutputStream out) throws IOException{
+		out.writeByte(entry.tag);
+		entry.codec.write((V)value, out);
+	}
+
+	private static void writeString(String s, DataOutputStream out)
+		throws IOException{
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(DataInputStream in) throws IOException{
+		byte[] b = new byte[readLength(in)];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Reads the length of a string, byte array or value array, guarding
+	 * against reading garbage as an enormous allocation. Values are always
+	 * read from a payload already in memory, so the length can be no more
+	 * than the bytes left: each byte of a string or byte array is stored,
+	 * and each element of an array takes at least its tag.
+	 */
+	private static int readLength(DataInputStream in) throws IOException{
+		int length = in.readInt();
+		if(length < 0 || length > in.available()){
+			throw new IOException("Bad length " + length);
+		}
+		return length;
+	}
+
+	/*
+	 * Returns the tag of an array component type with a compact encoding,
+	 * or -1 if arrays of the type must be serialized.
+	 */
+	private static int componentTag(Class<?> component){
+		if(component == String.class){
+			return STRING;
+		}
+		Entry<?> entry = byClass.get(component);
+		return entry == null ? -1 : entry.tag;
+	}
+
+	private static Class<?> componentClass(int tag) throws IOException{
+		if(tag == STRING){
+			return String.class;
+		}
+		Entry<?> entry = byTag.get(tag);
+		if(entry == null){
+			throw new IOException("Unknown array type tag " + tag);
+		}
+		return entry.type;
+	}
+
+	/*
+	 * Returns the handler of a stub created by Stub, or null if the value is
+	 * not one.
+	 */
+	private static MyInvocationHandler<?> stubHandler(Object value){
+		if(!Proxy.isProxyClass(value.getClass())){
+			return null;
+		}
+		InvocationHandler handler = Proxy.getInvocationHandler(value);
+		if(handler instanceof MyInvocationHandler){
+			return (MyInvocationHandler<?>)handler;
+		}
+		return null;
+	}
+
+	/*
+	 * Writes an address without forcing name resolution on either side.
+	 */
+	private static void writeAddress(InetSocketAddress address,
+		DataOutputStream out) throws IOException{
+		writeString(address.getHostString(), out);
+		InetAddress ip = address.getAddress();
+		if(ip == null){
+			out.writeByte(0);
+		} else {
+			byte[] b = ip.getAddress();
+			out.writeByte(b.length);
+			out.write(b);
+		}
+		out.writeShort(address.getPort());
+	}
+
+	private static InetSocketAddress readAddress(DataInputStream in)
+		throws IOException{
+		String host = readString(in);
+		int length = in.readUnsignedByte();
+		int port;
+		if(length == 0){
+			port = in.readUnsignedShort();
+			return InetSocketAddress.createUnresolved(host, port);
+		}
+		byte[] b = new byte[length];
+		in.readFully(b);
+		port = in.readUnsignedShort();
+		return new InetSocketAddress(InetAddress.getByAddress(host, b), port);
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static Object readStub(DataInputStream in) throws IOException{
+		String name = readString(in);
+		InetSocketAddress address = readAddress(in);
+		String path = readString(in);
+		InetSocketAddress[] replicas = new InetSocketAddress[in.readUnsignedShort()];
+		String[] replicaPaths = new String[replicas.length];
+		for(int i = 0; i < replicas.length; i++){
+			replicas[i] = readAddress(in);
+			replicaPaths[i] = readString(in);
+		}
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		if(loader == null){
+			loader = Codec.class.getClassLoader();
+		}
+		try{
+			Class c = Class.forName(name, false, loader);
+			Object stub = Stub.create(c, address);
+			if(!path.isEmpty()){
+				stubHandler(stub).unixPath = path;
+			}
+			if(replicas.length > 0){
+				MyInvocationHandler<?>[] failover =
+					new MyInvocationHandler<?>[replicas.length];
+				for(int i = 0; i < replicas.length; i++){
+					failover[i] = stubHandler(Stub.create(c, replicas[i]));
+					if(!replicaPaths[i].isEmpty()){
+						failover[i].unixPath = replicaPaths[i];
+					}
+				}
+				stubHandler(stub).failover = failover;
+			}
+			return stub;
+		} catch(ClassNotFoundException e){
+			throw new IOException("Cannot unmarshal stub for " + name, e);
+		} catch(Error e){
+			throw new IOException("Cannot unmarshal stub for " + name, e);
+		}
+	}
+
+	/*
+	 * A registered codec.
+	 */
+	private static class Entry<V> {
+		final Class<V> type;
+		final int tag;
+		final TypeCodec<V> codec;
+
+		Entry(Class<V> type, int tag, TypeCodec<V> codec){
+			this.type = type;
+			this.tag = tag;
+			this.codec = codec;
+		}
+	}
+}
@@ -0,0 +1,496 @@
+package rmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/*
+ * A stub-side connection to a skeleton, shared by any number of calls.
+ *
+ * Each call is sent as a CALL frame with a fresh id, and the calling thread
+ * waits for the REPLY frame carrying the same id. A reader thread owned by
+ * the connection receives replies in whatever order the skeleton sends them
+ * and hands each to its waiting caller. If the connection fails, every call
+ * still waiting on it fails with an IOException.
+ *
+ * A call with a deadline which passes before the reply arrives fails with
+ * DeadlineExceededException, and the skeleton is sent a CANCEL frame so that
+ * it can stop the call. A reply which arrives after that is ignored. A call
+ * to a OneWay method is written and forgotten, as no reply will come.
+ *
+ * A reply announcing a streamed result is given a StreamReceiver, to which
+ * the reader thread passes the STREAM frames that follow. A connection with a
+ * result still streaming counts as in use, so it is not closed as idle.
+ *
+ * A connection to a skeleton on the same host may be made through the
+ * skeleton's Unix domain socket instead of TCP; the frames are the same.
+ *
+ * The skeleton may send CALL frames of its own, calling back objects this
+ * process has exported. The reader thread hands them to Callbacks, which
+ * answers them through answer.
+ */
+class Connection {
+	/*
+	 * Data members:
+	 *
+	 * InetSocketAddress address:
+	 * The skeleton this connection is to.
+	 *
+	 * Closeable endpoint:
+	 * The Socket, or for a Unix domain connection the SocketChannel.
+	 *
+	 * boolean remote:
+	 * true if the skeleton is on another host.
+	 *
+	 * Map<Long, CompletableFuture<Frame>> pending:
+	 * Calls sent on this connection and not yet answered, by frame id.
+	 *
+	 * long lastUsed:
+	 * When a call was last sent or answered. Used for idle eviction.
+	 *
+	 * long answered:
+	 * The number of calls answered so far.
+	 *
+	 * boolean compress:
+	 * true once the skeleton has agreed to compression of large payloads.
+	 *
+	 * Map<Long, StreamReceiver> streams:
+	 * Streamed results still arriving, by call id.
+	 *
+	 * Set<Long> callbacks:
+	 * Export ids of the objects sent to the skeleton on this connection,
+	 * which it may call back on it. Ids are dropped once the object is
+	 * unexported.
+	 */
+	final InetSocketAddress address;
+	private final Closeable endpoint;
+	private final boolean remote;
+	private final DataOutputStream out;
+	private final DataInputStream in;
+	private final ConcurrentHashMap<Long, CompletableFuture<Frame>> pending =
+		new ConcurrentHashMap<Long, CompletableFuture<Frame>>();
+	private final ConcurrentHashMap<Long, StreamReceiver> streams =
+		new ConcurrentHashMap<Long, StreamReceiver>();
+	private final Set<Long> callbacks = ConcurrentHashMap.newKeySet();
+	private final AtomicLong nextId = new AtomicLong();
+	private volatile boolean closed = false;
+	private volatile long lastUsed = System.currentTimeMillis();
+	private volatile long answered = 0;
+	private volatile boolean compress = false;
+
+	/*
+	 * Connects to the skeleton and starts the reader thread.
+	 */
+	Connection(InetSocketAddress address) throws IOException{
+		this(address, null);
+	}
+
+	/*
+	 * As above, but through the Unix domain socket at the given path, if it
+	 * is not null.
+	 */
+	Connection(InetSocketAddress address, String path) throws IOException{
+		this.address = address;
+		InputStream input;
+		OutputStream output;
+		if(path != null){
+			SocketChannel channel = UnixSockets.connect(path);
+			endpoint = channel;
+			remote = false;
+			input = UnixSockets.input(channel);
+			output = UnixSockets.output(channel);
+		} else {
+			Socket socket = new Socket();
+			endpoint = socket;
+			try{
+				socket.connect(address);
+				socket.setTcpNoDelay(true);
+				socket.setKeepAlive(true);
+				input = socket.getInputStream();
+				output = socket.getOutputStream();
+			} catch (IOException e){
+				socket.close();
+				throw e;
+			}
+			remote = remote(socket);
+		}
+		out = new DataOutputStream(new BufferedOutputStream(output));
+		in = new DataInputStream(new BufferedInputStream(input));
+		try{
+			if(ConnectionPool.compressionThreshold() > 0 && remote){
+				new Frame(Frame.HELLO, (byte)0, 0,
+					new byte[]{Frame.DEFLATE}).write(out);
+			}
+		} catch (IOException e){
+			endpoint.close();
+			throw e;
+		}
+		Thread reader = new Thread(new Runnable() {
+			public void run(){
+				readReplies();
+			}
+		}, "rmi-connection-" + address);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/*
+	 * True if the skeleton is on another host. Compression is only offered to
+	 * remote skeletons, since on the local host it costs more time than it
+	 * saves.
+	 */
+	private static boolean remote(Socket socket){
+		InetAddress peer = socket.getInetAddress();
+		return !peer.isLoopbackAddress() && !peer.isAnyLocalAddress()
+			&& !peer.equals(socket.getLocalAddress());
+	}
+
+	/*
+	 * Sends a call and waits for its reply.
+	 */
+	Frame call(byte[] request) throws IOException, RMIException{
+		return call(Frame.CALL, request, 0);
+	}
+
+	/*
+	 * Sends a CALL or BATCH frame and waits for its reply, or until the
+	 * deadline, if it is not 0.
+	 */
+	Frame call(byte type, byte[] request, long deadline)
+		throws IOException, RMIException{
+		CompletableFuture<Frame> reply = send(type, request, deadline);
+		try{
+			return reply.join();
+		} catch (CompletionException e){
+			if(e.getCause() instanceof RMIException){
+				throw (RMIException)e.getCause();
+			}
+			throw (IOException)e.getCause();
+		}
+	}
+
+	/*
+	 * Sends a call, returning a future completed with its reply, or
+	 * completed exceptionally with an IOException if the connection fails
+	 * first.
+	 */
+	CompletableFuture<Frame> send(byte[] request) throws IOException{
+		return send(Frame.CALL, request, 0);
+	}
+
+	/*
+	 * As above, for a CALL or BATCH frame. If deadline is not 0, the request
+	 * must have been marshaled with room for it, and the future is completed
+	 * with DeadlineExceededException if no reply has arrived by then.
+	 */
+	CompletableFuture<Frame> send(byte type, byte[] request, final long deadline)
+		throws IOException{
+		final long id = nextId.incrementAndGet();
+		final CompletableFuture<Frame> reply = new CompletableFuture<Frame>();
+		byte flags = 0;
+		if(deadline != 0){
+			long remaining = Deadline.remaining(deadline);
+			if(remaining <= 0){
+				reply.completeExceptionally(new DeadlineExceededException(
+					"Deadline passed before call to " + address + " was sent"));
+				return reply;
+			}
+			Frame.setTimeout(request, remaining);
+			flags = Frame.FLAG_DEADLINE;
+		}
+		pending.put(id, reply);
+		lastUsed = System.currentTimeMillis();
+		// A close racing with the put above fails the call either here or
+		// when it fails everything pending.
+		if(closed){
+			pending.remove(id);
+			throw new IOException("Connection to " + address + " is closed");
+		}
+		Frame frame = new Frame(type, flags, id, request);
+		int threshold = ConnectionPool.compressionThreshold();
+		if(compress && threshold > 0 && request.length >= threshold){
+			frame = frame.compress();
+		}
+		try{
+			synchronized(out){
+				frame.write(out);
+			}
+		} catch (IOException e){
+			pending.remove(id);
+			close(e);
+			throw e;
+		}
+		if(deadline != 0){
+			final ScheduledFuture<?> timeout = Deadline.at(deadline, new Runnable() {
+				public void run(){
+					expire(id);
+				}
+			});
+			reply.whenComplete(new BiConsumer<Frame, Throwable>() {
+				public void accept(Frame frame, Throwable failure){
+					timeout.cancel(false);
+				}
+			});
+		}
+		return reply;
+	}
+
+	/*
+	 * Sends a call to a OneWay method, which the skeleton will not answer,
+	 * and returns once the frame is written. Nothing is left pending, so the
+	 * call does not hold the connection open.
+	 */
+	void post(byte[] request, long deadline) throws IOException, RMIException{
+		byte flags = Frame.FLAG_ONEWAY;
+		if(deadline != 0){
+			long remaining = Deadline.remaining(deadline);
+			if(remaining <= 0){
+				throw new DeadlineExceededException(
+					"Deadline passed before call to " + address + " was sent");
+			}
+			Frame.setTimeout(request, remaining);
+			flags |= Frame.FLAG_DEADLINE;
+		}
+		if(closed){
+			throw new IOException("Connection to " + address + " is closed");
+		}
+		lastUsed = System.currentTimeMillis();
+		Frame frame = new Frame(Frame.CALL, flags, nextId.incrementAndGet(),
+			request);
+		int threshold = ConnectionPool.compressionThreshold();
+		if(compress && threshold > 0 && request.length >= threshold){
+			frame = frame.compress();
+		}
+		try{
+			synchronized(out){
+				frame.write(out);
+			}
+		} catch (IOException e){
+			close(e);
+			throw e;
+		}
+	}
+
+	/*
+	 * Fails a call whose deadline has passed, and asks the skeleton to stop
+	 * running it.
+	 */
+	private void expire(long id){
+		CompletableFuture<Frame> waiting = pending.remove(id);
+		if(waiting == null){
+			return;
+		}
+		waiting.completeExceptionally(new DeadlineExceededException(
+			"No reply from " + address + " before the deadline"));
+		control(Frame.CANCEL, id, new byte[0]);
+	}
+
+	/*
+	 * Allows the skeleton to send more frames of a streamed result.
+	 */
+	void credit(long id, int frames){
+		control(Frame.CREDIT, id, ByteBuffer.allocate(4).putInt(frames).array());
+	}
+
+	/*
+	 * Abandons a streamed result before its end.
+	 */
+	void cancelStream(long id){
+		if(streams.remove(id) != null){
+			control(Frame.CANCEL, id, new byte[0]);
+		}
+	}
+
+	/*
+	 * Sends the reply to a callback, and releases it. A failure closes the
+	 * connection, on which the skeleton is then told the callback failed.
+	 */
+	void answer(Frame reply){
+		if(closed){
+			return;
+		}
+		Frame frame = reply;
+		int threshold = ConnectionPool.compressionThreshold();
+		if(compress && threshold > 0 && reply.payload.length >= threshold){
+			frame = reply.compress();
+		}
+		try{
+			synchronized(out){
+				frame.write(out);
+			}
+		} catch (IOException e){
+			close(e);
+		} finally {
+			reply.release();
+		}
+	}
+
+	/*
+	 * Sends a CANCEL or CREDIT frame. A failure closes the connection, which
+	 * fails the calls concerned anyway.
+	 */
+	private void control(byte type, long id, byte[] payload){
+		if(closed){
+			return;
+		}
+		try{
+			synchronized(out){
+				new Frame(type, (byte)0, id, payload).write(out);
+			}
+		} catch (IOException e){
+			close(e);
+		}
+	}
+
+	/*
+	 * Body of the reader thread.
+	 */
+	private void readReplies(){
+		try{
+			while(true){
+				Frame reply = Frame.read(in);
+				if(reply.type == Frame.HELLO){
+					compress = reply.payload.length > 0
+						&& (reply.payload[0] & Frame.DEFLATE) != 0;
+					continue;
+				}
+				reply = reply.decompress();
+				if(reply.type == Frame.CALL){
+					Callbacks.serve(this, reply);
+					continue;
+				}
+				if(reply.type == Frame.STREAM){
+					StreamReceiver stream = reply.hasFlag(Frame.FLAG_END)
+						? streams.remove(reply.id) : streams.get(reply.id);
+					if(stream != null){
+						lastUsed = System.currentTimeMillis();
+						stream.deliver(reply);
+					}
+					// Otherwise the stream has been abandoned
+					continue;
+				}
+				if(reply.hasFlag(Frame.FLAG_STREAM)){
+					// Frames of the result may follow at once
+					reply.stream = new StreamReceiver(this, reply.id);
+					streams.put(reply.id, reply.stream);
+				}
+				CompletableFuture<Frame> waiting = pending.remove(reply.id);
+				if(waiting == null){
+					if(reply.id > 0 && reply.id <= nextId.get()){
+						// Late reply to a call which has expired
+						cancelStream(reply.id);
+						reply.release();
+						continue;
+					}
+					throw new IOException("Reply to unknown call " + reply.id);
+				}
+				answered++;
+				lastUsed = System.currentTimeMillis();
+				waiting.complete(reply);
+			}
+		} catch (IOException e){
+			close(e);
+		}
+	}
+
+	int inFlight(){
+		return pending.size() + streams.size();
+	}
+
+	long lastUsed(){
+		return lastUsed;
+	}
+
+	/*
+	 * Records exported objects sent on this connection, given as returned by
+	 * Callbacks.written, which may be null.
+	 */
+	void carry(List<Long> exports){
+		if(exports != null){
+			callbacks.addAll(exports);
+		}
+	}
+
+	/*
+	 * True while an object sent on this connection is still exported, so
+	 * that the skeleton may call it back on the connection.
+	 */
+	boolean carriesCallbacks(){
+		if(callbacks.isEmpty()){
+			return false;
+		}
+		for(Long id : callbacks){
+			if(!Callbacks.exported(id)){
+				callbacks.remove(id);
+			}
+		}
+		return !callbacks.isEmpty();
+	}
+
+	/*
+	 * True once the connection has carried a complete call, which shows that
+	 * a later failure is not a problem with reaching the skeleton at all.
+	 */
+	boolean proven(){
+		return answered > 0;
+	}
+
+	boolean isOpen(){
+		return !closed;
+	}
+
+	void close(){
+		close(null);
+	}
+
+	/*
+	 * Closes the socket, fails all calls still waiting, and removes the
+	 * connection from the pool.
+	 */
+	private void close(Throwable cause){
+		synchronized(this){
+			if(closed){
+				return;
+			}
+			closed = true;
+		}
+		try{
+			endpoint.close();
+		} catch (IOException e){
+			// Nothing more can be done with the connection
+		}
+		IOException failure =
+			new IOException("Connection to " + address + " lost", cause);
+		for(Long id : pending.keySet()){
+			CompletableFuture<Frame> waiting = pending.remove(id);
+			if(waiting != null){
+				waiting.completeExceptionally(failure);
+			}
+		}
+		for(Long id : streams.keySet()){
+			StreamReceiver stream = streams.remove(id);
+			if(stream != null){
+				stream.fail(failure);
+			}
+		}
+		ConnectionPool.remove(this);
+	}
+}
@@ -0,0 +1,330 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Pool of persistent stub connections, shared by all stubs in the JVM.
+
+    <p>
+    Stubs used to open a new TCP connection for every remote call. The pool
+    instead keeps connections to each skeleton address open, and each
+    connection carries calls from any number of threads at once. Replies are
+    matched to calls by a request identifier, so a call blocked for a long time
+    on the server (for example, in the naming server's <code>lock</code>) does
+    not hold up other calls on the same connection.
+
+    <p>
+    A call uses the least loaded connection to its address. Another connection
+    is opened when every existing one already has
+    <code>maxCallsPerConnection</code> calls outstanding, up to
+    <code>maxConnectionsPerEndpoint</code> connections; past that, connections
+    are shared further. Connections with no outstanding calls are closed after
+    <code>idleTimeout</code> milliseconds.
+ */
+public final class ConnectionPool
+{
+	/*
+	 * Data members:
+	 *
+	 * Map<InetSocketAddress, List<Connection>> connections:
+	 * Open connections for each skeleton address.
+	 *
+	 * Map<InetSocketAddress, Integer> opening:
+	 * Number of connections to each address being opened by acquire, which
+	 * count against the per-address maximum until they are added to
+	 * connections.
+	 *
+	 * int maxConnectionsPerEndpoint:
+	 * How many connections may be opened to one address.
+	 *
+	 * int maxCallsPerConnection:
+	 * How many outstanding calls a connection carries before another
+	 * connection is opened.
+	 *
+	 * long idleTimeout:
+	 * How long, in milliseconds, a connection may sit unused in the pool.
+	 *
+	 * int compressionThreshold:
+	 * The payload size from which calls to skeletons on other hosts are
+	 * compressed, or zero if compression is not offered.
+	 *
+	 * Thread reaper:
+	 * Daemon thread closing connections which have been idle for too long.
+	 */
+	private static final Map<InetSocketAddress, List<Connection>> connections =
+		new HashMap<InetSocketAddress, List<Connection>>();
+	private static final Map<InetSocketAddress, Integer> opening =
+		new HashMap<InetSocketAddress, Integer>();
+	private static int maxConnectionsPerEndpoint = 4;
+	private static int maxCallsPerConnection = 32;
+	private static long idleTimeout = 30000;
+	private static volatile int compressionThreshold = 64 * 1024;
+	private static Thread reaper = null;
+
+	private ConnectionPool(){
+	}
+
+	/** Sets the maximum number of connections opened to each address.
+
+        @param max The new maximum.
+        @throws IllegalArgumentException If <code>max</code> is not positive.
+	 */
+	public static synchronized void setMaxConnectionsPerEndpoint(int max)
+	{
+		if(max <= 0){
+			throw new IllegalArgumentException("Non-positive pool size");
+		}
+		maxConnectionsPerEndpoint = max;
+	}
+
+	/** Sets the number of outstanding calls a connection carries before
+        another connection to the same address is opened.
+
+        @param max The new threshold.
+        @throws IllegalArgumentException If <code>max</code> is not positive.
+	 */
+	public static synchronized void setMaxCallsPerConnection(int max)
+	{
+		if(max <= 0){
+			throw new IllegalArgumentException("Non-positive call limit");
+		}
+		maxCallsPerConnection = max;
+	}
+
+	/** Sets how long a connection with no outstanding calls is kept open.
+
+        <p>
+        The new timeout applies at once, including to connections which are
+        already idle.
+
+        @param millis The idle timeout, in milliseconds.
+        @throws IllegalArgumentException If <code>millis</code> is not positive.
+	 */
+	public static synchronized void setIdleTimeout(long millis)
+	{
+		if(millis <= 0){
+			throw new IllegalArgumentException("Non-positive idle timeout");
+		}
+		idleTimeout = millis;
+		if(reaper != null){
+			// Wakes the reaper to sleep for the new interval instead
+			reaper.interrupt();
+		}
+	}
+
+	/** Sets the size from which call payloads are compressed.
+
+        <p>
+        When a stub connects to a skeleton on another host, it offers to
+        compress large messages. If the skeleton agrees, calls whose
+        marshaled arguments are at least <code>bytes</code> long are sent
+        compressed, and the skeleton compresses large results in the same way.
+        Compression uses a fast deflate setting, and is skipped for payloads
+        which do not shrink. Connections to the local host are never
+        compressed. The default threshold is 64 KB.
+
+        <p>
+        The setting applies to connections opened afterwards.
+
+        @param bytes The threshold, or zero to disable compression.
+        @throws IllegalArgumentException If <code>bytes</code> is negative.
+	 */
+	public static void setCompressionThreshold(int bytes)
+	{
+		if(bytes < 0){
+			throw new IllegalArgumentException("Negative threshold");
+		}
+		compressionThreshold = bytes;
+	}
+
+	static int compressionThreshold(){
+		return compressionThreshold;
+	}
+
+	/** Closes all pooled connections. Calls outstanding on them fail with
+        <code>RMIException</code>.
+	 */
+	public static void clear()
+	{
+		List<Connection> all = new ArrayList<Connection>();
+		synchronized(ConnectionPool.class){
+			for(List<Connection> l : connections.values()){
+				all.addAll(l);
+			}
+			connections.clear();
+		}
+		for(Connection conn : all){
+			conn.close();
+		}
+	}
+
+	/*
+	 * Returns the least loaded open connection to the given address, opening
+	 * a new one if there is none or if all are busy and the address has room
+	 * for another. A new connection is made through the skeleton's Unix
+	 * domain socket at the given path, if it is not null.
+	 *
+	 * Connections still being opened count against the maximum, so that a
+	 * burst of first calls to an address shares the connections it opens
+	 * rather than each opening its own. A caller which finds no open
+	 * connection and no room for another waits for one being opened.
+	 */
+	static Connection acquire(InetSocketAddress address, String path)
+		throws IOException{
+		synchronized(ConnectionPool.class){
+			while(true){
+				List<Connection> l = connections.get(address);
+				Connection best = null;
+				if(l != null){
+					for(Connection conn : l){
+						if(conn.isOpen()
+							&& (best == null || conn.inFlight() < best.inFlight())){
+							best = conn;
+						}
+					}
+				}
+				Integer pending = opening.get(address);
+				int count = (l == null ? 0 : l.size())
+					+ (pending == null ? 0 : pending);
+				if(best != null && (best.inFlight() < maxCallsPerConnection
+					|| count >= maxConnectionsPerEndpoint)){
+					return best;
+				}
+				if(count < maxConnectionsPerEndpoint){
+					opening.put(address, pending == null ? 1 : pending + 1);
+					break;
+				}
+				try{
+					ConnectionPool.class.wait();
+				} catch (InterruptedException e){
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+						"Interrupted waiting for a connection to " + address);
+				}
+			}
+		}
+		// Connecting may take a while, so it is done without the pool lock.
+		try{
+			return open(address, path);
+		} finally {
+			synchronized(ConnectionPool.class){
+				int pending = opening.get(address) - 1;
+				if(pending == 0){
+					opening.remove(address);
+				} else {
+					opening.put(address, pending);
+				}
+				ConnectionPool.class.notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * Opens a new connection to the given address and adds it to the pool.
+	 * If a Unix domain socket path is given, it is tried first, and TCP is
+	 * used if the skeleton cannot be reached through it.
+	 */
+	static Connection open(InetSocketAddress address, String path)
+		throws IOException{
+		Connection conn = null;
+		if(path != null){
+			try{
+				conn = new Connection(address, path);
+			} catch (IOException e){
+				// Not listening there, or not on this host after all
+			}
+		}
+		if(conn == null){
+			conn = new Connection(address);
+		}
+		synchronized(ConnectionPool.class){
+			List<Connection> l = connections.get(address);
+			if(l == null){
+				l = new ArrayList<Connection>();
+				connections.put(address, l);
+			}
+			l.add(conn);
+			startReaper();
+		}
+		return conn;
+	}
+
+	/*
+	 * Forgets a connection which has been closed, making room for callers
+	 * waiting in acquire.
+	 */
+	static synchronized void remove(Connection conn){
+		List<Connection> l = connections.get(conn.address);
+		if(l != null){
+			l.remove(conn);
+			if(l.isEmpty()){
+				connections.remove(conn.address);
+			}
+			ConnectionPool.class.notifyAll();
+		}
+	}
+
+	/*
+	 * Closes connections with no outstanding calls that have been idle for
+	 * longer than the timeout, and idle connections in excess of the
+	 * per-address maximum, which remain after the maximum is lowered or
+	 * after a call is retried on a fresh connection. A connection which has
+	 * carried an object that is still exported is not closed, since the
+	 * skeleton calls the object back over it.
+	 */
+	private static void evict(){
+		List<Connection> victims = new ArrayList<Connection>();
+		synchronized(ConnectionPool.class){
+			long now = System.currentTimeMillis();
+			for(List<Connection> l : connections.values()){
+				int excess = l.size() - maxConnectionsPerEndpoint;
+				for(Connection conn : l){
+					if(conn.inFlight() != 0 || conn.carriesCallbacks()){
+						continue;
+					}
+					if(excess > 0 || now - conn.lastUsed() >= idleTimeout){
+						victims.add(conn);
+						excess--;
+					}
+				}
+			}
+		}
+		// Closing a connection removes it from the pool under the pool lock.
+		for(Connection conn : victims){
+			conn.close();
+		}
+	}
+
+	/*
+	 * Starts the eviction thread on first use. Called with the pool lock held.
+	 * The thread is interrupted only when the idle timeout changes.
+	 */
+	private static void startReaper(){
+		if(reaper != null){
+			return;
+		}
+		reaper = new Thread(new Runnable() {
+			public void run(){
+				while(true){
+					long sleep;
+					synchronized(ConnectionPool.class){
+						sleep = Math.max(idleTimeout / 2, 100);
+					}
+					try{
+						Thread.sleep(sleep);
+					} catch (InterruptedException e){
+						// The timeout has changed
+					}
+					evict();
+				}
+			}
+		}, "rmi-connection-reaper");
+		reaper.setDaemon(true);
+		reaper.start();
+	}
+}
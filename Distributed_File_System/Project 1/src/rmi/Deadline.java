@@ -0,0 +1,93 @@
+package rmi;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Call deadlines, as values of System.nanoTime, with 0 meaning no deadline.
+ *
+ * While a skeleton runs a call which has a deadline, the deadline is kept
+ * for the running thread, and calls made by that thread through any stub are
+ * given the same deadline or an earlier one. A server which calls other
+ * servers on a client's behalf therefore stops waiting for them when the
+ * client would stop waiting for it.
+ *
+ * A single daemon thread runs the timers which expire calls on the stub side
+ * and interrupt them on the skeleton side. Timers are removed when cancelled,
+ * so calls which finish in time leave nothing behind.
+ */
+final class Deadline {
+	private static final ThreadLocal<long[]> current = new ThreadLocal<long[]>() {
+		protected long[] initialValue(){
+			return new long[1];
+		}
+	};
+
+	private static final ScheduledThreadPoolExecutor timer =
+		new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "rmi-deadline");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	static {
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	private Deadline(){
+	}
+
+	/*
+	 * Returns the deadline of a call starting now, given the stub's timeout in
+	 * nanoseconds (0 for none) and the deadline of the call, if any, which
+	 * the current thread is running.
+	 */
+	static long forCall(long timeout){
+		long inherited = current.get()[0];
+		if(timeout <= 0){
+			return inherited;
+		}
+		long deadline = System.nanoTime() + timeout;
+		if(deadline == 0){
+			deadline = 1;
+		}
+		if(inherited != 0 && inherited - deadline < 0){
+			return inherited;
+		}
+		return deadline;
+	}
+
+	/*
+	 * Returns the nanoseconds left before a deadline, which may be negative.
+	 */
+	static long remaining(long deadline){
+		return deadline - System.nanoTime();
+	}
+
+	/*
+	 * Makes the given deadline the current thread's, returning the previous
+	 * one for restore.
+	 */
+	static long enter(long deadline){
+		long[] slot = current.get();
+		long previous = slot[0];
+		slot[0] = deadline;
+		return previous;
+	}
+
+	static void restore(long previous){
+		current.get()[0] = previous;
+	}
+
+	/*
+	 * Runs task once the deadline has passed.
+	 */
+	static ScheduledFuture<?> at(long deadline, Runnable task){
+		return timer.schedule(task, Math.max(remaining(deadline), 0),
+			TimeUnit.NANOSECONDS);
+	}
+}
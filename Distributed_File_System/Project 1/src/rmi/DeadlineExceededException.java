@@ -0,0 +1,22 @@
+package rmi;
+
+/** Thrown by a stub when a call is not answered before its deadline.
+
+    <p>
+    A call has a deadline when it is made through a stub returned by
+    <code>Stub.withTimeout</code>, or from within a remote method which was
+    itself called with a deadline. The deadline is sent with the call. If it
+    passes before the skeleton starts the call, the call is dropped without
+    being run. If it passes while the call is running, the thread running it
+    is interrupted, and the stub stops waiting and throws this exception. In
+    the latter case the call may or may not have had its effect.
+ */
+public class DeadlineExceededException extends RMIException
+{
+    /** Creates a <code>DeadlineExceededException</code> with the given
+        message string. */
+    public DeadlineExceededException(String message)
+    {
+        super(message);
+    }
+}
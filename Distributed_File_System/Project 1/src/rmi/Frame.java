@@ -0,0 +1,474 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * A unit of the stub-skeleton protocol.
+ *
+ * Every message on a connection is a frame:
+ *
+ *     int   length    number of bytes following this field
+ *     byte  type      CALL, BATCH, REPLY, HELLO, CANCEL, STREAM or CREDIT
+ *     byte  flags     FLAG_EXCEPTION on replies carrying a thrown exception,
+ *                     FLAG_COMPRESSED on frames with a compressed payload,
+ *                     FLAG_DEADLINE on calls and batches with a deadline,
+ *                     FLAG_STREAM on replies followed by STREAM frames,
+ *                     FLAG_END on the last STREAM frame of a result,
+ *                     FLAG_ONEWAY on calls which are not to be answered
+ *     long  id        chosen by the stub, echoed by the skeleton in the reply
+ *     byte[] payload  the marshaled call or result
+ *
+ * A call's payload names the method by its id in the interface's
+ * MethodTable; see marshalCall. A batch carries several calls to be run in
+ * order, and is answered by a single reply carrying all their results; see
+ * marshalBatch. Values are encoded by Codec.
+ *
+ * The id lets many calls share one connection: a stub may send further calls
+ * before earlier ones are answered, and the skeleton may answer in any order.
+ *
+ * A stub may open a connection with a HELLO frame whose payload is one byte,
+ * the set of compression codecs it accepts. The skeleton answers with a HELLO
+ * frame giving the codecs both sides accept. Until then, neither side
+ * compresses. Afterwards, either side may compress a large payload with an
+ * agreed codec; see compress.
+ *
+ * A call or batch with FLAG_DEADLINE has a long before its payload proper:
+ * the time in nanoseconds for which the stub will wait for the reply,
+ * counted from when the frame was sent. The stub may send a CANCEL frame
+ * with the id of a call it has stopped waiting for, and the skeleton then
+ * interrupts the call if it is still running.
+ *
+ * A method which returns a RemoteIterator or an InputStream is answered with
+ * a REPLY frame with FLAG_STREAM, whose payload is one byte, STREAM_ITEMS or
+ * STREAM_BYTES. The result then follows in STREAM frames with the call's id:
+ * each holds a count and that many values encoded by Codec, or a block of
+ * bytes. The last has FLAG_END, and if the result fails part way, also
+ * FLAG_EXCEPTION and the exception as its payload. The skeleton sends
+ * STREAM_WINDOW frames and then waits for CREDIT frames, each of whose
+ * payload is an int number of further frames the stub has room for. A stub
+ * which stops reading early sends CANCEL.
+ *
+ * Every call and batch also carries a request id, unique to the process
+ * which made it, ahead of its payload proper. A stub which resends a call,
+ * after losing the connection it sent it on, sends the same id, and a
+ * skeleton which has already run a call with that id answers from its
+ * RequestLog rather than running it again.
+ *
+ * After the request id comes the call's trace context, or zeros if it is
+ * not traced; see Trace.
+ *
+ * A CALL frame with FLAG_ONEWAY, sent for a OneWay method, is run like any
+ * other call but never answered, not even when it fails or is refused; the
+ * skeleton reports the failure locally instead. Its id is still unique on
+ * the connection, so that it can be cancelled.
+ *
+ * Payloads of frames read from a connection, and of encoded values, are
+ * taken from BufferPool. The holder of a frame marked pooled owns its
+ * payload, and gives it back with release once the payload has been
+ * unmarshaled or written; a frame whose payload is shared, or kept, is not
+ * marked. Frames are written as their header followed by their payload,
+ * without first copying the two together.
+ */
+class Frame {
+	static final byte CALL = 1;
+	static final byte REPLY = 2;
+	static final byte BATCH = 3;
+	static final byte HELLO = 4;
+	static final byte CANCEL = 5;
+	static final byte STREAM = 6;
+	static final byte CREDIT = 7;
+
+	static final byte FLAG_EXCEPTION = 0x01;
+	static final byte FLAG_COMPRESSED = 0x02;
+	static final byte FLAG_DEADLINE = 0x04;
+	static final byte FLAG_STREAM = 0x08;
+	static final byte FLAG_END = 0x10;
+	static final byte FLAG_ONEWAY = 0x20;
+
+	// Kinds of streamed result, and the initial credit of a stream
+	static final byte STREAM_ITEMS = 1;
+	static final byte STREAM_BYTES = 2;
+	static final int STREAM_WINDOW = 8;
+
+	// Compression codecs offered in HELLO frames
+	static final byte DEFLATE = 0x01;
+	// Fastest deflate setting; large payloads are mostly file data, where
+	// speed matters more than the last few percent of size.
+	private static final int DEFLATE_LEVEL = 1;
+
+	// type, flags and id
+	static final int HEADER_LENGTH = 1 + 1 + 8;
+	// Request id: the process which made the call, and its sequence number
+	static final int REQUEST_ID_LENGTH = 8 + 8;
+	private static final long CLIENT = UUID.randomUUID().getMostSignificantBits();
+	private static final AtomicLong requests = new AtomicLong();
+	// Trace context: the trace id and the stub's span id, or zeros
+	static final int TRACE_LENGTH = 8 + 8;
+	// Guards against reading garbage as an enormous length
+	static final int MAX_LENGTH = Integer.MAX_VALUE - 64;
+
+	final byte type;
+	final byte flags;
+	final long id;
+	final byte[] payload;
+	// Set by the connection which receives a REPLY with FLAG_STREAM
+	StreamReceiver stream;
+	// True if the holder of this frame owns its payload; see release
+	boolean pooled;
+
+	Frame(byte type, byte flags, long id, byte[] payload){
+		this.type = type;
+		this.flags = flags;
+		this.id = id;
+		this.payload = payload;
+	}
+
+	boolean hasFlag(byte flag){
+		return (flags & flag) != 0;
+	}
+
+	/*
+	 * Gives the payload back to BufferPool, if this frame owns it. Neither
+	 * the payload nor anything unmarshaled from it lazily may be used
+	 * afterwards.
+	 */
+	void release(){
+		if(pooled){
+			pooled = false;
+			BufferPool.give(payload);
+		}
+	}
+
+	/*
+	 * Returns this frame with its payload compressed with deflate, as
+	 *
+	 *     int    length   the uncompressed payload length
+	 *     byte[] data     the zlib stream
+	 *
+	 * or this frame itself if compression does not make it noticeably smaller.
+	 */
+	Frame compress(){
+		Deflater deflater = new Deflater(DEFLATE_LEVEL);
+		try{
+			ByteArrayOutputStream bytes =
+				new ByteArrayOutputStream(payload.length / 2 + 64);
+			bytes.write(payload.length >>> 24);
+			bytes.write(payload.length >>> 16);
+			bytes.write(payload.length >>> 8);
+			bytes.write(payload.length);
+			byte[] buffer = new byte[16 * 1024];
+			int offset = 0;
+			if(payload.length == 0){
+				deflater.finish();
+			}
+			while(!deflater.finished()){
+				// Input is given a block at a time, so that data which does
+				// not shrink, such as data already compressed, is noticed
+				// after the first block.
+				if(deflater.needsInput() && offset < payload.length){
+					int n = Math.min(buffer.length, payload.length - offset);
+					deflater.setInput(payload, offset, n);
+					offset += n;
+					if(offset == payload.length){
+						deflater.finish();
+					}
+				}
+				bytes.write(buffer, 0, deflater.deflate(buffer));
+				if(bytes.size() > offset * 9L / 10 + 64){
+					return this;
+				}
+			}
+			return new Frame(type, (byte)(flags | FLAG_COMPRESSED), id,
+				bytes.toByteArray());
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/*
+	 * Returns this frame with its payload decompressed, if it was
+	 * compressed. The new frame owns its payload, and this frame's payload
+	 * is released.
+	 */
+	Frame decompress() throws IOException{
+		if(!hasFlag(FLAG_COMPRESSED)){
+			return this;
+		}
+		if(payload.length < 4){
+			throw new IOException("Truncated compressed payload");
+		}
+		int length = ByteBuffer.wrap(payload).getInt();
+		if(length < 0 || length > MAX_LENGTH){
+			throw new IOException("Bad uncompressed length " + length);
+		}
+		byte[] data = BufferPool.take(length);
+		Inflater inflater = new Inflater();
+		try{
+			inflater.setInput(payload, 4, payload.length - 4);
+			int n = 0;
+			while(n < length){
+				int k = inflater.inflate(data, n, length - n);
+				if(k == 0 && (inflater.finished() || inflater.needsInput()
+					|| inflater.needsDictionary())){
+					break;
+				}
+				n += k;
+			}
+			if(n != length){
+				throw new IOException("Compressed payload is truncated");
+			}
+		} catch (DataFormatException e){
+			throw new IOException("Corrupt compressed payload", e);
+		} finally {
+			inflater.end();
+		}
+		release();
+		Frame frame = new Frame(type, (byte)(flags & ~FLAG_COMPRESSED), id, data);
+		frame.pooled = true;
+		return frame;
+	}
+
+	/*
+	 * Reads one frame, which owns its payload. Throws EOFException if the
+	 * peer closed the connection between frames.
+	 */
+	static Frame read(DataInputStream in) throws IOException{
+		int length = in.readInt();
+		if(length < HEADER_LENGTH || length > MAX_LENGTH){
+			throw new IOException("Bad frame length " + length);
+		}
+		byte type = in.readByte();
+		byte flags = in.readByte();
+		long id = in.readLong();
+		byte[] payload = BufferPool.take(length - HEADER_LENGTH);
+		in.readFully(payload);
+		Frame frame = new Frame(type, flags, id, payload);
+		frame.pooled = true;
+		return frame;
+	}
+
+	/*
+	 * Decodes a frame whose length field has already been consumed from the
+	 * buffer and whose remaining bytes are all present.
+	 */
+	static Frame read(ByteBuffer buffer, int length) throws IOException{
+		if(length < HEADER_LENGTH || length > MAX_LENGTH){
+			throw new IOException("Bad frame length " + length);
+		}
+		byte type = buffer.get();
+		byte flags = buffer.get();
+		long id = buffer.getLong();
+		byte[] payload = BufferPool.take(length - HEADER_LENGTH);
+		buffer.get(payload);
+		Frame frame = new Frame(type, flags, id, payload);
+		frame.pooled = true;
+		return frame;
+	}
+
+	/*
+	 * Writes and flushes one frame. Callers sharing the stream must hold its
+	 * lock, so that frames from different threads are not interleaved. A
+	 * large payload goes straight from its array to the socket, past the
+	 * stream's buffer.
+	 */
+	void write(DataOutputStream out) throws IOException{
+		out.write(header());
+		out.write(payload);
+		out.flush();
+	}
+
+	/*
+	 * Returns the whole frame, length field included, as its header and its
+	 * payload, to be written together by a gathering write.
+	 */
+	ByteBuffer[] buffers(){
+		return new ByteBuffer[]{ByteBuffer.wrap(header()),
+			ByteBuffer.wrap(payload)};
+	}
+
+	private byte[] header(){
+		byte[] header = new byte[4 + HEADER_LENGTH];
+		ByteBuffer.wrap(header).putInt(HEADER_LENGTH + payload.length)
+			.put(type).put(flags).putLong(id);
+		return header;
+	}
+
+	/*
+	 * Marshals an object into a frame payload, taken from BufferPool.
+	 */
+	static byte[] marshal(Object o) throws IOException{
+		return Codec.encode(o);
+	}
+
+	/*
+	 * Marshals a call payload:
+	 *
+	 *     long   client   identifies this process
+	 *     long   request  sequence number of the call in this process
+	 *     long   trace    id of the call's trace, or 0 if not traced
+	 *     long   span     id of the stub's span for the call, or 0
+	 *     int    table    fingerprint of the interface's method table
+	 *     int    method   index of the method in the table
+	 *     int    count    number of arguments
+	 *     ...    args     each argument, encoded by Codec
+	 *
+	 * If deadline is true, room is left at the start for the time remaining,
+	 * which is filled in by setTimeout when the call is sent.
+	 */
+	static byte[] marshalCall(int table, int method, Object[] args,
+		boolean deadline, Trace.Span span) throws IOException{
+		BufferPool.Output bytes = new BufferPool.Output();
+		DataOutputStream out = new DataOutputStream(bytes);
+		if(deadline){
+			out.writeLong(0);
+		}
+		writeRequestId(out);
+		writeTrace(span, out);
+		out.writeInt(table);
+		writeCall(method, args, out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * Marshals a batch payload: the request id, trace context, table
+	 * fingerprint and the number of calls, followed by each call's method,
+	 * argument count and arguments as in a single call. Room is left for a
+	 * deadline as in marshalCall.
+	 */
+	static byte[] marshalBatch(int table, int[] methods, Object[][] args,
+		boolean deadline, Trace.Span span) throws IOException{
+		BufferPool.Output bytes = new BufferPool.Output();
+		DataOutputStream out = new DataOutputStream(bytes);
+		if(deadline){
+			out.writeLong(0);
+		}
+		writeRequestId(out);
+		writeTrace(span, out);
+		out.writeInt(table);
+		out.writeInt(methods.length);
+		for(int i = 0; i < methods.length; i++){
+			writeCall(methods[i], args[i], out);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void writeRequestId(DataOutputStream out)
+		throws IOException{
+		out.writeLong(CLIENT);
+		out.writeLong(requests.incrementAndGet());
+	}
+
+	private static void writeTrace(Trace.Span span, DataOutputStream out)
+		throws IOException{
+		out.writeLong(span == null ? 0 : span.trace);
+		out.writeLong(span == null ? 0 : span.id);
+	}
+
+	/*
+	 * Returns the offset in a call or batch payload of the table
+	 * fingerprint, which follows the deadline, if any, the request id and
+	 * the trace context.
+	 */
+	static int callOffset(boolean deadline){
+		return (deadline ? 8 : 0) + REQUEST_ID_LENGTH + TRACE_LENGTH;
+	}
+
+	private static void writeCall(int method, Object[] args,
+		DataOutputStream out) throws IOException{
+		out.writeInt(method);
+		if(args == null){
+			out.writeInt(0);
+		} else {
+			out.writeInt(args.length);
+			for(Object arg : args){
+				Codec.write(arg, out);
+			}
+		}
+	}
+
+	/*
+	 * Stores the time remaining before a deadline in the room left for it
+	 * by marshalCall or marshalBatch.
+	 */
+	static void setTimeout(byte[] payload, long nanos){
+		ByteBuffer.wrap(payload).putLong(0, nanos);
+	}
+
+	/*
+	 * Reads the argument count and arguments of one call, after its method.
+	 */
+	static Object[] readArgs(DataInputStream in) throws IOException{
+		int count = readCount(in);
+		Object[] args = new Object[count];
+		for(int i = 0; i < count; i++){
+			args[i] = Codec.read(in);
+		}
+		return args;
+	}
+
+	/*
+	 * Reads a count of following items, each of which takes at least one
+	 * byte.
+	 */
+	static int readCount(DataInputStream in) throws IOException{
+		int count = in.readInt();
+		if(count < 0 || count > in.available()){
+			throw new IOException("Bad count " + count);
+		}
+		return count;
+	}
+
+	/*
+	 * Marshals the reply to a batch: the number of results, then for each
+	 * call a boolean which is true if it threw, and its result or exception.
+	 * The results are given already marshaled.
+	 */
+	static byte[] marshalResults(byte[][] values, boolean[] thrown)
+		throws IOException{
+		BufferPool.Output bytes = new BufferPool.Output();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(values.length);
+		for(int i = 0; i < values.length; i++){
+			out.writeBoolean(thrown[i]);
+			out.write(values[i]);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * Unmarshals the reply to a batch of the given size into values and
+	 * thrown.
+	 */
+	static void unmarshalResults(byte[] payload, Object[] values,
+		boolean[] thrown) throws IOException{
+		DataInputStream in =
+			new DataInputStream(new ByteArrayInputStream(payload));
+		if(in.readInt() != values.length){
+			throw new IOException("Wrong number of results in batch reply");
+		}
+		for(int i = 0; i < values.length; i++){
+			thrown[i] = in.readBoolean();
+			values[i] = Codec.read(in);
+		}
+	}
+
+	/*
+	 * Unmarshals a frame payload.
+	 */
+	static Object unmarshal(byte[] payload) throws IOException{
+		return Codec.decode(payload, 0, payload.length);
+	}
+}
@@ -0,0 +1,110 @@
+package rmi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A concurrent histogram of durations in nanoseconds, with buckets of
+ * bounded relative width in the manner of HdrHistogram.
+ *
+ * Values below 2^SUB_BITS have a bucket each. Above that, each power of two
+ * is divided into 2^SUB_BITS buckets of equal width, so a value is known to
+ * within about 6% wherever it falls, and the whole range up to about 18
+ * minutes takes a few hundred counters. Longer durations are counted in the
+ * last bucket, though the maximum is still kept exactly.
+ *
+ * Recording takes a few atomic increments and never locks, so it can be done
+ * on every call. Percentiles are computed from a snapshot of the counters,
+ * which may be slightly inconsistent while calls are being recorded.
+ */
+final class Histogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int MAX_EXPONENT = 40;
+	private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+	private final AtomicLongArray counts =
+		new AtomicLongArray((MAX_EXPONENT - SUB_BITS + 2) * SUB);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	void record(long nanos){
+		if(nanos < 0){
+			nanos = 0;
+		}
+		counts.incrementAndGet(index(Math.min(nanos, MAX_VALUE)));
+		total.incrementAndGet();
+		sum.addAndGet(nanos);
+		long m = max.get();
+		while(nanos > m && !max.compareAndSet(m, nanos)){
+			m = max.get();
+		}
+	}
+
+	long count(){
+		return total.get();
+	}
+
+	long max(){
+		return max.get();
+	}
+
+	double mean(){
+		long n = total.get();
+		return n == 0 ? 0 : (double)sum.get() / n;
+	}
+
+	/*
+	 * Returns the value below which the given fraction of recorded values
+	 * fall, as the midpoint of the bucket holding it, or 0 if nothing has
+	 * been recorded.
+	 */
+	long percentile(double fraction){
+		long[] snapshot = new long[counts.length()];
+		long n = 0;
+		for(int i = 0; i < snapshot.length; i++){
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if(n == 0){
+			return 0;
+		}
+		long rank = Math.max(1, (long)Math.ceil(fraction * n));
+		long seen = 0;
+		for(int i = 0; i < snapshot.length; i++){
+			seen += snapshot[i];
+			if(seen >= rank){
+				return Math.min(middle(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	void reset(){
+		for(int i = 0; i < counts.length(); i++){
+			counts.set(i, 0);
+		}
+		total.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	private static int index(long value){
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if(exponent < SUB_BITS){
+			return (int)value;
+		}
+		int shift = exponent - SUB_BITS;
+		return (shift + 1) * SUB + (int)((value >>> shift) - SUB);
+	}
+
+	private static long middle(int index){
+		if(index < SUB){
+			return index;
+		}
+		int shift = index / SUB - 1;
+		long low = (long)(index % SUB + SUB) << shift;
+		return low + ((1L << shift) >>> 1);
+	}
+}
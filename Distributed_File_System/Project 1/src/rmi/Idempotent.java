@@ -0,0 +1,35 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Marks a remote method which may safely be run more than once for one
+    call, on any of the remote object's replicas.
+
+    <p>
+    A stub made with <code>Stub.withFailover</code> holds a list of
+    equivalent remote objects. If a call to a method with this annotation
+    fails because its remote object cannot be reached, or the connection is
+    lost before the reply arrives, the stub waits briefly and repeats the call
+    on the next object in the list. Calls to other methods move on to the next
+    object only if the stub could not connect at all, since otherwise the call
+    may already have run, and calls to other methods marked
+    <code>Invalidates</code> never move on, since they change the object they
+    were made on.
+
+    <p>
+    Methods marked <code>Cacheable</code> or <code>Coalesce</code> are taken
+    to be idempotent as well, since neither may change the state of the remote
+    object. Skeletons remember the outcome of recent calls to all other
+    methods, so that a call repeated to the same skeleton after a lost
+    connection is answered with its first outcome rather than run again.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Idempotent
+{
+}
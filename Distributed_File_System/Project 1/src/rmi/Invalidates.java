@@ -0,0 +1,22 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Marks a remote method which may change results cached by stubs.
+
+    <p>
+    Calling a method with this annotation through any stub clears all results
+    cached for methods marked <code>Cacheable</code>, for every remote object,
+    both before the call is sent and once it returns. Batches clear the cache
+    in the same way if any of their calls is to such a method.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Invalidates
+{
+}
@@ -0,0 +1,32 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Assigns a remote method to a named lane of the skeleton's worker threads.
+
+    <p>
+    Each lane has its own worker pool and queue, so calls in one lane never
+    wait behind calls in another. Methods which move bulk data, or which may
+    block for a long time, can be placed in lanes of their own, so that a
+    flood of such calls does not delay the other methods of the interface.
+    Methods without this annotation run in the skeleton's default lane.
+
+    <p>
+    A skeleton may move a method to another lane with
+    <code>Skeleton.setLane</code>, and may size each lane's pool with
+    <code>Skeleton.setLanePool</code>. A batch of calls runs in the lane of
+    its first call. Calls made directly by stubs in the same virtual machine
+    run in the caller's thread, and so in no lane.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Lane
+{
+    /** The name of the lane. */
+    String value();
+}
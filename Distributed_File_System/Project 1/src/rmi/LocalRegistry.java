@@ -0,0 +1,143 @@
+package rmi;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The skeletons running in this virtual machine, by port, so that stubs for
+ * them can call them directly instead of through a loopback connection.
+ *
+ * A stub's skeleton is local if a running skeleton for the same interface is
+ * listening on the stub's port, and the stub's address is one at which that
+ * skeleton can be reached: an address of this host if the skeleton listens on
+ * all addresses, or else the address the skeleton listens on. Only one
+ * listening socket on a host can have a given port, so such a stub can only
+ * be connecting to that skeleton.
+ *
+ * By default, local calls are still marshaled, and run through the
+ * skeleton's usual dispatch in the caller's thread. This keeps the semantics
+ * of remote calls, since the server object and the caller each see their own
+ * copies of arguments and results, while skipping the connection, its
+ * threads and its system calls. When passing by reference is enabled,
+ * single calls skip marshaling as well, and the server object receives the
+ * caller's own objects.
+ *
+ * Every change to the registry or its settings advances a version number,
+ * so that a stub can keep the skeleton it found, and look again only when
+ * the version has changed.
+ */
+final class LocalRegistry {
+	/*
+	 * Data members:
+	 *
+	 * ConcurrentHashMap<Integer, Skeleton<?>> skeletons:
+	 * The running skeletons, by the port they listen on.
+	 *
+	 * ConcurrentHashMap<InetAddress, Boolean> hostAddresses:
+	 * Whether each address looked up so far belongs to this host.
+	 *
+	 * boolean enabled:
+	 * true if stubs call local skeletons directly.
+	 *
+	 * boolean byReference:
+	 * true if direct calls pass arguments and results by reference.
+	 *
+	 * AtomicInteger version:
+	 * Advanced on every change to the skeletons or settings.
+	 */
+	private static final ConcurrentHashMap<Integer, Skeleton<?>> skeletons =
+		new ConcurrentHashMap<Integer, Skeleton<?>>();
+	private static final ConcurrentHashMap<InetAddress, Boolean> hostAddresses =
+		new ConcurrentHashMap<InetAddress, Boolean>();
+	private static volatile boolean enabled = true;
+	private static volatile boolean byReference = false;
+	private static final AtomicInteger version = new AtomicInteger();
+
+	private LocalRegistry(){
+	}
+
+	static void setEnabled(boolean enabled){
+		LocalRegistry.enabled = enabled;
+		version.incrementAndGet();
+	}
+
+	static void setByReference(boolean byReference){
+		LocalRegistry.byReference = byReference;
+	}
+
+	static boolean byReference(){
+		return byReference;
+	}
+
+	/*
+	 * Called by a skeleton once it is listening on the given port.
+	 */
+	static void register(int port, Skeleton<?> skeleton){
+		skeletons.put(port, skeleton);
+		version.incrementAndGet();
+	}
+
+	/*
+	 * Called by a skeleton when it stops.
+	 */
+	static void unregister(int port, Skeleton<?> skeleton){
+		skeletons.remove(port, skeleton);
+		version.incrementAndGet();
+	}
+
+	/*
+	 * Returns the current version. A value of find read after this version
+	 * stays correct until the version changes.
+	 */
+	static int version(){
+		return version.get();
+	}
+
+	/*
+	 * Returns the running skeleton in this virtual machine which a stub for
+	 * the given interface and address would connect to, or null if there is
+	 * none or direct calls are disabled.
+	 */
+	static Skeleton<?> find(InetSocketAddress address, Class<?> c){
+		if(!enabled || skeletons.isEmpty() || address.isUnresolved()){
+			return null;
+		}
+		Skeleton<?> skeleton = skeletons.get(address.getPort());
+		if(skeleton == null || skeleton.c != c || !skeleton.running){
+			return null;
+		}
+		InetAddress bound = skeleton.listenSocket.getInetAddress();
+		InetAddress target = address.getAddress();
+		if(bound == null || bound.isAnyLocalAddress()){
+			return isHostAddress(target) ? skeleton : null;
+		}
+		if(target.equals(bound)
+			|| (target.isLoopbackAddress() && bound.isLoopbackAddress())){
+			return skeleton;
+		}
+		return null;
+	}
+
+	/*
+	 * Returns true if connecting to the given address reaches this host.
+	 */
+	static boolean isHostAddress(InetAddress address){
+		if(address.isAnyLocalAddress() || address.isLoopbackAddress()){
+			return true;
+		}
+		Boolean known = hostAddresses.get(address);
+		if(known == null){
+			try{
+				known = NetworkInterface.getByInetAddress(address) != null;
+			} catch(SocketException e){
+				known = false;
+			}
+			hostAddresses.put(address, known);
+		}
+		return known;
+	}
+}
@@ -0,0 +1,51 @@
+package rmi;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Limit on the number of calls to one remote method which a skeleton runs at
+ * once, with the count of calls refused because of it.
+ */
+class MethodLimit {
+	/*
+	 * Data members:
+	 *
+	 * int limit:
+	 * The most calls which may be in progress at once.
+	 *
+	 * AtomicInteger active:
+	 * The calls currently in progress.
+	 *
+	 * AtomicLong rejected:
+	 * The calls refused since the limit was set.
+	 */
+	final int limit;
+	private final AtomicInteger active = new AtomicInteger();
+	final AtomicLong rejected = new AtomicLong();
+
+	MethodLimit(int limit){
+		this.limit = limit;
+	}
+
+	/*
+	 * Counts the start of a call. Returns false, counting a rejection, if the
+	 * method is already at its limit.
+	 */
+	boolean enter(){
+		while(true){
+			int n = active.get();
+			if(n >= limit){
+				rejected.incrementAndGet();
+				return false;
+			}
+			if(active.compareAndSet(n, n + 1)){
+				return true;
+			}
+		}
+	}
+
+	void exit(){
+		active.decrementAndGet();
+	}
+}
@@ -0,0 +1,152 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Counters and latency histograms for the calls to one method of one
+ * skeleton. Updated by the skeleton on every call, and read through JMX and
+ * the skeleton's metrics report.
+ */
+final class MethodStats implements MethodStatsMBean {
+	/*
+	 * Data members:
+	 *
+	 * String interfaceName, method:
+	 * The remote interface, and the method's name and parameter types.
+	 *
+	 * AtomicLong calls, errors, bytesIn, bytesOut:
+	 * Calls completed, calls which threw, and the encoded sizes of their
+	 * arguments and results.
+	 *
+	 * Histogram decode, invoke, encode:
+	 * Nanoseconds spent on each part of a call.
+	 */
+	private final String interfaceName;
+	private final String method;
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	final Histogram decode = new Histogram();
+	final Histogram invoke = new Histogram();
+	final Histogram encode = new Histogram();
+
+	MethodStats(Class<?> c, Method m){
+		interfaceName = c.getName();
+		StringBuilder s = new StringBuilder(m.getName()).append('(');
+		Class<?>[] parameters = m.getParameterTypes();
+		for(int i = 0; i < parameters.length; i++){
+			if(i > 0){
+				s.append(',');
+			}
+			s.append(parameters[i].getSimpleName());
+		}
+		method = s.append(')').toString();
+	}
+
+	/*
+	 * Records one completed call. Times are in nanoseconds.
+	 */
+	void record(int in, int out, boolean thrown, long decodeTime,
+		long invokeTime, long encodeTime){
+		calls.incrementAndGet();
+		if(thrown){
+			errors.incrementAndGet();
+		}
+		bytesIn.addAndGet(in);
+		bytesOut.addAndGet(out);
+		decode.record(decodeTime);
+		invoke.record(invokeTime);
+		encode.record(encodeTime);
+	}
+
+	/*
+	 * Adds the size of a block of a streamed result to the bytes sent.
+	 */
+	void streamed(int bytes){
+		bytesOut.addAndGet(bytes);
+	}
+
+	/*
+	 * Returns one line describing the method's calls so far.
+	 */
+	String report(){
+		return String.format("%-32s calls %d errors %d in %d B out %d B"
+			+ " | decode %s | invoke %s | encode %s",
+			method, getCalls(), getErrors(), getBytesIn(), getBytesOut(),
+			summary(decode), summary(invoke), summary(encode));
+	}
+
+	private static String summary(Histogram h){
+		return String.format("p50 %.1f p99 %.1f max %.1f us",
+			micros(h.percentile(0.5)), micros(h.percentile(0.99)),
+			micros(h.max()));
+	}
+
+	private static double micros(long nanos){
+		return nanos / 1000.0;
+	}
+
+	public String getInterface(){
+		return interfaceName;
+	}
+
+	public String getMethod(){
+		return method;
+	}
+
+	public long getCalls(){
+		return calls.get();
+	}
+
+	public long getErrors(){
+		return errors.get();
+	}
+
+	public long getBytesIn(){
+		return bytesIn.get();
+	}
+
+	public long getBytesOut(){
+		return bytesOut.get();
+	}
+
+	public double getDecodeP50Micros(){
+		return micros(decode.percentile(0.5));
+	}
+
+	public double getDecodeP99Micros(){
+		return micros(decode.percentile(0.99));
+	}
+
+	public double getInvokeP50Micros(){
+		return micros(invoke.percentile(0.5));
+	}
+
+	public double getInvokeP99Micros(){
+		return micros(invoke.percentile(0.99));
+	}
+
+	public double getInvokeMaxMicros(){
+		return micros(invoke.max());
+	}
+
+	public double getEncodeP50Micros(){
+		return micros(encode.percentile(0.5));
+	}
+
+	public double getEncodeP99Micros(){
+		return micros(encode.percentile(0.99));
+	}
+
+	public void reset(){
+		calls.set(0);
+		errors.set(0);
+		bytesIn.set(0);
+		bytesOut.set(0);
+		decode.reset();
+		invoke.reset();
+		encode.reset();
+	}
+}
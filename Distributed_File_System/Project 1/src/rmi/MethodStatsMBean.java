@@ -0,0 +1,64 @@
+package rmi;
+
+/** Management interface for the statistics of one remote method of a
+    skeleton.
+
+    <p>
+    Every skeleton registers one of these with the platform MBean server for
+    each method of its remote interface while it is running, under the name
+    <code>rmi:type=Skeleton,interface=</code><em>interface</em><code>,port=
+    </code><em>port</em><code>,method=</code><em>signature</em>. The time spent
+    on each call is divided into decoding the call's arguments, invoking the
+    method on the server object, and encoding its result or exception. Times
+    are reported in microseconds, from histograms with a resolution of about
+    6%. Byte counts are of encoded arguments and results, before any
+    compression.
+ */
+public interface MethodStatsMBean
+{
+    /** Returns the name of the remote interface. */
+    String getInterface();
+
+    /** Returns the method's name and parameter types. */
+    String getMethod();
+
+    /** Returns the number of calls completed. */
+    long getCalls();
+
+    /** Returns the number of calls which ended by throwing an exception,
+        including calls refused because too many were in progress.
+     */
+    long getErrors();
+
+    /** Returns the total size of the calls' encoded arguments, in bytes. */
+    long getBytesIn();
+
+    /** Returns the total size of the calls' encoded results, in bytes,
+        including streamed results.
+     */
+    long getBytesOut();
+
+    /** Returns the median time taken to decode a call. */
+    double getDecodeP50Micros();
+
+    /** Returns the 99th percentile of the time taken to decode a call. */
+    double getDecodeP99Micros();
+
+    /** Returns the median time taken by the method itself. */
+    double getInvokeP50Micros();
+
+    /** Returns the 99th percentile of the time taken by the method itself. */
+    double getInvokeP99Micros();
+
+    /** Returns the longest time taken by the method itself. */
+    double getInvokeMaxMicros();
+
+    /** Returns the median time taken to encode a result. */
+    double getEncodeP50Micros();
+
+    /** Returns the 99th percentile of the time taken to encode a result. */
+    double getEncodeP99Micros();
+
+    /** Sets all counts and histograms back to zero. */
+    void reset();
+}
@@ -0,0 +1,300 @@
+package rmi;
+
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * The numbering of a remote interface's methods, shared by its stubs and
+ * skeletons.
+ *
+ * Calls name their method by its index in this table rather than by name and
+ * parameter types, so the skeleton neither unmarshals Class objects nor looks
+ * the method up on every call. Methods are ordered by signature, so that the
+ * stub and skeleton number them alike even in different JVMs, and a call also
+ * carries a fingerprint of the whole table, so that a stub built against a
+ * different version of the interface is refused rather than calling the wrong
+ * method.
+ *
+ * The table also records which methods are Cacheable, Invalidates,
+ * Coalesce, OneWay or Idempotent, and the Lane of each, so stubs and
+ * skeletons need not look at annotations on every call.
+ *
+ * Stubs look up the id of the Method object passed to the proxy's handler
+ * on every call. A proxy class passes the same Method objects each time, but
+ * not those returned by getMethods, so each is remembered by identity once
+ * found by equality, and later calls find it without comparing signatures.
+ * The methods of Object which stubs answer themselves have ids of their own,
+ * so the stub tells them apart with the same lookup.
+ *
+ * Tables are built once per interface and cached. Building a table also
+ * initializes the classes named in the interface's signatures, so that any
+ * codecs they register with Codec are in place before the first call.
+ */
+final class MethodTable {
+	/*
+	 * Data members:
+	 *
+	 * Method[] methods:
+	 * The interface's methods, indexed by method id.
+	 *
+	 * Map<Method, Integer> ids:
+	 * The id of each method, and of equals, hashCode and toString.
+	 *
+	 * IdentityHashMap<Method, Integer> known:
+	 * The ids of the Method objects looked up so far. Replaced, never
+	 * changed, when another is added.
+	 *
+	 * MethodHandle[] handles:
+	 * For each method, a handle taking the server object and an argument
+	 * array, and returning the result boxed as an Object.
+	 *
+	 * int fingerprint:
+	 * Hash of the signatures of all the methods, in order.
+	 *
+	 * long[] ttl:
+	 * For each method, the time in milliseconds for which stubs may cache
+	 * its results, or 0 if the method is not Cacheable.
+	 *
+	 * boolean[] invalidates:
+	 * For each method, whether it is marked Invalidates.
+	 *
+	 * boolean[] coalesce:
+	 * For each method, whether it is marked Coalesce and does not stream its
+	 * result.
+	 *
+	 * boolean[] oneWay:
+	 * For each method, whether it is marked OneWay and returns void.
+	 *
+	 * boolean[] idempotent:
+	 * For each method, whether it is marked Idempotent, Cacheable or
+	 * Coalesce.
+	 *
+	 * String[] lanes:
+	 * For each method, the lane named by its Lane annotation, or null if it
+	 * has none.
+	 *
+	 * byte[] streams:
+	 * For each method, Frame.STREAM_ITEMS if it returns a RemoteIterator,
+	 * Frame.STREAM_BYTES if it returns an InputStream, or 0 if its result is
+	 * sent whole.
+	 *
+	 * Class<?>[][] parameters, boxedParameters:
+	 * For each method, its parameter types, and the classes its arguments
+	 * must be instances of: the same, with primitive types replaced by their
+	 * wrappers.
+	 */
+	final Method[] methods;
+	private final Map<Method, Integer> ids = new HashMap<Method, Integer>();
+	private volatile IdentityHashMap<Method, Integer> known =
+		new IdentityHashMap<Method, Integer>();
+	private final MethodHandle[] handles;
+	final int fingerprint;
+	final long[] ttl;
+	final boolean[] invalidates;
+	final boolean[] coalesce;
+	final boolean[] oneWay;
+	final boolean[] idempotent;
+	final String[] lanes;
+	final byte[] streams;
+	private final Class<?>[][] parameters;
+	private final Class<?>[][] boxedParameters;
+
+	// Ids of the methods of Object answered by stubs
+	static final int EQUALS = -2;
+	static final int HASH_CODE = -3;
+	static final int TO_STRING = -4;
+
+	private static final ConcurrentHashMap<Class<?>, MethodTable> tables =
+		new ConcurrentHashMap<Class<?>, MethodTable>();
+
+	private MethodTable(Class<?> c){
+		methods = c.getMethods();
+		Arrays.sort(methods, new Comparator<Method>() {
+			public int compare(Method a, Method b){
+				return signature(a).compareTo(signature(b));
+			}
+		});
+		handles = new MethodHandle[methods.length];
+		ttl = new long[methods.length];
+		invalidates = new boolean[methods.length];
+		coalesce = new boolean[methods.length];
+		oneWay = new boolean[methods.length];
+		idempotent = new boolean[methods.length];
+		lanes = new String[methods.length];
+		streams = new byte[methods.length];
+		parameters = new Class<?>[methods.length][];
+		boxedParameters = new Class<?>[methods.length][];
+		StringBuilder all = new StringBuilder(c.getName());
+		for(int i = 0; i < methods.length; i++){
+			ids.put(methods[i], i);
+			handles[i] = spread(methods[i]);
+			parameters[i] = methods[i].getParameterTypes();
+			boxedParameters[i] = boxed(parameters[i]);
+			Cacheable cacheable = methods[i].getAnnotation(Cacheable.class);
+			if(cacheable != null){
+				ttl[i] = Math.max(cacheable.ttl(), 0);
+			}
+			invalidates[i] = methods[i].isAnnotationPresent(Invalidates.class);
+			if(methods[i].getReturnType() == RemoteIterator.class){
+				streams[i] = Frame.STREAM_ITEMS;
+			} else if(methods[i].getReturnType() == InputStream.class){
+				streams[i] = Frame.STREAM_BYTES;
+			}
+			coalesce[i] = streams[i] == 0
+				&& methods[i].isAnnotationPresent(Coalesce.class);
+			oneWay[i] = methods[i].getReturnType() == void.class
+				&& methods[i].isAnnotationPresent(OneWay.class);
+			idempotent[i] = methods[i].isAnnotationPresent(Idempotent.class)
+				|| cacheable != null
+				|| methods[i].isAnnotationPresent(Coalesce.class);
+			Lane lane = methods[i].getAnnotation(Lane.class);
+			if(lane != null){
+				lanes[i] = lane.value();
+			}
+			initialize(methods[i].getReturnType());
+			for(Class<?> p : methods[i].getParameterTypes()){
+				initialize(p);
+			}
+			all.append(';').append(signature(methods[i]));
+		}
+		fingerprint = all.toString().hashCode();
+		try{
+			ids.put(Object.class.getMethod("equals", Object.class), EQUALS);
+			ids.put(Object.class.getMethod("hashCode"), HASH_CODE);
+			ids.put(Object.class.getMethod("toString"), TO_STRING);
+		} catch (NoSuchMethodException e){
+			throw new Error("Object lacks its own methods", e);
+		}
+	}
+
+	/*
+	 * Returns the table for the given remote interface.
+	 */
+	static MethodTable of(Class<?> c){
+		MethodTable table = tables.get(c);
+		if(table == null){
+			table = new MethodTable(c);
+			MethodTable raced = tables.putIfAbsent(c, table);
+			if(raced != null){
+				table = raced;
+			}
+		}
+		return table;
+	}
+
+	/*
+	 * Returns the id of a method of the interface, one of the negative ids
+	 * above for a method of Object answered by stubs, or -1 otherwise.
+	 */
+	int id(Method m){
+		Integer id = known.get(m);
+		if(id != null){
+			return id;
+		}
+		id = ids.get(m);
+		if(id == null){
+			return -1;
+		}
+		synchronized(this){
+			IdentityHashMap<Method, Integer> more =
+				new IdentityHashMap<Method, Integer>(known);
+			more.put(m, id);
+			known = more;
+		}
+		return id;
+	}
+
+	/*
+	 * Returns the handle for the given method id. The handle is invoked with
+	 * invokeExact(Object server, Object[] args) and returns an Object.
+	 */
+	MethodHandle handle(int id){
+		return handles[id];
+	}
+
+	/*
+	 * Returns true if the given arguments can be passed to the method with
+	 * the given id: there are as many as it has parameters, each is an
+	 * instance of its parameter's class or null, and none for a primitive
+	 * parameter is null. Arguments decoded from a call are checked with this
+	 * before the handle is invoked, so that a bad call is not mistaken for
+	 * an exception thrown by the method.
+	 */
+	boolean accepts(int id, Object[] args){
+		Class<?>[] types = boxedParameters[id];
+		if(args.length != types.length){
+			return false;
+		}
+		for(int i = 0; i < args.length; i++){
+			if(args[i] == null ? parameters[id][i].isPrimitive()
+				: !types[i].isInstance(args[i])){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Class<?>[] boxed(Class<?>[] types){
+		Class<?>[] boxed = new Class<?>[types.length];
+		for(int i = 0; i < types.length; i++){
+			boxed[i] = MethodType.methodType(types[i]).wrap().returnType();
+		}
+		return boxed;
+	}
+
+	/*
+	 * Runs the static initializer of a value class, or of an array's
+	 * element class.
+	 */
+	private static void initialize(Class<?> type){
+		while(type.isArray()){
+			type = type.getComponentType();
+		}
+		if(type.isPrimitive()){
+			return;
+		}
+		try{
+			Class.forName(type.getName(), true, type.getClassLoader());
+		} catch (ClassNotFoundException e){
+			// Cannot happen for a class already loaded
+		}
+	}
+
+	private static String signature(Method m){
+		StringBuilder s = new StringBuilder(m.getName()).append('(');
+		for(Class<?> p : m.getParameterTypes()){
+			s.append(p.getName()).append(',');
+		}
+		return s.append(')').append(m.getReturnType().getName()).toString();
+	}
+
+	/*
+	 * Adapts a method to the generic (Object, Object[])Object form used by
+	 * the skeleton.
+	 */
+	private static MethodHandle spread(Method m){
+		MethodHandle h;
+		try{
+			h = MethodHandles.publicLookup().unreflect(m);
+		} catch (IllegalAccessException e){
+			// The interface is not public; reflection may still open it.
+			try{
+				m.setAccessible(true);
+				h = MethodHandles.lookup().unreflect(m);
+			} catch (Exception e2){
+				throw new Error("Cannot access remote method " + m, e2);
+			}
+		}
+		return h.asType(h.type().generic())
+			.asSpreader(Object[].class, m.getParameterTypes().length);
+	}
+}
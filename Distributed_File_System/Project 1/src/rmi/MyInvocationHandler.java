@@ -1,13 +1,17 @@
 package rmi;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 public class MyInvocationHandler<T> implements InvocationHandler,Serializable {
 	/**
@@ -16,15 +20,50 @@ public class MyInvocationHandler<T> implements InvocationHandler,Serializable {
 	 * InetSocketAddress newAddress:
 	 * Holds the address of the skeleton to send requests to.
 	 * 
+	 * Class<T> c:
+	 * The remote interface the stub implements.
+	 * 
+	 * MethodTable table:
+	 * The method ids of c. Not sent with the stub, but looked up again
+	 * wherever it is received.
+	 * 
+	 * long timeout:
+	 * The time in nanoseconds each call may take, or 0 for no limit. Set by
+	 * Stub.withTimeout, and not sent with the stub.
+	 * 
+	 * Local local:
+	 * The skeleton in this virtual machine which calls are made on directly,
+	 * as last looked up in LocalRegistry.
+	 * 
+	 * String unixPath:
+	 * The skeleton's Unix domain socket, or null if it has none. Used
+	 * instead of newAddress when the skeleton is on this host.
+	 * 
+	 * MyInvocationHandler<?>[] failover:
+	 * The endpoints a failed call moves on to, in order, or null for none.
+	 * Set by Stub.withFailover, and sent with the stub.
+	 * 
 	 */
 	public InetSocketAddress newAddress;
+	String unixPath;
+	private transient volatile Local local;
+	final Class<T> c;
+	private transient MethodTable table;
+	transient long timeout = 0;
+	MyInvocationHandler<?>[] failover;
+
+	// Delay before trying the second endpoint, and the most between any two
+	private static final long FIRST_BACKOFF = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(1);
 	
 	
 	/*
 	 * Constructor:
 	 * Gets an address to connect to and makes an invocationhandler accordingly
 	 */
-	MyInvocationHandler(InetSocketAddress add){
+	MyInvocationHandler(Class<T> c, InetSocketAddress add){
+		this.c = c;
+		this.table = MethodTable.of(c);
 		newAddress = add;
 	}
 	
@@ -38,59 +77,593 @@ public class MyInvocationHandler<T> implements InvocationHandler,Serializable {
 	 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
 	 */
 	public Object invoke (Object proxy, Method method, Object[] args) throws Throwable{
+		MethodTable table = table();
+		int id = table.id(method);
 		
 		// Executing local methods:
-		if (method.getName()=="equals"){
-			Proxy y = (Proxy)args[0]; //this is the second proxy
+		if (id == MethodTable.EQUALS){
 			try{
-				InetSocketAddress add1;
-				InetSocketAddress add2;
-				MyInvocationHandler<T> sk2 = (MyInvocationHandler<T>)Proxy.getInvocationHandler(y);
-				add2 = sk2.newAddress;
-				add1 = this.newAddress;
-				return add1.equals(add2);
+				Proxy y = (Proxy)args[0]; //this is the second proxy
+				MyInvocationHandler<?> sk2 =
+					(MyInvocationHandler<?>)Proxy.getInvocationHandler(y);
+				return this.newAddress.equals(sk2.newAddress);
 			} catch (Exception e){
 				return false;
 			}
 		}
-		else if (method.getName()=="hashCode"){
+		else if (id == MethodTable.HASH_CODE){
 			return this.newAddress.getPort();
-			
 		}
-		else if (method.getName()=="toString"){
+		else if (id == MethodTable.TO_STRING){
 			return ("Port: "+Integer.toString(this.newAddress.getPort()));
-			
 		}
 		// If the method is not local, forward to skeleton
+		else if (table.oneWay[id]){
+			try {
+				post(id, args, Deadline.forCall(timeout));
+			} catch (RMIException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new RMIException("Problem with skeleton: no data stream.", e);
+			}
+			return null;
+		}
 		else{
+			long ttl = table.ttl[id];
+			boolean invalidates = table.invalidates[id];
+			long deadline = Deadline.forCall(timeout);
+			if(ttl == 0 && LocalRegistry.byReference()){
+				Skeleton<?> local = local();
+				if(local != null){
+					if(invalidates){
+						ResultCache.invalidateAll();
+					}
+					try {
+						return local.invokeLocal(id, args, deadline);
+					} finally {
+						if(invalidates){
+							ResultCache.invalidateAll();
+						}
+					}
+				}
+			}
+			Frame reply;
 			Object result;
+			Trace.Span span = Trace.begin(table, id);
 			try {
-				Socket clientStub = new Socket();
-				clientStub.connect(newAddress);
-				ObjectOutputStream out = new ObjectOutputStream(clientStub.getOutputStream());
-				ObjectInputStream in = new ObjectInputStream(clientStub.getInputStream());
-				out.writeObject(method.getName());
-				out.writeObject(args);
-				out.writeObject(method.getParameterTypes());
-				result = in.readObject();
-				
-				// Throws if exception, else returns
-				if(result != null && (Exception.class).isInstance(result)){
-					in.close();
-					out.close();
-					clientStub.close();
-				} else{
-					in.close();
-					out.close();
-					clientStub.close();
-					return result;
+				byte[] request = marshal(id, args, deadline, span);
+				List<Long> exports = Callbacks.written();
+				long generation = 0;
+				if(ttl > 0){
+					// Serve repeated calls to Cacheable methods locally
+					byte[] cached = ResultCache.get(newAddress, request,
+						deadline != 0);
+					if(cached != null){
+						BufferPool.give(request);
+						return Frame.unmarshal(cached);
+					}
+					generation = ResultCache.generation();
+				}
+				if(invalidates){
+					ResultCache.invalidateAll();
+				}
+				long sent = span == null ? 0 : System.nanoTime();
+				try {
+					reply = call(Frame.CALL, request, deadline,
+						table.idempotent[id], invalidates, exports);
+				} finally {
+					if(invalidates){
+						ResultCache.invalidateAll();
+					}
+				}
+				long received = span == null ? 0 : System.nanoTime();
+				result = value(reply);
+				if(ttl > 0 && reply.flags == 0){
+					ResultCache.put(newAddress, request, deadline != 0,
+						reply.payload, ttl, generation);
+				} else {
+					reply.release();
+				}
+				// Once answered, the request is only needed as a cache key,
+				// which is a copy
+				BufferPool.give(request);
+				if(span != null){
+					span.phase("marshal", sent - span.start);
+					span.phase("wait", received - sent);
+					span.phase("unmarshal", System.nanoTime() - received);
+					span.end(reply.hasFlag(Frame.FLAG_EXCEPTION));
 				}
-				
+			} catch (RMIException e) {
+				if(span != null){
+					span.end(true);
+				}
+				throw e;
 			} catch (Exception e) {
-				throw new RMIException("Problem with skeleton: no data stream.");
-				
+				if(span != null){
+					span.end(true);
+				}
+				throw new RMIException("Problem with skeleton: no data stream.", e);
 			}
-			throw (Throwable)result;
+			
+			// Throws if exception, else returns
+			if(reply.hasFlag(Frame.FLAG_EXCEPTION)){
+				throw (Throwable)result;
+			}
+			return result;
+		}
+	}
+	
+	/*
+	 * Marshals a call payload. Exported objects among the arguments are then
+	 * given by Callbacks.written, to be recorded on the connection the call
+	 * is sent on.
+	 */
+	private byte[] marshal(int id, Object[] args, long deadline,
+		Trace.Span span) throws IOException{
+		// Forget anything left from a marshal which was never sent
+		Callbacks.written();
+		return Frame.marshalCall(table().fingerprint, id, args, deadline != 0,
+			span);
+	}
+
+	/*
+	 * Returns the result or exception carried by a reply: either unmarshaled
+	 * from its payload, or, for a streamed result, a RemoteIterator or
+	 * InputStream reading the frames which follow.
+	 */
+	static Object value(Frame reply) throws IOException{
+		if(reply.hasFlag(Frame.FLAG_STREAM) && reply.stream != null){
+			return reply.stream.open(reply);
+		}
+		return Frame.unmarshal(reply.payload);
+	}
+
+	/*
+	 * Returns the deadline for a call starting now, or 0 if it has none.
+	 */
+	long deadline(){
+		return Deadline.forCall(timeout);
+	}
+
+	/*
+	 * Starts a call without waiting for the reply. The returned future is
+	 * completed, on one of AsyncStub's callback threads, as invoke would
+	 * return or throw. As in call, a failure on a connection which has worked
+	 * before is retried once on a fresh connection, and the call may fail
+	 * over to the next endpoint. The future for a call to a OneWay method is
+	 * completed as soon as the call is sent.
+	 */
+	CompletableFuture<Object> invokeAsync(final Method method,
+		final Object[] args){
+		final CompletableFuture<Object> result = new CompletableFuture<Object>();
+		final int id = table().id(method);
+		final boolean invalidates = table().invalidates[id];
+		final long deadline = deadline();
+		if(table().oneWay[id]){
+			try{
+				post(id, args, deadline);
+				result.complete(null);
+			} catch (RMIException e){
+				result.completeExceptionally(e);
+			} catch (IOException e){
+				result.completeExceptionally(
+					new RMIException("Problem with skeleton: no data stream.", e));
+			}
+			return result;
+		}
+		if(invalidates){
+			ResultCache.invalidateAll();
+		}
+		final Trace.Span span = Trace.begin(table(), id);
+		final byte[] request;
+		final List<Long> exports;
+		try{
+			request = marshal(id, args, deadline, span);
+			exports = Callbacks.written();
+		} catch (IOException e){
+			if(span != null){
+				span.end(true);
+			}
+			result.completeExceptionally(
+				new RMIException("Problem with skeleton: no data stream.", e));
+			return result;
+		}
+		final long sent = span == null ? 0 : System.nanoTime();
+		if(span != null){
+			span.phase("marshal", sent - span.start);
+		}
+		boolean idempotent = table().idempotent[id];
+		send(request, deadline, idempotent, invalidates, exports, 0)
+			.whenComplete(new BiConsumer<Frame, Throwable>() {
+				public void accept(Frame frame, Throwable failure){
+					if(invalidates){
+						ResultCache.invalidateAll();
+					}
+					new Completion(result, span, sent).accept(frame, failure);
+				}
+			});
+		return result;
+	}
+
+	/*
+	 * Sends a call to the endpoint at the given position in this stub's
+	 * list, and if it fails in a way which allows, to the ones after it, as
+	 * call does. Returns a future completed with the reply, or with the last
+	 * failure.
+	 */
+	private CompletableFuture<Frame> send(final byte[] request,
+		final long deadline, final boolean idempotent,
+		final boolean invalidates, final List<Long> exports, final int next){
+		final CompletableFuture<Frame> reply = new CompletableFuture<Frame>();
+		MyInvocationHandler<?> endpoint = next == 0 ? this : failover[next - 1];
+		endpoint.sendOnce(request, deadline, exports).whenComplete(
+			new BiConsumer<Frame, Throwable>() {
+				public void accept(Frame frame, Throwable failure){
+					if(failure instanceof CompletionException){
+						failure = failure.getCause();
+					}
+					long wait = failure instanceof IOException
+						? backoff((IOException)failure, idempotent, invalidates,
+							next, deadline)
+						: -1;
+					if(wait < 0){
+						new Forward(reply).accept(frame, failure);
+						return;
+					}
+					// Connecting may block, so not on the deadline timer
+					final Runnable retry = new Runnable() {
+						public void run(){
+							send(request, deadline, idempotent, invalidates,
+								exports, next + 1)
+								.whenComplete(new Forward(reply));
+						}
+					};
+					Deadline.at(System.nanoTime() + wait, new Runnable() {
+						public void run(){
+							AsyncStub.callbacks.execute(retry);
+						}
+					});
+				}
+			});
+		return reply;
+	}
+
+	/*
+	 * Sends a call to this endpoint alone, for an asynchronous stub. A
+	 * failure on a connection which has worked before is retried once on a
+	 * fresh connection. Exported objects in the call are recorded on the
+	 * connection it is sent on.
+	 */
+	private CompletableFuture<Frame> sendOnce(final byte[] request,
+		final long deadline, final List<Long> exports){
+		Skeleton<?> local = local();
+		CompletableFuture<Frame> reply = local == null ? null
+			: local.sendLocal(Frame.CALL, request, deadline);
+		if(reply != null){
+			return reply;
+		}
+		final CompletableFuture<Frame> result = new CompletableFuture<Frame>();
+		final Connection conn;
+		try{
+			conn = ConnectionPool.acquire(newAddress, socketPath());
+		} catch (IOException e){
+			result.completeExceptionally(new NotSent(e));
+			return result;
+		}
+		conn.carry(exports);
+		try{
+			reply = conn.send(Frame.CALL, request, deadline);
+		} catch (IOException e){
+			reply = new CompletableFuture<Frame>();
+			reply.completeExceptionally(e);
+		}
+		reply.whenComplete(new BiConsumer<Frame, Throwable>() {
+			public void accept(Frame frame, Throwable failure){
+				if(failure instanceof IOException && conn.proven()){
+					try{
+						Connection fresh =
+							ConnectionPool.open(newAddress, socketPath());
+						fresh.carry(exports);
+						fresh.send(Frame.CALL, request, deadline)
+							.whenComplete(new Forward(result));
+					} catch (IOException e){
+						result.completeExceptionally(e);
+					}
+					return;
+				}
+				new Forward(result).accept(frame, failure);
+			}
+		});
+		return result;
+	}
+
+	/*
+	 * Completes one future as another is completed.
+	 */
+	private static class Forward implements BiConsumer<Frame, Throwable> {
+		final CompletableFuture<Frame> target;
+
+		Forward(CompletableFuture<Frame> target){
+			this.target = target;
+		}
+
+		public void accept(Frame frame, Throwable failure){
+			if(failure != null){
+				target.completeExceptionally(failure);
+			} else {
+				target.complete(frame);
+			}
+		}
+	}
+
+	/*
+	 * Completes an asynchronous call's future from its reply frame, on a
+	 * callback thread.
+	 */
+	private static class Completion implements BiConsumer<Frame, Throwable> {
+		final CompletableFuture<Object> result;
+		final Trace.Span span;
+		final long sent;
+
+		Completion(CompletableFuture<Object> result, Trace.Span span,
+			long sent){
+			this.result = result;
+			this.span = span;
+			this.sent = sent;
+		}
+
+		public void accept(final Frame reply, final Throwable failure){
+			final long received = span == null ? 0 : System.nanoTime();
+			AsyncStub.callbacks.execute(new Runnable() {
+				public void run(){
+					if(failure != null && span != null){
+						span.end(true);
+					}
+					if(failure instanceof RMIException){
+						result.completeExceptionally(failure);
+						return;
+					}
+					if(failure != null){
+						result.completeExceptionally(new RMIException(
+							"Problem with skeleton: no data stream.", failure));
+						return;
+					}
+					Object value;
+					try{
+						value = value(reply);
+						reply.release();
+					} catch (IOException e){
+						if(span != null){
+							span.end(true);
+						}
+						result.completeExceptionally(new RMIException(
+							"Problem with skeleton: no data stream.", e));
+						return;
+					}
+					if(span != null){
+						span.phase("wait", received - sent);
+						span.phase("unmarshal", System.nanoTime() - received);
+						span.end(reply.hasFlag(Frame.FLAG_EXCEPTION));
+					}
+					if(reply.hasFlag(Frame.FLAG_EXCEPTION)){
+						result.completeExceptionally((Throwable)value);
+					} else {
+						result.complete(value);
+					}
+				}
+			});
+		}
+	}
+
+	/*
+	 * Sends the call to the skeleton over a pooled connection, which may be
+	 * carrying other threads' calls at the same time.
+	 * 
+	 * A pooled connection may have been closed by the skeleton while it was
+	 * idle, which shows up as an I/O error on a connection that has worked
+	 * before. In that case the call is retried once on a fresh connection.
+	 * The frame may be a CALL or a BATCH, with a deadline or 0 for none.
+	 * Exported objects it carries, as given by Callbacks.written, are
+	 * recorded on each connection it is sent on.
+	 * 
+	 * If the skeleton is running in this virtual machine, the call is made on
+	 * it directly in this thread instead; see LocalRegistry.
+	 * 
+	 * If the call still fails and the stub has failover endpoints, the call
+	 * is repeated on each in turn, after a growing delay: an idempotent call
+	 * whether or not it may have been sent, and any other call which could
+	 * not be sent at all, unless it invalidates. Those change the remote
+	 * object, and so must reach the one the stub was made for.
+	 */
+	Frame call(byte type, byte[] request, long deadline, boolean idempotent,
+		boolean invalidates, List<Long> exports)
+		throws IOException, RMIException{
+		MyInvocationHandler<?> endpoint = this;
+		for(int next = 0; ; next++){
+			try{
+				return endpoint.callOnce(type, request, deadline, exports);
+			} catch (IOException e){
+				long wait = backoff(e, idempotent, invalidates, next, deadline);
+				if(wait < 0){
+					throw e;
+				}
+				try{
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e2){
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+			endpoint = failover[next];
+		}
+	}
+
+	/*
+	 * Makes a call on this endpoint alone, retrying once on a fresh
+	 * connection as described for call.
+	 */
+	private Frame callOnce(byte type, byte[] request, long deadline,
+		List<Long> exports) throws IOException, RMIException{
+		Skeleton<?> local = local();
+		if(local != null){
+			Frame reply = local.callLocal(type, request, deadline);
+			if(reply != null){
+				return reply;
+			}
+		}
+		Connection conn;
+		try{
+			conn = ConnectionPool.acquire(newAddress, socketPath());
+		} catch (IOException e){
+			throw new NotSent(e);
+		}
+		conn.carry(exports);
+		try{
+			return conn.call(type, request, deadline);
+		} catch (IOException e){
+			if(!conn.proven()){
+				throw e;
+			}
+		}
+		conn = ConnectionPool.open(newAddress, socketPath());
+		conn.carry(exports);
+		return conn.call(type, request, deadline);
+	}
+
+	/*
+	 * Returns the time in nanoseconds to wait before repeating a failed call
+	 * on the endpoint after the given position in this stub's list, or -1 if
+	 * it should not be repeated: because there are no more endpoints, the
+	 * call is not idempotent and may have run or invalidates, or the
+	 * deadline would pass.
+	 * The delay doubles with each endpoint tried, with some randomness so
+	 * that the callers of a failed server do not all move at once.
+	 */
+	private long backoff(IOException failure, boolean idempotent,
+		boolean invalidates, int next, long deadline){
+		if(failover == null || next >= failover.length
+			|| !(idempotent || (!invalidates && failure instanceof NotSent))){
+			return -1;
+		}
+		long limit = Math.min(FIRST_BACKOFF << Math.min(next, 16), MAX_BACKOFF);
+		long wait = limit / 2 + ThreadLocalRandom.current().nextLong(limit / 2 + 1);
+		if(deadline != 0 && Deadline.remaining(deadline) <= wait){
+			return -1;
+		}
+		return wait;
+	}
+
+	/*
+	 * A failure to connect to the skeleton, before anything was sent.
+	 */
+	private static class NotSent extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		NotSent(IOException cause){
+			super(cause.getMessage(), cause);
+		}
+	}
+
+	/*
+	 * Sends a call to a OneWay method and returns once it is written, without
+	 * waiting for the skeleton to run it. As in call, a failure on a
+	 * connection which has worked before is retried once on a fresh
+	 * connection, and a skeleton in this virtual machine is given the call
+	 * directly, though still marshaled. A one-way call does not fail over:
+	 * the caller learns of no failure after the call is written.
+	 */
+	void post(int id, Object[] args, long deadline)
+		throws IOException, RMIException{
+		Trace.Span span = Trace.begin(table(), id);
+		byte[] request = marshal(id, args, deadline, span);
+		List<Long> exports = Callbacks.written();
+		long sent = span == null ? 0 : System.nanoTime();
+		boolean invalidates = table().invalidates[id];
+		if(invalidates){
+			ResultCache.invalidateAll();
+		}
+		boolean posted = false;
+		try {
+			Skeleton<?> local = local();
+			if(local != null && local.postLocal(request, deadline)){
+				posted = true;
+				return;
+			}
+			Connection conn = ConnectionPool.acquire(newAddress, socketPath());
+			conn.carry(exports);
+			try{
+				conn.post(request, deadline);
+				posted = true;
+				return;
+			} catch (IOException e){
+				if(!conn.proven()){
+					throw e;
+				}
+			}
+			conn = ConnectionPool.open(newAddress, socketPath());
+			conn.carry(exports);
+			conn.post(request, deadline);
+			posted = true;
+		} finally {
+			if(invalidates){
+				ResultCache.invalidateAll();
+			}
+			if(span != null){
+				span.phase("marshal", sent - span.start);
+				span.phase("send", System.nanoTime() - sent);
+				span.end(!posted);
+			}
+		}
+	}
+
+	/*
+	 * Returns the path of the skeleton's Unix domain socket, if it has one
+	 * and is on this host, or else null.
+	 */
+	String socketPath(){
+		if(unixPath == null || !UnixSockets.supported()
+			|| newAddress.isUnresolved()
+			|| !LocalRegistry.isHostAddress(newAddress.getAddress())){
+			return null;
+		}
+		return unixPath;
+	}
+
+	/*
+	 * Returns the skeleton in this virtual machine to call directly, or null
+	 * to use a connection.
+	 */
+	Skeleton<?> local(){
+		int version = LocalRegistry.version();
+		Local found = local;
+		if(found == null || found.version != version){
+			found = new Local(version, LocalRegistry.find(newAddress, c));
+			local = found;
+		}
+		if(found.skeleton == null || !found.skeleton.running){
+			return null;
+		}
+		return found.skeleton;
+	}
+
+	/*
+	 * The result of a LocalRegistry lookup: a skeleton, or null for none,
+	 * and the registry version at which it was found.
+	 */
+	private static class Local {
+		final int version;
+		final Skeleton<?> skeleton;
+
+		Local(int version, Skeleton<?> skeleton){
+			this.version = version;
+			this.skeleton = skeleton;
+		}
+	}
+
+	MethodTable table(){
+		if(table == null){
+			table = MethodTable.of(c);
 		}
+		return table;
 	}
 }
@@ -0,0 +1,34 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Marks a <code>void</code> remote method whose callers do not wait for it
+    to run.
+
+    <p>
+    A call to a method with this annotation returns as soon as the request has
+    been sent, and the skeleton sends no reply. The caller therefore learns
+    nothing of the call's outcome: an exception thrown by the method, or a
+    call the skeleton drops because it is overloaded or the call's deadline
+    has passed, is reported to the skeleton's <code>service_error</code>
+    method instead. The call throws <code>RMIException</code> only if the
+    request cannot be sent at all. A one-way call may still be running, or
+    not yet started, when later calls through the same stub reach the
+    skeleton.
+
+    <p>
+    Arguments are always marshaled, even for a skeleton in the same virtual
+    machine, since the caller may change them as soon as the call returns.
+    The annotation has no effect on methods which return a value, or on calls
+    made as part of a batch.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface OneWay
+{
+}
@@ -0,0 +1,24 @@
+package rmi;
+
+/** A single remote method call, to be made asynchronously.
+
+    <p>
+    Instances are normally written as lambda expressions passed to
+    <code>AsyncStub.call</code>, such as
+    <code>s -&gt; s.read(file, offset, length)</code>. The expression must call
+    exactly one method of the remote interface on the object it is given, and
+    return that method's result.
+
+    @param <T> The remote interface.
+    @param <R> The result type of the method called.
+ */
+public interface RemoteCall<T, R>
+{
+    /** Makes the call on the given object.
+
+        @param stub The object on which to call the remote method.
+        @return The result of the remote method.
+        @throws Exception Any exception declared by the remote method.
+     */
+    R invoke(T stub) throws Exception;
+}
@@ -0,0 +1,84 @@
+package rmi;
+
+import java.util.Iterator;
+
+/** An iterator whose elements are sent by a skeleton as they are read.
+
+    <p>
+    A remote method declared to return <code>RemoteIterator</code> does not
+    send its whole result at once. The server object returns an iterator,
+    usually made with <code>over</code>, and the skeleton sends its elements to
+    the stub in blocks while the client reads them. The skeleton reads ahead of
+    the client by only a few blocks, so neither side need hold the whole
+    result in memory, and the client can start on the first elements before
+    the last have been produced.
+
+    <p>
+    A method declared to return <code>java.io.InputStream</code> is treated in
+    the same way, with the bytes of the stream sent in blocks.
+
+    <p>
+    A client which stops reading before the end should call
+    <code>close</code>, so that the skeleton stops sending. Streaming methods
+    cannot be called in a <code>Batch</code>.
+
+    @param <E> The type of the elements.
+ */
+public interface RemoteIterator<E> extends AutoCloseable
+{
+    /** Returns <code>true</code> if there are more elements.
+
+        @throws RMIException If the elements cannot be received, or if the
+                             server's iterator threw an exception, which is
+                             then the cause.
+     */
+    boolean hasNext() throws RMIException;
+
+    /** Returns the next element.
+
+        @throws java.util.NoSuchElementException If there are no more
+                                                 elements.
+        @throws RMIException As for <code>hasNext</code>.
+     */
+    E next() throws RMIException;
+
+    /** Stops the iteration and releases the resources it holds. On the
+        server side, closes the iterator returned by the server object if it
+        is <code>AutoCloseable</code>.
+     */
+    @Override
+    void close();
+
+    /** Returns a remote iterator over the elements of a local iterator, for
+        a server object to return from a remote method.
+
+        @param elements The elements to be sent.
+        @return The remote iterator.
+        @throws NullPointerException If <code>elements</code> is
+                                     <code>null</code>.
+     */
+    static <E> RemoteIterator<E> over(final Iterator<? extends E> elements)
+    {
+        if(elements == null)
+            throw new NullPointerException();
+
+        return new RemoteIterator<E>() {
+            @Override
+            public boolean hasNext()
+            {
+                return elements.hasNext();
+            }
+
+            @Override
+            public E next()
+            {
+                return elements.next();
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+}
@@ -0,0 +1,241 @@
+package rmi;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * The outcomes of a skeleton's recent calls to methods which are not
+ * Idempotent, by request id.
+ *
+ * A stub which loses its connection after sending a call cannot tell whether
+ * the call ran, so it sends the call again, with the same request id, on a
+ * fresh connection. The first call with a given id is logged as it starts;
+ * a repeat which arrives while it runs waits for it, and one which arrives
+ * afterwards is given its reply without running the method again.
+ *
+ * Only the most recent calls are kept, and replies too large to keep are
+ * not: a repeat of such a call is told that its reply is lost, rather than
+ * being run a second time. The replies kept take at most BYTES in all, set
+ * by the rmi.requestlog.bytes property; beyond that, the oldest replies are
+ * dropped, and their calls are treated as if their replies were too large.
+ * A call which is cancelled before its method is invoked has no outcome, and
+ * is dropped from the log so that a repeat runs.
+ */
+final class RequestLog {
+	static final int RUNNING = 0;
+	static final int DONE = 1;
+	static final int ABANDONED = 2;
+	static final int CANCELLED = 3;
+
+	// Number of calls remembered, the largest reply payload kept, and the
+	// most bytes of replies kept in all
+	private static final int CAPACITY = 4096;
+	private static final int MAX_KEPT = 64 * 1024;
+	private static final long BYTES =
+		Long.getLong("rmi.requestlog.bytes", 16L * 1024 * 1024);
+
+	/*
+	 * Data members:
+	 *
+	 * LinkedHashMap<Key, LoggedCall> entries:
+	 * Logged calls, oldest first.
+	 *
+	 * long kept:
+	 * Total bytes of the reply payloads held by entries.
+	 */
+	private final LinkedHashMap<Key, LoggedCall> entries =
+		new LinkedHashMap<Key, LoggedCall>() {
+			protected boolean removeEldestEntry(
+					Map.Entry<Key, LoggedCall> eldest){
+				if(size() <= CAPACITY){
+					return false;
+				}
+				kept -= eldest.getValue().kept;
+				return true;
+			}
+		};
+	private long kept = 0;
+
+	/*
+	 * Returns the entry of the call with the given request id. If there is
+	 * none, a new entry is started, led by the given call.
+	 */
+	synchronized LoggedCall join(long client, long sequence,
+		ServerConnection.Call call){
+		Key key = new Key(client, sequence);
+		LoggedCall entry = entries.get(key);
+		if(entry == null){
+			entry = new LoggedCall(key, call);
+			entries.put(key, entry);
+		}
+		return entry;
+	}
+
+	private synchronized void remove(Key key, LoggedCall entry){
+		if(entries.get(key) == entry){
+			entries.remove(key);
+			kept -= entry.kept;
+		}
+	}
+
+	/*
+	 * Counts a reply payload just kept by an entry, and drops the payloads
+	 * of the oldest entries until those kept fit within BYTES.
+	 */
+	private synchronized void keep(LoggedCall entry, int length){
+		if(entries.get(entry.key) != entry){
+			// Already evicted, so not counted
+			entry.drop();
+			return;
+		}
+		entry.kept = length;
+		kept += length;
+		Iterator<LoggedCall> oldest = entries.values().iterator();
+		while(kept > BYTES && oldest.hasNext()){
+			LoggedCall next = oldest.next();
+			if(next.kept > 0){
+				kept -= next.kept;
+				next.kept = 0;
+				next.drop();
+			}
+		}
+	}
+
+	/*
+	 * One logged call, and any repeats waiting for it.
+	 */
+	final class LoggedCall {
+		/*
+		 * Data members:
+		 *
+		 * ServerConnection.Call leader:
+		 * The call which runs the method.
+		 *
+		 * int state:
+		 * RUNNING, DONE or ABANDONED.
+		 *
+		 * byte flags, byte[] payload:
+		 * The reply's flags and payload, once DONE, or a null payload if
+		 * the reply was too large to keep, or has been dropped.
+		 *
+		 * int kept:
+		 * The length of the payload as counted by the log, guarded by the
+		 * log's lock.
+		 */
+		private final Key key;
+		private final ServerConnection.Call leader;
+		private int state = RUNNING;
+		byte flags;
+		byte[] payload;
+		private int kept = 0;
+
+		private LoggedCall(Key key, ServerConnection.Call leader){
+			this.key = key;
+			this.leader = leader;
+		}
+
+		boolean ledBy(ServerConnection.Call call){
+			return leader == call;
+		}
+
+		/*
+		 * Called by the leader with its reply.
+		 */
+		void complete(Frame reply){
+			byte[] keeping = reply.payload.length <= MAX_KEPT
+				? reply.payload : null;
+			synchronized(this){
+				flags = reply.flags;
+				payload = keeping;
+				if(payload != null){
+					// Kept for repeats, so no longer the reply's own
+					reply.pooled = false;
+				}
+				state = DONE;
+				notifyAll();
+			}
+			if(keeping != null){
+				keep(this, keeping.length);
+			}
+		}
+
+		/*
+		 * Drops the kept payload, so that repeats are told the reply is
+		 * lost.
+		 */
+		synchronized void drop(){
+			payload = null;
+		}
+
+		/*
+		 * Called by the leader if its call has no outcome to give repeats.
+		 * No effect once completed.
+		 */
+		void abandon(){
+			synchronized(this){
+				if(state != RUNNING){
+					return;
+				}
+				state = ABANDONED;
+				notifyAll();
+			}
+			remove(key, this);
+		}
+
+		/*
+		 * Waits for the leader, as Coalescer.Flight.await does. Returns DONE
+		 * or ABANDONED, or CANCELLED if the waiting call is cancelled or its
+		 * deadline passes first.
+		 */
+		synchronized int await(ServerConnection.Call call){
+			while(state == RUNNING){
+				long wait = 100;
+				if(call.deadline != 0){
+					long remaining = Deadline.remaining(call.deadline);
+					if(remaining <= 0){
+						return CANCELLED;
+					}
+					wait = Math.min(wait, remaining / 1000000 + 1);
+				}
+				if(call.isCancelled()){
+					return CANCELLED;
+				}
+				try{
+					wait(wait);
+				} catch(InterruptedException e){
+					return CANCELLED;
+				}
+			}
+			return state;
+		}
+	}
+
+	/*
+	 * A request id: the process which made the call, and its sequence
+	 * number there.
+	 */
+	private static final class Key {
+		private final long client;
+		private final long sequence;
+
+		Key(long client, long sequence){
+			this.client = client;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if(!(o instanceof Key)){
+				return false;
+			}
+			Key k = (Key)o;
+			return client == k.client && sequence == k.sequence;
+		}
+
+		@Override
+		public int hashCode(){
+			return (int)(client ^ (client >>> 32) ^ sequence * 31);
+		}
+	}
+}
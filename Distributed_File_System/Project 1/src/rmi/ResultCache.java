@@ -0,0 +1,156 @@
+package rmi;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Results of Cacheable methods, shared by all stubs in the virtual machine.
+ *
+ * A result is found by the address of the skeleton and the encoded call,
+ * which holds the interface fingerprint, method id and arguments, so equal
+ * arguments find the same result without the arguments themselves needing
+ * equals methods. The encoded reply is kept rather than the result object,
+ * so each caller decodes its own copy and cannot change what later callers
+ * see. A call carries its request id, and its timeout if it has a
+ * deadline, ahead of the rest of the call; that part is left out of the key.
+ *
+ * Every invalidation advances a generation number. A call records the
+ * generation before it is sent, and its result is stored only if nothing was
+ * invalidated meanwhile, so a result read before a change cannot be stored
+ * after the change has cleared the cache.
+ */
+final class ResultCache {
+	/*
+	 * Data members:
+	 *
+	 * LinkedHashMap<Key, CachedResult> entries:
+	 * The cached results, in order of last use.
+	 *
+	 * int capacity:
+	 * The largest number of results kept. Zero disables the cache.
+	 *
+	 * long generation:
+	 * Incremented on every invalidation.
+	 */
+	private static final LinkedHashMap<Key, CachedResult> entries =
+		new LinkedHashMap<Key, CachedResult>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(
+					Map.Entry<Key, CachedResult> eldest){
+				return size() > capacity;
+			}
+		};
+	private static int capacity = 10000;
+	private static long generation = 0;
+
+	private ResultCache(){
+	}
+
+	static synchronized void setCapacity(int entries){
+		if(entries < 0){
+			throw new IllegalArgumentException("Negative cache capacity");
+		}
+		capacity = entries;
+		trim();
+	}
+
+	static synchronized long generation(){
+		return generation;
+	}
+
+	/*
+	 * Returns the cached reply payload for a call, or null if there is none
+	 * or it has expired.
+	 */
+	static synchronized byte[] get(InetSocketAddress address, byte[] request,
+		boolean deadline){
+		if(capacity == 0){
+			return null;
+		}
+		Key key = new Key(address, request, deadline);
+		CachedResult entry = entries.get(key);
+		if(entry == null){
+			return null;
+		}
+		if(System.nanoTime() - entry.expires >= 0){
+			entries.remove(key);
+			return null;
+		}
+		return entry.payload;
+	}
+
+	/*
+	 * Stores a reply payload, unless the cache has been invalidated since
+	 * the given generation.
+	 */
+	static synchronized void put(InetSocketAddress address, byte[] request,
+		boolean deadline, byte[] payload, long ttlMillis, long since){
+		if(capacity == 0 || ttlMillis <= 0 || since != generation){
+			return;
+		}
+		entries.put(new Key(address, request, deadline),
+			new CachedResult(payload,
+				System.nanoTime() + ttlMillis * 1000000L));
+	}
+
+	static synchronized void invalidate(InetSocketAddress address){
+		generation++;
+		Iterator<Key> keys = entries.keySet().iterator();
+		while(keys.hasNext()){
+			if(keys.next().address.equals(address)){
+				keys.remove();
+			}
+		}
+	}
+
+	static synchronized void invalidateAll(){
+		generation++;
+		entries.clear();
+	}
+
+	private static void trim(){
+		Iterator<Key> keys = entries.keySet().iterator();
+		while(entries.size() > capacity && keys.hasNext()){
+			keys.next();
+			keys.remove();
+		}
+	}
+
+	private static final class Key {
+		final InetSocketAddress address;
+		final byte[] request;
+		final int hash;
+
+		Key(InetSocketAddress address, byte[] request, boolean deadline){
+			this.address = address;
+			this.request = Arrays.copyOfRange(request,
+				Frame.callOffset(deadline), request.length);
+			this.hash = address.hashCode() * 31 + Arrays.hashCode(this.request);
+		}
+
+		public int hashCode(){
+			return hash;
+		}
+
+		public boolean equals(Object o){
+			if(!(o instanceof Key)){
+				return false;
+			}
+			Key k = (Key)o;
+			return hash == k.hash && address.equals(k.address)
+				&& Arrays.equals(request, k.request);
+		}
+	}
+
+	private static final class CachedResult {
+		final byte[] payload;
+		final long expires;
+
+		CachedResult(byte[] payload, long expires){
+			this.payload = payload;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,438 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/*
+ * Non-blocking transport for a skeleton.
+ *
+ * A fixed number of I/O threads, each with its own selector, read call frames
+ * from and write reply frames to every connection accepted by the skeleton.
+ * Accepted connections are spread over the threads in turn. Decoded calls are
+ * run on the skeleton's worker pool as in blocking mode; workers queue their
+ * replies on the connection, and its I/O thread writes them out as the socket
+ * accepts them.
+ *
+ * Replies queued on a connection are written together by one gathering
+ * write, each as its header and payload, so that a large payload is not
+ * copied into a buffer of its own first. With BufferPool.DIRECT, frames are
+ * instead read and written through pooled direct buffers.
+ *
+ * After shutdown, each I/O thread keeps running until the connections it
+ * owns have answered their calls in progress and closed.
+ */
+class SelectorServer {
+	/*
+	 * Data members:
+	 *
+	 * Skeleton<?> skeleton:
+	 * The skeleton whose connections are being served.
+	 *
+	 * Executor executor:
+	 * Runs decoded calls.
+	 *
+	 * IoLoop[] loops:
+	 * The I/O threads.
+	 *
+	 * int next:
+	 * The loop which will receive the next accepted connection.
+	 */
+	private final Skeleton<?> skeleton;
+	private final Executor executor;
+	private final IoLoop[] loops;
+	private int next = 0;
+	private volatile boolean shutdown = false;
+
+	// Initial size of each connection's read buffer. It grows to fit larger
+	// frames, and shrinks back once they have been read.
+	private static final int READ_BUFFER = 16 * 1024;
+	// Most buffers written by one gathering write
+	private static final int GATHER = 16;
+
+	SelectorServer(Skeleton<?> skeleton, Executor executor, int threads)
+		throws IOException{
+		this.skeleton = skeleton;
+		this.executor = executor;
+		this.loops = new IoLoop[threads];
+		for(int i = 0; i < threads; i++){
+			loops[i] = new IoLoop(Selector.open());
+		}
+		for(int i = 0; i < threads; i++){
+			Thread t = new Thread(loops[i], "rmi-io-" + skeleton.port + "-" + i);
+			t.start();
+		}
+	}
+
+	/*
+	 * Hands an accepted connection to one of the I/O threads.
+	 */
+	synchronized void register(SocketChannel channel) throws IOException{
+		channel.configureBlocking(false);
+		if(!UnixSockets.isUnix(channel)){
+			channel.socket().setTcpNoDelay(true);
+		}
+		NioConnection conn = new NioConnection(channel, loops[next]);
+		next = (next + 1) % loops.length;
+		skeleton.services.add(conn);
+		conn.loop.add(conn);
+	}
+
+	/*
+	 * Stops the I/O threads once their connections have closed.
+	 */
+	void shutdown(){
+		shutdown = true;
+		for(IoLoop loop : loops){
+			loop.selector.wakeup();
+		}
+	}
+
+	/*
+	 * One I/O thread and its selector.
+	 */
+	class IoLoop implements Runnable {
+		final Selector selector;
+		// Connections waiting to be registered with the selector
+		final ConcurrentLinkedQueue<NioConnection> added =
+			new ConcurrentLinkedQueue<NioConnection>();
+		// Connections with replies waiting to be written
+		final ConcurrentLinkedQueue<NioConnection> writable =
+			new ConcurrentLinkedQueue<NioConnection>();
+		long lastSweep = System.currentTimeMillis();
+
+		IoLoop(Selector selector){
+			this.selector = selector;
+		}
+
+		void add(NioConnection conn){
+			added.add(conn);
+			selector.wakeup();
+		}
+
+		void wantWrite(NioConnection conn){
+			writable.add(conn);
+			selector.wakeup();
+		}
+
+		public void run(){
+			try {
+				while(!(shutdown && selector.keys().isEmpty() && added.isEmpty())){
+					selector.select(1000);
+					NioConnection conn;
+					while((conn = added.poll()) != null){
+						try {
+							conn.key = conn.channel.register(selector,
+								SelectionKey.OP_READ, conn);
+						} catch (ClosedChannelException e) {
+							conn.close();
+						}
+					}
+					while((conn = writable.poll()) != null){
+						conn.flush();
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()){
+						SelectionKey key = it.next();
+						it.remove();
+						conn = (NioConnection)key.attachment();
+						if(key.isValid() && key.isWritable()){
+							conn.flush();
+						}
+						if(key.isValid() && key.isReadable()){
+							conn.read();
+						}
+					}
+					sweep();
+				}
+			} catch (IOException e) {
+				if(skeleton.running){
+					skeleton.service_error(new RMIException("I/O thread failed", e));
+				}
+				for(SelectionKey key : selector.keys()){
+					((NioConnection)key.attachment()).abort();
+				}
+			} finally {
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// Thread is exiting anyway
+				}
+			}
+		}
+
+		/*
+		 * Closes connections which have had no calls for the skeleton's idle
+		 * timeout. Checked about once a second.
+		 */
+		private void sweep(){
+			long now = System.currentTimeMillis();
+			if(now - lastSweep < 1000){
+				return;
+			}
+			lastSweep = now;
+			for(SelectionKey key : selector.keys()){
+				NioConnection conn = (NioConnection)key.attachment();
+				if(now - conn.lastRead >= Skeleton.IDLE_TIMEOUT && conn.isIdle()){
+					conn.close();
+				}
+			}
+		}
+	}
+
+	/*
+	 * A connection served by an I/O thread. Only that thread reads from the
+	 * channel or changes its interest set; workers only queue replies.
+	 */
+	class NioConnection extends ServerConnection {
+		final SocketChannel channel;
+		final IoLoop loop;
+		SelectionKey key;
+		ByteBuffer in = BufferPool.takeBuffer(READ_BUFFER);
+		final ArrayDeque<Pending> out = new ArrayDeque<Pending>();
+		private final ByteBuffer[] gather = new ByteBuffer[GATHER];
+		long lastRead = System.currentTimeMillis();
+		volatile boolean closed = false;
+		boolean closeAfterFlush = false;
+
+		NioConnection(SocketChannel channel, IoLoop loop){
+			super(SelectorServer.this.skeleton, SelectorServer.this.executor);
+			this.channel = channel;
+			this.loop = loop;
+		}
+
+		/*
+		 * Reads what is available and submits every complete frame.
+		 */
+		void read(){
+			int n;
+			try {
+				n = channel.read(in);
+			} catch (IOException e) {
+				// Stub reset the connection
+				stopReading(true);
+				return;
+			}
+			if(n < 0){
+				// Stub closed the connection
+				stopReading(true);
+				return;
+			}
+			lastRead = System.currentTimeMillis();
+			in.flip();
+			try {
+				while(in.remaining() >= 4){
+					int length = in.getInt(in.position());
+					if(length < Frame.HEADER_LENGTH || length > Frame.MAX_LENGTH){
+						throw new IOException("Bad frame length " + length);
+					}
+					if(in.remaining() < 4 + length){
+						if(in.capacity() < 4 + length){
+							// Make room for the whole frame
+							resize(4 + length);
+							return;
+						}
+						break;
+					}
+					in.getInt();
+					if(!submit(Frame.read(in, length))){
+						stopReading(false);
+						in.clear();
+						return;
+					}
+				}
+				boolean large = in.remaining() >= 4
+					&& 4 + in.getInt(in.position()) > READ_BUFFER;
+				if(in.capacity() > READ_BUFFER && !large){
+					// The large frames have been read
+					resize(READ_BUFFER);
+				} else {
+					in.compact();
+				}
+			} catch (IOException e) {
+				if(skeleton.running){
+					skeleton.service_error(new RMIException("Connection failed: "
+						+ remoteAddress(), e));
+				}
+				abort();
+			}
+		}
+
+		/*
+		 * Moves the unread bytes to a new read buffer with room for the given
+		 * number, ready for the next read, and gives back the old one.
+		 */
+		private void resize(int size){
+			ByteBuffer resized = BufferPool.takeBuffer(size);
+			resized.put(in);
+			BufferPool.give(in);
+			in = resized;
+		}
+
+		/*
+		 * Stops reading calls; if the stub has gone, the calls it made are
+		 * cancelled as well.
+		 */
+		private void stopReading(boolean disconnected){
+			if(key != null){
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			}
+			if(disconnected){
+				disconnected();
+			} else {
+				finishReading();
+			}
+		}
+
+		@Override
+		void send(Frame reply) throws IOException{
+			if(closed){
+				reply.release();
+				throw new IOException("Connection closed");
+			}
+			Pending pending = new Pending(reply);
+			synchronized(out){
+				out.addLast(pending);
+			}
+			loop.wantWrite(this);
+		}
+
+		/*
+		 * Writes queued replies until the socket's buffer fills, and asks to
+		 * be woken when there is room for the rest. Each write gathers as
+		 * many queued buffers as it can.
+		 */
+		void flush(){
+			if(closed || key == null || !key.isValid()){
+				return;
+			}
+			try {
+				synchronized(out){
+					while(!out.isEmpty()){
+						int n = 0;
+						for(Pending pending : out){
+							if(n + pending.buffers.length > gather.length){
+								break;
+							}
+							for(ByteBuffer b : pending.buffers){
+								gather[n++] = b;
+							}
+						}
+						channel.write(gather, 0, n);
+						boolean full = gather[n - 1].hasRemaining();
+						Arrays.fill(gather, 0, n, null);
+						while(!out.isEmpty() && out.peekFirst().written()){
+							out.removeFirst().release();
+						}
+						if(full){
+							break;
+						}
+					}
+					if(out.isEmpty()){
+						key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+						if(closeAfterFlush){
+							abort();
+						}
+					} else {
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					}
+				}
+			} catch (IOException e) {
+				if(skeleton.running){
+					skeleton.service_error(new RMIException("Cannot send reply to "
+						+ remoteAddress(), e));
+				}
+				abort();
+			}
+		}
+
+		/*
+		 * Closes the connection once the replies already queued have been
+		 * written.
+		 */
+		@Override
+		void close(){
+			synchronized(out){
+				if(!closed && !out.isEmpty()){
+					closeAfterFlush = true;
+					loop.wantWrite(this);
+					return;
+				}
+			}
+			abort();
+		}
+
+		/*
+		 * Closes the connection immediately, discarding queued replies.
+		 */
+		void abort(){
+			closed = true;
+			skeleton.services.remove(this);
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Connection is being discarded anyway
+			}
+			loop.selector.wakeup();
+		}
+
+		@Override
+		SocketAddress remoteAddress(){
+			if(UnixSockets.isUnix(channel)){
+				return UnixSockets.name(channel);
+			}
+			return channel.socket().getRemoteSocketAddress();
+		}
+	}
+
+	/*
+	 * A reply queued to be written: its header and payload, or with direct
+	 * buffers, a copy of the whole frame in one pooled direct buffer, in
+	 * which case the reply is released at once.
+	 */
+	private static final class Pending {
+		final ByteBuffer[] buffers;
+		private final Frame reply;
+
+		Pending(Frame reply){
+			if(BufferPool.DIRECT){
+				ByteBuffer direct = BufferPool.takeBuffer(
+					4 + Frame.HEADER_LENGTH + reply.payload.length);
+				for(ByteBuffer b : reply.buffers()){
+					direct.put(b);
+				}
+				direct.flip();
+				reply.release();
+				this.buffers = new ByteBuffer[]{direct};
+				this.reply = null;
+			} else {
+				this.buffers = reply.buffers();
+				this.reply = reply;
+			}
+		}
+
+		boolean written(){
+			return !buffers[buffers.length - 1].hasRemaining();
+		}
+
+		/*
+		 * Gives back the reply's payload, or the direct buffer, once written.
+		 */
+		void release(){
+			if(reply != null){
+				reply.release();
+			} else {
+				BufferPool.give(buffers[0]);
+			}
+		}
+	}
+}
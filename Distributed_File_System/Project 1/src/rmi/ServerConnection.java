@@ -0,0 +1,642 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/*
+ * The skeleton's side of one stub connection, independent of how its bytes
+ * are moved.
+ *
+ * The transport decodes call frames and passes each to submit, which runs it
+ * on the worker pool of its method's lane, or refuses it at once if the pool
+ * and its queue are full. The worker sends the reply through the
+ * transport's send method. The connection keeps count of calls in progress
+ * so that it is only closed once every call received has been answered:
+ * either after the stub stops sending, or after the skeleton stops.
+ *
+ * Calls in progress are also kept by id, so that they can be cancelled: by a
+ * CANCEL frame from the stub, when their deadline passes, or when the stub
+ * disconnects. A cancelled call which has not started is not run, and the
+ * thread running a call which has started is interrupted.
+ *
+ * A call whose method returns a streamed result keeps its worker after the
+ * reply is sent, to send the result in STREAM frames as the stub's CREDIT
+ * frames allow. A stalled stub therefore holds one worker, and is cut off
+ * when the skeleton stops.
+ *
+ * A call to a OneWay method is run in the same way, but nothing is sent back:
+ * if it fails or is refused, the skeleton's service_error is told instead.
+ *
+ * The skeleton may also call back objects which the stub's process exported,
+ * sending CALL frames of its own to the stub and receiving REPLY frames; see
+ * Callbacks. A connection which has carried a callback is not closed as
+ * idle, and calls still waiting on callbacks fail once the stub stops
+ * sending.
+ */
+abstract class ServerConnection {
+	/*
+	 * Data members:
+	 *
+	 * Skeleton<?> skeleton:
+	 * The skeleton whose server object the calls are made on.
+	 *
+	 * Executor executor:
+	 * Runs the calls received on this connection.
+	 *
+	 * int inFlight:
+	 * The number of calls received and not yet answered.
+	 *
+	 * boolean reading:
+	 * false once the stub has closed its side, or the transport has stopped
+	 * reading calls for any other reason.
+	 *
+	 * boolean compress:
+	 * true once compression has been agreed with the stub.
+	 *
+	 * Map<Long, Call> calls:
+	 * The calls in progress, by frame id.
+	 *
+	 * Map<Long, CompletableFuture<Frame>> callbacks:
+	 * Calls back to the stub's process not yet answered, by frame id. These
+	 * ids are chosen by the skeleton, apart from those of the stub's calls.
+	 *
+	 * boolean holdsCallbacks:
+	 * true once a callback has arrived on this connection.
+	 *
+	 * boolean gone:
+	 * true once the stub has stopped sending, so that no reply to a callback
+	 * can arrive.
+	 */
+	final Skeleton<?> skeleton;
+	final Executor executor;
+	private final ConcurrentHashMap<Long, Call> calls =
+		new ConcurrentHashMap<Long, Call>();
+	private final ConcurrentHashMap<Long, CompletableFuture<Frame>> callbacks =
+		new ConcurrentHashMap<Long, CompletableFuture<Frame>>();
+	private final AtomicLong nextCallback = new AtomicLong();
+	private int inFlight = 0;
+	private boolean reading = true;
+	private volatile boolean compress = false;
+	private volatile boolean holdsCallbacks = false;
+	private volatile boolean gone = false;
+
+	ServerConnection(Skeleton<?> skeleton, Executor executor){
+		this.skeleton = skeleton;
+		this.executor = executor;
+	}
+
+	/*
+	 * Sends a reply frame, and releases it once written. May be called by
+	 * several workers at once.
+	 */
+	abstract void send(Frame reply) throws IOException;
+
+	/*
+	 * Closes the underlying connection. Must be safe to call more than once
+	 * and from any thread.
+	 */
+	abstract void close();
+
+	abstract SocketAddress remoteAddress();
+
+	/*
+	 * True if objects exported by the stub's process can be called back over
+	 * this connection. False for the calls of stubs in this virtual machine,
+	 * which have no connection.
+	 */
+	boolean canCallBack(){
+		return true;
+	}
+
+	/*
+	 * Runs a frame received from the stub. Returns false if the skeleton has
+	 * stopped and the transport should read no more calls.
+	 */
+	boolean submit(Frame request) throws IOException{
+		if(request.type == Frame.HELLO){
+			hello(request);
+			return true;
+		}
+		if(request.type == Frame.CANCEL){
+			Call call = calls.get(request.id);
+			if(call != null){
+				call.cancel();
+			}
+			return true;
+		}
+		if(request.type == Frame.CREDIT){
+			Call call = calls.get(request.id);
+			if(call != null && request.payload.length == 4){
+				call.grant(ByteBuffer.wrap(request.payload).getInt());
+			}
+			return true;
+		}
+		if(request.type == Frame.REPLY){
+			CompletableFuture<Frame> waiting = callbacks.remove(request.id);
+			if(waiting != null){
+				waiting.complete(request.decompress());
+			}
+			// Otherwise the callback has expired
+			return true;
+		}
+		if(request.type != Frame.CALL && request.type != Frame.BATCH){
+			throw new IOException("Unexpected frame type " + request.type);
+		}
+		Executor lane = executor;
+		if(skeleton.hasLanes()){
+			// The method, and so the lane, may be in a compressed payload
+			request = request.decompress();
+			lane = skeleton.workersFor(request.type,
+				request.hasFlag(Frame.FLAG_DEADLINE), request.payload);
+		}
+		if(!begin()){
+			return false;
+		}
+		Call call = new Call(request);
+		calls.put(request.id, call);
+		try {
+			lane.execute(call);
+		} catch (RejectedExecutionException e) {
+			calls.remove(request.id);
+			if(!skeleton.running){
+				// Worker pool was shut down by stop
+				end();
+				return false;
+			}
+			// Every worker is busy and the queue is full
+			skeleton.rejected.incrementAndGet();
+			reject(request);
+		}
+		return true;
+	}
+
+	/*
+	 * Answers the stub's offer of compression codecs with those the skeleton
+	 * accepts.
+	 */
+	private void hello(Frame request) throws IOException{
+		byte offered = request.payload.length > 0 ? request.payload[0] : 0;
+		byte accepted = 0;
+		if(skeleton.compressionThreshold > 0){
+			accepted = (byte)(offered & Frame.DEFLATE);
+		}
+		compress = accepted != 0;
+		send(new Frame(Frame.HELLO, (byte)0, request.id, new byte[]{accepted}));
+	}
+
+	/*
+	 * Answers a call which could not be queued, without running it.
+	 */
+	private void reject(Frame request){
+		if(request.hasFlag(Frame.FLAG_ONEWAY)){
+			skeleton.service_error(new RMIException(
+				"One-way call dropped: skeleton overloaded"));
+			end();
+			return;
+		}
+		try {
+			send(new Frame(Frame.REPLY, Frame.FLAG_EXCEPTION, request.id,
+				Frame.marshal(new CallRejectedException("Skeleton overloaded"))));
+		} catch (IOException e) {
+			if(skeleton.running){
+				skeleton.service_error(new RMIException("Cannot send reply to "
+					+ remoteAddress(), e));
+			}
+			close();
+		} finally {
+			end();
+		}
+	}
+
+	/*
+	 * Called by the transport when it will read no more calls. The connection
+	 * is closed now, or when the last call in progress is answered.
+	 */
+	synchronized void finishReading(){
+		reading = false;
+		gone = true;
+		IOException failure = new IOException("Connection to "
+			+ remoteAddress() + " closed before callback was answered");
+		for(Long id : callbacks.keySet()){
+			CompletableFuture<Frame> waiting = callbacks.remove(id);
+			if(waiting != null){
+				waiting.completeExceptionally(failure);
+			}
+		}
+		if(inFlight == 0){
+			close();
+		}
+	}
+
+	/*
+	 * Called when a callback arrives on this connection, which is then kept
+	 * open for as long as the stub keeps it open.
+	 */
+	void holdCallbacks(){
+		holdsCallbacks = true;
+	}
+
+	/*
+	 * Calls back the object with the given export id in the stub's process.
+	 * The request is marshaled as for a stub, with room for the deadline if
+	 * it is not 0. Returns a future completed with the reply, or with
+	 * DeadlineExceededException if the deadline passes first, or null for a
+	 * OneWay method, which is not answered.
+	 */
+	CompletableFuture<Frame> callBack(long export, byte[] request,
+		long deadline, boolean oneWay) throws IOException, RMIException{
+		byte flags = oneWay ? Frame.FLAG_ONEWAY : 0;
+		if(deadline != 0){
+			long remaining = Deadline.remaining(deadline);
+			if(remaining <= 0){
+				throw new DeadlineExceededException(
+					"Deadline passed before callback to " + remoteAddress());
+			}
+			Frame.setTimeout(request, remaining);
+			flags |= Frame.FLAG_DEADLINE;
+		}
+		byte[] payload = ByteBuffer.allocate(8 + request.length)
+			.putLong(export).put(request).array();
+		final long id = nextCallback.incrementAndGet();
+		CompletableFuture<Frame> reply = null;
+		if(!oneWay){
+			reply = new CompletableFuture<Frame>();
+			callbacks.put(id, reply);
+		}
+		// A stub leaving races with the put above; see finishReading
+		if(gone){
+			callbacks.remove(id);
+			throw new IOException("Connection to " + remoteAddress()
+				+ " is closed");
+		}
+		Frame frame = new Frame(Frame.CALL, flags, id, payload);
+		int threshold = skeleton.compressionThreshold;
+		if(compress && threshold > 0 && payload.length >= threshold){
+			frame = frame.compress();
+		}
+		try{
+			send(frame);
+		} catch(IOException e){
+			callbacks.remove(id);
+			throw e;
+		}
+		if(reply != null && deadline != 0){
+			final ScheduledFuture<?> timeout = Deadline.at(deadline, new Runnable() {
+				public void run(){
+					CompletableFuture<Frame> waiting = callbacks.remove(id);
+					if(waiting != null){
+						waiting.completeExceptionally(new DeadlineExceededException(
+							"No reply to callback before the deadline"));
+					}
+				}
+			});
+			reply.whenComplete(new BiConsumer<Frame, Throwable>() {
+				public void accept(Frame frame, Throwable failure){
+					timeout.cancel(false);
+				}
+			});
+		}
+		return reply;
+	}
+
+	/*
+	 * Called by the transport instead of finishReading when the stub has
+	 * closed or reset the connection. Nobody is waiting for the calls still
+	 * in progress, so they are cancelled.
+	 */
+	void disconnected(){
+		for(Call call : calls.values()){
+			call.cancel();
+		}
+		finishReading();
+	}
+
+	synchronized boolean isIdle(){
+		return inFlight == 0 && !holdsCallbacks;
+	}
+
+	/*
+	 * Closes the connection if no call is in progress. Called when the
+	 * skeleton stops.
+	 */
+	synchronized void closeIfIdle(){
+		if(inFlight == 0){
+			close();
+		}
+	}
+
+	/*
+	 * Marks the start of a call. Returns false if the skeleton has stopped,
+	 * in which case no more calls should be started.
+	 */
+	private synchronized boolean begin(){
+		if(!skeleton.running){
+			return false;
+		}
+		inFlight++;
+		return true;
+	}
+
+	/*
+	 * Marks the end of a call, closing the connection if it is no longer
+	 * needed.
+	 */
+	private synchronized void end(){
+		inFlight--;
+		if(inFlight == 0 && (!reading || !skeleton.running)){
+			close();
+		}
+	}
+
+	/*
+	 * Runs one call and sends its reply. A call which cannot be decoded or
+	 * dispatched is answered with an RMIException, which every remote method
+	 * is declared to throw.
+	 */
+	class Call implements Runnable {
+		/*
+		 * Data members:
+		 *
+		 * long arrival:
+		 * When the call was received, from which its deadline is counted.
+		 * Calls passed by reference within one virtual machine have no
+		 * request frame and are given an absolute deadline, so they leave
+		 * this 0 and save reading the clock.
+		 *
+		 * long deadline:
+		 * When the stub stops waiting, or 0 if it has no deadline. Set by
+		 * Skeleton.dispatch from the call frame.
+		 *
+		 * Thread runner:
+		 * The thread running the server method, while it runs.
+		 *
+		 * boolean wasInterrupted, interrupted:
+		 * Whether the runner was already interrupted when the method was
+		 * invoked, and whether cancel has interrupted it since. Calls made
+		 * directly within one virtual machine run in the caller's thread,
+		 * whose own interrupt must survive the call.
+		 *
+		 * boolean cancelled:
+		 * true once the call should no longer be run.
+		 *
+		 * boolean started:
+		 * true once a server method has been invoked for the call.
+		 *
+		 * ScheduledFuture<?> timer:
+		 * Cancels the call at its deadline, while the server method runs.
+		 *
+		 * Streamer stream, MethodStats streamStats:
+		 * The result to be streamed after the reply, if the method returned
+		 * one, and the statistics to count its size in. Set by
+		 * Skeleton.dispatch.
+		 *
+		 * int credit:
+		 * The number of STREAM frames which may be sent before the stub
+		 * grants more.
+		 *
+		 * boolean oneWay:
+		 * true if the call is to a OneWay method, and is not to be answered.
+		 *
+		 * long trace, long parentSpan:
+		 * The call's trace context, or zeros if it is not traced. Set by
+		 * Skeleton.dispatch from the call frame.
+		 *
+		 * Trace.Span span:
+		 * The skeleton's span for the call being served, if traced.
+		 *
+		 * boolean sharedResult:
+		 * true if the encoded result may be shared with coalesced calls, so
+		 * that the reply does not own its payload. Set by Skeleton.dispatch.
+		 */
+		final Frame request;
+		final long arrival;
+		final boolean oneWay;
+		long deadline = 0;
+		private Thread runner;
+		private boolean wasInterrupted = false;
+		private boolean interrupted = false;
+		private volatile boolean cancelled = false;
+		private boolean started = false;
+		private ScheduledFuture<?> timer;
+		Streamer stream;
+		MethodStats streamStats;
+		private int credit = Frame.STREAM_WINDOW;
+		long trace = 0;
+		long parentSpan = 0;
+		Trace.Span span;
+		boolean sharedResult = false;
+
+		Call(Frame request){
+			this.request = request;
+			this.arrival = request == null ? 0 : System.nanoTime();
+			this.oneWay = request != null && request.hasFlag(Frame.FLAG_ONEWAY);
+		}
+
+		/*
+		 * Stops the call: it will not be started, and if it is running, its
+		 * thread is interrupted.
+		 */
+		synchronized void cancel(){
+			cancelled = true;
+			if(runner != null && !interrupted){
+				interrupted = true;
+				runner.interrupt();
+			}
+			notifyAll();
+		}
+
+		boolean isCancelled(){
+			return cancelled;
+		}
+
+		synchronized boolean hasStarted(){
+			return started;
+		}
+
+		ServerConnection connection(){
+			return ServerConnection.this;
+		}
+
+		synchronized void grant(int frames){
+			if(frames > 0){
+				credit += frames;
+				notifyAll();
+			}
+		}
+
+		/*
+		 * Waits until another STREAM frame may be sent. Returns false if the
+		 * stream should be abandoned instead: because the call has been
+		 * cancelled, or the skeleton has stopped.
+		 */
+		private synchronized boolean takeCredit(){
+			while(credit == 0 && !cancelled && skeleton.running){
+				try{
+					wait(1000);
+				} catch(InterruptedException e){
+					return false;
+				}
+			}
+			if(cancelled || !skeleton.running){
+				return false;
+			}
+			credit--;
+			return true;
+		}
+
+		/*
+		 * Called by the skeleton just before the server method is invoked.
+		 * Returns false if the call has been cancelled or its deadline has
+		 * passed, in which case the method must not be invoked.
+		 */
+		synchronized boolean enter(){
+			if(cancelled || (deadline != 0 && Deadline.remaining(deadline) <= 0)){
+				return false;
+			}
+			runner = Thread.currentThread();
+			wasInterrupted = runner.isInterrupted();
+			started = true;
+			if(deadline != 0){
+				timer = Deadline.at(deadline, new Runnable() {
+					public void run(){
+						cancel();
+					}
+				});
+			}
+			return true;
+		}
+
+		/*
+		 * Called by the skeleton when the server method returns. Clears an
+		 * interrupt delivered to this call, so that it does not reach the
+		 * next call run by the same thread, but leaves one the thread already
+		 * had before the call, such as an outer call's cancellation.
+		 */
+		synchronized void exit(){
+			if(interrupted){
+				Thread.interrupted();
+				if(wasInterrupted){
+					runner.interrupt();
+				}
+			}
+			runner = null;
+			if(timer != null){
+				timer.cancel(false);
+				timer = null;
+			}
+		}
+
+		public void run(){
+			Frame reply;
+			try {
+				Frame decompressed = request.decompress();
+				try {
+					reply = skeleton.dispatch(decompressed, this);
+				} finally {
+					// The arguments have been unmarshaled into copies
+					decompressed.release();
+				}
+				int threshold = skeleton.compressionThreshold;
+				if(!oneWay && compress && threshold > 0
+					&& reply.payload.length >= threshold){
+					Frame compressed = reply.compress();
+					if(compressed != reply){
+						reply.release();
+						reply = compressed;
+					}
+				}
+			} catch (Exception e) {
+				skeleton.service_error(new RMIException("Cannot service call", e));
+				try {
+					reply = new Frame(Frame.REPLY, Frame.FLAG_EXCEPTION, request.id,
+						Frame.marshal(new RMIException("Skeleton cannot service call: " + e)));
+				} catch (IOException e2) {
+					reply = null;
+				}
+			}
+			try {
+				if(oneWay){
+					// Any failure has been reported by the skeleton
+					if(reply != null){
+						reply.release();
+					}
+					return;
+				}
+				if(cancelled){
+					// The stub has stopped waiting, or its deadline is
+					// passing too, and a result may only reflect the
+					// interrupt; the stub must not take it for the answer.
+					if(reply != null){
+						reply.release();
+					}
+					return;
+				}
+				if(reply == null){
+					throw new IOException("Cannot marshal reply");
+				}
+				send(reply);
+				if(stream != null){
+					sendStream();
+				}
+			} catch (IOException e) {
+				// Nobody is waiting for the reply to a cancelled call
+				if(skeleton.running && !cancelled){
+					skeleton.service_error(new RMIException("Cannot send reply to "
+						+ remoteAddress(), e));
+				}
+				close();
+			} finally {
+				if(stream != null){
+					stream.close();
+				}
+				calls.remove(request.id);
+				end();
+			}
+		}
+
+		/*
+		 * Sends the streamed result, one block per frame, as credit allows.
+		 * An exception from the server's iterator or stream ends the result
+		 * with that exception.
+		 */
+		private void sendStream() throws IOException {
+			while(takeCredit()){
+				byte[] block;
+				byte flags = 0;
+				try{
+					block = stream.next();
+				} catch(Exception e){
+					block = Frame.marshal(e);
+					flags = Frame.FLAG_EXCEPTION | Frame.FLAG_END;
+				}
+				if(block == null){
+					block = new byte[0];
+					flags = Frame.FLAG_END;
+				}
+				streamStats.streamed(block.length);
+				Frame frame = new Frame(Frame.STREAM, flags, request.id, block);
+				frame.pooled = true;
+				int threshold = skeleton.compressionThreshold;
+				if(compress && threshold > 0 && block.length >= threshold){
+					Frame compressed = frame.compress();
+					if(compressed != frame){
+						frame.release();
+						frame = compressed;
+					}
+				}
+				send(frame);
+				if((flags & Frame.FLAG_END) != 0){
+					return;
+				}
+			}
+		}
+	}
+}
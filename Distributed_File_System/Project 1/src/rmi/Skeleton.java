@@ -1,11 +1,36 @@
 package rmi;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
-import java.lang.reflect.InvocationTargetException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 
@@ -30,6 +55,14 @@ import java.net.*;
     The skeleton's response to these exceptions can be customized by deriving
     a class from <code>Skeleton</code> and overriding <code>listen_error</code>
     or <code>service_error</code>.
+
+    <p>
+    So that a call repeated after a lost connection does not run twice, a
+    skeleton keeps the replies to its recent calls of methods not marked
+    <code>Idempotent</code>, up to 64 KB each. The system property
+    <code>rmi.requestlog.bytes</code> bounds the memory used by the replies
+    each skeleton keeps, and is 16 MB by default. A repeat whose reply is no
+    longer kept fails with <code>RMIException</code> instead of running again.
 */
 public class Skeleton<T>
 {
@@ -55,14 +88,118 @@ public class Skeleton<T>
 	 * int port:
 	 * The port on which the skeleton is running.
 	 * 
+	 * ExecutorService workers:
+	 * Runs the calls received on all connections, in the default lane.
+	 * 
+	 * String[] methodLanes:
+	 * The lane of each method id, from its Lane annotation or setLane, or
+	 * null for the default lane.
+	 * 
+	 * Map<String, int[]> lanePools:
+	 * The pool threads and queue capacity set for each lane by setLanePool.
+	 * Lanes not listed take the settings of the default lane.
+	 * 
+	 * Map<String, ExecutorService> laneWorkers:
+	 * The workers of each lane other than the default, while running.
+	 * 
+	 * Executor[] methodWorkers:
+	 * The workers which run each method id, while running, or null if every
+	 * method is in the default lane.
+	 * 
+	 * Set<ServerConnection> services:
+	 * The connections currently being serviced. Idle ones are closed on stop.
+	 * 
+	 * int selectorThreads:
+	 * The number of I/O threads in selector mode, or zero for blocking mode.
+	 * 
+	 * SelectorServer selector:
+	 * The I/O threads, while running in selector mode.
+	 * 
+	 * boolean virtualThreads:
+	 * true if calls and connection readers run on virtual threads.
+	 * 
+	 * int poolThreads, poolQueue:
+	 * The size of the worker pool and of its queue of waiting calls, or zero
+	 * threads for an unbounded pool.
+	 * 
+	 * AtomicLong rejected:
+	 * The number of calls refused because the skeleton was overloaded.
+	 * 
+	 * int compressionThreshold:
+	 * The reply size from which replies are compressed on connections whose
+	 * stub offers compression, or zero to refuse compression.
+	 * 
+	 * MethodTable table:
+	 * The method ids of interface c, by which calls name their method.
+	 * 
+	 * AtomicReferenceArray<MethodLimit> methodLimits:
+	 * The limit on calls in progress for each method id, or null where none
+	 * has been set.
+	 * 
+	 * Coalescer flights:
+	 * The calls to Coalesce methods in progress.
+	 * 
+	 * RequestLog requests:
+	 * The outcomes of recent calls which are not Idempotent, so that calls
+	 * repeated by stubs after a lost connection are not run twice.
+	 * 
+	 * SkeletonMetrics metrics:
+	 * Call counts, sizes and latencies for each method, published through
+	 * JMX while the skeleton is running.
+	 * 
+	 * String unixSocket:
+	 * The Unix domain socket to listen on as well as the TCP port, as set by
+	 * setUnixSocket, or null to use the rmi.unix.dir property.
+	 * 
+	 * String unixPath:
+	 * The Unix domain socket the skeleton is listening on, or null if it is
+	 * not listening on one. Stubs made from the skeleton carry this path.
+	 * 
+	 * ServerSocketChannel unixServer:
+	 * The channel listening on unixPath.
+	 * 
+	 * ServerConnection local:
+	 * Stands for the stubs in this virtual machine which call the skeleton
+	 * directly; see LocalRegistry.
+	 * 
+	 * int IDLE_TIMEOUT:
+	 * How long, in milliseconds, a connection may wait for its next call.
+	 * This is longer than the stubs' own pool timeout, so stubs normally
+	 * close idle connections first.
+	 * 
 	 */
 	Class<T> c;
 	T server;
 	InetSocketAddress serverAddress;
 	ServerSocket listenSocket;
-	boolean running;
+	volatile boolean running;
 	Thread listen;
 	int port=0;
+	ExecutorService workers;
+	String[] methodLanes;
+	final Map<String, int[]> lanePools = new HashMap<String, int[]>();
+	final Map<String, ExecutorService> laneWorkers =
+		new HashMap<String, ExecutorService>();
+	volatile Executor[] methodWorkers;
+	Set<ServerConnection> services = Collections.newSetFromMap(
+		new ConcurrentHashMap<ServerConnection, Boolean>());
+	int selectorThreads = 0;
+	SelectorServer selector;
+	boolean virtualThreads = false;
+	int poolThreads = 0;
+	int poolQueue = 0;
+	final AtomicLong rejected = new AtomicLong();
+	volatile int compressionThreshold = 64 * 1024;
+	MethodTable table;
+	AtomicReferenceArray<MethodLimit> methodLimits;
+	SkeletonMetrics metrics;
+	final Coalescer flights = new Coalescer();
+	final RequestLog requests = new RequestLog();
+	String unixSocket;
+	volatile String unixPath;
+	ServerSocketChannel unixServer;
+	final ServerConnection local = new Local();
+	static final int IDLE_TIMEOUT = 60000;
 	
 	/*
 	 * End of data member declarations.
@@ -115,6 +252,11 @@ public class Skeleton<T>
     	}
     	this.c = c;
     	this.server = server;
+    	this.table = MethodTable.of(c);
+    	this.methodLimits =
+    		new AtomicReferenceArray<MethodLimit>(table.methods.length);
+    	this.metrics = new SkeletonMetrics(c, table);
+    	this.methodLanes = table.lanes.clone();
     	this.serverAddress = null;
     	running = false;
     }
@@ -161,6 +303,11 @@ public class Skeleton<T>
     	}
     	this.c = c;
     	this.server = server;
+    	this.table = MethodTable.of(c);
+    	this.methodLimits =
+    		new AtomicReferenceArray<MethodLimit>(table.methods.length);
+    	this.metrics = new SkeletonMetrics(c, table);
+    	this.methodLanes = table.lanes.clone();
     	this.serverAddress = address;
     	running = false;
     }
@@ -218,6 +365,12 @@ public class Skeleton<T>
 
     /** Called when an exception occurs at the top level in a service thread.
 
+        <p>
+        This method is also called when a call to a method marked
+        <code>OneWay</code> throws, or is dropped without being run, since
+        there is no caller to tell. The exception's cause is then the
+        exception thrown by the method, if any.
+
         <p>
         The default implementation does nothing.
 
@@ -227,6 +380,337 @@ public class Skeleton<T>
     {
     }
 
+    /** Sets the number of I/O threads used when the skeleton runs in
+        selector mode.
+
+        <p>
+        By default, <code>threads</code> is zero and the skeleton uses one
+        blocking thread per connection to read calls. With a positive number
+        of threads, accepted connections are made non-blocking and shared among
+        that many threads, each running a <code>java.nio</code> selector. In
+        both modes, calls are run on the skeleton's worker threads. Selector
+        mode keeps the number of threads fixed however many stubs connect.
+
+        <p>
+        If the system property <code>rmi.buffers.direct</code> is
+        <code>true</code>, selector mode reads and writes frames through
+        pooled direct buffers, which the socket uses without copying.
+
+        <p>
+        The setting takes effect the next time the skeleton is started.
+
+        @param threads The number of I/O threads, or zero for blocking mode.
+        @throws IllegalArgumentException If <code>threads</code> is negative.
+     */
+    public synchronized void setSelectorThreads(int threads)
+    {
+    	if(threads < 0){
+    		throw new IllegalArgumentException("Negative thread count");
+    	}
+    	selectorThreads = threads;
+    }
+
+    /** Sets whether the skeleton runs calls on virtual threads.
+
+        <p>
+        By default, calls run on a pool of platform threads, and in blocking
+        mode each connection is read by its own platform thread. When virtual
+        threads are enabled, each call and each connection reader runs on a
+        new virtual thread instead. This makes it cheap to hold very many calls
+        blocked inside the server object, for example waiting for a lock. Note
+        that before Java 24, a virtual thread which waits inside a
+        <code>synchronized</code> method keeps its carrier thread busy.
+
+        <p>
+        The setting takes effect the next time the skeleton is started.
+
+        @param enabled <code>true</code> to use virtual threads.
+        @throws UnsupportedOperationException If <code>enabled</code> is
+                                              <code>true</code> and the Java
+                                              runtime does not provide virtual
+                                              threads.
+     */
+    public synchronized void setVirtualThreads(boolean enabled)
+    {
+    	if(enabled && !Threads.virtualSupported()){
+    		throw new UnsupportedOperationException(
+    			"Virtual threads require Java 21 or later");
+    	}
+    	virtualThreads = enabled;
+    }
+
+    /** Bounds the number of calls the skeleton runs and queues at once.
+
+        <p>
+        By default, the skeleton starts a new worker thread whenever a call
+        arrives and every existing worker is busy, so under overload every
+        caller slows down. With a bounded pool, at most <code>threads</code>
+        calls run at once and at most <code>queueCapacity</code> further calls
+        wait for a worker. Calls arriving when the queue is full are refused
+        immediately: the stub throws <code>CallRejectedException</code>.
+
+        <p>
+        In virtual thread mode, the pool's workers are virtual threads, but the
+        same bounds apply. The setting takes effect the next time the skeleton
+        is started.
+
+        @param threads The number of worker threads, or zero for an unbounded
+                       pool.
+        @param queueCapacity The number of calls which may wait for a worker.
+                             Ignored when <code>threads</code> is zero.
+        @throws IllegalArgumentException If either argument is negative.
+     */
+    public synchronized void setWorkerPool(int threads, int queueCapacity)
+    {
+    	if(threads < 0 || queueCapacity < 0){
+    		throw new IllegalArgumentException("Negative pool size");
+    	}
+    	poolThreads = threads;
+    	poolQueue = queueCapacity;
+    }
+
+    /** Moves a method to a lane of the skeleton's worker threads.
+
+        <p>
+        Each lane has its own worker pool and queue, so that calls waiting in
+        one lane do not delay calls in another. Methods are placed in lanes by
+        their <code>Lane</code> annotation, and otherwise run in the default
+        lane, whose pool is set by <code>setWorkerPool</code>. This method
+        overrides the annotation. The setting takes effect the next time the
+        skeleton is started.
+
+        @param method A method of the skeleton's remote interface.
+        @param lane The name of the lane, or <code>null</code> for the default
+                    lane.
+        @throws IllegalArgumentException If <code>method</code> is not a method
+                                         of the remote interface.
+        @throws NullPointerException If <code>method</code> is
+                                     <code>null</code>.
+     */
+    public synchronized void setLane(Method method, String lane)
+    {
+    	int id = table.id(method);
+    	if(id < 0){
+    		throw new IllegalArgumentException(method + " is not a remote method");
+    	}
+    	methodLanes[id] = lane;
+    }
+
+    /** Bounds the number of calls one lane runs and queues at once.
+
+        <p>
+        The bounds have the same meaning as those of
+        <code>setWorkerPool</code>, which gives the settings of the default
+        lane and of any lane not set here. A lane's calls are refused when its
+        own queue is full, however idle the other lanes are. The setting takes
+        effect the next time the skeleton is started.
+
+        @param lane The name of the lane.
+        @param threads The number of worker threads, or zero for an unbounded
+                       pool.
+        @param queueCapacity The number of calls which may wait for a worker.
+                             Ignored when <code>threads</code> is zero.
+        @throws IllegalArgumentException If either number is negative.
+        @throws NullPointerException If <code>lane</code> is <code>null</code>.
+     */
+    public synchronized void setLanePool(String lane, int threads,
+                                         int queueCapacity)
+    {
+    	if(lane == null){
+    		throw new NullPointerException();
+    	}
+    	if(threads < 0 || queueCapacity < 0){
+    		throw new IllegalArgumentException("Negative pool size");
+    	}
+    	lanePools.put(lane, new int[]{threads, queueCapacity});
+    }
+
+    /** Limits the number of calls to one method which may be in progress at
+        once.
+
+        <p>
+        Calls to the method beyond the limit are refused without being run,
+        and the stub throws <code>CallRejectedException</code>. This keeps an
+        expensive method from occupying the whole worker pool. The limit
+        applies from the next call on.
+
+        @param method A method of the skeleton's remote interface.
+        @param limit The most calls to <code>method</code> which may be in
+                     progress, or zero to remove the limit.
+        @throws IllegalArgumentException If <code>method</code> is not a method
+                                         of the remote interface, or if
+                                         <code>limit</code> is negative.
+        @throws NullPointerException If <code>method</code> is
+                                     <code>null</code>.
+     */
+    public void setMethodLimit(Method method, int limit)
+    {
+    	if(limit < 0){
+    		throw new IllegalArgumentException("Negative call limit");
+    	}
+    	int id = table.id(method);
+    	if(id < 0){
+    		throw new IllegalArgumentException(method + " is not a remote method");
+    	}
+    	methodLimits.set(id, limit == 0 ? null : new MethodLimit(limit));
+    }
+
+    /** Returns the number of calls waiting for a worker thread, in all
+        lanes.
+
+        <p>
+        This is always zero unless a bounded pool with a queue has been set
+        with <code>setWorkerPool</code> or <code>setLanePool</code>.
+     */
+    public synchronized int getQueueDepth()
+    {
+    	int depth = queueDepth(workers);
+    	for(ExecutorService lane : laneWorkers.values()){
+    		depth += queueDepth(lane);
+    	}
+    	return depth;
+    }
+
+    /** Returns the number of calls waiting for a worker thread in one lane.
+
+        @param lane The name of the lane, or <code>null</code> for the default
+                    lane.
+        @return The number of waiting calls, or zero if the lane is not in use.
+     */
+    public synchronized int getQueueDepth(String lane)
+    {
+    	return queueDepth(lane == null ? workers : laneWorkers.get(lane));
+    }
+
+    private static int queueDepth(ExecutorService pool)
+    {
+    	if(pool instanceof ThreadPoolExecutor){
+    		return ((ThreadPoolExecutor)pool).getQueue().size();
+    	}
+    	return 0;
+    }
+
+    /** Returns the number of calls refused because the worker pool and queue
+        were full or a method was at its limit, since the skeleton was created.
+     */
+    public long getRejectedCalls()
+    {
+    	return rejected.get();
+    }
+
+    /** Returns the number of calls to the given method refused because of its
+        limit, since the limit was set.
+
+        @param method A method of the remote interface.
+        @return The number of rejected calls, or zero if the method has no
+                limit.
+     */
+    public long getRejectedCalls(Method method)
+    {
+    	int id = table.id(method);
+    	MethodLimit limit = id < 0 ? null : methodLimits.get(id);
+    	return limit == null ? 0 : limit.rejected.get();
+    }
+
+    /** Sets the size from which replies are compressed.
+
+        <p>
+        Stubs connecting from other hosts offer to compress large messages.
+        The skeleton agrees unless compression has been disabled here. On such
+        connections, replies whose marshaled results are at least
+        <code>bytes</code> long are sent compressed, and the stub may compress
+        large calls. The default threshold is 64 KB.
+
+        @param bytes The threshold, or zero to refuse compression on
+                     connections accepted afterwards.
+        @throws IllegalArgumentException If <code>bytes</code> is negative.
+     */
+    public void setCompressionThreshold(int bytes)
+    {
+    	if(bytes < 0){
+    		throw new IllegalArgumentException("Negative threshold");
+    	}
+    	compressionThreshold = bytes;
+    }
+
+    /** Sets a Unix domain socket on which the skeleton listens, in addition
+        to its TCP address.
+
+        <p>
+        Stubs made from the skeleton, and copies of them passed to other
+        processes, carry the socket's path. A stub on the same host as the
+        skeleton connects through the socket instead of TCP, which saves the
+        work of the TCP stack on every call. Stubs on other hosts, and stubs
+        which cannot connect to the socket, use TCP as before.
+
+        <p>
+        By default, a skeleton listens on a Unix domain socket only if the
+        system property <code>rmi.unix.dir</code> names a directory, in which
+        case the socket is the file <code>rmi-</code><i>port</i><code>.sock</code>
+        in that directory. Any file left at the path by a skeleton which did
+        not stop cleanly is replaced. The setting takes effect the next time
+        the skeleton is started.
+
+        @param path The path of the socket file, or <code>null</code> for the
+                    default.
+        @throws UnsupportedOperationException If <code>path</code> is not
+                                              <code>null</code> and the Java
+                                              runtime does not provide Unix
+                                              domain sockets.
+     */
+    public synchronized void setUnixSocket(String path)
+    {
+    	if(path != null && !UnixSockets.supported()){
+    		throw new UnsupportedOperationException(
+    			"Unix domain sockets require Java 16 or later");
+    	}
+    	unixSocket = path;
+    }
+
+    /** Returns a report of the calls made to each method of the skeleton.
+
+        <p>
+        The report has one line for each method which has been called, giving
+        the number of calls and of calls which threw an exception, the total
+        size of the encoded arguments and results, and the median, 99th
+        percentile and longest times spent decoding each call, running the
+        method, and encoding the result. The same figures are published through
+        JMX while the skeleton is running; see <code>MethodStatsMBean</code>.
+
+        @return The report, as lines of text.
+     */
+    public String getMetricsReport()
+    {
+    	return metrics.report();
+    }
+
+    /** Prints the metrics report at a fixed period while the skeleton is
+        running.
+
+        <p>
+        By default, the report is printed to <code>System.err</code> if the
+        system property <code>rmi.metrics.dump</code> is set to a period in
+        milliseconds, and is not printed otherwise.
+
+        @param periodMillis The time between reports, or zero to stop
+                            printing them.
+        @param out The stream to print the report to.
+        @throws IllegalArgumentException If <code>periodMillis</code> is
+                                         negative.
+        @throws NullPointerException If <code>out</code> is <code>null</code>
+                                     and <code>periodMillis</code> is not zero.
+     */
+    public void setMetricsDump(long periodMillis, PrintStream out)
+    {
+    	if(periodMillis < 0){
+    		throw new IllegalArgumentException("Negative period");
+    	}
+    	if(periodMillis > 0 && out == null){
+    		throw new NullPointerException();
+    	}
+    	metrics.setDump(periodMillis, out);
+    }
+
     /** Starts the skeleton server.
 
         <p>
@@ -250,29 +734,169 @@ public class Skeleton<T>
     	
     	//set serverAddress if uninitialized
     	try{
+    		// In selector mode the listening socket belongs to a channel, so
+    		// that accepted sockets have channels too.
+    		if(selectorThreads > 0){
+    			listenSocket = ServerSocketChannel.open().socket();
+    		} else {
+    			listenSocket = new ServerSocket();
+    		}
+    		// Address reuse must be enabled before binding, since connections
+    		// closed by this side linger in TIME_WAIT after a restart.
+    		listenSocket.setReuseAddress(true);
     		if(serverAddress == null){
-    			listenSocket = new ServerSocket(0);
+    			listenSocket.bind(null);
     			port=listenSocket.getLocalPort();
     			serverAddress = new InetSocketAddress(port);
     			
     		} else {
-    			this.listenSocket = new ServerSocket();
     			port=serverAddress.getPort();
     			listenSocket.bind(serverAddress);
     		}
     		
     		
-    		listenSocket.setReuseAddress(true);
-    		Listener l = new Listener();
+    		workers = newWorkers("worker", poolThreads, poolQueue);
+    		startLanes();
+    		metrics.start(port);
+    		if(selectorThreads > 0){
+    			selector = new SelectorServer(this, workers, selectorThreads);
+    		} else {
+    			selector = null;
+    		}
+    		Listener l = new Listener(listenSocket);
             this.listen = new Thread(l);
             listen.start();
+            LocalRegistry.register(listenSocket.getLocalPort(), this);
+            listenUnix();
     	} catch (Exception e){
     		e.printStackTrace();
-    		throw new RMIException("Listener cannot be started");
+    		shutdown();
+    		throw new RMIException("Listener cannot be started", e);
     	}
         
     }//End of start
     
+    /*
+     * Starts listening on the Unix domain socket, if one is set. Stubs on
+     * this host can still use TCP, so if the socket cannot be opened the
+     * skeleton runs without it.
+     */
+    private void listenUnix(){
+    	String path = unixSocket;
+    	String dir = System.getProperty("rmi.unix.dir");
+    	if(path == null && dir != null && UnixSockets.supported()){
+    		path = new java.io.File(dir, "rmi-" + listenSocket.getLocalPort()
+    			+ ".sock").getPath();
+    	}
+    	if(path == null){
+    		return;
+    	}
+    	try{
+    		unixServer = UnixSockets.listen(path);
+    	} catch (IOException e){
+    		listen_error(e);
+    		return;
+    	}
+    	unixPath = path;
+    	Thread t = new Thread(new UnixListener(unixServer),
+    		"rmi-unix-listener-" + port);
+    	t.setDaemon(true);
+    	t.start();
+    }
+    
+    /*
+     * Creates the workers of each lane in use, and records which workers run
+     * each method. Methods in the default lane are run by workers.
+     */
+    private void startLanes(){
+    	Executor[] byMethod = null;
+    	for(int id = 0; id < methodLanes.length; id++){
+    		String lane = methodLanes[id];
+    		if(lane == null){
+    			continue;
+    		}
+    		ExecutorService pool = laneWorkers.get(lane);
+    		if(pool == null){
+    			int[] size = lanePools.get(lane);
+    			pool = size == null
+    				? newWorkers(lane, poolThreads, poolQueue)
+    				: newWorkers(lane, size[0], size[1]);
+    			laneWorkers.put(lane, pool);
+    		}
+    		if(byMethod == null){
+    			byMethod = new Executor[methodLanes.length];
+    			Arrays.fill(byMethod, workers);
+    		}
+    		byMethod[id] = pool;
+    	}
+    	methodWorkers = byMethod;
+    }
+    
+    /*
+     * Returns the workers which should run a CALL or BATCH frame: those of
+     * the lane of its method, or of a batch's first method. The frame's
+     * payload must not be compressed. Frames too short to name a method are
+     * left to the default lane, where dispatch refuses them.
+     */
+    Executor workersFor(byte type, boolean deadline, byte[] payload){
+    	Executor[] byMethod = methodWorkers;
+    	if(byMethod == null){
+    		return workers;
+    	}
+    	int at = Frame.callOffset(deadline) + 4 + (type == Frame.BATCH ? 4 : 0);
+    	if(payload.length < at + 4){
+    		return workers;
+    	}
+    	int id = ByteBuffer.wrap(payload).getInt(at);
+    	if(id < 0 || id >= byMethod.length){
+    		return workers;
+    	}
+    	return byMethod[id];
+    }
+    
+    /*
+     * True if some method runs outside the default lane, so that the lane
+     * of a call must be found before it is queued.
+     */
+    boolean hasLanes(){
+    	return methodWorkers != null;
+    }
+    
+    /*
+     * Creates the executor for one lane's calls, according to the pool and
+     * thread settings.
+     */
+    private ExecutorService newWorkers(String lane, int threads, int queued){
+    	final String prefix = "rmi-" + lane + "-" + port + "-";
+    	ThreadFactory factory;
+    	if(virtualThreads){
+    		if(threads == 0){
+    			return Threads.newVirtualExecutor();
+    		}
+    		factory = Threads.virtualFactory(prefix);
+    	} else {
+    		factory = new ThreadFactory() {
+    			int count = 0;
+    			public synchronized Thread newThread(Runnable r){
+    				return new Thread(r, prefix + (count++));
+    			}
+    		};
+    	}
+    	if(threads == 0){
+    		return Executors.newCachedThreadPool(factory);
+    	}
+    	BlockingQueue<Runnable> queue;
+    	if(queued > 0){
+    		queue = new ArrayBlockingQueue<Runnable>(queued);
+    	} else {
+    		queue = new SynchronousQueue<Runnable>();
+    	}
+    	ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+    		60, TimeUnit.SECONDS, queue, factory);
+    	pool.allowCoreThreadTimeOut(true);
+    	return pool;
+    }
+    
     /** Stops the skeleton server, if it is already running.
 	
 	    <p>
@@ -282,9 +906,67 @@ public class Skeleton<T>
 	    <code>stopped</code> is called at that point. The server may then be
 	    restarted.
 	 */
-	public synchronized void stop()
+	public void stop()
 	{
+		Thread listener;
+		synchronized(this){
+			listener = listen;
+			shutdown();
+		}
+		// The listening thread calls stopped once it has left accept, which
+		// is when the port is actually released. Wait for it, so that the
+		// skeleton can be restarted as soon as this method returns.
+		if(listener != null && listener.isAlive()
+			&& listener != Thread.currentThread()){
+			try{
+				listener.join();
+			} catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		} else {
+			synchronized(this){
+				stopped(null);
+			}
+		}
+		
+	}//End of stop
+	
+	/*
+	 * Stops accepting connections and calls. Connections with no call in
+	 * progress are closed now; the rest are closed once their calls have been
+	 * answered. Called with the skeleton lock held.
+	 */
+	private void shutdown(){
 		running = false;
+		if(listenSocket != null){
+			LocalRegistry.unregister(listenSocket.getLocalPort(), this);
+		}
+		for(ServerConnection s : services){
+			s.closeIfIdle();
+		}
+		// Calls already running are allowed to finish.
+		if(workers != null){
+			workers.shutdown();
+		}
+		for(ExecutorService lane : laneWorkers.values()){
+			lane.shutdown();
+		}
+		laneWorkers.clear();
+		methodWorkers = null;
+		if(selector != null){
+			selector.shutdown();
+		}
+		metrics.stop();
+		if(unixServer != null){
+			try{
+				unixServer.close();
+			} catch (IOException e){
+				// The socket file is removed anyway
+			}
+			new java.io.File(unixPath).delete();
+			unixServer = null;
+			unixPath = null;
+		}
 		try{
 			listenSocket.close();
 		} catch(NullPointerException e){
@@ -292,9 +974,7 @@ public class Skeleton<T>
 		} catch (Exception e){
 			e.printStackTrace();
 		}
-		stopped(null);
-		
-	}//End of stop
+	}
 	
 	/*
 	 * End of Skeleton methods
@@ -307,91 +987,751 @@ public class Skeleton<T>
 	/*
 	 * This class represents the functionality of the main Listening Thread.
 	 * 
-	 * It listens for connect attempts and routs them each to a service thread.
+	 * It listens for connect attempts and routs them each to a service thread,
+	 * or in selector mode to one of the I/O threads.
 	 * 
-	 * It only stops executing when the Skeleton is stopped.
+	 * It stops executing when the Skeleton is stopped, or when an exception
+	 * occurs and listen_error does not ask for the skeleton to keep running.
+	 * Either way it calls stopped on its way out.
 	 */
 	public class Listener implements Runnable {
+		ServerSocket socket;
+		
+		public Listener(ServerSocket socket) {
+			this.socket = socket;
+		}
+		
 		/*
-		 * The logic of this function involves reading the method name, its arguments, and their types, and finding 
-		 * from the given interface c. We then invoke the method from the implementation, which is in server.
-		 * We then write out the object we get as a result of this. 
+		 * Accepts connections until the listening socket is closed.
 		 */
 		public void run() {
-			Socket serviceSocket;
-			try{
-				while (running) {
-					serviceSocket = listenSocket.accept();
-					Service callx = new Service(serviceSocket);
-					Thread t = new Thread(callx);
-					t.start();
+			Exception cause = null;
+			while (running) {
+				Socket serviceSocket = null;
+				try{
+					serviceSocket = socket.accept();
+					if(selector != null){
+						selector.register(serviceSocket.getChannel());
+					} else {
+						Service callx = new Service(serviceSocket, workers);
+						services.add(callx);
+						if(virtualThreads){
+							Threads.startVirtual(callx);
+						} else {
+							Thread t = new Thread(callx);
+							t.start();
+						}
+					}
+				} catch(Exception e){
+					if(!running){
+						// Listening socket closed by stop
+						break;
+					}
+					if(serviceSocket != null){
+						try{
+							serviceSocket.close();
+						} catch(IOException e2){
+							// Connection is being discarded anyway
+						}
+					}
+					if(!listen_error(e)){
+						cause = e;
+						break;
+					}
+				}
+			}
+			synchronized(Skeleton.this){
+				if(cause != null){
+					shutdown();
 				}
-	        } catch(Exception e){
-	        	if(!running){
-	        	} else {
-	        		//do nothing
-	        	}
-	        }
+				stopped(cause);
+			}
 		}
 	}//end of Listener
+	
+	/*
+	 * Accepts connections on the Unix domain socket, and services them as the
+	 * Listener does those accepted on the TCP port. If accepting fails and
+	 * listen_error does not ask for the skeleton to keep running, only the
+	 * Unix domain socket is closed; stubs then connect by TCP.
+	 */
+	private class UnixListener implements Runnable {
+		final ServerSocketChannel server;
+		
+		UnixListener(ServerSocketChannel server) {
+			this.server = server;
+		}
+		
+		public void run() {
+			while(running && server.isOpen()) {
+				SocketChannel channel = null;
+				try{
+					channel = server.accept();
+					if(selector != null){
+						selector.register(channel);
+					} else {
+						Service callx = new Service(channel, workers);
+						services.add(callx);
+						if(virtualThreads){
+							Threads.startVirtual(callx);
+						} else {
+							Thread t = new Thread(callx);
+							t.start();
+						}
+					}
+				} catch(Exception e){
+					if(!running || !server.isOpen()){
+						break;
+					}
+					if(channel != null){
+						try{
+							channel.close();
+						} catch(IOException e2){
+							// Connection is being discarded anyway
+						}
+					}
+					if(!listen_error(e)){
+						try{
+							server.close();
+						} catch(IOException e2){
+							// Nothing more can be done with it
+						}
+						break;
+					}
+				}
+			}
+		}
+	}//end of UnixListener
     
     
     /*
 	 * A class that can be run in a thread to service a client stub by calling
 	 * the function for the client from the given 
 	 * implementation (server).
+	 * 
+	 * The service thread only reads call frames. Each call is handed to the
+	 * skeleton's worker pool, so that calls arriving on the same connection
+	 * run concurrently, and each worker writes its own reply frame when done.
+	 * Replies may therefore be sent in a different order from the calls.
+	 * 
+	 * The connection is kept open after each call so that the stub can reuse
+	 * it. It is closed when the stub closes it, when it has had no calls in
+	 * progress for IDLE_TIMEOUT milliseconds, or when the skeleton is stopped
+	 * and no calls are in progress.
+	 * 
+	 * A connection accepted on the Unix domain socket has a channel rather
+	 * than a socket. Such a channel has no read timeout, so it is not closed
+	 * as idle; its stub is on the same host, and the connection is reset if
+	 * the stub's process exits.
 	 */
-	public class Service implements Runnable {
+	public class Service extends ServerConnection implements Runnable {
 		Socket serviceSocket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		SocketChannel channel = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 
 		/*
-		 * Sets the server, in and out attributes from the serviceSocket given
+		 * Sets the socket to be serviced and the pool which will run calls.
 		 */
-		public Service(Socket s) {
-			try {
-				this.serviceSocket = s;
-				this.out = new ObjectOutputStream(serviceSocket.getOutputStream());
-				this.in = new ObjectInputStream(serviceSocket.getInputStream());
-				this.out.flush();
-			} catch (Exception e) {
-				if(!running){
-	        	} else {
-	        		//do nothing
-	        	}
-			}
+		public Service(Socket s, Executor executor) {
+			super(Skeleton.this, executor);
+			this.serviceSocket = s;
+		}
+		
+		/*
+		 * As above, for a connection on the Unix domain socket.
+		 */
+		Service(SocketChannel channel, Executor executor) {
+			super(Skeleton.this, executor);
+			this.channel = channel;
 		}
 		
 
 		/*
-		 * The logic of this function involves reading the method name, its arguments, and their types, and finding 
-		 * from the given interface c. We then invoke the method from the implementation, which is in server.
-		 * We then write out the object we get as a result of this. 
+		 * Reads call frames until the connection is closed, and dispatches
+		 * each to a worker.
 		 */
 		public void run() {
+			boolean disconnected = false;
 			try {
-				String methodName = (String)this.in.readObject();
-				Object[] args = (Object[])in.readObject();
-				@SuppressWarnings("unchecked")
-				Class<T>[] argTypes = (Class<T>[])in.readObject();
-				Method m = c.getMethod(methodName, argTypes); //check if java.lang.reflect
-				Object result;
-				try{
-					result = m.invoke(server, args);
-				} catch(InvocationTargetException e){
-					result = e.getTargetException();
+				if(channel != null){
+					this.out = new DataOutputStream(new BufferedOutputStream(
+						UnixSockets.output(channel)));
+					this.in = new DataInputStream(new BufferedInputStream(
+						UnixSockets.input(channel)));
+				} else {
+					serviceSocket.setTcpNoDelay(true);
+					serviceSocket.setSoTimeout(IDLE_TIMEOUT);
+					this.out = new DataOutputStream(new BufferedOutputStream(
+						serviceSocket.getOutputStream()));
+					this.in = new DataInputStream(new BufferedInputStream(
+						serviceSocket.getInputStream()));
+				}
+				while(running) {
+					Frame request;
+					try {
+						request = Frame.read(this.in);
+					} catch (SocketTimeoutException e) {
+						if(isIdle()){
+							break;
+						}
+						continue;
+					} catch (IOException e) {
+						// Stub closed the connection
+						disconnected = true;
+						break;
+					}
+					if(!submit(request)){
+						break;
+					}
 				}
-				out.writeObject(result);
-				serviceSocket.close();
 			} catch (Exception e) {
-				if(!running){
-	        	} else {
-	        		//e.printStackTrace();
-	        	}
+				if(running){
+					service_error(new RMIException("Connection failed: "
+						+ remoteAddress(), e));
+				}
+			} finally {
+				if(disconnected){
+					disconnected();
+				} else {
+					finishReading();
+				}
+			}
+		}
+		
+		@Override
+		void send(Frame reply) throws IOException {
+			try{
+				synchronized(out){
+					reply.write(out);
+				}
+			} finally {
+				reply.release();
+			}
+		}
+		
+		@Override
+		SocketAddress remoteAddress() {
+			if(channel != null){
+				return UnixSockets.name(channel);
+			}
+			return serviceSocket.getRemoteSocketAddress();
+		}
+		
+		@Override
+		void close(){
+			services.remove(this);
+			try {
+				if(channel != null){
+					channel.close();
+				} else {
+					serviceSocket.close();
+				}
+			} catch (IOException e) {
+				// Connection is being discarded anyway
 			}
 		}
 	}//end of Service
+	
+	/*
+	 * Stands for the stubs in this virtual machine which call the skeleton
+	 * directly. Their replies are returned by callLocal rather than sent, so
+	 * the connection only provides the calls made through it.
+	 */
+	private class Local extends ServerConnection {
+		Local(){
+			super(Skeleton.this, null);
+		}
+		
+		@Override
+		void send(Frame reply) throws IOException {
+			throw new IOException("Local calls are answered directly");
+		}
+		
+		@Override
+		SocketAddress remoteAddress() {
+			return serverAddress;
+		}
+		
+		@Override
+		boolean canCallBack() {
+			return false;
+		}
+		
+		@Override
+		void close(){
+		}
+	}//end of Local
+	
+	/*
+	 * Runs a CALL or BATCH frame from a stub in this virtual machine in the
+	 * calling thread, and returns the reply, or null if the skeleton has
+	 * stopped and the call should be sent over the network instead. The call
+	 * is marshaled and dispatched as if it had arrived on a connection, so
+	 * the server object gets its own copies of the arguments; a streamed
+	 * result is read from the server's iterator or stream as the caller reads
+	 * it.
+	 * 
+	 * Local calls do not take a worker thread, so they are not bounded by
+	 * setWorkerPool, but method limits and deadlines apply as usual.
+	 */
+	Frame callLocal(byte type, byte[] request, long deadline)
+		throws RMIException {
+		if(!running){
+			return null;
+		}
+		byte flags = 0;
+		if(deadline != 0){
+			long remaining = Deadline.remaining(deadline);
+			if(remaining <= 0){
+				throw new DeadlineExceededException(
+					"Deadline passed before call to " + serverAddress + " was made");
+			}
+			Frame.setTimeout(request, remaining);
+			flags = Frame.FLAG_DEADLINE;
+		}
+		Frame frame = new Frame(type, flags, 0, request);
+		ServerConnection.Call call = local.new Call(frame);
+		Frame reply;
+		try {
+			reply = dispatch(frame, call);
+		} catch (Exception e) {
+			service_error(new RMIException("Cannot service call", e));
+			throw new RMIException("Skeleton cannot service call: " + e);
+		}
+		if(call.stream != null){
+			reply.stream = new StreamReceiver(call.stream, call.streamStats);
+		}
+		if(deadline != 0 && Deadline.remaining(deadline) <= 0){
+			if(call.stream != null){
+				call.stream.close();
+			}
+			throw new DeadlineExceededException(
+				"No reply from " + serverAddress + " before the deadline");
+		}
+		return reply;
+	}
+	
+	/*
+	 * Runs a call sent back by a skeleton to an object exported by this
+	 * virtual machine, in the calling thread, and returns the reply. This
+	 * skeleton is never started; see Callbacks. A streamed result cannot be
+	 * sent back, so it is refused.
+	 */
+	Frame callBack(Frame frame) throws Exception {
+		ServerConnection.Call call = local.new Call(frame);
+		Frame reply = dispatch(frame, call);
+		if(call.stream != null){
+			call.stream.close();
+			return new Frame(Frame.REPLY, Frame.FLAG_EXCEPTION, frame.id,
+				Frame.marshal(new RMIException("Callback "
+				+ c.getName() + " cannot stream its result")));
+		}
+		return reply;
+	}
+	
+	/*
+	 * As callLocal, but runs the call on a worker thread of its method's
+	 * lane, for asynchronous stubs. Returns null if the skeleton has stopped.
+	 */
+	CompletableFuture<Frame> sendLocal(final byte type, final byte[] request,
+		final long deadline) {
+		final CompletableFuture<Frame> reply = new CompletableFuture<Frame>();
+		Executor lane = workersFor(type, deadline != 0, request);
+		try {
+			lane.execute(new Runnable() {
+				public void run(){
+					try {
+						Frame frame = callLocal(type, request, deadline);
+						if(frame == null){
+							reply.completeExceptionally(new IOException(
+								"Skeleton at " + serverAddress + " has stopped"));
+						} else {
+							reply.complete(frame);
+						}
+					} catch (RMIException e) {
+						reply.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			if(!running){
+				return null;
+			}
+			rejected.incrementAndGet();
+			reply.completeExceptionally(
+				new CallRejectedException("Skeleton overloaded"));
+		}
+		return reply;
+	}
+	
+	/*
+	 * Runs a call to a OneWay method from a stub in this virtual machine on a
+	 * worker thread, without waiting for it. Returns false if the skeleton
+	 * has stopped and the call should be sent over the network instead. As
+	 * for a call arriving on a connection, a failure, or a call which the
+	 * worker pool cannot take, is reported to service_error.
+	 */
+	boolean postLocal(final byte[] request, final long deadline) {
+		if(!running){
+			return false;
+		}
+		Executor lane = workersFor(Frame.CALL, deadline != 0, request);
+		try {
+			lane.execute(new Runnable() {
+				public void run(){
+					byte flags = Frame.FLAG_ONEWAY;
+					if(deadline != 0){
+						long remaining = Deadline.remaining(deadline);
+						if(remaining <= 0){
+							service_error(new RMIException("One-way call dropped:"
+								+ " deadline passed before it started"));
+							return;
+						}
+						Frame.setTimeout(request, remaining);
+						flags |= Frame.FLAG_DEADLINE;
+					}
+					Frame frame = new Frame(Frame.CALL, flags, 0, request);
+					try {
+						dispatch(frame, local.new Call(frame));
+					} catch (Exception e) {
+						service_error(new RMIException("Cannot service call", e));
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			if(!running){
+				return false;
+			}
+			rejected.incrementAndGet();
+			service_error(new RMIException(
+				"One-way call dropped: skeleton overloaded"));
+		}
+		return true;
+	}
+	
+	/*
+	 * Invokes a method for a stub in this virtual machine which passes
+	 * arguments and results by reference, and returns its result or throws
+	 * its exception. Nothing is marshaled, so only the method's running time
+	 * is recorded in its statistics.
+	 */
+	Object invokeLocal(int id, Object[] args, long deadline) throws Throwable {
+		if(deadline != 0 && Deadline.remaining(deadline) <= 0){
+			throw new DeadlineExceededException(
+				"Deadline passed before call to " + serverAddress + " was made");
+		}
+		ServerConnection.Call call = local.new Call(null);
+		call.deadline = deadline;
+		long start = System.nanoTime();
+		Object result = invoke(id, args == null ? new Object[0] : args, call);
+		boolean thrown = result instanceof Thrown;
+		metrics.methods[id].record(0, 0, thrown, 0, System.nanoTime() - start, 0);
+		if(thrown){
+			throw ((Thrown)result).exception;
+		}
+		if(deadline != 0 && Deadline.remaining(deadline) <= 0){
+			if(table.streams[id] != 0 && result != null){
+				Streamer.of(result).close();
+			}
+			throw new DeadlineExceededException(
+				"No reply from " + serverAddress + " before the deadline");
+		}
+		return result;
+	}
+	
+	/*
+	 * Decodes a call, invokes it on the server object, and returns the reply.
+	 * An exception thrown by the method itself is returned to the stub to be
+	 * rethrown there.
+	 * 
+	 * A call which is not Idempotent, and not from a stub in this virtual
+	 * machine, is logged by its request id. If it repeats a logged call, the
+	 * reply to that call is returned instead of running it again.
+	 */
+	Frame dispatch(Frame request, ServerConnection.Call call) throws Exception {
+		DataInputStream in = new DataInputStream(
+			new ByteArrayInputStream(request.payload));
+		if(request.hasFlag(Frame.FLAG_DEADLINE)){
+			call.deadline = call.arrival + in.readLong();
+			if(call.deadline == 0){
+				call.deadline = 1;
+			}
+		}
+		long client = in.readLong();
+		long sequence = in.readLong();
+		call.trace = in.readLong();
+		call.parentSpan = in.readLong();
+		if(in.readInt() != table.fingerprint){
+			throw new RMIException("Stub was built against a different version of "
+				+ c.getName());
+		}
+		// Calls from stubs in this virtual machine have frame id 0, and are
+		// never repeated.
+		if(request.id == 0 || !logged(request)){
+			return run(request, in, call);
+		}
+		RequestLog.LoggedCall entry = requests.join(client, sequence, call);
+		if(!entry.ledBy(call)){
+			int state = entry.await(call);
+			if(state == RequestLog.DONE){
+				byte[] payload = entry.payload;
+				if(payload == null){
+					return new Frame(Frame.REPLY, Frame.FLAG_EXCEPTION, request.id,
+						Frame.marshal(new RMIException("Call was repeated after"
+						+ " it ran, and its reply was not kept")));
+				}
+				return new Frame(Frame.REPLY, entry.flags, request.id, payload);
+			}
+			if(state == RequestLog.CANCELLED){
+				return new Frame(Frame.REPLY, Frame.FLAG_EXCEPTION, request.id,
+					Frame.marshal(new DeadlineExceededException("Call dropped:"
+					+ " deadline passed or call cancelled while waiting for"
+					+ " its earlier attempt")));
+			}
+			// The earlier attempt never started
+			return run(request, in, call);
+		}
+		try{
+			Frame reply = run(request, in, call);
+			if(call.hasStarted()){
+				entry.complete(reply);
+			}
+			return reply;
+		} finally {
+			// No effect if already completed
+			entry.abandon();
+		}
+	}
+	
+	/*
+	 * Returns true if a call or batch should be logged by its request id:
+	 * a batch always, and a call unless its method is Idempotent or streams
+	 * its result, which cannot be kept.
+	 */
+	private boolean logged(Frame request){
+		if(request.type == Frame.BATCH){
+			return true;
+		}
+		int at = Frame.callOffset(request.hasFlag(Frame.FLAG_DEADLINE)) + 4;
+		if(request.payload.length < at + 4){
+			return false;
+		}
+		int id = ByteBuffer.wrap(request.payload).getInt(at);
+		return id >= 0 && id < table.methods.length && !table.idempotent[id]
+			&& table.streams[id] == 0;
+	}
+	
+	/*
+	 * Runs a call or batch whose payload has been read as far as the first
+	 * method id, and returns the reply.
+	 */
+	private Frame run(Frame request, DataInputStream in,
+		ServerConnection.Call call) throws Exception {
+		if(request.type == Frame.BATCH){
+			int count = Frame.readCount(in);
+			byte[][] results = new byte[count][];
+			boolean[] thrown = new boolean[count];
+			for(int i = 0; i < count; i++){
+				results[i] = serve(request.payload, in, call, thrown, i, true);
+			}
+			Frame reply = new Frame(Frame.REPLY, (byte)0, request.id,
+				Frame.marshalResults(results, thrown));
+			reply.pooled = true;
+			return reply;
+		}
+		boolean[] thrown = new boolean[1];
+		byte[] result = serve(request.payload, in, call, thrown, 0, false);
+		byte flags = 0;
+		if(thrown[0]){
+			flags = Frame.FLAG_EXCEPTION;
+		} else if(call.stream != null){
+			flags = Frame.FLAG_STREAM;
+		}
+		Frame reply = new Frame(Frame.REPLY, flags, request.id, result);
+		// A result shared with coalesced calls belongs to none of them
+		reply.pooled = !call.sharedResult;
+		return reply;
+	}
+	
+	/*
+	 * Reads one call's method and arguments, invokes it, and returns its
+	 * encoded result, or its encoded exception with thrown[index] set. The
+	 * time spent in each step is recorded in the method's statistics.
+	 * 
+	 * The result of a streaming method is left in call.stream to be sent
+	 * after the reply, which carries only the kind of stream.
+	 * 
+	 * A call to a Coalesce method which arrives while an equal call is
+	 * running shares that call's encoded result instead of invoking the
+	 * method; in is reading from payload, where the call is found.
+	 */
+	private byte[] serve(byte[] payload, DataInputStream in,
+		ServerConnection.Call call, boolean[] thrown, int index,
+		boolean batched) throws IOException, RMIException {
+		long start = System.nanoTime();
+		int available = in.available();
+		int id = in.readInt();
+		if(id < 0 || id >= table.methods.length){
+			throw new RMIException("No method with id " + id);
+		}
+		// Callbacks among the arguments call back over the call's connection
+		ServerConnection previous = Callbacks.receiving(call.connection());
+		Object[] args;
+		try{
+			args = Frame.readArgs(in);
+		} finally {
+			Callbacks.receiving(previous);
+		}
+		if(!table.accepts(id, args)){
+			throw new RMIException("Wrong number or types of arguments for "
+				+ table.methods[id]);
+		}
+		int read = available - in.available();
+		long decoded = System.nanoTime();
+		if(call.trace != 0){
+			// The first call of a batch waited in the queue for all of it
+			call.span = Trace.Span.serving(table, id, call.trace,
+				call.parentSpan,
+				index == 0 && call.arrival != 0 ? call.arrival : start);
+		}
+		Coalescer.Flight flight = null;
+		int shared = Coalescer.ABANDONED;
+		if(table.coalesce[id]){
+			flight = flights.join(payload, payload.length - available,
+				payload.length - in.available(), call);
+			call.sharedResult = true;
+			if(!flight.ledBy(call)){
+				shared = flight.await(call);
+			}
+		}
+		Object result = null;
+		byte[] encoded = null;
+		try{
+			if(shared == Coalescer.DONE){
+				encoded = flight.encoded;
+				thrown[index] = flight.thrown;
+			} else if(shared == Coalescer.CANCELLED){
+				result = new Thrown(new DeadlineExceededException("Call to "
+					+ table.methods[id].getName() + " dropped: deadline passed"
+					+ " or call cancelled while waiting for an equal call"));
+			} else {
+				result = invoke(id, args, call);
+			}
+			if(call.oneWay && result instanceof Thrown){
+				service_error(new RMIException("One-way call to "
+					+ table.methods[id].getName() + " failed",
+					((Thrown)result).exception));
+			}
+			long invoked = System.nanoTime();
+			if(encoded == null){
+				encoded = encode(id, result, call, thrown, index, batched);
+			}
+			if(flight != null && flight.ledBy(call) && !call.isCancelled()){
+				flight.complete(encoded, thrown[index]);
+			}
+			long encodedAt = System.nanoTime();
+			metrics.methods[id].record(read, encoded.length, thrown[index],
+				decoded - start, invoked - decoded, encodedAt - invoked);
+			if(call.span != null){
+				call.span.phase("queue", start - call.span.start);
+				call.span.phase("decode", decoded - start);
+				call.span.phase("run", invoked - decoded);
+				call.span.phase("encode", encodedAt - invoked);
+				call.span.end(thrown[index]);
+				call.span = null;
+			}
+			return encoded;
+		} finally {
+			if(flight != null && flight.ledBy(call)){
+				// No effect if already completed
+				flight.abandon();
+			}
+		}
+	}
+	
+	/*
+	 * Encodes the result or exception returned by invoke, setting
+	 * thrown[index] if it is an exception.
+	 */
+	private byte[] encode(int id, Object result, ServerConnection.Call call,
+		boolean[] thrown, int index, boolean batched) throws IOException {
+		byte[] encoded;
+		if(table.streams[id] != 0 && result != null
+			&& !(result instanceof Thrown)){
+			Streamer stream = Streamer.of(result);
+			if(batched){
+				stream.close();
+				result = new Thrown(new RMIException("Streaming method "
+					+ table.methods[id].getName() + " cannot be batched"));
+			} else {
+				call.stream = stream;
+				call.streamStats = metrics.methods[id];
+				result = null;
+			}
+		}
+		thrown[index] = result instanceof Thrown;
+		if(call.stream != null && !batched){
+			encoded = new byte[]{call.stream.kind()};
+		} else {
+			encoded = Frame.marshal(
+				thrown[index] ? ((Thrown)result).exception : result);
+		}
+		return encoded;
+	}
+	
+	/*
+	 * Invokes a method on the server object. Returns the result, or the
+	 * exception thrown wrapped in Thrown. A call which has been cancelled or
+	 * whose deadline has passed is not invoked; while it runs, its deadline
+	 * is passed on to calls the method makes through stubs.
+	 */
+	private Object invoke(int id, Object[] args, ServerConnection.Call call) {
+		MethodLimit limit = methodLimits.get(id);
+		if(limit != null && !limit.enter()){
+			rejected.incrementAndGet();
+			return new Thrown(new CallRejectedException("Too many calls to "
+				+ table.methods[id].getName() + " in progress"));
+		}
+		try{
+			if(!call.enter()){
+				return new Thrown(new DeadlineExceededException("Call to "
+					+ table.methods[id].getName() + " dropped: deadline passed"
+					+ " or call cancelled before it started"));
+			}
+			long previous = Deadline.enter(call.deadline);
+			long[] previousTrace = call.span == null ? null
+				: Trace.enter(call.span);
+			try{
+				return (Object)table.handle(id).invokeExact((Object)server, args);
+			} catch(Throwable t){
+				// Thrown by the method itself, as serve has checked that
+				// the arguments fit the handle
+				return new Thrown(t);
+			} finally {
+				Deadline.restore(previous);
+				if(previousTrace != null){
+					Trace.restore(previousTrace);
+				}
+				call.exit();
+			}
+		} finally {
+			if(limit != null){
+				limit.exit();
+			}
+		}
+	}
+	
+	/*
+	 * An exception thrown by a remote method, as opposed to its result.
+	 */
+	private static class Thrown {
+		final Throwable exception;
+		
+		Thrown(Throwable exception){
+			this.exception = exception;
+		}
+	}
 	/*
 	 * End of thread logic.
 	 */
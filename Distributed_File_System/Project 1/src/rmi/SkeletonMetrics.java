@@ -0,0 +1,168 @@
+package rmi;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/*
+ * The method statistics of one skeleton, and their publication: as MBeans
+ * while the skeleton is running, and as a text report printed at a fixed
+ * period.
+ *
+ * Publication is best effort. If the MBeans cannot be registered, for
+ * example because the platform MBean server is unavailable, the statistics
+ * are still kept and reported.
+ *
+ * The report period defaults to the value of the system property
+ * rmi.metrics.dump, in milliseconds, with reports going to System.err, so
+ * that every skeleton in a process can be made to report without changing
+ * the code which creates it.
+ */
+final class SkeletonMetrics {
+	/*
+	 * Data members:
+	 *
+	 * MethodStats[] methods:
+	 * The statistics for each method, indexed by method id.
+	 *
+	 * List<ObjectName> registered:
+	 * The names of the MBeans registered while the skeleton is running.
+	 *
+	 * long dumpPeriod, PrintStream dumpStream:
+	 * How often, in milliseconds, and where the report is printed. A period
+	 * of zero disables the report.
+	 *
+	 * ScheduledFuture<?> dump:
+	 * The scheduled report, while the skeleton is running.
+	 *
+	 * int port:
+	 * The port of the running skeleton, for the report and MBean names.
+	 */
+	final MethodStats[] methods;
+	private final Class<?> c;
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+	private long dumpPeriod = Long.getLong("rmi.metrics.dump", 0);
+	private PrintStream dumpStream = System.err;
+	private ScheduledFuture<?> dump;
+	private volatile int port;
+
+	private static ScheduledExecutorService dumper = null;
+
+	SkeletonMetrics(Class<?> c, MethodTable table){
+		this.c = c;
+		methods = new MethodStats[table.methods.length];
+		for(int i = 0; i < methods.length; i++){
+			methods[i] = new MethodStats(c, table.methods[i]);
+		}
+	}
+
+	/*
+	 * Publishes the statistics of a skeleton which has started on the given
+	 * port.
+	 */
+	synchronized void start(int port){
+		this.port = port;
+		try{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			for(MethodStats m : methods){
+				ObjectName name = new ObjectName("rmi:type=Skeleton,interface="
+					+ c.getName() + ",port=" + port + ",method="
+					+ ObjectName.quote(m.getMethod()));
+				server.registerMBean(
+					new StandardMBean(m, MethodStatsMBean.class), name);
+				registered.add(name);
+			}
+		} catch(JMException e){
+			// Statistics remain available through the report
+		} catch(SecurityException e){
+			// As above
+		}
+		schedule();
+	}
+
+	/*
+	 * Withdraws the MBeans and stops the report.
+	 */
+	synchronized void stop(){
+		if(dump != null){
+			dump.cancel(false);
+			dump = null;
+		}
+		if(registered.isEmpty()){
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for(ObjectName name : registered){
+			try{
+				server.unregisterMBean(name);
+			} catch(JMException e){
+				// Already gone
+			}
+		}
+		registered.clear();
+	}
+
+	synchronized void setDump(long period, PrintStream out){
+		dumpPeriod = period;
+		dumpStream = out;
+		if(dump != null){
+			dump.cancel(false);
+			dump = null;
+			schedule();
+		}
+	}
+
+	private void schedule(){
+		if(dumpPeriod <= 0 || dumpStream == null){
+			return;
+		}
+		final PrintStream out = dumpStream;
+		dump = dumper().scheduleAtFixedRate(new Runnable() {
+			public void run(){
+				out.print(report());
+				out.flush();
+			}
+		}, dumpPeriod, dumpPeriod, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Returns a report of all the methods which have been called, one line
+	 * each, under a line naming the skeleton.
+	 */
+	String report(){
+		StringBuilder s = new StringBuilder();
+		s.append("rmi skeleton ").append(c.getName()).append(" port ")
+			.append(port).append('\n');
+		for(MethodStats m : methods){
+			if(m.getCalls() > 0){
+				s.append("  ").append(m.report()).append('\n');
+			}
+		}
+		return s.toString();
+	}
+
+	private static synchronized ScheduledExecutorService dumper(){
+		if(dumper == null){
+			dumper = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					public Thread newThread(Runnable r){
+						Thread t = new Thread(r, "rmi-metrics-dump");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		}
+		return dumper;
+	}
+}
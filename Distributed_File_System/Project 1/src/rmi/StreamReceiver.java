@@ -0,0 +1,318 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+ * The stub's side of a streamed result: the STREAM frames received for one
+ * call, and the RemoteIterator or InputStream through which the caller reads
+ * them.
+ *
+ * The connection's reader thread adds frames without blocking; the skeleton
+ * never has more than the credit granted outstanding, so the queue stays
+ * short. As the caller takes frames, credit is returned to the skeleton in
+ * batches of half the window, which keeps the skeleton sending while the
+ * caller is reading without a CREDIT frame for every block.
+ *
+ * The result of a call made directly on a skeleton in the same virtual
+ * machine has no frames. Its blocks are taken from the skeleton's streamer
+ * in the caller's thread instead, and closing the result closes the
+ * streamer.
+ */
+final class StreamReceiver {
+	/*
+	 * Data members:
+	 *
+	 * Connection connection:
+	 * The connection the result arrives on.
+	 *
+	 * long id:
+	 * The id of the call whose result this is.
+	 *
+	 * LinkedBlockingQueue<Object> frames:
+	 * Frames received and not yet read, or an IOException if the connection
+	 * failed.
+	 *
+	 * int taken:
+	 * Frames read since credit was last returned.
+	 *
+	 * boolean ended:
+	 * true once the last frame has been read or the caller has closed the
+	 * result.
+	 *
+	 * Streamer source, MethodStats stats:
+	 * For a local call, the skeleton's side of the result, and the
+	 * statistics to count its size in. Both are null for a remote call.
+	 *
+	 * Only one thread at a time may read the result, but it may be closed
+	 * from any thread.
+	 */
+	private final Connection connection;
+	final long id;
+	private final LinkedBlockingQueue<Object> frames =
+		new LinkedBlockingQueue<Object>();
+	private int taken = 0;
+	private volatile boolean ended = false;
+	private final Streamer source;
+	private final MethodStats stats;
+
+	StreamReceiver(Connection connection, long id){
+		this.connection = connection;
+		this.id = id;
+		this.source = null;
+		this.stats = null;
+	}
+
+	StreamReceiver(Streamer source, MethodStats stats){
+		this.connection = null;
+		this.id = 0;
+		this.source = source;
+		this.stats = stats;
+	}
+
+	/*
+	 * Called by the connection's reader thread.
+	 */
+	void deliver(Frame frame){
+		frames.add(frame);
+	}
+
+	/*
+	 * Called when the connection fails.
+	 */
+	void fail(IOException cause){
+		frames.add(cause);
+	}
+
+	/*
+	 * Returns the caller's view of the result announced by a REPLY frame.
+	 */
+	Object open(Frame reply){
+		if(reply.payload.length == 1 && reply.payload[0] == Frame.STREAM_BYTES){
+			return new Bytes();
+		}
+		return new Items<Object>();
+	}
+
+	/*
+	 * Returns the payload of the next block, or null at the end of the
+	 * result. Throws the exception the result ended with, if any: an
+	 * IOException for a connection failure, or as delivered by the skeleton.
+	 */
+	private byte[] take() throws Throwable{
+		if(ended){
+			return null;
+		}
+		if(source != null){
+			return pull();
+		}
+		Object next;
+		try{
+			next = frames.take();
+		} catch(InterruptedException e){
+			close();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading streamed result");
+		}
+		if(next instanceof IOException){
+			ended = true;
+			throw (IOException)next;
+		}
+		Frame frame = (Frame)next;
+		if(frame.hasFlag(Frame.FLAG_END)){
+			ended = true;
+			if(frame.hasFlag(Frame.FLAG_EXCEPTION)){
+				throw (Throwable)Frame.unmarshal(frame.payload);
+			}
+			return frame.payload.length == 0 ? null : frame.payload;
+		}
+		if(++taken >= Frame.STREAM_WINDOW / 2){
+			connection.credit(id, taken);
+			taken = 0;
+		}
+		return frame.payload;
+	}
+
+	/*
+	 * As take, for a local call.
+	 */
+	private byte[] pull() throws Exception{
+		byte[] block;
+		try{
+			block = source.next();
+		} catch(Exception e){
+			close();
+			throw e;
+		}
+		if(block == null){
+			close();
+			return null;
+		}
+		stats.streamed(block.length);
+		return block;
+	}
+
+	/*
+	 * Stops the result early, telling the skeleton to stop sending.
+	 */
+	void close(){
+		synchronized(this){
+			if(ended){
+				return;
+			}
+			ended = true;
+		}
+		if(source != null){
+			source.close();
+			return;
+		}
+		connection.cancelStream(id);
+		frames.clear();
+		// Wakes a reader waiting in another thread
+		frames.add(new IOException("Streamed result closed"));
+	}
+
+	/*
+	 * A streamed RemoteIterator.
+	 */
+	private class Items<E> implements RemoteIterator<E> {
+		private final ArrayDeque<Object> block = new ArrayDeque<Object>();
+
+		public boolean hasNext() throws RMIException{
+			while(block.isEmpty()){
+				byte[] payload;
+				try{
+					payload = take();
+				} catch(RMIException e){
+					throw e;
+				} catch(Throwable t){
+					throw new RMIException("Streamed result failed", t);
+				}
+				if(payload == null){
+					return false;
+				}
+				try{
+					DataInputStream in =
+						new DataInputStream(new ByteArrayInputStream(payload));
+					int count = Frame.readCount(in);
+					for(int i = 0; i < count; i++){
+						block.add(new Holder(Codec.read(in)));
+					}
+					// Blocks are this receiver's own once taken
+					BufferPool.give(payload);
+				} catch(IOException e){
+					close();
+					throw new RMIException("Corrupt streamed result", e);
+				}
+			}
+			return true;
+		}
+
+		@SuppressWarnings("unchecked")
+		public E next() throws RMIException{
+			if(!hasNext()){
+				throw new NoSuchElementException();
+			}
+			return (E)((Holder)block.remove()).value;
+		}
+
+		public void close(){
+			block.clear();
+			StreamReceiver.this.close();
+		}
+	}
+
+	/*
+	 * Wraps an element, since ArrayDeque does not hold nulls.
+	 */
+	private static class Holder {
+		final Object value;
+
+		Holder(Object value){
+			this.value = value;
+		}
+	}
+
+	/*
+	 * A streamed InputStream.
+	 */
+	private class Bytes extends InputStream {
+		private final byte[] empty = new byte[0];
+		private byte[] block = empty;
+		private int position = 0;
+		private boolean eof = false;
+
+		/*
+		 * Makes sure there are bytes to read, returning false at the end.
+		 */
+		private boolean fill() throws IOException{
+			while(position == block.length){
+				if(eof){
+					return false;
+				}
+				// The block has been read, and nothing else refers to it
+				BufferPool.give(block);
+				block = empty;
+				position = 0;
+				byte[] payload;
+				try{
+					payload = take();
+				} catch(IOException e){
+					throw e;
+				} catch(Throwable t){
+					throw new IOException("Streamed result failed", t);
+				}
+				if(payload == null){
+					eof = true;
+					return false;
+				}
+				block = payload;
+				position = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException{
+			if(!fill()){
+				return -1;
+			}
+			return block[position++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException{
+			if(offset < 0 || length < 0 || length > buffer.length - offset){
+				throw new IndexOutOfBoundsException();
+			}
+			if(length == 0){
+				return 0;
+			}
+			if(!fill()){
+				return -1;
+			}
+			int n = Math.min(length, block.length - position);
+			System.arraycopy(block, position, buffer, offset, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available(){
+			return block.length - position;
+		}
+
+		@Override
+		public void close(){
+			eof = true;
+			block = empty;
+			position = 0;
+			StreamReceiver.this.close();
+		}
+	}
+}
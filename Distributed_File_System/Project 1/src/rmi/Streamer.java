@@ -0,0 +1,120 @@
+package rmi;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * The skeleton's side of a streamed result: cuts a RemoteIterator or an
+ * InputStream returned by the server object into STREAM frame payloads.
+ *
+ * A block of elements holds as many as fit in BLOCK_BYTES once encoded, but
+ * at least one and at most BLOCK_ITEMS. A block of bytes holds what one read
+ * of the stream returns, up to BLOCK_BYTES, so that bytes are passed on as
+ * soon as the stream has them.
+ */
+abstract class Streamer {
+	static final int BLOCK_BYTES = 64 * 1024;
+	static final int BLOCK_ITEMS = 1024;
+
+	/*
+	 * Returns the kind of stream, STREAM_ITEMS or STREAM_BYTES, to be sent in
+	 * the reply.
+	 */
+	abstract byte kind();
+
+	/*
+	 * Returns the next block, or null if the result has ended. The block is
+	 * taken from BufferPool, and belongs to the caller. An exception thrown
+	 * by the server's iterator or stream is thrown from here.
+	 */
+	abstract byte[] next() throws Exception;
+
+	/*
+	 * Releases the server's iterator or stream. Called once, however the
+	 * stream ends.
+	 */
+	abstract void close();
+
+	/*
+	 * Returns the streamer for the value returned by a streaming method.
+	 */
+	static Streamer of(Object result){
+		if(result instanceof InputStream){
+			return new Bytes((InputStream)result);
+		}
+		return new Items((RemoteIterator<?>)result);
+	}
+
+	private static class Items extends Streamer {
+		private final RemoteIterator<?> elements;
+
+		Items(RemoteIterator<?> elements){
+			this.elements = elements;
+		}
+
+		byte kind(){
+			return Frame.STREAM_ITEMS;
+		}
+
+		byte[] next() throws Exception{
+			if(!elements.hasNext()){
+				return null;
+			}
+			BufferPool.Output bytes = new BufferPool.Output();
+			DataOutputStream out = new DataOutputStream(bytes);
+			int count = 0;
+			out.writeInt(0);
+			do{
+				Codec.write(elements.next(), out);
+				count++;
+			} while(count < BLOCK_ITEMS && out.size() < BLOCK_BYTES
+				&& elements.hasNext());
+			out.flush();
+			byte[] block = bytes.toByteArray();
+			block[0] = (byte)(count >>> 24);
+			block[1] = (byte)(count >>> 16);
+			block[2] = (byte)(count >>> 8);
+			block[3] = (byte)count;
+			return block;
+		}
+
+		void close(){
+			elements.close();
+		}
+	}
+
+	private static class Bytes extends Streamer {
+		private final InputStream in;
+		private final byte[] buffer = new byte[BLOCK_BYTES];
+
+		Bytes(InputStream in){
+			this.in = in;
+		}
+
+		byte kind(){
+			return Frame.STREAM_BYTES;
+		}
+
+		byte[] next() throws IOException{
+			int n;
+			do{
+				n = in.read(buffer);
+			} while(n == 0);
+			if(n < 0){
+				return null;
+			}
+			byte[] block = BufferPool.take(n);
+			System.arraycopy(buffer, 0, block, 0, n);
+			return block;
+		}
+
+		void close(){
+			try{
+				in.close();
+			} catch(IOException e){
+				// The stream has been read as far as it will be
+			}
+		}
+	}
+}
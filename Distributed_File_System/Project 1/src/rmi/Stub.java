@@ -1,7 +1,10 @@
 package rmi;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.net.*;
 
 /** RMI stub factory.
@@ -80,7 +83,8 @@ public abstract class Stub implements Serializable
     	}
     	
     	//Creates invocation handler via dynamic proxy
-        MyInvocationHandler<T> handle = new MyInvocationHandler<T>(skeleton.serverAddress);
+        MyInvocationHandler<T> handle = new MyInvocationHandler<T>(c, skeleton.serverAddress);
+        handle.unixPath = skeleton.unixPath;
 		@SuppressWarnings("unchecked")
 		T proxy = (T)java.lang.reflect.Proxy.newProxyInstance(c.getClassLoader(), new Class[]{c}, handle);
         return proxy;
@@ -147,7 +151,8 @@ public abstract class Stub implements Serializable
     	}
     	
     	//creates invocation handler via dynamic proxy
-    	MyInvocationHandler<T> handle = new MyInvocationHandler<T>(add);
+    	MyInvocationHandler<T> handle = new MyInvocationHandler<T>(c, add);
+    	handle.unixPath = skeleton.unixPath;
 		@SuppressWarnings("unchecked")
 		T proxy = (T)java.lang.reflect.Proxy.newProxyInstance(c.getClassLoader(), new Class[]{c}, handle);
         return proxy;
@@ -196,9 +201,363 @@ public abstract class Stub implements Serializable
     	
     	
     	//creates invocation handler via dynamic proxy
-    	MyInvocationHandler<T> handle = new MyInvocationHandler<T>(address);
+    	MyInvocationHandler<T> handle = new MyInvocationHandler<T>(c, address);
 		@SuppressWarnings("unchecked")
 		T proxy = (T)java.lang.reflect.Proxy.newProxyInstance(c.getClassLoader(), new Class[]{c}, handle);
         return proxy;
     }
+
+    /** Creates an asynchronous stub, given the address of a remote server.
+
+        <p>
+        Methods called through the asynchronous stub return at once with a
+        future for the result. See <code>AsyncStub</code>.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param address The network address of the remote skeleton.
+        @return The asynchronous stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> does not represent a remote interface
+                      - an interface in which each method is marked as throwing
+                      <code>RMIException</code>, or if an object implementing
+                      this interface cannot be dynamically created.
+     */
+    public static <T> AsyncStub<T> createAsync(Class<T> c,
+                                               InetSocketAddress address)
+    {
+        return createAsync(create(c, address));
+    }
+
+    /** Creates an asynchronous stub for the same remote object as an existing
+        stub.
+
+        <p>
+        This is useful when the stub was received from another server, for
+        example a storage server stub returned by the naming server.
+
+        @param stub A stub created by one of the <code>create</code> methods,
+                    here or on another host.
+        @return The asynchronous stub created.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub.
+        @throws NullPointerException If <code>stub</code> is
+                                     <code>null</code>.
+     */
+    public static <T> AsyncStub<T> createAsync(T stub)
+    {
+    	return new AsyncStub<T>(handler(stub));
+    }
+
+    /** Creates an empty batch of calls to the same remote object as an
+        existing stub.
+
+        <p>
+        Calls added to the batch are sent together in one request when the
+        batch is executed. See <code>Batch</code>.
+
+        @param stub A stub created by one of the <code>create</code> methods,
+                    here or on another host.
+        @return The new batch.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub.
+        @throws NullPointerException If <code>stub</code> is
+                                     <code>null</code>.
+     */
+    public static <T> Batch<T> createBatch(T stub)
+    {
+    	return new Batch<T>(handler(stub));
+    }
+
+    /** Returns a stub for the same remote object as an existing stub, whose
+        calls each fail if not answered within the given time.
+
+        <p>
+        The time limit is sent with each call as a deadline. A skeleton drops a
+        call whose deadline has passed before it can be started, and interrupts
+        the thread running a call when its deadline passes, so that a call
+        blocked waiting, for example for a lock, gives up. Calls made by a
+        remote method while it runs are given the same deadline, or an earlier
+        one. When the deadline passes, the stub throws
+        <code>DeadlineExceededException</code>.
+
+        <p>
+        The new stub is equal to <code>stub</code>. The time limit is not sent
+        when the stub itself is passed to another host.
+
+        @param stub A stub created by one of the <code>create</code> methods,
+                    here or on another host.
+        @param millis The time allowed for each call, in milliseconds, or zero
+                      for no limit.
+        @return The new stub.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub, or
+                                         <code>millis</code> is negative.
+        @throws NullPointerException If <code>stub</code> is
+                                     <code>null</code>.
+     */
+    public static <T> T withTimeout(T stub, long millis)
+    {
+    	if(millis < 0){
+    		throw new IllegalArgumentException("Negative timeout");
+    	}
+    	MyInvocationHandler<T> old = handler(stub);
+    	MyInvocationHandler<T> handle =
+    		new MyInvocationHandler<T>(old.c, old.newAddress);
+    	handle.unixPath = old.unixPath;
+    	handle.timeout = millis * 1000000L;
+    	handle.failover = old.failover;
+    	@SuppressWarnings("unchecked")
+    	T proxy = (T)Proxy.newProxyInstance(old.c.getClassLoader(),
+    		new Class[]{old.c}, handle);
+    	return proxy;
+    }
+
+    /** Returns a stub for the same remote object as an existing stub, whose
+        failed calls may be repeated on equivalent remote objects.
+
+        <p>
+        When a call cannot be completed because the first remote object cannot
+        be reached, or the connection to it is lost, the stub waits briefly
+        and tries the first of the replicas, then the next, and so on, waiting
+        longer before each. A call to a method marked <code>Idempotent</code>
+        is repeated in this way whenever it fails with no reply. A call to any
+        other method is repeated only if the stub could not connect to the
+        previous remote object at all, since otherwise the call may have run
+        there, and never if the method is marked <code>Invalidates</code>: such
+        a call changes the remote object, and a replica may not be an equal
+        substitute for it. Calls are never repeated past their deadline.
+
+        <p>
+        The new stub is equal to <code>stub</code>, and keeps its time limit.
+        The replicas are sent along when the stub is passed to another host.
+
+        @param stub A stub created by one of the <code>create</code> methods,
+                    here or on another host.
+        @param replicas Stubs for the remote objects to try after
+                        <code>stub</code>, in order.
+        @return The new stub.
+        @throws IllegalArgumentException If <code>stub</code> or any of the
+                                         replicas is not a stub, or the
+                                         replicas implement a different
+                                         remote interface.
+        @throws NullPointerException If <code>stub</code> or any of the
+                                     replicas is <code>null</code>.
+     */
+    @SafeVarargs
+    public static <T> T withFailover(T stub, T... replicas)
+    {
+    	MyInvocationHandler<T> old = handler(stub);
+    	MyInvocationHandler<?>[] failover = new MyInvocationHandler<?>[replicas.length];
+    	for(int i = 0; i < replicas.length; i++){
+    		failover[i] = handler(replicas[i]);
+    		if(failover[i].c != old.c){
+    			throw new IllegalArgumentException(
+    				"Replica implements " + failover[i].c.getName()
+    				+ ", not " + old.c.getName());
+    		}
+    	}
+    	MyInvocationHandler<T> handle =
+    		new MyInvocationHandler<T>(old.c, old.newAddress);
+    	handle.unixPath = old.unixPath;
+    	handle.timeout = old.timeout;
+    	handle.failover = failover.length == 0 ? null : failover;
+    	@SuppressWarnings("unchecked")
+    	T proxy = (T)Proxy.newProxyInstance(old.c.getClassLoader(),
+    		new Class[]{old.c}, handle);
+    	return proxy;
+    }
+
+    /** Discards all cached results of calls to the remote object for which
+        the given stub was created.
+
+        <p>
+        Results of methods marked <code>Cacheable</code> may be reused by every
+        stub in this virtual machine. This method should be called when the
+        remote object is known to have been changed by another client, so that
+        the change is seen at once rather than when the results expire.
+
+        @param stub A stub created by one of the <code>create</code> methods,
+                    here or on another host.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub.
+        @throws NullPointerException If <code>stub</code> is
+                                     <code>null</code>.
+     */
+    public static <T> void invalidate(T stub)
+    {
+    	ResultCache.invalidate(handler(stub).newAddress);
+    }
+
+    /** Discards all cached results of calls to all remote objects. */
+    public static void invalidateAll()
+    {
+    	ResultCache.invalidateAll();
+    }
+
+    /** Sets the largest number of results of <code>Cacheable</code> methods
+        kept by stubs in this virtual machine.
+
+        <p>
+        When the cache is full, the least recently used result is discarded.
+        The default capacity is 10000 results.
+
+        @param entries The largest number of results kept, or zero to disable
+                       caching.
+        @throws IllegalArgumentException If <code>entries</code> is negative.
+     */
+    public static void setCacheCapacity(int entries)
+    {
+    	ResultCache.setCapacity(entries);
+    }
+
+    /** Sets whether stubs call skeletons running in this virtual machine
+        directly.
+
+        <p>
+        By default, a stub whose skeleton is running in the same virtual
+        machine, and is reachable at the stub's address, makes its calls on the
+        skeleton in the calling thread rather than through a connection. Calls
+        are still marshaled, so the server object receives copies of the
+        arguments and the caller receives copies of the results, as for a
+        remote skeleton. When the skeleton stops, calls are sent over the
+        network again.
+
+        <p>
+        Direct calls do not use the skeleton's worker threads, so they are not
+        bounded by <code>Skeleton.setWorkerPool</code>. Method limits and
+        deadlines apply as usual.
+
+        @param enabled <code>true</code> to call local skeletons directly,
+                       <code>false</code> to always use a connection.
+     */
+    public static void setLocalCalls(boolean enabled)
+    {
+    	LocalRegistry.setEnabled(enabled);
+    }
+
+    /** Sets whether direct calls to skeletons in this virtual machine pass
+        arguments and results by reference.
+
+        <p>
+        By default, direct calls copy arguments and results by marshaling them.
+        When passing by reference is enabled, single calls skip marshaling, and
+        the server object receives the caller's own argument objects. This is
+        faster, but changes made by either side to a mutable argument or result
+        are seen by the other. Results of <code>Cacheable</code> methods and
+        calls in batches are still copied. The setting has no effect when
+        direct calls are disabled with <code>setLocalCalls</code>.
+
+        @param enabled <code>true</code> to pass by reference,
+                       <code>false</code> to copy.
+     */
+    public static void setPassByReference(boolean enabled)
+    {
+    	LocalRegistry.setByReference(enabled);
+    }
+
+    /** Records traces of remote calls made and served by this virtual
+        machine in the given file.
+
+        <p>
+        While a trace file is set, each call made through a stub, other than
+        by a remote method serving another call, starts a new trace. Calls
+        made by a remote method while it serves a traced call, on any host,
+        join that call's trace, so that a client's call and every call made on
+        its behalf can be followed together. The context is passed on by
+        every skeleton, whether or not its own virtual machine records traces.
+
+        <p>
+        Each call made is recorded as a span with the time spent marshaling
+        the call, waiting for the reply and unmarshaling it. Each call served
+        is recorded as a span with the time spent queued, decoding the call,
+        running the method and encoding its result. Spans are written in the
+        Chrome trace event format, with timestamps in wall-clock time, so the
+        files written by several hosts may be joined and viewed together. The
+        file is completed when tracing is stopped or the virtual machine
+        exits.
+
+        <p>
+        If the system property <code>rmi.trace.dir</code> names a directory,
+        tracing starts without a call to this method, to a file in that
+        directory named for the process id. This allows servers to be traced
+        without changing their code.
+
+        @param file The file to write, which is replaced, or <code>null</code>
+                    to stop tracing.
+        @throws IOException If the file cannot be created, or the previous
+                            trace file cannot be completed.
+     */
+    public static void setTraceFile(File file) throws IOException
+    {
+    	Trace.setFile(file);
+    }
+
+    /** Exports a local object so that a remote object may call it back.
+
+        <p>
+        The returned callback may be passed as an argument to the methods of
+        stubs, like a stub. The skeleton receiving it gets an object
+        implementing <code>c</code> whose calls are sent back to
+        <code>object</code> over the connection the argument arrived on, so
+        this host need not run a skeleton of its own, and callbacks reach it
+        through firewalls and address translation that allow it only to
+        connect out. Calls to methods marked <code>OneWay</code> are sent
+        without waiting for a reply. Callbacks run on a shared pool of
+        threads, and may run concurrently.
+
+        <p>
+        A callback remains usable by the remote object until it is unexported
+        or the connection it arrived on is closed, after which calls to it
+        throw <code>RMIException</code>. A connection on which a stub has
+        sent the callback is not closed when idle while the callback is
+        exported.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the callback. It must be a remote interface.
+        @param object The object to be called back.
+        @return The callback, which calls <code>object</code> directly when
+                called on this host.
+        @throws Error If <code>c</code> does not represent a remote interface.
+        @throws NullPointerException If either argument is <code>null</code>.
+     */
+    public static <T> T export(Class<T> c, T object)
+    {
+    	return Callbacks.export(c, object);
+    }
+
+    /** Stops a callback from being called back.
+
+        <p>
+        Later calls from remote objects holding the callback throw
+        <code>RMIException</code>. Calls on the callback on this host still
+        reach the exported object.
+
+        @param callback A callback returned by <code>export</code>.
+        @throws IllegalArgumentException If <code>callback</code> was not
+                                         returned by <code>export</code>.
+        @throws NullPointerException If <code>callback</code> is
+                                     <code>null</code>.
+     */
+    public static void unexport(Object callback)
+    {
+    	if(callback == null){
+    		throw new NullPointerException();
+    	}
+    	if(!Callbacks.unexport(callback)){
+    		throw new IllegalArgumentException("Not a callback: " + callback);
+    	}
+    }
+
+    /*
+     * Returns the invocation handler of a stub.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> MyInvocationHandler<T> handler(T stub)
+    {
+    	if(stub == null){
+    		throw new NullPointerException();
+    	}
+    	if(!Proxy.isProxyClass(stub.getClass())
+    		|| !(Proxy.getInvocationHandler(stub) instanceof MyInvocationHandler)){
+    		throw new IllegalArgumentException("Not a stub: " + stub);
+    	}
+    	return (MyInvocationHandler<T>)Proxy.getInvocationHandler(stub);
+    }
 }
@@ -0,0 +1,85 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Access to virtual threads, which exist only on Java 21 and later.
+ *
+ * The project is built for older Java versions as well, so the virtual thread
+ * executor is looked up reflectively once, and skeletons check support before
+ * enabling it.
+ */
+final class Threads {
+	// Executors.newVirtualThreadPerTaskExecutor, or null before Java 21
+	private static final Method newVirtualExecutor =
+		lookup(Executors.class, "newVirtualThreadPerTaskExecutor");
+	// Thread.startVirtualThread(Runnable)
+	private static final Method startVirtual =
+		lookup(Thread.class, "startVirtualThread", Runnable.class);
+
+	private Threads(){
+	}
+
+	private static Method lookup(Class<?> c, String name, Class<?>... types){
+		try{
+			return c.getMethod(name, types);
+		} catch (NoSuchMethodException e){
+			return null;
+		}
+	}
+
+	static boolean virtualSupported(){
+		return newVirtualExecutor != null;
+	}
+
+	/*
+	 * Returns an executor which runs each task on a new virtual thread.
+	 */
+	static ExecutorService newVirtualExecutor(){
+		if(newVirtualExecutor == null){
+			throw new UnsupportedOperationException(
+				"Virtual threads require Java 21 or later");
+		}
+		try{
+			return (ExecutorService)newVirtualExecutor.invoke(null);
+		} catch (Exception e){
+			throw new UnsupportedOperationException(
+				"Cannot create virtual thread executor", e);
+		}
+	}
+
+	/*
+	 * Starts a task on a new virtual thread.
+	 */
+	static void startVirtual(Runnable task){
+		if(startVirtual == null){
+			throw new UnsupportedOperationException(
+				"Virtual threads require Java 21 or later");
+		}
+		try{
+			startVirtual.invoke(null, task);
+		} catch (Exception e){
+			throw new UnsupportedOperationException(
+				"Cannot start virtual thread", e);
+		}
+	}
+
+	/*
+	 * Returns a factory for virtual threads named prefix0, prefix1, and so on.
+	 */
+	static ThreadFactory virtualFactory(String prefix){
+		try{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class)
+				.invoke(builder, prefix, 0L);
+			return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+		} catch (Exception e){
+			throw new UnsupportedOperationException(
+				"Virtual threads require Java 21 or later", e);
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package rmi;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Tracing of calls across hops, and export of the timed spans.
+ *
+ * A trace is one top-level call and every call made on its behalf: a call
+ * made by a thread while a skeleton runs a traced call joins that call's
+ * trace. Each call's trace id and the id of the span it was made from are
+ * carried in the call payload; see Frame.marshalCall. A process starts new
+ * traces only while it has a trace file, but passes on the context of the
+ * calls it serves whether or not it records them. The trace file is set by
+ * Stub.setTraceFile, or at startup by the rmi.trace.dir property.
+ *
+ * Spans are appended to the trace file in the Chrome trace event format, as
+ * a JSON array of complete ("X") events, which chrome://tracing and Perfetto
+ * open directly. The closing bracket is optional in that format, so a file
+ * cut short by a crash is still readable. Timestamps are microseconds of
+ * wall-clock time, so that the files of several processes may be
+ * concatenated and viewed together; the trace and span ids in each event's
+ * args tie the hops of one trace together.
+ *
+ * Stub spans are named for the method and have category "stub", with the
+ * time spent marshaling, waiting for the reply and unmarshaling. Skeleton
+ * spans have category "skeleton", start when the call arrives, and give the
+ * time spent queued, decoding, running the method and encoding the result.
+ */
+final class Trace {
+	/*
+	 * Data members:
+	 *
+	 * ThreadLocal<long[]> current:
+	 * The trace id and span id of the call the thread is running for a
+	 * skeleton, or zeros. Calls made by the thread are children of that span.
+	 *
+	 * Writer out:
+	 * The trace file, or null if this process records no spans.
+	 *
+	 * long EPOCH:
+	 * Microseconds of wall-clock time at System.nanoTime 0.
+	 *
+	 * String pid:
+	 * This process's id, looked up when the first trace file is set.
+	 */
+	private static final ThreadLocal<long[]> current = new ThreadLocal<long[]>() {
+		protected long[] initialValue(){
+			return new long[2];
+		}
+	};
+
+	private static volatile Writer out;
+	private static final long EPOCH =
+		System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+	private static String pid;
+
+	static {
+		String dir = System.getProperty("rmi.trace.dir");
+		if(dir != null){
+			try{
+				setFile(new File(dir, "rmi-trace-" + processId() + ".json"));
+			} catch(IOException e){
+				// Run untraced rather than fail every call
+			}
+		}
+	}
+
+	private Trace(){
+	}
+
+	/*
+	 * Starts writing spans to the given file, replacing it, or stops if file
+	 * is null. Any previous file is finished and closed.
+	 */
+	static synchronized void setFile(File file) throws IOException{
+		Writer previous = out;
+		out = null;
+		if(previous != null){
+			previous.write("\n]\n");
+			previous.close();
+		}
+		if(file == null){
+			return;
+		}
+		if(pid == null){
+			pid = processId();
+			// Finish the file, flushing its buffered spans, on exit
+			Runtime.getRuntime().addShutdownHook(new Thread("rmi-trace") {
+				public void run(){
+					try{
+						setFile(null);
+					} catch(IOException e){
+						// Nothing more can be done while exiting
+					}
+				}
+			});
+		}
+		Writer writer = new BufferedWriter(new OutputStreamWriter(
+			new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+		writer.write("[\n{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":" + pid
+			+ ",\"args\":{\"name\":\"" + escape(processName()) + "\"}}");
+		out = writer;
+	}
+
+	/*
+	 * Starts a span for a call about to be made by a stub, or returns null if
+	 * the call is not traced: the current thread is running no traced call,
+	 * and this process has no trace file.
+	 */
+	static Span begin(MethodTable table, int method){
+		if(current.get()[0] == 0 && out == null){
+			return null;
+		}
+		return begin(name(table, method));
+	}
+
+	/*
+	 * Starts a span with the given name, as begin above.
+	 */
+	static Span begin(String name){
+		long[] context = current.get();
+		if(context[0] == 0 && out == null){
+			return null;
+		}
+		if(context[0] == 0){
+			return new Span(name, "stub", newId(), 0, System.nanoTime());
+		}
+		return new Span(name, "stub", context[0], context[1], System.nanoTime());
+	}
+
+	private static String name(MethodTable table, int method){
+		return table.methods[method].getDeclaringClass().getSimpleName()
+			+ "." + table.methods[method].getName();
+	}
+
+	/*
+	 * Makes the given span the current thread's, returning the previous
+	 * context for restore.
+	 */
+	static long[] enter(Span span){
+		long[] slot = current.get();
+		long[] previous = {slot[0], slot[1]};
+		slot[0] = span.trace;
+		slot[1] = span.id;
+		return previous;
+	}
+
+	static void restore(long[] previous){
+		long[] slot = current.get();
+		slot[0] = previous[0];
+		slot[1] = previous[1];
+	}
+
+	private static long newId(){
+		long id;
+		do{
+			id = ThreadLocalRandom.current().nextLong();
+		} while(id == 0);
+		return id;
+	}
+
+	/*
+	 * One timed call, on the stub or skeleton side. The phases are recorded
+	 * by whoever times them, as nanoseconds, and written as args.
+	 */
+	static final class Span {
+		final String name;
+		final String category;
+		final long trace;
+		final long parent;
+		final long id;
+		final long start;
+		private final String[] phases = new String[4];
+		private final long[] times = new long[4];
+		private int count = 0;
+
+		Span(String name, String category, long trace, long parent,
+			long start){
+			this.name = name;
+			this.category = category;
+			this.trace = trace;
+			this.parent = parent;
+			this.id = newId();
+			this.start = start;
+		}
+
+		/*
+		 * Starts a skeleton span, a child of the stub span which made the
+		 * call, which began at the given time.
+		 */
+		static Span serving(MethodTable table, int method, long trace,
+			long parent, long start){
+			return new Span(name(table, method), "skeleton", trace, parent,
+				start);
+		}
+
+		void phase(String phase, long nanos){
+			if(count < phases.length){
+				phases[count] = phase;
+				times[count++] = nanos;
+			}
+		}
+
+		/*
+		 * Ends the span now, writing it to the trace file if there is one.
+		 * failed is true if the call threw an exception.
+		 */
+		void end(boolean failed){
+			Writer writer = out;
+			if(writer == null){
+				return;
+			}
+			long end = System.nanoTime();
+			StringBuilder event = new StringBuilder(256);
+			event.append(",\n{\"name\":\"").append(escape(name))
+				.append("\",\"cat\":\"").append(category)
+				.append("\",\"ph\":\"X\",\"ts\":").append(EPOCH + start / 1000)
+				.append(",\"dur\":").append((end - start) / 1000)
+				.append(",\"pid\":").append(pid)
+				.append(",\"tid\":").append(Thread.currentThread().getId())
+				.append(",\"args\":{\"trace\":\"").append(Long.toHexString(trace))
+				.append("\",\"span\":\"").append(Long.toHexString(id))
+				.append("\",\"parent\":\"").append(Long.toHexString(parent))
+				.append('"');
+			for(int i = 0; i < count; i++){
+				event.append(",\"").append(phases[i]).append("_us\":")
+					.append(times[i] / 1000);
+			}
+			if(failed){
+				event.append(",\"failed\":true");
+			}
+			event.append("}}");
+			synchronized(Trace.class){
+				if(out != writer){
+					return;
+				}
+				try{
+					writer.append(event);
+				} catch(IOException e){
+					// Tracing must never fail a call; stop tracing instead
+					out = null;
+				}
+			}
+		}
+	}
+
+	private static String processId(){
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		int at = name.indexOf('@');
+		try{
+			return Long.toString(Long.parseLong(
+				at < 0 ? name : name.substring(0, at)));
+		} catch(NumberFormatException e){
+			return "0";
+		}
+	}
+
+	private static String processName(){
+		try{
+			return InetAddress.getLocalHost().getHostName() + ":" + pid;
+		} catch(IOException e){
+			return pid;
+		}
+	}
+
+	private static String escape(String s){
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -0,0 +1,37 @@
+package rmi;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/** Compact wire encoding for values of one type.
+
+    <p>
+    Arguments and results of remote calls are encoded in a binary format. The
+    format has built-in encodings for <code>null</code>, primitive wrappers,
+    strings, byte arrays, arrays of supported types and stubs. Values of any
+    other type are sent using Java serialization, which is general but costs
+    a class descriptor and a stream header on every call. A type codec
+    replaces serialization for the type it is registered for with
+    <code>Codec.register</code>.
+
+    @param <V> The type of value encoded.
+ */
+public interface TypeCodec<V>
+{
+    /** Writes a value.
+
+        @param value The value to be written. Never <code>null</code>.
+        @param out The stream to write to.
+        @throws IOException If the value cannot be written.
+     */
+    void write(V value, DataOutput out) throws IOException;
+
+    /** Reads a value written by <code>write</code>.
+
+        @param in The stream to read from.
+        @return The value read.
+        @throws IOException If the value cannot be read.
+     */
+    V read(DataInput in) throws IOException;
+}
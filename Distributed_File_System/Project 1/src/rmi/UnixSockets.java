@@ -0,0 +1,196 @@
+package rmi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/*
+ * Access to Unix domain socket channels, which exist only on Java 16 and
+ * later.
+ *
+ * As with Threads, the project is built for older Java versions as well, so
+ * the Unix protocol family, UnixDomainSocketAddress.of and the channel open
+ * methods taking a protocol family are looked up reflectively once. Callers
+ * check supported before using the rest.
+ *
+ * Channels for Unix domain sockets have no Socket, so the transports read
+ * and write them through the streams made here. These call the channel
+ * directly, so one thread may write while another is blocked reading.
+ */
+final class UnixSockets {
+	// StandardProtocolFamily.UNIX, or null before Java 16
+	private static final ProtocolFamily UNIX = family();
+	// UnixDomainSocketAddress.of(String)
+	private static final Method addressOf =
+		lookup("java.net.UnixDomainSocketAddress", "of", String.class);
+	// ServerSocketChannel.open(ProtocolFamily)
+	private static final Method openServer =
+		lookup(ServerSocketChannel.class.getName(), "open", ProtocolFamily.class);
+	// SocketChannel.open(ProtocolFamily)
+	private static final Method openClient =
+		lookup(SocketChannel.class.getName(), "open", ProtocolFamily.class);
+
+	private UnixSockets(){
+	}
+
+	private static ProtocolFamily family(){
+		try{
+			return StandardProtocolFamily.valueOf("UNIX");
+		} catch (IllegalArgumentException e){
+			return null;
+		}
+	}
+
+	private static Method lookup(String c, String name, Class<?>... types){
+		try{
+			return Class.forName(c).getMethod(name, types);
+		} catch (Exception e){
+			return null;
+		}
+	}
+
+	static boolean supported(){
+		return UNIX != null && addressOf != null && openServer != null
+			&& openClient != null;
+	}
+
+	/*
+	 * Returns the channel address for a socket file.
+	 */
+	private static SocketAddress address(String path) throws IOException{
+		return (SocketAddress)invoke(addressOf, path);
+	}
+
+	/*
+	 * Listens on a socket file, first removing any file left at the path by
+	 * a server which did not stop cleanly.
+	 */
+	static ServerSocketChannel listen(String path) throws IOException{
+		File file = new File(path);
+		if(file.exists() && !file.isDirectory()){
+			file.delete();
+		}
+		ServerSocketChannel server = (ServerSocketChannel)invoke(openServer, UNIX);
+		try{
+			server.bind(address(path));
+		} catch (IOException e){
+			server.close();
+			throw e;
+		}
+		return server;
+	}
+
+	/*
+	 * Connects to a socket file.
+	 */
+	static SocketChannel connect(String path) throws IOException{
+		SocketChannel channel = (SocketChannel)invoke(openClient, UNIX);
+		try{
+			channel.connect(address(path));
+		} catch (IOException e){
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	private static Object invoke(Method method, Object argument)
+		throws IOException{
+		if(!supported()){
+			throw new IOException(
+				"Unix domain sockets require Java 16 or later");
+		}
+		try{
+			return method.invoke(null, argument);
+		} catch (InvocationTargetException e){
+			if(e.getCause() instanceof IOException){
+				throw (IOException)e.getCause();
+			}
+			throw new IOException("Cannot use Unix domain socket", e.getCause());
+		} catch (IllegalAccessException e){
+			throw new IOException("Cannot use Unix domain socket", e);
+		}
+	}
+
+	/*
+	 * Returns true if the channel is a Unix domain connection.
+	 */
+	static boolean isUnix(SocketChannel channel){
+		try{
+			return !(channel.getLocalAddress() instanceof InetSocketAddress);
+		} catch (IOException e){
+			return false;
+		}
+	}
+
+	/*
+	 * Returns an address naming a Unix domain connection, for error reports.
+	 * The stub's end is usually unnamed, so the skeleton's socket is named
+	 * instead.
+	 */
+	static SocketAddress name(SocketChannel channel){
+		try{
+			return channel.getLocalAddress();
+		} catch (IOException e){
+			return null;
+		}
+	}
+
+	/*
+	 * Returns a stream reading from a blocking channel.
+	 */
+	static InputStream input(final SocketChannel channel){
+		return new InputStream() {
+			public int read() throws IOException{
+				byte[] b = new byte[1];
+				int n = read(b, 0, 1);
+				return n < 0 ? -1 : b[0] & 0xff;
+			}
+
+			public int read(byte[] b, int offset, int length)
+				throws IOException{
+				if(length == 0){
+					return 0;
+				}
+				return channel.read(ByteBuffer.wrap(b, offset, length));
+			}
+
+			public void close() throws IOException{
+				channel.close();
+			}
+		};
+	}
+
+	/*
+	 * Returns a stream writing to a blocking channel.
+	 */
+	static OutputStream output(final SocketChannel channel){
+		return new OutputStream() {
+			public void write(int b) throws IOException{
+				write(new byte[]{(byte)b}, 0, 1);
+			}
+
+			public void write(byte[] b, int offset, int length)
+				throws IOException{
+				ByteBuffer buffer = ByteBuffer.wrap(b, offset, length);
+				while(buffer.hasRemaining()){
+					channel.write(buffer);
+				}
+			}
+
+			public void close() throws IOException{
+				channel.close();
+			}
+		};
+	}
+}
@@ -3,6 +3,8 @@ package storage;
 import java.io.*;
 
 import common.*;
+import rmi.Invalidates;
+import rmi.Lane;
 import rmi.RMIException;
 
 /** Storage server command interface.
@@ -28,6 +30,7 @@ public interface Command
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Invalidates
     public boolean create(Path file) throws RMIException;
 
     /** Deletes a file or directory on the storage server.
@@ -43,6 +46,7 @@ public interface Command
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Invalidates
     public boolean delete(Path path) throws RMIException;
 
     /** Copies a file from another storage server.
@@ -60,6 +64,8 @@ public interface Command
                              error, whether between the caller and this storage
                              server, or between the two storage servers.
      */
+    @Invalidates
+    @Lane("data")
     public boolean copy(Path file, Storage server)
         throws RMIException, FileNotFoundException, IOException;
 }
@@ -3,7 +3,13 @@ package storage;
 import java.io.*;
 
 import common.*;
+import rmi.Cacheable;
+import rmi.Coalesce;
+import rmi.Idempotent;
+import rmi.Invalidates;
+import rmi.Lane;
 import rmi.RMIException;
+import rmi.RemoteIterator;
 
 /** Storage server client interface.
 
@@ -23,6 +29,8 @@ public interface Storage
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Cacheable(ttl = 1000)
+    @Coalesce
     public long size(Path file) throws RMIException, FileNotFoundException;
 
     /** Reads a sequence of bytes from a file.
@@ -43,6 +51,8 @@ public interface Storage
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Coalesce
+    @Lane("data")
     public byte[] read(Path file, long offset, int length)
         throws RMIException, FileNotFoundException, IOException;
 
@@ -58,6 +68,49 @@ public interface Storage
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Invalidates
+    @Lane("data")
     public void write(Path file, long offset, byte[] data)
         throws RMIException, FileNotFoundException, IOException;
+
+    /** Reads a sequence of bytes from a file, sending them as they are read.
+
+        <p>
+        The stub receives the bytes a block at a time, and the storage server
+        reads ahead of the client by only a few blocks, so that neither holds
+        the whole sequence in memory. The stream should be closed if it is not
+        read to the end. See <code>RemoteIterator</code>.
+
+        <p>
+        The default implementation reads the whole sequence with
+        <code>read</code>, so it is suitable only for servers with no better
+        way of reading a file.
+
+        @param file Path to the file.
+        @param offset Offset into the file to the beginning of the sequence.
+        @param length The number of bytes to be read.
+        @return A stream of the bytes read. If the call succeeds, the stream
+                will give exactly <code>length</code> bytes unless the file is
+                truncated while it is being read.
+        @throws IndexOutOfBoundsException If the sequence specified by
+                                          <code>offset</code> and
+                                          <code>length</code> is outside the
+                                          bounds of the file, or if
+                                          <code>length</code> is negative.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IOException If the file read cannot be started on the server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Idempotent
+    @Lane("data")
+    public default InputStream readStream(Path file, long offset, long length)
+        throws RMIException, FileNotFoundException, IOException
+    {
+        if(length > Integer.MAX_VALUE)
+            throw new IndexOutOfBoundsException("length too large");
+
+        return new ByteArrayInputStream(read(file, offset, (int)length));
+    }
 }
@@ -84,6 +84,27 @@ public class StorageServer implements Storage, Command
 }
     
 
+    /** Sets whether the storage server runs calls on virtual threads.
+
+        <p>
+        A <code>copy</code> command keeps its server thread while the file is
+        read from another storage server. With virtual threads, many copies
+        may be in progress at once without a platform thread for each. The
+        setting must be made before the server is started.
+
+        @param enabled <code>true</code> to use virtual threads for both the
+                       storage and command interface skeletons.
+        @throws UnsupportedOperationException If <code>enabled</code> is
+                                              <code>true</code> and the Java
+                                              runtime does not provide virtual
+                                              threads.
+     */
+    public void setVirtualThreads(boolean enabled)
+    {
+    	storageServer.setVirtualThreads(enabled);
+    	commandServer.setVirtualThreads(enabled);
+    }
+
     /** Starts the storage server and registers it with the given naming
         server.
 
@@ -287,6 +308,87 @@ public class StorageServer implements Storage, Command
 		}
     }
 
+    @Override
+    public InputStream readStream(Path file, long offset, long length)
+        throws FileNotFoundException, IOException
+    {
+        File f = find(file);
+        if(f == null || f.isDirectory()){
+        	throw new FileNotFoundException("Bad path.");
+        }
+        if(offset < 0 || length < 0 || offset > f.length() - length){
+        	throw new IndexOutOfBoundsException("Offset/length invalid.");
+        }
+        InputStream in = new FileInputStream(f);
+        long skipped = 0;
+        while(skipped < offset){
+        	long n = in.skip(offset - skipped);
+        	if(n <= 0){
+        		in.close();
+        		throw new IOException("Cannot seek to offset " + offset);
+        	}
+        	skipped += n;
+        }
+        return new Slice(in, length);
+    }
+
+    /*
+     * Returns the local file or directory at the given path, or null if
+     * there is none.
+     */
+    private synchronized File find(Path file)
+    {
+    	File dir = root;
+    	for(String next : file){
+    		File child = new File(dir, next);
+    		if(!child.exists()){
+    			return null;
+    		}
+    		dir = child;
+    	}
+    	return dir;
+    }
+
+    /*
+     * The first length bytes of a stream.
+     */
+    private static class Slice extends FilterInputStream
+    {
+    	private long left;
+
+    	Slice(InputStream in, long length)
+    	{
+    		super(in);
+    		left = length;
+    	}
+
+    	@Override
+    	public int read() throws IOException
+    	{
+    		if(left <= 0){
+    			return -1;
+    		}
+    		int b = in.read();
+    		if(b >= 0){
+    			left--;
+    		}
+    		return b;
+    	}
+
+    	@Override
+    	public int read(byte[] buffer, int offset, int length) throws IOException
+    	{
+    		if(left <= 0){
+    			return -1;
+    		}
+    		int n = in.read(buffer, offset, (int)Math.min(length, left));
+    		if(n > 0){
+    			left -= n;
+    		}
+    		return n;
+    	}
+    }
+
     @Override
     public synchronized void write(Path file, long offset, byte[] data)
         throws FileNotFoundException, IOException
@@ -7,7 +7,32 @@ import test.*;
     <p>
     Tests run are:
     <ul>
-    <li>{@link common.SampleUnitTest}</li>
+    <li>{@link rmi.CodecTest}</li>
+    <li>{@link rmi.DispatchTest}</li>
+    <li>{@link rmi.ResultCacheTest}</li>
+    <li>{@link rmi.DeadlineTest}</li>
+    <li>{@link rmi.StreamTest}</li>
+    <li>{@link rmi.OneWayTest}</li>
+    <li>{@link rmi.FailoverTest}</li>
+    <li>{@link rmi.BufferPoolTest}</li>
+    <li>{@link rmi.CallbackTest}</li>
+    <li>{@link rmi.CompressionTest}</li>
+    <li>{@link rmi.LocalRegistryTest}</li>
+    <li>{@link rmi.UnixSocketTest}</li>
+    <li>{@link rmi.CoalesceTest}</li>
+    <li>{@link rmi.MultiplexTest}</li>
+    <li>{@link rmi.SelectorTest}</li>
+    <li>{@link rmi.VirtualThreadTest}</li>
+    <li>{@link rmi.AdmissionTest}</li>
+    <li>{@link rmi.AsyncTest}</li>
+    <li>{@link rmi.BatchTest}</li>
+    <li>{@link rmi.MetricsTest}</li>
+    <li>{@link rmi.LaneTest}</li>
+    <li>{@link rmi.TraceTest}</li>
+    <li>{@link rmi.ConnectionPoolTest}</li>
+    <li>{@link naming.LockRecoveryTest}</li>
+    <li>{@link naming.ListStreamTest}</li>
+    <li>{@link naming.LockCacheTest}</li>
     </ul>
  */
 public class UnitTests
@@ -16,17 +41,43 @@ public class UnitTests
 
         @param arguments Ignored.
      */
-//    public static void main(String[] arguments)
-//    {
-//        // Create the test list, the series object, and run the test series.
-////        @SuppressWarnings("unchecked")
-////        Class<? extends Test>[]     tests =
-////            new Class[] {.class};
-////        Series                      series = new Series(tests);
-////        SeriesReport                report = series.run(3, System.out);
-//
-//        // Print the report and exit with an appropriate exit status.
-////        report.print(System.out);
-////        System.exit(report.successful() ? 0 : 2);
-//    }
+    public static void main(String[] arguments)
+    {
+        // Create the test list, the series object, and run the test series.
+        @SuppressWarnings("unchecked")
+        Class<? extends Test>[]     tests =
+            new Class[] {rmi.CodecTest.class,
+                         rmi.DispatchTest.class,
+                         rmi.ResultCacheTest.class,
+                         rmi.DeadlineTest.class,
+                         rmi.StreamTest.class,
+                         rmi.OneWayTest.class,
+                         rmi.FailoverTest.class,
+                         rmi.BufferPoolTest.class,
+                         rmi.CallbackTest.class,
+                         rmi.CompressionTest.class,
+                         rmi.LocalRegistryTest.class,
+                         rmi.UnixSocketTest.class,
+                         rmi.CoalesceTest.class,
+                         rmi.MultiplexTest.class,
+                         rmi.SelectorTest.class,
+                         rmi.VirtualThreadTest.class,
+                         rmi.AdmissionTest.class,
+                         rmi.AsyncTest.class,
+                         rmi.BatchTest.class,
+                         rmi.MetricsTest.class,
+                         rmi.LaneTest.class,
+                         rmi.TraceTest.class,
+                         rmi.ConnectionPoolTest.class,
+                         naming.LockRecoveryTest.class,
+                         naming.ListStreamTest.class,
+                         naming.LockCacheTest.class
+                         };
+        Series                      series = new Series(tests);
+        SeriesReport                report = series.run(3, System.out);
+
+        // Print the report and exit with an appropriate exit status.
+        report.print(System.out);
+        System.exit(report.successful() ? 0 : 2);
+    }
 }
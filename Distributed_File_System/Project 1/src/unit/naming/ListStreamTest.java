@@ -0,0 +1,89 @@
+package naming;
+
+import test.*;
+import rmi.*;
+import common.Path;
+import storage.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Unit test for the naming server's streamed directory listing.
+
+    <p>
+    The test registers a storage server with a naming server which is not
+    started, and checks that <code>listStream</code> returns the same entries
+    as <code>list</code> for each directory, and rejects paths which are not
+    directories.
+ */
+public class ListStreamTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server streamed listing";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        NamingServer            server = new NamingServer();
+        InetSocketAddress       address =
+            new InetSocketAddress("127.0.0.1", 1);
+
+        server.register(Stub.create(Storage.class, address),
+                        Stub.create(Command.class, address),
+                        new Path[] {new Path("/directory/first"),
+                                    new Path("/directory/second"),
+                                    new Path("/file")});
+
+        for(String directory : new String[] {"/", "/directory"})
+        {
+            Set<String>         listed;
+            Set<String>         streamed = new HashSet<String>();
+
+            try
+            {
+                listed = new HashSet<String>(
+                    Arrays.asList(server.list(new Path(directory))));
+
+                RemoteIterator<String>  entries =
+                    server.listStream(new Path(directory));
+
+                while(entries.hasNext())
+                    streamed.add(entries.next());
+
+                entries.close();
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to list " + directory, t);
+            }
+
+            if(!streamed.equals(listed))
+            {
+                throw new TestFailed("streamed listing of " + directory +
+                                     " differs from list");
+            }
+        }
+
+        try
+        {
+            server.listStream(new Path("/file"));
+        }
+        catch(FileNotFoundException e)
+        {
+            return;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("listing a file threw unexpected exception",
+                                 t);
+        }
+
+        throw new TestFailed("listing a file did not throw " +
+                             "FileNotFoundException");
+    }
+}
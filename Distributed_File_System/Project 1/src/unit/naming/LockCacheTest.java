@@ -0,0 +1,95 @@
+package naming;
+
+import test.*;
+import rmi.*;
+import common.Path;
+import storage.*;
+import java.net.*;
+import java.util.*;
+
+/** Unit test checking that taking a lock clears cached listings.
+
+    <p>
+    The test lists a directory through a stub, so that the listing is cached,
+    and then changes the directory directly on the naming server, as a client
+    in another virtual machine would, without clearing the cache. It checks
+    that a listing made after the stub takes a lock on the directory includes
+    the change.
+ */
+public class LockCacheTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server locks clear cached results";
+
+    /** Skeleton for the naming server's service interface. */
+    private Skeleton<Service>   skeleton;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        NamingServer            server = new NamingServer();
+        InetSocketAddress       address =
+            new InetSocketAddress("127.0.0.1", 1);
+        Path                    directory = new Path("/");
+
+        server.register(Stub.create(Storage.class, address),
+                        Stub.create(Command.class, address),
+                        new Path[] {new Path("/first")});
+
+        skeleton = new Skeleton<Service>(Service.class, server);
+        Stub.setLocalCalls(false);
+
+        try
+        {
+            skeleton.start();
+
+            Service             stub = Stub.create(Service.class, skeleton);
+
+            task("caching a listing");
+            stub.lock(directory, false);
+            stub.list(directory);
+            stub.unlock(directory, false);
+
+            task("changing the directory elsewhere");
+            server.lock(directory, true);
+            server.createDirectory(new Path("/second"));
+            server.unlock(directory, true);
+
+            task("listing under a new lock");
+            stub.lock(directory, false);
+
+            List<String>        listed = Arrays.asList(stub.list(directory));
+
+            stub.unlock(directory, false);
+
+            if(!listed.contains("second"))
+                throw new TestFailed("listing under lock was out of date");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to list directory", t);
+        }
+    }
+
+    /** Stops the skeleton and re-enables direct calls. */
+    @Override
+    protected void clean()
+    {
+        Stub.setLocalCalls(true);
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+}
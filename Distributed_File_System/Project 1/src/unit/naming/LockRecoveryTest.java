@@ -0,0 +1,197 @@
+package naming;
+
+import test.*;
+import rmi.*;
+import common.Path;
+import storage.*;
+import java.net.*;
+
+/** Unit test checking that failed lock requests leave no lock behind.
+
+    <p>
+    The test registers two storage servers with a naming server which is not
+    started, using stubs for addresses at which nothing listens. It then checks
+    two cases, each of which once left a path locked for good:
+    <ul>
+    <li>A shared lock which triggers replication of a file is granted even
+        though the copy to the new replica fails, and is released by
+        <code>unlock</code>, so that an exclusive lock can then be taken.</li>
+    <li>A lock request abandoned while waiting, as when the caller's deadline
+        passes, is withdrawn, and does not hold up later requests.</li>
+    </ul>
+ */
+public class LockRecoveryTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server lock recovery";
+
+    /** Naming server under test. */
+    private NamingServer        server;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        server = new NamingServer();
+
+        server.register(storage(1), command(1), new Path[] {file()});
+        server.register(storage(2), command(2), new Path[0]);
+
+        // Take enough shared locks for the naming server to ask the second
+        // storage server for a replica. The copy fails, as nothing is
+        // listening, but each lock must still be granted.
+        task("taking shared locks");
+
+        for(int i = 0; i < 40; i++)
+        {
+            try
+            {
+                server.lock(file(), false);
+                server.unlock(file(), false);
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("shared lock failed after " + i +
+                                     " locks", t);
+            }
+        }
+
+        task("taking an exclusive lock");
+
+        try
+        {
+            server.lock(file(), true);
+            server.unlock(file(), true);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("exclusive lock failed", t);
+        }
+
+        // Hold the file exclusively, and abandon a second request for it
+        // while the request waits.
+        task("abandoning a waiting lock request");
+
+        Waiter                  waiter = new Waiter();
+
+        try
+        {
+            server.lock(file(), true);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to lock file", t);
+        }
+
+        waiter.start();
+
+        synchronized(server)
+        {
+            while(waiter.getState() != Thread.State.WAITING)
+            {
+                try
+                {
+                    server.wait(10);
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+
+        waiter.interrupt();
+
+        try
+        {
+            waiter.join();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for request to " +
+                                 "be abandoned");
+        }
+
+        if(!(waiter.error instanceof RMIException))
+        {
+            throw new TestFailed("abandoned lock request did not fail with " +
+                                 "RMIException", waiter.error);
+        }
+
+        // The abandoned request must not be left in the queue: once the file
+        // is unlocked, it can be locked again.
+        task("locking after an abandoned request");
+
+        try
+        {
+            server.unlock(file(), true);
+            server.lock(file(), true);
+            server.unlock(file(), true);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to lock file after abandoned " +
+                                 "request", t);
+        }
+    }
+
+    /** Returns the file on which locks are taken.
+
+        <p>
+        A new path object is returned each time, as the naming server is called
+        directly rather than through a stub, and so receives the caller's
+        objects rather than copies.
+
+        @return The path to the file.
+     */
+    private Path file()
+    {
+        return new Path("/directory/file");
+    }
+
+    /** Creates a storage stub for an address at which nothing listens.
+
+        @param port Port number, distinct for each storage server.
+        @return The stub.
+     */
+    private Storage storage(int port)
+    {
+        return Stub.create(Storage.class,
+                           new InetSocketAddress("127.0.0.1", port));
+    }
+
+    /** Creates a command stub for an address at which nothing listens.
+
+        @param port Port number, distinct for each storage server.
+        @return The stub.
+     */
+    private Command command(int port)
+    {
+        return Stub.create(Command.class,
+                           new InetSocketAddress("127.0.0.1", port));
+    }
+
+    /** Thread which requests an exclusive lock on the file, and records how
+        the request fails. */
+    private class Waiter extends Thread
+    {
+        /** Exception with which the request failed. */
+        volatile Throwable      error;
+
+        /** Requests the lock. */
+        @Override
+        public void run()
+        {
+            try
+            {
+                server.lock(file(), true);
+                server.unlock(file(), true);
+            }
+            catch(Throwable t)
+            {
+                error = t;
+            }
+        }
+    }
+}
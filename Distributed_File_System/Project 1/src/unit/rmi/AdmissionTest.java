@@ -0,0 +1,258 @@
+package rmi;
+
+import test.*;
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Unit test for the skeleton's admission control.
+
+    <p>
+    The test fills a skeleton's bounded worker pool and queue with calls which
+    the server object holds, and checks that a further call is refused with
+    <code>CallRejectedException</code> without being run, that the refusal is
+    counted, and that calls are accepted again once the pool drains. It then
+    checks that a per-method limit refuses calls to the limited method while
+    calls to other methods still run.
+ */
+public class AdmissionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking admission control";
+
+    /** Server object behind the skeleton with a bounded pool. */
+    private GateServer          pooledServer;
+    /** Skeleton with a bounded pool of one worker and a queue of one call. */
+    private Skeleton<Gate>      pooled;
+    /** Server object behind the skeleton with a method limit. */
+    private GateServer          limitedServer;
+    /** Skeleton allowing one call to <code>hold</code> at a time. */
+    private Skeleton<Gate>      limited;
+    /** The method <code>hold</code>. */
+    private Method              hold;
+
+    /** Starts the skeletons. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        pooledServer = new GateServer();
+        pooled = new Skeleton<Gate>(Gate.class, pooledServer);
+        pooled.setWorkerPool(1, 1);
+
+        limitedServer = new GateServer();
+        limited = new Skeleton<Gate>(Gate.class, limitedServer);
+
+        try
+        {
+            hold = Gate.class.getMethod("hold");
+            limited.setMethodLimit(hold, 1);
+
+            pooled.start();
+            limited.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+
+        Stub.setLocalCalls(false);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            Gate                stub = Stub.create(Gate.class, pooled);
+
+            task("filling the worker pool and queue");
+
+            Thread              running = background(stub);
+
+            if(!pooledServer.entered.tryAcquire(5, TimeUnit.SECONDS))
+                throw new TestFailed("first call did not start");
+
+            Thread              queued = background(stub);
+            long                deadline = System.currentTimeMillis() + 5000;
+
+            while(pooled.getQueueDepth() != 1)
+            {
+                if(System.currentTimeMillis() > deadline)
+                    throw new TestFailed("second call was not queued");
+
+                Thread.sleep(10);
+            }
+
+            task("refusing a call to a full skeleton");
+            expectRejected(stub);
+
+            if(pooled.getRejectedCalls() != 1)
+                throw new TestFailed("refused call was not counted");
+
+            task("accepting calls once the pool drains");
+            pooledServer.release.countDown();
+            running.join();
+            queued.join();
+
+            if(stub.quick() != 1)
+                throw new TestFailed("call returned wrong result");
+
+            if(pooledServer.ran.get() != 3)
+                throw new TestFailed("refused call was run");
+
+            task("refusing calls past a method limit");
+            stub = Stub.create(Gate.class, limited);
+            running = background(stub);
+
+            if(!limitedServer.entered.tryAcquire(5, TimeUnit.SECONDS))
+                throw new TestFailed("first call did not start");
+
+            try
+            {
+                stub.hold();
+                throw new TestFailed("call past method limit was run");
+            }
+            catch(CallRejectedException e)
+            {
+            }
+
+            if(limited.getRejectedCalls(hold) != 1)
+                throw new TestFailed("refused call was not counted");
+
+            if(stub.quick() != 1)
+                throw new TestFailed("call to other method was refused");
+
+            limitedServer.release.countDown();
+            running.join();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+    }
+
+    /** Releases held calls, stops the skeletons and re-enables direct
+        calls. */
+    @Override
+    protected void clean()
+    {
+        Stub.setLocalCalls(true);
+        pooledServer.release.countDown();
+        limitedServer.release.countDown();
+        pooled.stop();
+        limited.stop();
+        pooled = null;
+        limited = null;
+    }
+
+    /** Calls <code>hold</code> in a new thread.
+
+        @param stub The stub through which to call.
+        @return The thread.
+     */
+    private Thread background(final Gate stub)
+    {
+        Thread                  thread = new Thread() {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    stub.hold();
+                }
+                catch(Throwable t)
+                {
+                    failure(new TestFailed("held call failed", t));
+                }
+            }
+        };
+
+        thread.start();
+
+        return thread;
+    }
+
+    /** Makes a call which is expected to be refused.
+
+        @param stub The stub through which to call.
+        @throws TestFailed If the call is not refused with
+                           <code>CallRejectedException</code>.
+     */
+    private void expectRejected(Gate stub) throws TestFailed
+    {
+        try
+        {
+            stub.quick();
+        }
+        catch(CallRejectedException e)
+        {
+            return;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed with unexpected exception", t);
+        }
+
+        throw new TestFailed("call to full skeleton was run");
+    }
+
+    /** Remote interface of a server which holds calls. */
+    public interface Gate
+    {
+        /** Waits until the test releases the server.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        public void hold() throws RMIException;
+
+        /** Returns immediately.
+
+            @return One.
+            @throws RMIException If the call cannot be completed.
+         */
+        public int quick() throws RMIException;
+    }
+
+    /** Server implementing <code>Gate</code>. */
+    private static class GateServer implements Gate
+    {
+        /** Released each time a call to <code>hold</code> starts. */
+        final Semaphore         entered = new Semaphore(0);
+        /** Counted down by the test to release held calls. */
+        final CountDownLatch    release = new CountDownLatch(1);
+        /** Number of calls run. */
+        final AtomicInteger     ran = new AtomicInteger();
+
+        @Override
+        public void hold()
+        {
+            ran.incrementAndGet();
+            entered.release();
+
+            try
+            {
+                release.await();
+            }
+            catch(InterruptedException e)
+            {
+                throw new IllegalStateException("interrupted", e);
+            }
+        }
+
+        @Override
+        public int quick()
+        {
+            ran.incrementAndGet();
+
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+/** Unit test for asynchronous stubs.
+
+    <p>
+    The test starts many calls through an asynchronous stub to a server object
+    which holds them, and checks that every call returns at once with a future
+    which is completed only once the server replies. It checks that futures
+    are completed with the method's result, or with the exception it threw,
+    on the shared callback threads; that a call to an unreachable skeleton
+    fails its future with <code>RMIException</code>; and that a
+    <code>RemoteCall</code> which does not call exactly one method is refused.
+ */
+public class AsyncTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking asynchronous stubs";
+
+    /** Number of calls started at once. */
+    private static final int    CALLS = 50;
+
+    /** Server object used in the test. */
+    private DoublerServer       doubler;
+    /** Skeleton for the server object. */
+    private Skeleton<Doubler>   skeleton;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        doubler = new DoublerServer();
+        skeleton = new Skeleton<Doubler>(Doubler.class, doubler);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        Stub.setLocalCalls(false);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            AsyncStub<Doubler>  stub =
+                Stub.createAsync(Stub.create(Doubler.class, skeleton));
+
+            task("starting calls without waiting");
+
+            @SuppressWarnings("unchecked")
+            CompletableFuture<Integer>[]    results =
+                new CompletableFuture[CALLS];
+
+            for(int i = 0; i < CALLS; ++i)
+                results[i] = stub.call(twice(i));
+
+            Thread.sleep(200);
+
+            for(CompletableFuture<Integer> result : results)
+            {
+                if(result.isDone())
+                    throw new TestFailed("future completed before reply");
+            }
+
+            // A dependent action added now runs on the thread which
+            // completes the future, unless a thread waiting for the future
+            // runs it first; so nothing waits for the future until the
+            // action has run.
+            CompletableFuture<String>   thread = results[0].thenApply(
+                new java.util.function.Function<Integer, String>() {
+                    @Override
+                    public String apply(Integer result)
+                    {
+                        return Thread.currentThread().getName();
+                    }
+                });
+
+            task("completing futures with results");
+            doubler.release.countDown();
+
+            String              name = thread.get(5, TimeUnit.SECONDS);
+
+            if(!name.startsWith("rmi-async-callback-"))
+                throw new TestFailed("future completed on thread " + name);
+
+            for(int i = 0; i < CALLS; ++i)
+            {
+                int             result = results[i].get(5, TimeUnit.SECONDS);
+
+                if(result != i * 2)
+                    throw new TestFailed("call returned " + result);
+            }
+
+            task("completing futures with exceptions");
+            expectFailure(stub.call(twice(-1)), IllegalArgumentException.class);
+
+            AsyncStub<Doubler>  unreachable = Stub.createAsync(
+                Doubler.class, new InetSocketAddress("127.0.0.1", 1));
+
+            expectFailure(unreachable.call(twice(1)), RMIException.class);
+
+            task("refusing a call of no method");
+
+            try
+            {
+                stub.call(new RemoteCall<Doubler, Integer>() {
+                    @Override
+                    public Integer invoke(Doubler stub)
+                    {
+                        return 0;
+                    }
+                });
+
+                throw new TestFailed("call of no method was accepted");
+            }
+            catch(IllegalArgumentException e)
+            {
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+    }
+
+    /** Releases held calls, stops the skeleton and re-enables direct
+        calls. */
+    @Override
+    protected void clean()
+    {
+        Stub.setLocalCalls(true);
+        doubler.release.countDown();
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Returns a call of <code>twice</code>.
+
+        @param number The argument of the call.
+        @return The call.
+     */
+    private static RemoteCall<Doubler, Integer> twice(final int number)
+    {
+        return new RemoteCall<Doubler, Integer>() {
+            @Override
+            public Integer invoke(Doubler stub) throws RMIException
+            {
+                return stub.twice(number);
+            }
+        };
+    }
+
+    /** Checks that a future fails with an exception of the given class.
+
+        @param future The future.
+        @param expected The class of the exception.
+        @throws TestFailed If the future completes normally, or fails with
+                           another exception.
+     */
+    private static void expectFailure(CompletableFuture<?> future,
+                                      Class<?> expected) throws TestFailed
+    {
+        try
+        {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        catch(ExecutionException e)
+        {
+            if(!expected.isInstance(e.getCause()))
+                throw new TestFailed("future failed unexpectedly", e);
+
+            return;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("waiting for future failed", t);
+        }
+
+        throw new TestFailed("future completed normally");
+    }
+
+    /** Remote interface of a server which doubles numbers. */
+    public interface Doubler
+    {
+        /** Doubles a number, once the test releases the server.
+
+            @param number The number.
+            @return Twice <code>number</code>.
+            @throws IllegalArgumentException If <code>number</code> is
+                                             negative.
+            @throws RMIException If the call cannot be completed.
+         */
+        public int twice(int number) throws RMIException;
+    }
+
+    /** Server implementing <code>Doubler</code>. */
+    private static class DoublerServer implements Doubler
+    {
+        /** Counted down by the test to release held calls. */
+        final CountDownLatch    release = new CountDownLatch(1);
+
+        @Override
+        public int twice(int number)
+        {
+            try
+            {
+                release.await();
+            }
+            catch(InterruptedException e)
+            {
+                throw new IllegalStateException("interrupted", e);
+            }
+
+            if(number < 0)
+                throw new IllegalArgumentException("negative number");
+
+            return number * 2;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package rmi;
+
+import test.*;
+import java.util.*;
+
+/** Unit test for batched calls.
+
+    <p>
+    The test executes a batch of calls, one of which throws, both over a
+    connection and directly within the virtual machine. It checks that the
+    calls run one after another in the order they were added, on a single
+    server thread, that each result holds its own call's outcome, and that
+    the exception does not prevent later calls from running. It also checks
+    that results cannot be read before the batch is executed, that a batch
+    cannot be executed or extended twice, and that an empty batch executes
+    without contacting the server.
+ */
+public class BatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking batched calls";
+
+    /** Server object used in the test. */
+    private CounterServer       counter;
+    /** Skeleton for the server object. */
+    private Skeleton<Counter>   skeleton;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        counter = new CounterServer();
+        skeleton = new Skeleton<Counter>(Counter.class, counter);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            task("executing a batch over a connection");
+            Stub.setLocalCalls(false);
+            execute();
+
+            task("executing a batch directly");
+            Stub.setLocalCalls(true);
+            execute();
+
+            task("using a batch out of order");
+
+            Counter             stub = Stub.create(Counter.class, skeleton);
+            Batch<Counter>      batch = Stub.createBatch(stub);
+            Batch.Result<Integer>   result = batch.add(add(1));
+
+            try
+            {
+                result.get();
+                throw new TestFailed("result read before execution");
+            }
+            catch(IllegalStateException e)
+            {
+            }
+
+            batch.execute();
+
+            try
+            {
+                batch.execute();
+                throw new TestFailed("batch executed twice");
+            }
+            catch(IllegalStateException e)
+            {
+            }
+
+            try
+            {
+                batch.add(add(1));
+                throw new TestFailed("call added to executed batch");
+            }
+            catch(IllegalStateException e)
+            {
+            }
+
+            task("executing an empty batch");
+            counter.threads.clear();
+
+            if(!Stub.createBatch(stub).execute().isEmpty() ||
+               !counter.threads.isEmpty())
+            {
+                throw new TestFailed("empty batch was sent");
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("batch failed", t);
+        }
+    }
+
+    /** Stops the skeleton and re-enables direct calls. */
+    @Override
+    protected void clean()
+    {
+        Stub.setLocalCalls(true);
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Executes a batch in which one call throws, and checks the results.
+
+        @throws Throwable If the batch fails or a result is wrong.
+     */
+    private void execute() throws Throwable
+    {
+        Counter                 stub = Stub.create(Counter.class, skeleton);
+        Batch<Counter>          batch = Stub.createBatch(stub);
+
+        counter.reset();
+
+        Batch.Result<Integer>   first = batch.add(add(1));
+        Batch.Result<Integer>   second = batch.add(add(2));
+        Batch.Result<Integer>   failed = batch.add(
+            new RemoteCall<Counter, Integer>() {
+                @Override
+                public Integer invoke(Counter stub) throws RMIException
+                {
+                    return stub.fail();
+                }
+            });
+        Batch.Result<Integer>   third = batch.add(add(3));
+
+        if(batch.size() != 4)
+            throw new TestFailed("batch has " + batch.size() + " calls");
+
+        List<Batch.Result<?>>   results = batch.execute();
+
+        if(results.size() != 4 || results.get(0) != first ||
+           results.get(3) != third)
+        {
+            throw new TestFailed("batch returned results out of order");
+        }
+
+        if(first.get() != 1 || second.get() != 3 || third.get() != 6)
+            throw new TestFailed("calls ran out of order");
+
+        if(first.failed() || !failed.failed())
+            throw new TestFailed("call failures reported wrongly");
+
+        try
+        {
+            failed.get();
+            throw new TestFailed("failed call returned a result");
+        }
+        catch(IllegalStateException e)
+        {
+        }
+
+        if(new HashSet<Thread>(counter.threads).size() != 1)
+            throw new TestFailed("batch ran on several server threads");
+    }
+
+    /** Returns a call of <code>add</code>.
+
+        @param amount The argument of the call.
+        @return The call.
+     */
+    private static RemoteCall<Counter, Integer> add(final int amount)
+    {
+        return new RemoteCall<Counter, Integer>() {
+            @Override
+            public Integer invoke(Counter stub) throws RMIException
+            {
+                return stub.add(amount);
+            }
+        };
+    }
+
+    /** Remote interface of a counter. */
+    public interface Counter
+    {
+        /** Adds to the counter.
+
+            @param amount The amount to add.
+            @return The new value of the counter.
+            @throws RMIException If the call cannot be completed.
+         */
+        public int add(int amount) throws RMIException;
+
+        /** Throws <code>IllegalStateException</code>.
+
+            @return Never returns.
+            @throws RMIException If the call cannot be completed.
+         */
+        public int fail() throws RMIException;
+    }
+
+    /** Server implementing <code>Counter</code>. */
+    private static class CounterServer implements Counter
+    {
+        /** Value of the counter. */
+        private int             total = 0;
+        /** Threads which ran each call. */
+        final List<Thread>      threads =
+            Collections.synchronizedList(new ArrayList<Thread>());
+
+        /** Resets the counter and the list of threads. */
+        synchronized void reset()
+        {
+            total = 0;
+            threads.clear();
+        }
+
+        @Override
+        public synchronized int add(int amount)
+        {
+            threads.add(Thread.currentThread());
+            total += amount;
+
+            return total;
+        }
+
+        @Override
+        public synchronized int fail()
+        {
+            threads.add(Thread.currentThread());
+
+            throw new IllegalStateException("call failed");
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package rmi;
+
+import test.*;
+import java.util.*;
+
+/** Unit test for the pool of frame payload buffers.
+
+    <p>
+    The test checks that large arrays given back to the pool are handed out
+    again, that small ones are not kept, and that a frame gives its payload
+    back only once however often it is released. It checks that the pooled
+    output buffer returns exactly what was written to it. Finally, it echoes
+    large arrays from several threads at once through a skeleton, so that a
+    buffer given back while still in use would show up as corrupt data.
+ */
+public class BufferPoolTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking payload buffer pooling";
+
+    /** Length of the arrays taken from the pool, chosen to be unlike the
+        lengths used by other tests. */
+    private static final int    LENGTH = BufferPool.MIN_POOLED + 12345;
+
+    /** Skeleton for the echo server. */
+    private Skeleton<Echo>      skeleton;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Echo>(Echo.class, new EchoServer());
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        Stub.setLocalCalls(false);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("reusing arrays");
+
+        byte[]                  array = BufferPool.take(LENGTH);
+
+        BufferPool.give(array);
+
+        if(BufferPool.take(LENGTH) != array)
+            throw new TestFailed("array given back was not reused");
+
+        byte[]                  small = BufferPool.take(100);
+
+        BufferPool.give(small);
+
+        if(BufferPool.take(100) == small)
+            throw new TestFailed("small array was kept");
+
+        task("releasing a frame");
+
+        Frame                   frame =
+            new Frame(Frame.REPLY, (byte)0, 1, BufferPool.take(LENGTH));
+
+        frame.pooled = true;
+        frame.release();
+        frame.release();
+
+        if(BufferPool.take(LENGTH) != frame.payload)
+            throw new TestFailed("released payload was not reused");
+
+        if(BufferPool.take(LENGTH) == frame.payload)
+            throw new TestFailed("payload released twice was given out twice");
+
+        task("writing to a pooled output buffer");
+
+        BufferPool.Output       output = new BufferPool.Output();
+        byte[]                  expected = pattern(100000, 7);
+
+        output.write(expected[0]);
+        output.write(expected, 1, 99);
+        output.write(expected, 100, expected.length - 100);
+
+        if(!Arrays.equals(output.toByteArray(), expected))
+            throw new TestFailed("output buffer returned wrong contents");
+
+        task("echoing large arrays concurrently");
+        echo();
+    }
+
+    /** Stops the skeleton and re-enables direct calls. */
+    @Override
+    protected void clean()
+    {
+        Stub.setLocalCalls(true);
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Echoes arrays from several threads, and checks each reply.
+
+        @throws TestFailed If a reply differs from its request.
+     */
+    private void echo() throws TestFailed
+    {
+        final Echo              stub;
+
+        try
+        {
+            stub = Stub.create(Echo.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stub", t);
+        }
+
+        Thread[]                threads = new Thread[8];
+
+        for(int i = 0; i < threads.length; ++i)
+        {
+            final int           seed = i;
+
+            threads[i] = new Thread() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for(int call = 0; call < 20; ++call)
+                        {
+                            byte[]  data =
+                                pattern(200000 + seed * 1000, seed + call);
+
+                            if(!Arrays.equals(stub.echo(data), data))
+                            {
+                                failure(new TestFailed("echo returned " +
+                                                       "corrupt data"));
+                                return;
+                            }
+                        }
+                    }
+                    catch(Throwable t)
+                    {
+                        failure(new TestFailed("echo failed", t));
+                    }
+                }
+            };
+
+            threads[i].start();
+        }
+
+        for(Thread thread : threads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted while echoing", e);
+            }
+        }
+    }
+
+    /** Returns an array filled with a pattern depending on a seed.
+
+        @param length Length of the array.
+        @param seed The seed.
+        @return The array.
+     */
+    private static byte[] pattern(int length, int seed)
+    {
+        byte[]                  data = new byte[length];
+
+        new Random(seed).nextBytes(data);
+
+        return data;
+    }
+
+    /** Remote interface of an echo server. */
+    public interface Echo
+    {
+        /** Returns its argument.
+
+            @param data The data to be returned.
+            @return <code>data</code>.
+            @throws RMIException If the call cannot be completed.
+         */
+        public byte[] echo(byte[] data) throws RMIException;
+    }
+
+    /** Server implementing <code>Echo</code>. */
+    private static class EchoServer implements Echo
+    {
+        @Override
+        public byte[] echo(byte[] data)
+        {
+            return data;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package rmi;
+
+import test.*;
+import java.util.concurrent.*;
+
+/** Unit test for callbacks exported by stubs.
+
+    <p>
+    The test exports a listener and passes it to a server object over a
+    connection. It checks that the server receives a proxy rather than the
+    listener itself, and that calls on the proxy reach the listener and return
+    its results, both while the server is serving a call from the client and
+    afterwards. It checks that one-way callbacks are delivered, that a
+    callback which has been unexported can no longer be called, and that a
+    callback passed to a server object in the same virtual machine without a
+    connection is the exported object itself.
+ */
+public class CallbackTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking callbacks";
+
+    /** Server object used in the test. */
+    private SpeakerServer       speaker;
+    /** Skeleton for the server object. */
+    private Skeleton<Speaker>   skeleton;
+    /** Listener exported by the test. */
+    private Listener            callback;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        speaker = new SpeakerServer();
+        skeleton = new Skeleton<Speaker>(Speaker.class, speaker);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        Stub.setLocalCalls(false);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        ListenerServer          listener = new ListenerServer();
+
+        callback = Stub.export(Listener.class, listener);
+
+        try
+        {
+            Speaker             stub = Stub.create(Speaker.class, skeleton);
+
+            task("passing a callback over a connection");
+            stub.subscribe(callback);
+
+            if(speaker.listener == null ||
+               Callbacks.exportOf(speaker.listener) != null)
+            {
+                throw new TestFailed("server did not receive a callback " +
+                                     "proxy");
+            }
+
+            task("calling back during a call");
+
+            String              reply = stub.tell("first");
+
+            if(!"heard first".equals(reply))
+                throw new TestFailed("callback returned " + reply);
+
+            task("calling back after a call");
+            reply = speaker.listener.hear("second");
+
+            if(!"heard second".equals(reply))
+                throw new TestFailed("callback returned " + reply);
+
+            task("calling back a one-way method");
+            stub.announce("third");
+
+            String              note = listener.notes.poll(5, TimeUnit.SECONDS);
+
+            if(!"third".equals(note))
+                throw new TestFailed("one-way callback delivered " + note);
+
+            task("calling an unexported callback");
+            Stub.unexport(callback);
+
+            try
+            {
+                speaker.listener.hear("fourth");
+                throw new TestFailed("unexported callback was called");
+            }
+            catch(RMIException e)
+            {
+            }
+
+            task("passing a callback without a connection");
+            callback = Stub.export(Listener.class, listener);
+            Stub.setLocalCalls(true);
+            stub = Stub.create(Speaker.class, skeleton);
+            stub.subscribe(callback);
+
+            if(speaker.listener != callback)
+                throw new TestFailed("local server received a copy");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("callback failed", t);
+        }
+    }
+
+    /** Unexports the listener, stops the skeleton and re-enables direct
+        calls. */
+    @Override
+    protected void clean()
+    {
+        if(callback != null)
+        {
+            Stub.unexport(callback);
+            callback = null;
+        }
+
+        Stub.setLocalCalls(true);
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Remote interface of a listener, implemented by the client. */
+    public interface Listener
+    {
+        /** Hears a message.
+
+            @param message The message.
+            @return A reply to the message.
+            @throws RMIException If the call cannot be completed.
+         */
+        public String hear(String message) throws RMIException;
+
+        /** Notes a message, without replying.
+
+            @param message The message.
+            @throws RMIException If the call cannot be sent.
+         */
+        @OneWay
+        public void note(String message) throws RMIException;
+    }
+
+    /** Remote interface of a server which calls listeners back. */
+    public interface Speaker
+    {
+        /** Sets the listener to which messages are sent.
+
+            @param listener The listener.
+            @throws RMIException If the call cannot be completed.
+         */
+        public void subscribe(Listener listener) throws RMIException;
+
+        /** Sends a message to the listener, and returns its reply.
+
+            @param message The message.
+            @return The listener's reply.
+            @throws RMIException If the call cannot be completed.
+         */
+        public String tell(String message) throws RMIException;
+
+        /** Sends a message to the listener without waiting for it.
+
+            @param message The message.
+            @throws RMIException If the call cannot be completed.
+         */
+        public void announce(String message) throws RMIException;
+    }
+
+    /** Client object implementing <code>Listener</code>. */
+    private static class ListenerServer implements Listener
+    {
+        /** Messages received by <code>note</code>. */
+        final BlockingQueue<String> notes = new LinkedBlockingQueue<String>();
+
+        @Override
+        public String hear(String message)
+        {
+            return "heard " + message;
+        }
+
+        @Override
+        public void note(String message)
+        {
+            notes.add(message);
+        }
+    }
+
+    /** Server implementing <code>Speaker</code>. */
+    private static class SpeakerServer implements Speaker
+    {
+        /** The listener last subscribed. */
+        volatile Listener       listener;
+
+        @Override
+        public void subscribe(Listener listener)
+        {
+            this.listener = listener;
+        }
+
+        @Override
+        public String tell(String message) throws RMIException
+        {
+            return listener.hear(message);
+        }
+
+        @Override
+        public void announce(String message) throws RMIException
+        {
+            listener.note(message);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package rmi;
+
+import test.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Unit test for coalescing of identical concurrent calls.
+
+    <p>
+    The server object's methods block until the test releases them. The test
+    makes several concurrent calls with equal arguments to a method marked
+    <code>Coalesce</code>, and checks that the method runs once and every
+    call receives its result, while calls with different arguments run
+    separately. It checks that an exception is shared in the same way, that a
+    call arriving after the method has returned runs it again, and that
+    concurrent calls to an unmarked method are not coalesced.
+ */
+public class CoalesceTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call coalescing";
+
+    /** Number of concurrent calls with each argument. */
+    private static final int    CALLS = 6;
+
+    /** Server object used in the test. */
+    private LookupServer        lookup;
+    /** Skeleton for the server object. */
+    private Skeleton<Lookup>    skeleton;
+    /** Stub for the skeleton. */
+    private Lookup              stub;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        lookup = new LookupServer();
+        skeleton = new Skeleton<Lookup>(Lookup.class, lookup);
+
+        try
+        {
+            skeleton.start();
+            stub = Stub.create(Lookup.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        Stub.setLocalCalls(false);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("coalescing concurrent identical calls");
+        run(new String[] {"first", "second"}, false);
+        expectRuns(2);
+
+        task("sharing a thrown exception");
+        run(new String[] {"fail"}, false);
+        expectRuns(1);
+
+        task("calling again after the method returns");
+        run(new String[] {"first"}, false);
+        expectRuns(1);
+
+        task("calling an unmarked method");
+        run(new String[] {"first"}, true);
+        expectRuns(CALLS);
+    }
+
+    /** Stops the skeleton and re-enables direct calls. */
+    @Override
+    protected void clean()
+    {
+        Stub.setLocalCalls(true);
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Makes concurrent calls, holds the server object until all have been
+        sent, and checks their results.
+
+        @param keys Arguments of the calls; <code>CALLS</code> calls are
+                    made with each.
+        @param unmarked Whether to call the method which is not marked
+                        <code>Coalesce</code>.
+        @throws TestFailed If a call fails or returns the wrong result.
+     */
+    private void run(String[] keys, final boolean unmarked) throws TestFailed
+    {
+        lookup.runs.set(0);
+        lookup.gate = new CountDownLatch(1);
+
+        Thread[]                threads = new Thread[keys.length * CALLS];
+
+        for(int i = 0; i < threads.length; ++i)
+        {
+            final String        key = keys[i / CALLS];
+
+            threads[i] = new Thread() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        String  value = unmarked ? stub.fetch(key)
+                                                 : stub.find(key);
+
+                        if(!value.equals("value of " + key))
+                        {
+                            failure(new TestFailed("call returned " +
+                                                   value));
+                        }
+                    }
+                    catch(IllegalStateException e)
+                    {
+                        if(!key.equals("fail"))
+                            failure(new TestFailed("call failed", e));
+                    }
+                    catch(Throwable t)
+                    {
+                        failure(new TestFailed("call failed", t));
+                    }
+                }
+            };
+
+            threads[i].start();
+        }
+
+        try
+        {
+            // Give every call time to reach the skeleton before any returns.
+            Thread.sleep(500);
+            lookup.gate.countDown();
+
+            for(Thread thread : threads)
+                thread.join();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while calling", e);
+        }
+    }
+
+    /** Checks the number of times the server object ran a method.
+
+        @param expected The expected number.
+        @throws TestFailed If the number differs.
+     */
+    private void expectRuns(int expected) throws TestFailed
+    {
+        if(lookup.runs.get() != expected)
+        {
+            throw new TestFailed("method ran " + lookup.runs.get() +
+                                 " times rather than " + expected);
+        }
+    }
+
+    /** Remote interface of a slow lookup service. */
+    public interface Lookup
+    {
+        /** Looks up a key, sharing the lookup with concurrent identical
+            calls.
+
+            @param key The key.
+            @return The value of the key.
+            @throws IllegalStateException If the key is <code>"fail"</code>.
+            @throws RMIException If the call cannot be completed.
+         */
+        @Coalesce
+        public String find(String key) throws RMIException;
+
+        /** Looks up a key.
+
+            @param key The key.
+            @return The value of the key.
+            @throws RMIException If the call cannot be completed.
+         */
+        public String fetch(String key) throws RMIException;
+    }
+
+    /** Server implementing <code>Lookup</code>. */
+    private static class LookupServer implements Lookup
+    {
+        /** Number of calls run. */
+        final AtomicInteger     runs = new AtomicInteger();
+        /** Released by the test once every call has been sent. */
+        volatile CountDownLatch gate;
+
+        @Override
+        public String find(String key)
+        {
+            return fetch(key);
+        }
+
+        @Override
+        public String fetch(String key)
+        {
+            runs.incrementAndGet();
+
+            try
+            {
+                gate.await();
+            }
+            catch(InterruptedException e)
+            {
+                throw new IllegalStateException("interrupted");
+            }
+
+            if(key.equals("fail"))
+                throw new IllegalStateException("lookup failed");
+
+            return "value of " + key;
+        }
+    }
+}
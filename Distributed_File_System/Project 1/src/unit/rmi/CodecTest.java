@@ -0,0 +1,122 @@
+package rmi;
+
+import test.*;
+import common.Path;
+import java.io.*;
+import java.util.*;
+
+/** Unit test for the binary encoding of call arguments and results.
+
+    <p>
+    The test encodes values of each built-in kind, and of a type with a
+    registered codec, and checks that each decodes to an equal value. It then
+    checks that malformed encodings, including lengths far beyond the bytes
+    present, are rejected with an <code>IOException</code> rather than by
+    allocating the memory the length asks for.
+ */
+public class CodecTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking value encoding";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        ArrayList<Integer>      list = new ArrayList<Integer>();
+
+        list.add(1);
+        list.add(2);
+
+        Object[]                values = new Object[]
+            {null, true, false, (byte)-3, (short)300, 'x', 42, -7L, 1.5f, 2.25,
+             "", "caf\u00e9", new byte[0], new byte[] {1, 2, 3},
+             new byte[100000], new Path("/directory/file"),
+             new String[] {"a", null, "c"},
+             new Path[] {new Path("/a"), new Path("/b")}, list};
+
+        for(Object value : values)
+            checkRoundTrip(value);
+
+        // A byte array with a length far beyond the bytes present.
+        checkRejected("byte array with excessive length",
+                      new byte[] {11, 0x7f, (byte)0xff, (byte)0xff, 0, 1});
+        // A string with a negative length.
+        checkRejected("string with negative length",
+                      new byte[] {10, (byte)0xff, (byte)0xff, (byte)0xff,
+                                  (byte)0xff});
+        // A serialized value with a length far beyond the bytes present.
+        checkRejected("serialized value with excessive length",
+                      new byte[] {14, 0x7f, (byte)0xff, (byte)0xbf, 0});
+        // An array of strings claiming more elements than there are bytes.
+        checkRejected("array with excessive length",
+                      new byte[] {12, 10, 0x10, 0, 0, 0, 0, 0});
+        // An array of strings containing a non-string element.
+        checkRejected("array with element of the wrong type",
+                      new byte[] {12, 10, 0, 0, 0, 1, 6, 0, 0, 0, 1});
+        // A tag which has no codec.
+        checkRejected("unknown tag", new byte[] {(byte)200});
+        // A value cut short.
+        checkRejected("truncated value", new byte[] {7, 0, 0, 0});
+    }
+
+    /** Encodes and decodes a value, and checks that the result is equal to
+        the original.
+
+        @param value The value.
+        @throws TestFailed If the value cannot be encoded or decoded, or if the
+                           decoded value differs.
+     */
+    private void checkRoundTrip(Object value) throws TestFailed
+    {
+        Object                  decoded;
+
+        try
+        {
+            byte[]              encoded = Codec.encode(value);
+
+            decoded = Codec.decode(encoded, 0, encoded.length);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to encode and decode " + value, t);
+        }
+
+        if(!Arrays.deepEquals(new Object[] {value}, new Object[] {decoded}))
+        {
+            throw new TestFailed("value " + value + " decoded as " +
+                                 decoded);
+        }
+    }
+
+    /** Checks that a malformed encoding is rejected with an
+        <code>IOException</code>.
+
+        @param description Description of the malformed encoding.
+        @param encoded The encoding.
+        @throws TestFailed If the encoding is decoded, or rejected in any other
+                           way.
+     */
+    private void checkRejected(String description, byte[] encoded)
+        throws TestFailed
+    {
+        try
+        {
+            Codec.decode(encoded, 0, encoded.length);
+        }
+        catch(IOException e)
+        {
+            return;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed(description + " rejected with unexpected " +
+                                 "exception", t);
+        }
+
+        throw new TestFailed(description + " decoded without error");
+    }
+}
@@ -0,0 +1,342 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Unit test for negotiated compression of frame payloads.
+
+    <p>
+    Stubs only offer compression to skeletons on other hosts, so the test
+    speaks the protocol to the skeleton itself over a socket. It checks that
+    the skeleton accepts compression when offered it, that it decompresses a
+    compressed call, and that it compresses a large result but not a small
+    one. It checks that a skeleton on which compression is disabled refuses
+    it and never compresses its results. It also checks that data which does
+    not shrink is sent as it is, and that a corrupt compressed payload is
+    rejected with <code>IOException</code>.
+ */
+public class CompressionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking payload compression";
+
+    /** Size of the large arrays echoed by the test. */
+    private static final int    LARGE = 256 * 1024;
+
+    /** Skeleton which accepts compression. */
+    private Skeleton<Echo>      accepting;
+    /** Skeleton on which compression is disabled. */
+    private Skeleton<Echo>      refusing;
+
+    /** Starts the skeletons. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        accepting = new Skeleton<Echo>(Echo.class, new EchoServer());
+        refusing = new Skeleton<Echo>(Echo.class, new EchoServer());
+        refusing.setCompressionThreshold(0);
+
+        try
+        {
+            accepting.start();
+            refusing.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        byte[]                  text = text(LARGE);
+        byte[]                  noise = new byte[LARGE];
+
+        new Random(1).nextBytes(noise);
+
+        try
+        {
+            task("compressing a frame");
+
+            Frame               frame = new Frame(Frame.CALL, (byte)0, 1, text);
+            Frame               compressed = frame.compress();
+
+            if(!compressed.hasFlag(Frame.FLAG_COMPRESSED) ||
+               compressed.payload.length >= text.length / 2)
+            {
+                throw new TestFailed("repetitive payload was not compressed");
+            }
+
+            if(!Arrays.equals(compressed.decompress().payload, text))
+                throw new TestFailed("decompressed payload differs");
+
+            if(new Frame(Frame.CALL, (byte)0, 1, noise).compress().hasFlag(
+                   Frame.FLAG_COMPRESSED))
+            {
+                throw new TestFailed("random payload was compressed");
+            }
+
+            task("decompressing a corrupt frame");
+
+            byte[]              corrupt =
+                Arrays.copyOf(compressed.payload, compressed.payload.length);
+
+            for(int i = 4; i < corrupt.length; ++i)
+                corrupt[i] ^= 0x5a;
+
+            expectCorrupt(corrupt);
+            expectCorrupt(Arrays.copyOf(compressed.payload,
+                                        compressed.payload.length / 2));
+
+            task("negotiating compression with a skeleton");
+
+            Socket              socket = connect(accepting);
+
+            try
+            {
+                DataOutputStream    out = output(socket);
+                DataInputStream     in = input(socket);
+
+                if(hello(out, in) != Frame.DEFLATE)
+                    throw new TestFailed("skeleton refused compression");
+
+                task("calling with a compressed payload");
+                echo(out, in, text, true, true);
+
+                task("calling with a small payload");
+                echo(out, in, new byte[100], false, false);
+            }
+            finally
+            {
+                socket.close();
+            }
+
+            task("refusing compression");
+            socket = connect(refusing);
+
+            try
+            {
+                DataOutputStream    out = output(socket);
+                DataInputStream     in = input(socket);
+
+                if(hello(out, in) != 0)
+                    throw new TestFailed("skeleton accepted compression");
+
+                echo(out, in, text, false, false);
+            }
+            finally
+            {
+                socket.close();
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("compression failed", t);
+        }
+    }
+
+    /** Stops the skeletons. */
+    @Override
+    protected void clean()
+    {
+        accepting.stop();
+        refusing.stop();
+        accepting = null;
+        refusing = null;
+    }
+
+    /** Offers compression to a skeleton.
+
+        @param out Stream to the skeleton.
+        @param in Stream from the skeleton.
+        @return The codecs accepted by the skeleton.
+        @throws TestFailed If the skeleton does not answer with a
+                           <code>HELLO</code> frame.
+        @throws IOException If the frames cannot be sent or received.
+     */
+    private byte hello(DataOutputStream out, DataInputStream in)
+        throws TestFailed, IOException
+    {
+        new Frame(Frame.HELLO, (byte)0, 0, new byte[] {Frame.DEFLATE})
+            .write(out);
+
+        Frame                   reply = Frame.read(in);
+
+        if(reply.type != Frame.HELLO || reply.payload.length != 1)
+            throw new TestFailed("skeleton did not answer HELLO frame");
+
+        return reply.payload[0];
+    }
+
+    /** Echoes an array through a skeleton, and checks the result.
+
+        @param out Stream to the skeleton.
+        @param in Stream from the skeleton.
+        @param data The array to echo.
+        @param compress Whether to compress the call.
+        @param expectCompressed Whether the reply should be compressed.
+        @throws TestFailed If the reply is not the array, or is not
+                           compressed as expected.
+        @throws IOException If the frames cannot be sent or received.
+     */
+    private void echo(DataOutputStream out, DataInputStream in, byte[] data,
+                      boolean compress, boolean expectCompressed)
+        throws TestFailed, IOException
+    {
+        MethodTable             table = MethodTable.of(Echo.class);
+        Frame                   call =
+            new Frame(Frame.CALL, (byte)0, 2,
+                      Frame.marshalCall(table.fingerprint, 0,
+                                        new Object[] {data}, false, null));
+
+        if(compress)
+        {
+            call = call.compress();
+
+            if(!call.hasFlag(Frame.FLAG_COMPRESSED))
+                throw new TestFailed("call was not compressed");
+        }
+
+        call.write(out);
+
+        Frame                   reply = Frame.read(in);
+
+        if(reply.type != Frame.REPLY || reply.id != 2 ||
+           reply.hasFlag(Frame.FLAG_EXCEPTION))
+        {
+            throw new TestFailed("skeleton did not answer call");
+        }
+
+        if(reply.hasFlag(Frame.FLAG_COMPRESSED) != expectCompressed)
+        {
+            throw new TestFailed("reply of " + data.length + " bytes was " +
+                                 (expectCompressed ? "not " : "") +
+                                 "compressed");
+        }
+
+        reply = reply.decompress();
+
+        Object                  result =
+            Codec.decode(reply.payload, 0, reply.payload.length);
+
+        if(!(result instanceof byte[]) || !Arrays.equals((byte[])result, data))
+            throw new TestFailed("skeleton echoed wrong data");
+    }
+
+    /** Checks that a corrupt compressed payload is rejected.
+
+        @param payload The payload.
+        @throws TestFailed If decompressing the payload does not throw
+                           <code>IOException</code>.
+     */
+    private void expectCorrupt(byte[] payload) throws TestFailed
+    {
+        try
+        {
+            new Frame(Frame.CALL, Frame.FLAG_COMPRESSED, 1, payload)
+                .decompress();
+        }
+        catch(IOException e)
+        {
+            return;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("corrupt payload caused unexpected " +
+                                 "exception", t);
+        }
+
+        throw new TestFailed("corrupt payload was decompressed");
+    }
+
+    /** Connects to a skeleton.
+
+        @param skeleton The skeleton.
+        @return The socket.
+        @throws IOException If the connection cannot be made.
+     */
+    private static Socket connect(Skeleton<?> skeleton) throws IOException
+    {
+        Socket                  socket = new Socket();
+
+        socket.connect(new InetSocketAddress(
+            "127.0.0.1", skeleton.serverAddress.getPort()));
+        socket.setSoTimeout(10000);
+
+        return socket;
+    }
+
+    /** Returns a buffered output stream to a socket.
+
+        @param socket The socket.
+        @return The stream.
+        @throws IOException If the stream cannot be obtained.
+     */
+    private static DataOutputStream output(Socket socket) throws IOException
+    {
+        return new DataOutputStream(
+            new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /** Returns a buffered input stream from a socket.
+
+        @param socket The socket.
+        @return The stream.
+        @throws IOException If the stream cannot be obtained.
+     */
+    private static DataInputStream input(Socket socket) throws IOException
+    {
+        return new DataInputStream(
+            new BufferedInputStream(socket.getInputStream()));
+    }
+
+    /** Returns an array of repetitive text, which compresses well.
+
+        @param length Length of the array.
+        @return The array.
+     */
+    private static byte[] text(int length)
+    {
+        byte[]                  pattern =
+            "the quick brown fox jumps over the lazy dog ".getBytes();
+        byte[]                  data = new byte[length];
+
+        for(int i = 0; i < length; ++i)
+            data[i] = pattern[i % pattern.length];
+
+        return data;
+    }
+
+    /** Remote interface of an echo server. */
+    public interface Echo
+    {
+        /** Returns its argument.
+
+            @param data The data to be returned.
+            @return <code>data</code>.
+            @throws RMIException If the call cannot be completed.
+         */
+        public byte[] echo(byte[] data) throws RMIException;
+    }
+
+    /** Server implementing <code>Echo</code>. */
+    private static class EchoServer implements Echo
+    {
+        @Override
+        public byte[] echo(byte[] data)
+        {
+            return data;
+        }
+    }
+}
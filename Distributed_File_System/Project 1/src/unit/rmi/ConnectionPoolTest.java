@@ -0,0 +1,286 @@
+package rmi;
+
+import test.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Unit test for the stub connection pool.
+
+    <p>
+    The test checks that calls made one after another share a single
+    connection, and that calls held by the server open further connections
+    only up to the per-address maximum. It then lowers the idle timeout, and
+    checks that idle connections are closed, except one which has carried an
+    object that is still exported: the server must still be able to call that
+    object back after the timeout, and the connection is closed once the
+    object is unexported.
+ */
+public class ConnectionPoolTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking the connection pool";
+
+    /** Number of calls held at once. */
+    private static final int    CALLS = 6;
+    /** Idle timeout used in the test, in milliseconds. */
+    private static final long   IDLE = 200;
+
+    /** Server object holding calls and callbacks. */
+    private HolderServer        holder;
+    /** Skeleton for the holder. */
+    private Skeleton<Holder>    skeleton;
+    /** Skeleton for a second holder, which is only called. */
+    private Skeleton<Holder>    other;
+
+    /** Starts the skeletons and empties the pool. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        holder = new HolderServer();
+        skeleton = new Skeleton<Holder>(Holder.class, holder);
+        other = new Skeleton<Holder>(Holder.class, new HolderServer());
+
+        try
+        {
+            skeleton.start();
+            other.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+
+        ConnectionPool.clear();
+        Stub.setLocalCalls(false);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            final Holder        stub = Stub.create(Holder.class, skeleton);
+            Holder              second = Stub.create(Holder.class, other);
+
+            task("reusing a connection");
+
+            for(int i = 0; i < 10; ++i)
+                stub.hold(false);
+
+            expectConnections(skeleton, 1, "calls in turn");
+
+            task("limiting connections per address");
+            ConnectionPool.setMaxCallsPerConnection(1);
+            ConnectionPool.setMaxConnectionsPerEndpoint(2);
+
+            List<Thread>        threads = new ArrayList<Thread>();
+
+            for(int i = 0; i < CALLS; ++i)
+            {
+                Thread          thread = new Thread() {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            stub.hold(true);
+                        }
+                        catch(Throwable t)
+                        {
+                            failure(new TestFailed("held call failed", t));
+                        }
+                    }
+                };
+
+                threads.add(thread);
+                thread.start();
+            }
+
+            if(!holder.entered.tryAcquire(CALLS, 5, TimeUnit.SECONDS))
+                throw new TestFailed("held calls did not all arrive");
+
+            if(skeleton.services.size() != 2)
+            {
+                throw new TestFailed("calls used " + skeleton.services.size() +
+                                     " connections rather than 2");
+            }
+
+            holder.release.countDown();
+
+            for(Thread thread : threads)
+                thread.join();
+
+            task("closing idle connections");
+            ConnectionPool.setMaxCallsPerConnection(32);
+            ConnectionPool.setMaxConnectionsPerEndpoint(4);
+            ConnectionPool.setIdleTimeout(IDLE);
+
+            expectConnections(skeleton, 0, "idle connections");
+
+            task("keeping connections which carry callbacks");
+
+            Listener            listener = Stub.export(Listener.class,
+                                                       new ListenerServer());
+
+            stub.listen(listener);
+            second.hold(false);
+
+            expectConnections(other, 0, "idle connection without callbacks");
+
+            if(skeleton.services.size() != 1)
+                throw new TestFailed("connection carrying callback was closed");
+
+            if(stub.ping() != 1)
+                throw new TestFailed("callback returned wrong result");
+
+            task("closing connections once callbacks are unexported");
+            Stub.unexport(listener);
+
+            expectConnections(skeleton, 0, "connection after unexport");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+    }
+
+    /** Restores the pool settings, stops the skeletons and re-enables direct
+        calls. */
+    @Override
+    protected void clean()
+    {
+        ConnectionPool.setMaxCallsPerConnection(32);
+        ConnectionPool.setMaxConnectionsPerEndpoint(4);
+        ConnectionPool.setIdleTimeout(30000);
+        Stub.setLocalCalls(true);
+        holder.release.countDown();
+        skeleton.stop();
+        skeleton = null;
+        other.stop();
+        other = null;
+    }
+
+    /** Waits until a skeleton is serving the given number of connections.
+
+        @param server The skeleton.
+        @param count The expected number of connections.
+        @param what What the connections are, for the failure message.
+        @throws TestFailed If the skeleton is serving another number of
+                           connections after five seconds.
+        @throws InterruptedException If the thread is interrupted while
+                                     waiting.
+     */
+    private static void expectConnections(Skeleton<?> server, int count,
+                                          String what)
+        throws TestFailed, InterruptedException
+    {
+        long                    deadline = System.currentTimeMillis() + 5000;
+
+        while(server.services.size() != count)
+        {
+            if(System.currentTimeMillis() > deadline)
+            {
+                throw new TestFailed(what + ": " + server.services.size() +
+                                     " connections rather than " + count);
+            }
+
+            Thread.sleep(10);
+        }
+    }
+
+    /** Remote interface of an object called back by the server. */
+    public interface Listener
+    {
+        /** Answers a call from the server.
+
+            @return One.
+            @throws RMIException If the call cannot be completed.
+         */
+        public int answer() throws RMIException;
+    }
+
+    /** Remote interface of a server which holds calls and callbacks. */
+    public interface Holder
+    {
+        /** Returns at once, or once the test releases the server.
+
+            @param wait Whether to wait for the test.
+            @throws RMIException If the call cannot be completed.
+         */
+        public void hold(boolean wait) throws RMIException;
+
+        /** Keeps a listener to be called back by <code>ping</code>.
+
+            @param listener The listener.
+            @throws RMIException If the call cannot be completed.
+         */
+        public void listen(Listener listener) throws RMIException;
+
+        /** Calls the listener back.
+
+            @return The listener's answer.
+            @throws RMIException If the call or the callback cannot be
+                                 completed.
+         */
+        public int ping() throws RMIException;
+    }
+
+    /** Listener implementation. */
+    private static class ListenerServer implements Listener
+    {
+        @Override
+        public int answer()
+        {
+            return 1;
+        }
+    }
+
+    /** Server implementing <code>Holder</code>. */
+    private static class HolderServer implements Holder
+    {
+        /** Released each time a held call starts. */
+        final Semaphore         entered = new Semaphore(0);
+        /** Counted down by the test to release held calls. */
+        final CountDownLatch    release = new CountDownLatch(1);
+        /** Listener kept by <code>listen</code>. */
+        private volatile Listener   listener;
+
+        @Override
+        public void hold(boolean wait)
+        {
+            if(!wait)
+                return;
+
+            entered.release();
+
+            try
+            {
+                release.await();
+            }
+            catch(InterruptedException e)
+            {
+                throw new IllegalStateException("interrupted", e);
+            }
+        }
+
+        @Override
+        public void listen(Listener listener)
+        {
+            this.listener = listener;
+        }
+
+        @Override
+        public int ping() throws RMIException
+        {
+            return listener.answer();
+        }
+    }
+}
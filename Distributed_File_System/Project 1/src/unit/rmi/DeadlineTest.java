@@ -0,0 +1,197 @@
+package rmi;
+
+import test.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Unit test for call deadlines and cancellation.
+
+    <p>
+    The test runs a skeleton with a single worker thread. It checks that a call
+    made through a stub with a time limit fails with
+    <code>DeadlineExceededException</code> when the limit passes, and that the
+    thread running the call in the server is then interrupted. It also checks
+    that a call whose deadline passes while it waits for a worker is dropped,
+    rather than run once a worker is free.
+ */
+public class DeadlineTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call deadlines";
+
+    /** Server object used in the test. */
+    private SleeperServer       sleeper;
+    /** Skeleton for the server object. */
+    private Skeleton<Sleeper>   skeleton;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        sleeper = new SleeperServer();
+        skeleton = new Skeleton<Sleeper>(Sleeper.class, sleeper);
+        skeleton.setWorkerPool(1, 16);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        Stub.setLocalCalls(false);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        final Sleeper           stub;
+        Sleeper                 limited;
+
+        try
+        {
+            stub = Stub.create(Sleeper.class, skeleton);
+            limited = Stub.withTimeout(stub, 200);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stubs", t);
+        }
+
+        // A call which runs past its deadline fails, and the server stops it.
+        task("running past a deadline");
+
+        long                    start = System.nanoTime();
+
+        expectDeadline(limited, 10000);
+
+        if(System.nanoTime() - start > TimeUnit.SECONDS.toNanos(5))
+            throw new TestFailed("call did not fail at its deadline");
+
+        try
+        {
+            if(!sleeper.interrupted.await(5, TimeUnit.SECONDS))
+                throw new TestFailed("server call was not interrupted");
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for server", e);
+        }
+
+        // A call whose deadline passes while it waits for the only worker is
+        // never run.
+        task("waiting past a deadline");
+
+        Thread                  blocker = new Thread() {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    stub.sleep(1000);
+                }
+                catch(Throwable t)
+                {
+                    failure(new TestFailed("blocking call failed", t));
+                }
+            }
+        };
+
+        blocker.start();
+
+        try
+        {
+            if(!sleeper.sleeping.await(5, TimeUnit.SECONDS))
+                throw new TestFailed("blocking call did not start");
+
+            expectDeadline(limited, 0);
+            blocker.join();
+            Thread.sleep(200);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for server", e);
+        }
+
+        if(sleeper.ran.get() != 2)
+            throw new TestFailed("call was run after its deadline passed");
+    }
+
+    /** Stops the skeleton and re-enables direct calls. */
+    @Override
+    protected void clean()
+    {
+        Stub.setLocalCalls(true);
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Makes a call which is expected to miss its deadline.
+
+        @param stub The stub through which to call.
+        @param millis The time for which the server should sleep.
+        @throws TestFailed If the call does not fail with
+                           <code>DeadlineExceededException</code>.
+     */
+    private void expectDeadline(Sleeper stub, long millis) throws TestFailed
+    {
+        try
+        {
+            stub.sleep(millis);
+        }
+        catch(DeadlineExceededException e)
+        {
+            return;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed with unexpected exception", t);
+        }
+
+        throw new TestFailed("call returned after its deadline");
+    }
+
+    /** Remote interface of a server which sleeps. */
+    public interface Sleeper
+    {
+        /** Sleeps.
+
+            @param millis The time for which to sleep, in milliseconds.
+            @throws RMIException If the call cannot be completed.
+         */
+        public void sleep(long millis) throws RMIException;
+    }
+
+    /** Server implementing <code>Sleeper</code>. */
+    private static class SleeperServer implements Sleeper
+    {
+        /** Number of calls run. */
+        final AtomicInteger     ran = new AtomicInteger();
+        /** Counted down when a call is interrupted. */
+        final CountDownLatch    interrupted = new CountDownLatch(1);
+        /** Counted down when a second call starts. */
+        final CountDownLatch    sleeping = new CountDownLatch(1);
+
+        @Override
+        public void sleep(long millis)
+        {
+            if(ran.incrementAndGet() > 1)
+                sleeping.countDown();
+
+            try
+            {
+                Thread.sleep(millis);
+            }
+            catch(InterruptedException e)
+            {
+                interrupted.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package rmi;
+
+import test.*;
+
+/** Unit test for the skeleton's dispatch of calls by method id.
+
+    <p>
+    The test sends calls whose arguments do not fit the method's parameters,
+    as a faulty or malicious client might, and checks that the skeleton rejects
+    them with an <code>RMIException</code> rather than reporting the failure
+    as an exception thrown by the method. It also checks that a
+    <code>ClassCastException</code> really thrown by the method still reaches
+    the caller as such.
+ */
+public class DispatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call dispatch";
+
+    /** Skeleton for the server object. */
+    private Skeleton<Adder>     skeleton;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Adder>(Adder.class, new AdderServer());
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("sending well-typed arguments");
+        expect(send("add", 2, 3), false, 5);
+
+        task("sending an argument of the wrong type");
+        expect(send("add", 2, "3"), true, RMIException.class);
+
+        task("sending null for a primitive argument");
+        expect(send("add", 2, null), true, RMIException.class);
+
+        task("sending too few arguments");
+        expect(send("add", 2), true, RMIException.class);
+
+        task("calling a method which throws ClassCastException");
+        expect(send("cast", "value"), true, ClassCastException.class);
+
+        task("calling through a stub");
+
+        try
+        {
+            Adder               stub = Stub.create(Adder.class, skeleton);
+
+            if(stub.add(4, 5) != 9)
+                throw new TestFailed("stub call returned wrong result");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("stub call failed", t);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Sends a call over a new connection, with arbitrary arguments.
+
+        @param name The name of the method.
+        @param args The arguments.
+        @return The reply.
+        @throws TestFailed If the call cannot be sent, or no reply arrives.
+     */
+    private Frame send(String name, Object... args) throws TestFailed
+    {
+        MethodTable             table = MethodTable.of(Adder.class);
+        Connection              connection = null;
+
+        try
+        {
+            int                 id = -1;
+
+            for(int i = 0; i < table.methods.length; ++i)
+            {
+                if(table.methods[i].getName().equals(name))
+                    id = i;
+            }
+
+            byte[]              request =
+                Frame.marshalCall(table.fingerprint, id, args, false, null);
+
+            connection = ConnectionPool.open(skeleton.serverAddress, null);
+
+            return connection.call(request);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to send call", t);
+        }
+        finally
+        {
+            if(connection != null)
+                connection.close();
+        }
+    }
+
+    /** Checks a reply.
+
+        @param reply The reply.
+        @param exception Whether the reply should carry an exception.
+        @param expected The expected result, or the expected class of the
+                        exception.
+        @throws TestFailed If the reply differs.
+     */
+    private void expect(Frame reply, boolean exception, Object expected)
+        throws TestFailed
+    {
+        Object                  value;
+
+        try
+        {
+            value = Codec.decode(reply.payload, 0, reply.payload.length);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to decode reply", t);
+        }
+
+        if(reply.hasFlag(Frame.FLAG_EXCEPTION) != exception)
+        {
+            throw new TestFailed("reply " + value + " was " +
+                                 (exception ? "not " : "") + "an exception");
+        }
+
+        if(exception ? value.getClass() != expected : !expected.equals(value))
+        {
+            throw new TestFailed("reply was " + value + " rather than " +
+                                 expected);
+        }
+    }
+
+    /** Remote interface used in the test. */
+    public interface Adder
+    {
+        /** Adds two numbers.
+
+            @param a The first number.
+            @param b The second number.
+            @return The sum.
+            @throws RMIException If the call cannot be completed.
+         */
+        public int add(int a, int b) throws RMIException;
+
+        /** Throws <code>ClassCastException</code>.
+
+            @param value Ignored.
+            @throws RMIException If the call cannot be completed.
+         */
+        public void cast(String value) throws RMIException;
+    }
+
+    /** Server implementing <code>Adder</code>. */
+    private static class AdderServer implements Adder
+    {
+        @Override
+        public int add(int a, int b)
+        {
+            return a + b;
+        }
+
+        @Override
+        public void cast(String value)
+        {
+            throw new ClassCastException("thrown by the method");
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+
+/** Unit test for failover between replicas and for the skeleton's log of
+    recent calls.
+
+    <p>
+    The test makes calls through a stub whose first endpoint cannot be
+    reached, and whose replica is a running skeleton. Calls to idempotent
+    methods, and to other methods which do not invalidate, must move on to the
+    replica, while a call to a method marked <code>Invalidates</code> must
+    fail. The test then sends the same call twice on separate connections, as
+    a stub does after losing a connection, and checks that the method runs
+    only once and that both attempts receive its reply. Finally, it checks that
+    the log keeps only a bounded number of bytes of replies, dropping the
+    oldest first.
+ */
+public class FailoverTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking failover and repeated calls";
+
+    /** Server object used in the test. */
+    private CounterServer       counter;
+    /** Skeleton for the server object. */
+    private Skeleton<Counter>   skeleton;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        counter = new CounterServer();
+        skeleton = new Skeleton<Counter>(Counter.class, counter);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        Stub.setLocalCalls(false);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("failing over");
+        checkFailover();
+
+        task("repeating a call");
+        checkRepeat();
+
+        task("bounding logged replies");
+        checkLogBound();
+    }
+
+    /** Stops the skeleton and re-enables direct calls. */
+    @Override
+    protected void clean()
+    {
+        Stub.setLocalCalls(true);
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Checks which calls move on from an unreachable endpoint.
+
+        @throws TestFailed If a check fails.
+     */
+    private void checkFailover() throws TestFailed
+    {
+        Counter                 stub;
+
+        try
+        {
+            Counter             unreachable =
+                Stub.create(Counter.class,
+                            new InetSocketAddress("127.0.0.1", 1));
+
+            stub = Stub.withFailover(unreachable,
+                                     Stub.create(Counter.class, skeleton));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stubs", t);
+        }
+
+        try
+        {
+            if(stub.next() != 1)
+                throw new TestFailed("next returned wrong value");
+
+            if(stub.get() != 1)
+                throw new TestFailed("get returned wrong value");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call did not fail over to replica", e);
+        }
+
+        try
+        {
+            stub.reset();
+        }
+        catch(RMIException e)
+        {
+            if(counter.value != 1)
+                throw new TestFailed("reset ran on replica");
+
+            return;
+        }
+
+        throw new TestFailed("invalidating call failed over to replica");
+    }
+
+    /** Sends the same call twice, and checks that the method runs once.
+
+        @throws TestFailed If a check fails.
+     */
+    private void checkRepeat() throws TestFailed
+    {
+        MethodTable             table = MethodTable.of(Counter.class);
+        Connection              first = null;
+        Connection              second = null;
+        Object                  firstResult;
+        Object                  secondResult;
+        int                     before = counter.value;
+
+        try
+        {
+            byte[]              request =
+                Frame.marshalCall(table.fingerprint,
+                    table.id(Counter.class.getMethod("next")), new Object[0],
+                    false, null);
+
+            first = ConnectionPool.open(skeleton.serverAddress, null);
+            second = ConnectionPool.open(skeleton.serverAddress, null);
+
+            Frame               reply = first.call(request);
+
+            firstResult = Codec.decode(reply.payload, 0, reply.payload.length);
+            reply = second.call(request);
+            secondResult =
+                Codec.decode(reply.payload, 0, reply.payload.length);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to repeat call", t);
+        }
+        finally
+        {
+            if(first != null)
+                first.close();
+
+            if(second != null)
+                second.close();
+        }
+
+        if(counter.value != before + 1)
+            throw new TestFailed("repeated call ran more than once");
+
+        if(!Integer.valueOf(before + 1).equals(firstResult) ||
+           !firstResult.equals(secondResult))
+        {
+            throw new TestFailed("repeated call received " + secondResult +
+                                 " rather than " + firstResult);
+        }
+    }
+
+    /** Logs more replies than the log keeps, and checks that the oldest are
+        dropped.
+
+        @throws TestFailed If a check fails.
+     */
+    private void checkLogBound() throws TestFailed
+    {
+        RequestLog              log = new RequestLog();
+        int                     calls = 1024;
+        int                     length = 60 * 1024;
+        int                     kept = 0;
+
+        for(int i = 0; i < calls; i++)
+        {
+            log.join(0, i, null).complete(
+                new Frame(Frame.REPLY, (byte)0, i, new byte[length]));
+        }
+
+        for(int i = 0; i < calls; i++)
+        {
+            if(log.join(0, i, null).payload != null)
+                ++kept;
+        }
+
+        if((long)kept * length > Long.getLong("rmi.requestlog.bytes",
+                                              16L * 1024 * 1024))
+        {
+            throw new TestFailed("log kept " + kept + " replies");
+        }
+
+        if(log.join(0, calls - 1, null).payload == null)
+            throw new TestFailed("log dropped the most recent reply");
+
+        if(log.join(0, 0, null).payload != null)
+            throw new TestFailed("log kept the oldest reply");
+    }
+
+    /** Remote interface of a counter. */
+    public interface Counter
+    {
+        /** Returns the counter's value.
+
+            @return The value.
+            @throws RMIException If the call cannot be completed.
+         */
+        @Idempotent
+        public int get() throws RMIException;
+
+        /** Increments the counter.
+
+            @return The new value.
+            @throws RMIException If the call cannot be completed.
+         */
+        public int next() throws RMIException;
+
+        /** Sets the counter to zero.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        @Invalidates
+        public void reset() throws RMIException;
+    }
+
+    /** Server implementing <code>Counter</code>. */
+    private static class CounterServer implements Counter
+    {
+        /** The counter's value. */
+        volatile int            value = 0;
+
+        @Override
+        public synchronized int get()
+        {
+            return value;
+        }
+
+        @Override
+        public synchronized int next()
+        {
+            return ++value;
+        }
+
+        @Override
+        public synchronized void reset()
+        {
+            value = 0;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package rmi;
+
+import test.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Unit test for execution lanes.
+
+    <p>
+    The skeleton's default lane has a single worker and no queue, and its
+    <code>data</code> lane a single worker and a queue of two calls. The test
+    fills the <code>data</code> lane with calls which the server object holds,
+    and checks that the lane's queue depth is reported, that a further call
+    in that lane is refused, and that calls in the default lane still run. It
+    then holds a call to a method moved by <code>setLane</code> to a lane of
+    its own, and checks that the default lane is still free.
+ */
+public class LaneTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking execution lanes";
+
+    /** Server object used in the test. */
+    private StoreServer         store;
+    /** Skeleton for the server object. */
+    private Skeleton<Store>     skeleton;
+    /** Threads making held calls. */
+    private final List<Thread>  held = new ArrayList<Thread>();
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        store = new StoreServer();
+        skeleton = new Skeleton<Store>(Store.class, store);
+        skeleton.setWorkerPool(1, 0);
+        skeleton.setLanePool("data", 1, 2);
+
+        try
+        {
+            skeleton.setLane(Store.class.getMethod("audit"), "slow");
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        Stub.setLocalCalls(false);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            final Store         stub = Stub.create(Store.class, skeleton);
+
+            task("filling a lane");
+
+            for(int i = 0; i < 3; ++i)
+            {
+                hold(new RemoteCall<Store, Void>() {
+                    @Override
+                    public Void invoke(Store stub) throws RMIException
+                    {
+                        stub.transfer();
+                        return null;
+                    }
+                }, stub);
+            }
+
+            if(!store.entered.tryAcquire(5, TimeUnit.SECONDS))
+                throw new TestFailed("held call did not start");
+
+            long                deadline = System.currentTimeMillis() + 5000;
+
+            while(skeleton.getQueueDepth("data") != 2)
+            {
+                if(System.currentTimeMillis() > deadline)
+                    throw new TestFailed("calls were not queued in lane");
+
+                Thread.sleep(10);
+            }
+
+            if(skeleton.getQueueDepth() != 2 ||
+               skeleton.getQueueDepth(null) != 0)
+            {
+                throw new TestFailed("queue depths reported wrongly");
+            }
+
+            task("refusing a call to a full lane");
+
+            try
+            {
+                stub.transfer();
+                throw new TestFailed("call to full lane was run");
+            }
+            catch(CallRejectedException e)
+            {
+            }
+
+            task("calling the default lane");
+
+            if(stub.status() != 1)
+                throw new TestFailed("call returned wrong result");
+
+            task("moving a method to another lane");
+            hold(new RemoteCall<Store, Void>() {
+                @Override
+                public Void invoke(Store stub) throws RMIException
+                {
+                    stub.audit();
+                    return null;
+                }
+            }, stub);
+
+            if(!store.entered.tryAcquire(5, TimeUnit.SECONDS))
+                throw new TestFailed("moved call did not start");
+
+            if(stub.status() != 1)
+                throw new TestFailed("call returned wrong result");
+
+            store.release.countDown();
+
+            for(Thread thread : held)
+                thread.join();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+    }
+
+    /** Releases held calls, stops the skeleton and re-enables direct
+        calls. */
+    @Override
+    protected void clean()
+    {
+        Stub.setLocalCalls(true);
+        store.release.countDown();
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Makes a call in a new thread.
+
+        @param call The call to make.
+        @param stub The stub through which to call.
+     */
+    private void hold(final RemoteCall<Store, Void> call, final Store stub)
+    {
+        Thread                  thread = new Thread() {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    call.invoke(stub);
+                }
+                catch(Throwable t)
+                {
+                    failure(new TestFailed("held call failed", t));
+                }
+            }
+        };
+
+        held.add(thread);
+        thread.start();
+    }
+
+    /** Remote interface with methods in several lanes. */
+    public interface Store
+    {
+        /** Waits until the test releases the server. Runs in the
+            <code>data</code> lane.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        @Lane("data")
+        public void transfer() throws RMIException;
+
+        /** Waits until the test releases the server. Moved to a lane of its
+            own by the test.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        public void audit() throws RMIException;
+
+        /** Returns immediately.
+
+            @return One.
+            @throws RMIException If the call cannot be completed.
+         */
+        public int status() throws RMIException;
+    }
+
+    /** Server implementing <code>Store</code>. */
+    private static class StoreServer implements Store
+    {
+        /** Released each time a held call starts. */
+        final Semaphore         entered = new Semaphore(0);
+        /** Counted down by the test to release held calls. */
+        final CountDownLatch    release = new CountDownLatch(1);
+
+        @Override
+        public void transfer()
+        {
+            hold();
+        }
+
+        @Override
+        public void audit()
+        {
+            hold();
+        }
+
+        @Override
+        public int status()
+        {
+            return 1;
+        }
+
+        /** Waits until the test releases the server. */
+        private void hold()
+        {
+            entered.release();
+
+            try
+            {
+                release.await();
+            }
+            catch(InterruptedException e)
+            {
+                throw new IllegalStateException("interrupted", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+
+/** Unit test for direct calls to skeletons in the same virtual machine.
+
+    <p>
+    The test checks that a stub for a running skeleton in this virtual
+    machine runs its calls in the caller's thread, that the server object
+    still receives and returns copies unless passing by reference is enabled,
+    and that calls go over a connection when direct calls are disabled. It
+    also checks the registry's lookup: a stub for another interface on the
+    skeleton's port, or for a skeleton which has stopped, is not given the
+    skeleton. Since a direct call with a deadline may be cancelled by
+    interrupting the caller's thread, the test checks that such an interrupt
+    does not outlast the call, and that one the caller already had does.
+ */
+public class LocalRegistryTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking direct local calls";
+
+    /** Server object used in the test. */
+    private RecorderServer      recorder;
+    /** Skeleton for the server object. */
+    private Skeleton<Recorder>  skeleton;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        recorder = new RecorderServer();
+        skeleton = new Skeleton<Recorder>(Recorder.class, recorder);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        InetSocketAddress       address =
+            new InetSocketAddress("127.0.0.1",
+                                  skeleton.serverAddress.getPort());
+
+        try
+        {
+            Recorder            stub = Stub.create(Recorder.class, address);
+            int[]               values = new int[] {1, 2, 3};
+
+            task("calling a local skeleton directly");
+
+            int[]               result = stub.touch(values);
+
+            if(recorder.thread != Thread.currentThread())
+                throw new TestFailed("local call ran in another thread");
+
+            if(recorder.received == values || result == values ||
+               values[0] != 1 || result[0] != -1)
+            {
+                throw new TestFailed("local call did not copy its values");
+            }
+
+            task("passing values by reference");
+            Stub.setPassByReference(true);
+
+            try
+            {
+                result = stub.touch(values);
+            }
+            finally
+            {
+                Stub.setPassByReference(false);
+            }
+
+            if(recorder.received != values || result != values)
+                throw new TestFailed("values were copied");
+
+            task("keeping the caller's interrupt");
+
+            Recorder            limited = Stub.withTimeout(stub, 100);
+
+            Thread.currentThread().interrupt();
+            limited.touch(new int[] {1});
+
+            if(!Thread.interrupted())
+                throw new TestFailed("local call cleared caller's interrupt");
+
+            task("clearing a cancelled call's interrupt");
+
+            try
+            {
+                limited.pause(5000);
+                throw new TestFailed("call returned after its deadline");
+            }
+            catch(DeadlineExceededException e)
+            {
+            }
+
+            if(!recorder.interrupted)
+                throw new TestFailed("call was not interrupted at deadline");
+
+            if(Thread.interrupted())
+                throw new TestFailed("cancelled call's interrupt reached " +
+                                     "caller");
+
+            task("calling over a connection");
+            Stub.setLocalCalls(false);
+
+            try
+            {
+                stub.touch(new int[] {1});
+            }
+            finally
+            {
+                Stub.setLocalCalls(true);
+            }
+
+            if(recorder.thread == Thread.currentThread())
+                throw new TestFailed("call ran in caller's thread");
+
+            task("finding skeletons");
+
+            if(LocalRegistry.find(address, Recorder.class) != skeleton)
+                throw new TestFailed("skeleton was not found");
+
+            if(LocalRegistry.find(address, Runnable.class) != null)
+                throw new TestFailed("skeleton found for another interface");
+
+            skeleton.stop();
+
+            if(LocalRegistry.find(address, Recorder.class) != null)
+                throw new TestFailed("stopped skeleton was found");
+
+            try
+            {
+                stub.touch(new int[] {1});
+                throw new TestFailed("call to stopped skeleton returned");
+            }
+            catch(RMIException e)
+            {
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Remote interface of a server which records its calls. */
+    public interface Recorder
+    {
+        /** Records a call, and changes the first of the values given.
+
+            @param values The values.
+            @return <code>values</code>, with the first changed to -1.
+            @throws RMIException If the call cannot be completed.
+         */
+        public int[] touch(int[] values) throws RMIException;
+
+        /** Sleeps unless interrupted.
+
+            @param millis The time for which to sleep, in milliseconds.
+            @throws RMIException If the call cannot be completed.
+         */
+        public void pause(long millis) throws RMIException;
+    }
+
+    /** Server implementing <code>Recorder</code>. */
+    private static class RecorderServer implements Recorder
+    {
+        /** Thread which ran the last call. */
+        volatile Thread         thread;
+        /** Values received by the last call. */
+        volatile int[]          received;
+        /** Whether the last call to <code>pause</code> was interrupted. */
+        volatile boolean        interrupted;
+
+        @Override
+        public int[] touch(int[] values)
+        {
+            thread = Thread.currentThread();
+            received = values;
+            values[0] = -1;
+
+            return values;
+        }
+
+        @Override
+        public void pause(long millis)
+        {
+            try
+            {
+                interrupted = false;
+                Thread.sleep(millis);
+            }
+            catch(InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+    }
+}
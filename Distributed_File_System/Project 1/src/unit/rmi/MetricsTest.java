@@ -0,0 +1,207 @@
+package rmi;
+
+import test.*;
+import java.lang.management.*;
+import javax.management.*;
+
+/** Unit test for per-method call metrics.
+
+    <p>
+    The test first checks the latency histogram on its own: that percentiles
+    fall within the histogram's resolution of the true values, that the
+    maximum is kept exactly, and that a reset clears it. It then makes calls
+    to a skeleton, some of which throw, and reads the method's statistics
+    through JMX, checking the counts of calls and errors, the bytes received
+    and sent, and the time spent in the method. It checks that the metrics
+    report lists the method, and that the MBeans are withdrawn when the
+    skeleton stops.
+ */
+public class MetricsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call metrics";
+
+    /** Time for which each call sleeps, in milliseconds. */
+    private static final long   PAUSE = 5;
+
+    /** Skeleton for the server object. */
+    private Skeleton<Pauser>    skeleton;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Pauser>(Pauser.class, new PauserServer());
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        Stub.setLocalCalls(false);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("recording durations in a histogram");
+
+        Histogram               histogram = new Histogram();
+
+        for(long micros = 1; micros <= 1000; ++micros)
+            histogram.record(micros * 1000);
+
+        histogram.record(1L << 50);
+
+        expectNear(histogram.percentile(0.5), 500000, "median");
+        expectNear(histogram.percentile(0.99), 990000, "99th percentile");
+
+        if(histogram.max() != 1L << 50 || histogram.count() != 1001)
+            throw new TestFailed("histogram lost maximum or count");
+
+        histogram.reset();
+
+        if(histogram.count() != 0 || histogram.percentile(0.5) != 0)
+            throw new TestFailed("histogram was not reset");
+
+        try
+        {
+            task("counting calls");
+
+            Pauser              stub = Stub.create(Pauser.class, skeleton);
+
+            for(int i = 0; i < 12; ++i)
+            {
+                try
+                {
+                    stub.pause(PAUSE, i % 6 == 0);
+                }
+                catch(IllegalStateException e)
+                {
+                }
+            }
+
+            task("reading statistics through JMX");
+
+            MBeanServer         server =
+                ManagementFactory.getPlatformMBeanServer();
+            ObjectName          name =
+                new ObjectName("rmi:type=Skeleton,interface=" +
+                               Pauser.class.getName() + ",port=" +
+                               skeleton.serverAddress.getPort() + ",method=" +
+                               ObjectName.quote("pause(long,boolean)"));
+
+            if((Long)server.getAttribute(name, "Calls") != 12)
+                throw new TestFailed("wrong number of calls counted");
+
+            if((Long)server.getAttribute(name, "Errors") != 2)
+                throw new TestFailed("wrong number of errors counted");
+
+            if((Long)server.getAttribute(name, "BytesIn") <= 0 ||
+               (Long)server.getAttribute(name, "BytesOut") <= 0)
+            {
+                throw new TestFailed("bytes were not counted");
+            }
+
+            double              median =
+                (Double)server.getAttribute(name, "InvokeP50Micros");
+
+            if(median < PAUSE * 1000 * 0.9 || median > PAUSE * 1000 * 100)
+                throw new TestFailed("median time in method was " + median);
+
+            task("reporting statistics");
+
+            String              report = skeleton.getMetricsReport();
+
+            if(!report.contains("pause(long,boolean)") ||
+               !report.contains("calls 12 errors 2"))
+            {
+                throw new TestFailed("report does not list method: " +
+                                     report);
+            }
+
+            task("withdrawing statistics");
+            skeleton.stop();
+
+            if(server.isRegistered(name))
+                throw new TestFailed("MBean remains after skeleton stopped");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("reading statistics failed", t);
+        }
+    }
+
+    /** Stops the skeleton and re-enables direct calls. */
+    @Override
+    protected void clean()
+    {
+        Stub.setLocalCalls(true);
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Checks that a value taken from a histogram is within its resolution
+        of the true value.
+
+        @param value The value from the histogram.
+        @param expected The true value.
+        @param what What the value is, for the failure message.
+        @throws TestFailed If the value differs by more than 7%.
+     */
+    private static void expectNear(long value, long expected, String what)
+        throws TestFailed
+    {
+        if(Math.abs(value - expected) > expected * 0.07)
+        {
+            throw new TestFailed(what + " was " + value + " rather than " +
+                                 expected);
+        }
+    }
+
+    /** Remote interface of a server which sleeps. */
+    public interface Pauser
+    {
+        /** Sleeps, and then may throw.
+
+            @param millis The time for which to sleep, in milliseconds.
+            @param fail Whether to throw after sleeping.
+            @throws IllegalStateException If <code>fail</code> is
+                                          <code>true</code>.
+            @throws RMIException If the call cannot be completed.
+         */
+        public void pause(long millis, boolean fail) throws RMIException;
+    }
+
+    /** Server implementing <code>Pauser</code>. */
+    private static class PauserServer implements Pauser
+    {
+        @Override
+        public void pause(long millis, boolean fail)
+        {
+            try
+            {
+                Thread.sleep(millis);
+            }
+            catch(InterruptedException e)
+            {
+                throw new IllegalStateException("interrupted", e);
+            }
+
+            if(fail)
+                throw new IllegalStateException("call failed");
+        }
+    }
+}
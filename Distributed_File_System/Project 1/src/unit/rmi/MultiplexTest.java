@@ -0,0 +1,176 @@
+package rmi;
+
+import test.*;
+import java.util.concurrent.*;
+
+/** Unit test for many calls in flight on one connection.
+
+    <p>
+    The test limits the stub's connection pool to a single connection per
+    address, and makes calls from many threads which the server object holds
+    until all of them have arrived. The calls can only complete if they are
+    all in flight on the connection at once, and are answered in whatever
+    order they finish. The test checks that every caller receives its own
+    result, and that the skeleton has served a single connection.
+ */
+public class MultiplexTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call multiplexing";
+
+    /** Number of concurrent calls. */
+    private static final int    CALLS = 16;
+
+    /** Server object used in the test. */
+    private MeetingServer       meeting;
+    /** Skeleton for the server object. */
+    private Skeleton<Meeting>   skeleton;
+
+    /** Starts the skeleton and limits the connection pool. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        meeting = new MeetingServer();
+        skeleton = new Skeleton<Meeting>(Meeting.class, meeting);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        ConnectionPool.setMaxConnectionsPerEndpoint(1);
+        Stub.setLocalCalls(false);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        final Meeting           stub;
+
+        try
+        {
+            stub = Stub.create(Meeting.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stub", t);
+        }
+
+        task("making concurrent calls on one connection");
+
+        Thread[]                threads = new Thread[CALLS];
+
+        for(int i = 0; i < threads.length; ++i)
+        {
+            final int           number = i;
+
+            threads[i] = new Thread() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        int     result = stub.meet(number);
+
+                        if(result != number * 2)
+                        {
+                            failure(new TestFailed("call " + number +
+                                                   " returned " + result));
+                        }
+                    }
+                    catch(Throwable t)
+                    {
+                        failure(new TestFailed("call failed", t));
+                    }
+                }
+            };
+
+            threads[i].start();
+        }
+
+        for(Thread thread : threads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted while calling", e);
+            }
+        }
+
+        task("counting connections");
+
+        if(skeleton.services.size() != 1)
+        {
+            throw new TestFailed("skeleton served " + skeleton.services.size() +
+                                 " connections");
+        }
+    }
+
+    /** Stops the skeleton, re-enables direct calls, and restores the
+        connection pool. */
+    @Override
+    protected void clean()
+    {
+        Stub.setLocalCalls(true);
+        ConnectionPool.setMaxConnectionsPerEndpoint(4);
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Remote interface of a server which holds calls until all have
+        arrived. */
+    public interface Meeting
+    {
+        /** Waits for the other calls, and returns twice the number given.
+
+            @param number The number.
+            @return Twice <code>number</code>.
+            @throws RMIException If the call cannot be completed.
+         */
+        public int meet(int number) throws RMIException;
+    }
+
+    /** Server implementing <code>Meeting</code>. */
+    private static class MeetingServer implements Meeting
+    {
+        /** Barrier at which the calls meet. */
+        private final CyclicBarrier barrier = new CyclicBarrier(CALLS);
+
+        @Override
+        public int meet(int number)
+        {
+            try
+            {
+                barrier.await(10, TimeUnit.SECONDS);
+            }
+            catch(Exception e)
+            {
+                throw new IllegalStateException("calls did not all arrive", e);
+            }
+
+            // Finish in the reverse of the order of the numbers, so that
+            // replies are sent out of order.
+            try
+            {
+                Thread.sleep((CALLS - number) * 10);
+            }
+            catch(InterruptedException e)
+            {
+                throw new IllegalStateException("interrupted", e);
+            }
+
+            return number * 2;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package rmi;
+
+import test.*;
+import java.util.concurrent.*;
+
+/** Unit test for one-way remote methods.
+
+    <p>
+    The test calls one-way methods both directly, through a skeleton in the
+    same virtual machine, and over a connection. In each case it checks that
+    the call returns while the method is still blocked in the server, that the
+    server receives the arguments as they were at the time of the call, and
+    that an exception thrown by the method is reported to the skeleton's
+    <code>service_error</code> method rather than to the caller.
+ */
+public class OneWayTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking one-way methods";
+
+    /** Server object used in the test. */
+    private GateServer          gate;
+    /** Skeleton for the server object. */
+    private TestSkeleton        skeleton;
+    /** Errors reported by the skeleton. */
+    private final BlockingQueue<Throwable>  errors =
+        new LinkedBlockingQueue<Throwable>();
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        gate = new GateServer();
+        skeleton = new TestSkeleton();
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("calling directly");
+        check(true);
+
+        task("calling over a connection");
+        check(false);
+    }
+
+    /** Stops the skeleton and re-enables direct calls. */
+    @Override
+    protected void clean()
+    {
+        Stub.setLocalCalls(true);
+
+        if(gate != null)
+            gate.release();
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Makes one-way calls through a new stub.
+
+        @param local Whether the stub calls the skeleton directly.
+        @throws TestFailed If a check fails.
+     */
+    private void check(boolean local) throws TestFailed
+    {
+        Gate                    stub;
+
+        Stub.setLocalCalls(local);
+        gate.reset();
+
+        try
+        {
+            stub = Stub.create(Gate.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stub", t);
+        }
+
+        // The call must return even though the method blocks until released,
+        // and the server must see the argument as it was when the call was
+        // made.
+        String[]                values = new String[] {"sent"};
+
+        try
+        {
+            stub.hold(values);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("one-way call failed", t);
+        }
+
+        values[0] = "changed";
+
+        String                  received = take(gate.received);
+
+        if(!"sent".equals(received))
+        {
+            throw new TestFailed("server received " + received +
+                                 " rather than the argument as sent");
+        }
+
+        try
+        {
+            stub.release();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to release one-way call", t);
+        }
+
+        // An exception thrown by a one-way method must not reach the caller,
+        // but must be reported by the skeleton.
+        try
+        {
+            stub.fail();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("one-way call reported the method's " +
+                                 "exception to the caller", t);
+        }
+
+        Throwable               error = take(errors);
+
+        if(!(error instanceof RMIException) ||
+           !(error.getCause() instanceof IllegalStateException))
+        {
+            throw new TestFailed("skeleton reported unexpected error", error);
+        }
+    }
+
+    /** Waits for an item from a queue.
+
+        @param queue The queue.
+        @return The item.
+        @throws TestFailed If no item arrives within five seconds.
+     */
+    private <E> E take(BlockingQueue<E> queue) throws TestFailed
+    {
+        E                       item;
+
+        try
+        {
+            item = queue.poll(5, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting", e);
+        }
+
+        if(item == null)
+            throw new TestFailed("one-way call did not run");
+
+        return item;
+    }
+
+    /** Remote interface with one-way methods. */
+    public interface Gate
+    {
+        /** Records the first value, then blocks until released.
+
+            @param values Values, of which the first is recorded.
+            @throws RMIException If the call cannot be sent.
+         */
+        @OneWay
+        public void hold(String[] values) throws RMIException;
+
+        /** Releases calls blocked in <code>hold</code>.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        public void release() throws RMIException;
+
+        /** Throws <code>IllegalStateException</code>.
+
+            @throws RMIException If the call cannot be sent.
+         */
+        @OneWay
+        public void fail() throws RMIException;
+    }
+
+    /** Server implementing <code>Gate</code>. */
+    private static class GateServer implements Gate
+    {
+        /** Values recorded by <code>hold</code>. */
+        final BlockingQueue<String>     received =
+            new LinkedBlockingQueue<String>();
+        /** Latch on which <code>hold</code> blocks. */
+        private volatile CountDownLatch released;
+
+        /** Prepares the server for a new series of calls. */
+        void reset()
+        {
+            released = new CountDownLatch(1);
+        }
+
+        @Override
+        public void hold(String[] values)
+        {
+            received.add(values[0]);
+
+            try
+            {
+                released.await();
+            }
+            catch(InterruptedException e) { }
+        }
+
+        @Override
+        public void release()
+        {
+            if(released != null)
+                released.countDown();
+        }
+
+        @Override
+        public void fail()
+        {
+            throw new IllegalStateException("failed");
+        }
+    }
+
+    /** Skeleton which records the errors it reports. */
+    private class TestSkeleton extends Skeleton<Gate>
+    {
+        /** Creates a <code>TestSkeleton</code> for the server object. */
+        TestSkeleton()
+        {
+            super(Gate.class, gate);
+        }
+
+        /** Records an error in a service thread. */
+        @Override
+        protected void service_error(RMIException e)
+        {
+            errors.add(e);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package rmi;
+
+import test.*;
+
+/** Unit test for the caching of results of <code>Cacheable</code> methods.
+
+    <p>
+    The test counts the calls which reach a server object. It checks that a
+    repeated call with equal arguments is answered from the cache, that a call
+    with different arguments is not, and that a cached result is discarded when
+    it expires, when a method marked <code>Invalidates</code> is called, and
+    when the stub is invalidated explicitly.
+ */
+public class ResultCacheTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking result caching";
+
+    /** Time for which results of <code>Store.get</code> are cached. */
+    private static final long   TTL = 200;
+
+    /** Server object used in the test. */
+    private StoreServer         store;
+    /** Skeleton for the server object. */
+    private Skeleton<Store>     skeleton;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        store = new StoreServer();
+        skeleton = new Skeleton<Store>(Store.class, store);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        Stub.setLocalCalls(false);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Stub.invalidateAll();
+
+        try
+        {
+            Store               stub = Stub.create(Store.class, skeleton);
+
+            task("repeating a call");
+            expect(stub.get(1), 1, 1);
+            expect(stub.get(1), 1, 1);
+
+            task("calling with different arguments");
+            expect(stub.get(2), 2, 2);
+
+            task("calling a method which invalidates");
+            stub.set(10);
+            expect(stub.get(1), 11, 4);
+
+            task("invalidating the stub");
+            store.value = 20;
+            expect(stub.get(1), 11, 4);
+            Stub.invalidate(stub);
+            expect(stub.get(1), 21, 5);
+
+            task("waiting for the result to expire");
+            store.value = 30;
+            Thread.sleep(TTL * 2);
+            expect(stub.get(1), 31, 6);
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+    }
+
+    /** Stops the skeleton and re-enables direct calls. */
+    @Override
+    protected void clean()
+    {
+        Stub.setLocalCalls(true);
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Checks the result of a call, and the number of calls that have reached
+        the server object.
+
+        @param result Result of the call.
+        @param expected Expected result.
+        @param calls Expected number of calls to have reached the server.
+        @throws TestFailed If either differs.
+     */
+    private void expect(int result, int expected, int calls) throws TestFailed
+    {
+        if(result != expected)
+        {
+            throw new TestFailed("call returned " + result + " rather than " +
+                                 expected);
+        }
+
+        if(store.calls != calls)
+        {
+            throw new TestFailed(store.calls + " calls reached the server " +
+                                 "rather than " + calls);
+        }
+    }
+
+    /** Remote interface of a store holding one number. */
+    public interface Store
+    {
+        /** Returns the sum of the stored number and an offset.
+
+            @param offset The offset.
+            @return The sum.
+            @throws RMIException If the call cannot be completed.
+         */
+        @Cacheable(ttl = TTL)
+        public int get(int offset) throws RMIException;
+
+        /** Stores a number.
+
+            @param value The number.
+            @throws RMIException If the call cannot be completed.
+         */
+        @Invalidates
+        public void set(int value) throws RMIException;
+    }
+
+    /** Server implementing <code>Store</code>. */
+    private static class StoreServer implements Store
+    {
+        /** The stored number. */
+        volatile int            value = 0;
+        /** Number of calls received. */
+        volatile int            calls = 0;
+
+        @Override
+        public synchronized int get(int offset)
+        {
+            ++calls;
+            return value + offset;
+        }
+
+        @Override
+        public synchronized void set(int value)
+        {
+            ++calls;
+            this.value = value;
+        }
+    }
+}
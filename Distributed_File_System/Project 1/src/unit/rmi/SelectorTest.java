@@ -0,0 +1,227 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Unit test for the skeleton's selector mode.
+
+    <p>
+    The test runs a skeleton with two selector threads. It sends a call a few
+    bytes at a time over a socket, so that the skeleton must assemble the
+    frame from several reads, and then echoes small and large arrays from
+    several threads at once, so that replies are written over several
+    selector wakeups while other connections are served.
+ */
+public class SelectorTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking selector mode";
+
+    /** Skeleton for the echo server. */
+    private Skeleton<Echo>      skeleton;
+
+    /** Starts the skeleton in selector mode. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Echo>(Echo.class, new EchoServer());
+        skeleton.setSelectorThreads(2);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        Stub.setLocalCalls(false);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("sending a call in pieces");
+        trickle();
+
+        task("echoing arrays concurrently");
+
+        final Echo              stub;
+
+        try
+        {
+            stub = Stub.create(Echo.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stub", t);
+        }
+
+        Thread[]                threads = new Thread[8];
+
+        for(int i = 0; i < threads.length; ++i)
+        {
+            final int           seed = i;
+
+            threads[i] = new Thread() {
+                @Override
+                public void run()
+                {
+                    Random      random = new Random(seed);
+
+                    try
+                    {
+                        for(int call = 0; call < 20; ++call)
+                        {
+                            int     length = call % 4 == 0 ? 1 << 20
+                                                           : random.nextInt(64);
+                            byte[]  data = new byte[length];
+
+                            random.nextBytes(data);
+
+                            if(!Arrays.equals(stub.echo(data), data))
+                            {
+                                failure(new TestFailed("echo returned " +
+                                                       "corrupt data"));
+                                return;
+                            }
+                        }
+                    }
+                    catch(Throwable t)
+                    {
+                        failure(new TestFailed("echo failed", t));
+                    }
+                }
+            };
+
+            threads[i].start();
+        }
+
+        for(Thread thread : threads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted while echoing", e);
+            }
+        }
+    }
+
+    /** Stops the skeleton and re-enables direct calls. */
+    @Override
+    protected void clean()
+    {
+        Stub.setLocalCalls(true);
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Sends a call over a socket a few bytes at a time, and checks the
+        reply.
+
+        @throws TestFailed If the reply is not the expected result.
+     */
+    private void trickle() throws TestFailed
+    {
+        MethodTable             table = MethodTable.of(Echo.class);
+        byte[]                  data = new byte[1000];
+
+        new Random(1).nextBytes(data);
+
+        try
+        {
+            Socket              socket = new Socket();
+
+            try
+            {
+                socket.connect(new InetSocketAddress(
+                    "127.0.0.1", skeleton.serverAddress.getPort()));
+                socket.setSoTimeout(10000);
+                socket.setTcpNoDelay(true);
+
+                ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+
+                new Frame(Frame.CALL, (byte)0, 7,
+                          Frame.marshalCall(table.fingerprint, 0,
+                                            new Object[] {data}, false,
+                                            null))
+                    .write(new DataOutputStream(bytes));
+
+                byte[]          frame = bytes.toByteArray();
+                OutputStream    out = socket.getOutputStream();
+
+                // Split the length field itself, then send the rest in
+                // pieces.
+                int             offset = 0;
+                int             length = 3;
+
+                while(offset < frame.length)
+                {
+                    length = Math.min(length, frame.length - offset);
+                    out.write(frame, offset, length);
+                    out.flush();
+                    offset += length;
+                    length = 300;
+                    Thread.sleep(20);
+                }
+
+                Frame           reply = Frame.read(new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream())));
+                Object          result =
+                    Codec.decode(reply.payload, 0, reply.payload.length);
+
+                if(reply.id != 7 || reply.hasFlag(Frame.FLAG_EXCEPTION) ||
+                   !(result instanceof byte[]) ||
+                   !Arrays.equals((byte[])result, data))
+                {
+                    throw new TestFailed("skeleton answered call in " +
+                                         "pieces wrongly");
+                }
+            }
+            finally
+            {
+                socket.close();
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to call skeleton", t);
+        }
+    }
+
+    /** Remote interface of an echo server. */
+    public interface Echo
+    {
+        /** Returns its argument.
+
+            @param data The data to be returned.
+            @return <code>data</code>.
+            @throws RMIException If the call cannot be completed.
+         */
+        public byte[] echo(byte[] data) throws RMIException;
+    }
+
+    /** Server implementing <code>Echo</code>. */
+    private static class EchoServer implements Echo
+    {
+        @Override
+        public byte[] echo(byte[] data)
+        {
+            return data;
+        }
+    }
+}
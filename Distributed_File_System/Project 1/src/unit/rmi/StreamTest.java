@@ -0,0 +1,208 @@
+package rmi;
+
+import test.*;
+import java.util.concurrent.atomic.*;
+
+/** Unit test for streamed results and their flow control.
+
+    <p>
+    The server object returns an iterator which produces its elements only as
+    the skeleton asks for them, and counts them. The test reads a few elements
+    over a connection, waits, and checks that the skeleton has not read further
+    ahead than the credit it is granted allows. It then reads the rest of the
+    stream, checking every element, and finally checks that closing a stream
+    early closes the server's iterator.
+ */
+public class StreamTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking streamed results";
+
+    /** Number of elements in a stream. */
+    private static final int    COUNT = 100000;
+
+    /** Server object used in the test. */
+    private SourceServer        source;
+    /** Skeleton for the server object. */
+    private Skeleton<Source>    skeleton;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        source = new SourceServer();
+        skeleton = new Skeleton<Source>(Source.class, source);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        Stub.setLocalCalls(false);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            Source              stub = Stub.create(Source.class, skeleton);
+
+            task("reading the start of a stream");
+
+            RemoteIterator<Integer> numbers = stub.numbers(COUNT);
+
+            for(int i = 0; i < 10; ++i)
+                expect(numbers.next(), i);
+
+            Thread.sleep(500);
+
+            int                 limit =
+                (Frame.STREAM_WINDOW + 2) * Streamer.BLOCK_ITEMS;
+
+            if(source.produced.get() > limit)
+            {
+                throw new TestFailed("skeleton read " + source.produced.get() +
+                                     " elements ahead of the client");
+            }
+
+            task("reading the rest of a stream");
+
+            for(int i = 10; i < COUNT; ++i)
+            {
+                if(!numbers.hasNext())
+                    throw new TestFailed("stream ended after " + i);
+
+                expect(numbers.next(), i);
+            }
+
+            if(numbers.hasNext())
+                throw new TestFailed("stream did not end");
+
+            numbers.close();
+
+            task("closing a stream early");
+
+            source.produced.set(0);
+            numbers = stub.numbers(COUNT);
+            expect(numbers.next(), 0);
+            numbers.close();
+
+            synchronized(source)
+            {
+                long            deadline = System.currentTimeMillis() + 5000;
+
+                while(!source.closed &&
+                      System.currentTimeMillis() < deadline)
+                {
+                    source.wait(100);
+                }
+            }
+
+            if(!source.closed)
+                throw new TestFailed("closing stream did not close iterator");
+
+            if(source.produced.get() == COUNT)
+                throw new TestFailed("skeleton read stream to the end");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("streaming failed", t);
+        }
+    }
+
+    /** Stops the skeleton and re-enables direct calls. */
+    @Override
+    protected void clean()
+    {
+        Stub.setLocalCalls(true);
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Checks an element of a stream.
+
+        @param element The element received.
+        @param expected The element expected.
+        @throws TestFailed If they differ.
+     */
+    private void expect(Integer element, int expected) throws TestFailed
+    {
+        if(element == null || element != expected)
+        {
+            throw new TestFailed("stream sent " + element + " rather than " +
+                                 expected);
+        }
+    }
+
+    /** Remote interface streaming numbers. */
+    public interface Source
+    {
+        /** Returns the numbers from zero up to a limit.
+
+            @param count The number of numbers.
+            @return The numbers, in order.
+            @throws RMIException If the call cannot be completed.
+         */
+        public RemoteIterator<Integer> numbers(int count) throws RMIException;
+    }
+
+    /** Server implementing <code>Source</code>. */
+    private static class SourceServer implements Source
+    {
+        /** Number of elements produced. */
+        final AtomicInteger     produced = new AtomicInteger();
+        /** The most recently returned iterator. */
+        private RemoteIterator<Integer> latest;
+        /** Whether the most recently returned iterator has been closed. */
+        boolean                 closed = false;
+
+        @Override
+        public synchronized RemoteIterator<Integer> numbers(final int count)
+        {
+            closed = false;
+            latest = new RemoteIterator<Integer>() {
+                private int     next = 0;
+
+                @Override
+                public boolean hasNext()
+                {
+                    return next < count;
+                }
+
+                @Override
+                public Integer next()
+                {
+                    produced.incrementAndGet();
+                    return next++;
+                }
+
+                @Override
+                public void close()
+                {
+                    synchronized(SourceServer.this)
+                    {
+                        if(this == latest)
+                            closed = true;
+
+                        SourceServer.this.notifyAll();
+                    }
+                }
+            };
+
+            return latest;
+        }
+    }
+}
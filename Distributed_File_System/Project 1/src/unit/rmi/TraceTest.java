@@ -0,0 +1,303 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+
+/** Unit test for call tracing.
+
+    <p>
+    The test makes a traced call to a front server, which serves it by
+    calling a back server, both over connections, and a traced call which
+    throws. It then completes the trace file and checks that it is a JSON
+    array holding a stub span and a skeleton span for each of the two nested
+    calls, all in one trace, with each span the child of the one which caused
+    it, and that the spans of the call which threw are marked as failed.
+ */
+public class TraceTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call tracing";
+
+    /** Pattern matching a span in the trace file. */
+    private static final Pattern    SPAN = Pattern.compile(
+        "\\{\"name\":\"([^\"]*)\",\"cat\":\"([^\"]*)\",\"ph\":\"X\".*" +
+        "\"trace\":\"([0-9a-f]+)\",\"span\":\"([0-9a-f]+)\"," +
+        "\"parent\":\"([0-9a-f]+)\"");
+
+    /** Skeleton for the back server. */
+    private Skeleton<Back>      back;
+    /** Skeleton for the front server. */
+    private Skeleton<Front>     front;
+    /** Trace file. */
+    private File                file;
+
+    /** Starts the skeletons. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        back = new Skeleton<Back>(Back.class, new BackServer());
+
+        try
+        {
+            back.start();
+            front = new Skeleton<Front>(
+                Front.class, new FrontServer(Stub.create(Back.class, back)));
+            front.start();
+            file = File.createTempFile("rmi-trace", ".json");
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+
+        Stub.setLocalCalls(false);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        String                  text;
+
+        try
+        {
+            task("tracing a call across two hops");
+
+            Front               stub = Stub.create(Front.class, front);
+
+            Stub.setTraceFile(file);
+
+            try
+            {
+                if(stub.relay(3) != 6)
+                    throw new TestFailed("call returned wrong result");
+
+                try
+                {
+                    stub.fail();
+                    throw new TestFailed("failing call returned");
+                }
+                catch(IllegalStateException e)
+                {
+                }
+            }
+            finally
+            {
+                Stub.setTraceFile(null);
+            }
+
+            text = new String(Files.readAllBytes(file.toPath()),
+                              StandardCharsets.UTF_8).trim();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("traced call failed", t);
+        }
+
+        task("reading the trace file");
+
+        if(!text.startsWith("[") || !text.endsWith("]"))
+            throw new TestFailed("trace file is not a JSON array");
+
+        Map<String, String[]>   spans = new HashMap<String, String[]>();
+        Matcher                 matcher = SPAN.matcher(text);
+
+        while(matcher.find())
+        {
+            spans.put(matcher.group(1) + " " + matcher.group(2),
+                      new String[] {matcher.group(3), matcher.group(4),
+                                    matcher.group(5)});
+        }
+
+        String[]                relayStub = span(spans, "Front.relay stub");
+        String[]                relaySkeleton =
+            span(spans, "Front.relay skeleton");
+        String[]                workStub = span(spans, "Back.work stub");
+        String[]                workSkeleton =
+            span(spans, "Back.work skeleton");
+
+        task("linking the spans of a trace");
+
+        for(String[] span : new String[][] {relaySkeleton, workStub,
+                                            workSkeleton})
+        {
+            if(!span[0].equals(relayStub[0]))
+                throw new TestFailed("spans belong to different traces");
+        }
+
+        if(!relayStub[2].equals("0"))
+            throw new TestFailed("first span has a parent");
+
+        expectParent(relaySkeleton, relayStub);
+        expectParent(workStub, relaySkeleton);
+        expectParent(workSkeleton, workStub);
+
+        task("marking failed calls");
+
+        if(!failed(text, "Front.fail", "stub") ||
+           !failed(text, "Front.fail", "skeleton"))
+        {
+            throw new TestFailed("failed call is not marked");
+        }
+
+        if(failed(text, "Front.relay", "stub"))
+            throw new TestFailed("successful call is marked as failed");
+    }
+
+    /** Stops the skeletons, re-enables direct calls and removes the trace
+        file. */
+    @Override
+    protected void clean()
+    {
+        Stub.setLocalCalls(true);
+
+        if(front != null)
+        {
+            front.stop();
+            front = null;
+        }
+
+        back.stop();
+        back = null;
+
+        if(file != null)
+        {
+            file.delete();
+            file = null;
+        }
+    }
+
+    /** Returns a span found in the trace file.
+
+        @param spans Spans found, by name and category.
+        @param key Name and category of the span.
+        @return The span's trace id, span id and parent id.
+        @throws TestFailed If the span is not in the file.
+     */
+    private static String[] span(Map<String, String[]> spans, String key)
+        throws TestFailed
+    {
+        String[]                span = spans.get(key);
+
+        if(span == null)
+            throw new TestFailed("trace file has no span for " + key);
+
+        return span;
+    }
+
+    /** Checks whether a span in the trace file is marked as failed.
+
+        @param text Contents of the trace file.
+        @param name Name of the span.
+        @param category Category of the span.
+        @return <code>true</code> if the span's line marks it as failed.
+        @throws TestFailed If the span is not in the file.
+     */
+    private static boolean failed(String text, String name, String category)
+        throws TestFailed
+    {
+        String                  start =
+            "{\"name\":\"" + name + "\",\"cat\":\"" + category + "\"";
+
+        for(String line : text.split("\n"))
+        {
+            if(line.startsWith(start))
+                return line.contains("\"failed\":true");
+        }
+
+        throw new TestFailed("trace file has no span for " + name + " " +
+                             category);
+    }
+
+    /** Checks that a span is the child of another.
+
+        @param child The child span.
+        @param parent The parent span.
+        @throws TestFailed If the child's parent is not the given span.
+     */
+    private static void expectParent(String[] child, String[] parent)
+        throws TestFailed
+    {
+        if(!child[2].equals(parent[1]))
+            throw new TestFailed("span is not the child of its caller");
+    }
+
+    /** Remote interface of the back server. */
+    public interface Back
+    {
+        /** Doubles a number.
+
+            @param number The number.
+            @return Twice <code>number</code>.
+            @throws RMIException If the call cannot be completed.
+         */
+        public int work(int number) throws RMIException;
+    }
+
+    /** Remote interface of the front server. */
+    public interface Front
+    {
+        /** Doubles a number by calling the back server.
+
+            @param number The number.
+            @return Twice <code>number</code>.
+            @throws RMIException If the call cannot be completed.
+         */
+        public int relay(int number) throws RMIException;
+
+        /** Throws <code>IllegalStateException</code>.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        public void fail() throws RMIException;
+    }
+
+    /** Server implementing <code>Back</code>. */
+    private static class BackServer implements Back
+    {
+        @Override
+        public int work(int number)
+        {
+            return number * 2;
+        }
+    }
+
+    /** Server implementing <code>Front</code>. */
+    private static class FrontServer implements Front
+    {
+        /** Stub for the back server. */
+        private final Back      back;
+
+        /** Creates the front server.
+
+            @param back Stub for the back server.
+         */
+        FrontServer(Back back)
+        {
+            this.back = back;
+        }
+
+        @Override
+        public int relay(int number) throws RMIException
+        {
+            return back.work(number);
+        }
+
+        @Override
+        public void fail()
+        {
+            throw new IllegalStateException("call failed");
+        }
+    }
+}
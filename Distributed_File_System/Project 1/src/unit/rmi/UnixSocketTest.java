@@ -0,0 +1,209 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+
+/** Unit test for the Unix domain socket transport.
+
+    <p>
+    The test starts a skeleton on a Unix domain socket whose path holds a
+    file left over from an earlier run. It checks that stubs made from the
+    skeleton, and copies of them sent over the network, carry the socket's
+    path, and that a connection through the socket reaches the skeleton even
+    when its TCP address does not. It checks that a connection falls back to
+    TCP when the socket cannot be reached, and that the socket file is
+    removed when the skeleton stops. The test does nothing on Java runtimes
+    without Unix domain sockets.
+ */
+public class UnixSocketTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking Unix domain sockets";
+
+    /** Path of the skeleton's socket. */
+    private File                socket;
+    /** Skeleton for the server object. */
+    private Skeleton<Echo>      skeleton;
+
+    /** Starts the skeleton, if the runtime provides Unix domain sockets. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        if(!UnixSockets.supported())
+            return;
+
+        try
+        {
+            socket = File.createTempFile("rmi-unit", ".sock");
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to create stale socket file", e);
+        }
+
+        skeleton = new Skeleton<Echo>(Echo.class, new EchoServer());
+        skeleton.setUnixSocket(socket.getPath());
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        Stub.setLocalCalls(false);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        if(skeleton == null)
+            return;
+
+        String                  path = socket.getPath();
+
+        try
+        {
+            task("listening on a Unix domain socket");
+
+            if(!path.equals(skeleton.unixPath))
+                throw new TestFailed("skeleton is not listening on socket");
+
+            task("carrying the socket path in stubs");
+
+            Echo                stub = Stub.create(Echo.class, skeleton);
+
+            if(!path.equals(handler(stub).socketPath()))
+                throw new TestFailed("stub does not carry socket path");
+
+            byte[]              encoded = Codec.encode(stub);
+            Echo                copy =
+                (Echo)Codec.decode(encoded, 0, encoded.length);
+
+            if(!path.equals(handler(copy).socketPath()))
+                throw new TestFailed("sent stub lost socket path");
+
+            if(!"hello".equals(copy.echo("hello")))
+                throw new TestFailed("call returned wrong result");
+
+            task("connecting through the socket");
+            call(new InetSocketAddress("127.0.0.1", 1), path);
+
+            task("falling back to TCP");
+            call(new InetSocketAddress("127.0.0.1",
+                                       skeleton.serverAddress.getPort()),
+                 path + ".missing");
+
+            task("removing the socket when stopped");
+            skeleton.stop();
+
+            if(socket.exists())
+                throw new TestFailed("socket file was not removed");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+    }
+
+    /** Stops the skeleton, re-enables direct calls, and removes the socket
+        file. */
+    @Override
+    protected void clean()
+    {
+        Stub.setLocalCalls(true);
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        if(socket != null)
+        {
+            socket.delete();
+            socket = null;
+        }
+    }
+
+    /** Makes a call over a new connection.
+
+        @param address The skeleton's TCP address.
+        @param path The path of the skeleton's Unix domain socket.
+        @throws TestFailed If the call fails or returns the wrong result.
+     */
+    private void call(InetSocketAddress address, String path)
+        throws TestFailed
+    {
+        MethodTable             table = MethodTable.of(Echo.class);
+        Connection              connection = null;
+        Object                  result;
+
+        try
+        {
+            connection = ConnectionPool.open(address, path);
+
+            Frame               reply = connection.call(
+                Frame.marshalCall(table.fingerprint, 0,
+                                  new Object[] {"direct"}, false, null));
+
+            result = Codec.decode(reply.payload, 0, reply.payload.length);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to call skeleton", t);
+        }
+        finally
+        {
+            if(connection != null)
+                connection.close();
+        }
+
+        if(!"direct".equals(result))
+            throw new TestFailed("call returned " + result);
+    }
+
+    /** Returns the invocation handler of a stub.
+
+        @param stub The stub.
+        @return The handler.
+     */
+    private static MyInvocationHandler<?> handler(Object stub)
+    {
+        return (MyInvocationHandler<?>)Proxy.getInvocationHandler(stub);
+    }
+
+    /** Remote interface of an echo server. */
+    public interface Echo
+    {
+        /** Returns its argument.
+
+            @param message The message to be returned.
+            @return <code>message</code>.
+            @throws RMIException If the call cannot be completed.
+         */
+        public String echo(String message) throws RMIException;
+    }
+
+    /** Server implementing <code>Echo</code>. */
+    private static class EchoServer implements Echo
+    {
+        @Override
+        public String echo(String message)
+        {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package rmi;
+
+import test.*;
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+/** Unit test for the skeleton's virtual thread mode.
+
+    <p>
+    On Java runtimes without virtual threads, the test checks that enabling
+    them is refused with <code>UnsupportedOperationException</code>. Otherwise
+    it starts a skeleton with virtual threads enabled, and makes many calls
+    which the server object holds until all have arrived, checking that every
+    call runs on a virtual thread.
+ */
+public class VirtualThreadTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking virtual thread mode";
+
+    /** Number of concurrent calls. */
+    private static final int    CALLS = 200;
+
+    /** Skeleton for the server object, if virtual threads are supported. */
+    private Skeleton<Meeting>   skeleton;
+
+    /** Starts the skeleton with virtual threads, if they are supported.
+
+        @throws TestFailed If enabling virtual threads fails unexpectedly.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        Skeleton<Meeting>       virtual =
+            new Skeleton<Meeting>(Meeting.class, new MeetingServer());
+
+        try
+        {
+            virtual.setVirtualThreads(true);
+        }
+        catch(UnsupportedOperationException e)
+        {
+            if(Threads.virtualSupported())
+                throw new TestFailed("virtual threads were refused", e);
+
+            return;
+        }
+
+        if(!Threads.virtualSupported())
+            throw new TestFailed("unsupported virtual threads were enabled");
+
+        try
+        {
+            virtual.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        skeleton = virtual;
+        Stub.setLocalCalls(false);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        if(skeleton == null)
+            return;
+
+        final Meeting           stub;
+
+        try
+        {
+            stub = Stub.create(Meeting.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stub", t);
+        }
+
+        task("holding many calls on virtual threads");
+
+        Thread[]                threads = new Thread[CALLS];
+
+        for(int i = 0; i < threads.length; ++i)
+        {
+            threads[i] = new Thread() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        if(!stub.meet())
+                        {
+                            failure(new TestFailed("call did not run on a " +
+                                                   "virtual thread"));
+                        }
+                    }
+                    catch(Throwable t)
+                    {
+                        failure(new TestFailed("call failed", t));
+                    }
+                }
+            };
+
+            threads[i].start();
+        }
+
+        for(Thread thread : threads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted while calling", e);
+            }
+        }
+    }
+
+    /** Stops the skeleton and re-enables direct calls. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton == null)
+            return;
+
+        Stub.setLocalCalls(true);
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Remote interface of a server which holds calls until all have
+        arrived. */
+    public interface Meeting
+    {
+        /** Waits for the other calls.
+
+            @return <code>true</code> if the call ran on a virtual thread.
+            @throws RMIException If the call cannot be completed.
+         */
+        public boolean meet() throws RMIException;
+    }
+
+    /** Server implementing <code>Meeting</code>. */
+    private static class MeetingServer implements Meeting
+    {
+        /** Barrier at which the calls meet. */
+        private final CyclicBarrier barrier = new CyclicBarrier(CALLS);
+
+        @Override
+        public boolean meet()
+        {
+            try
+            {
+                barrier.await(10, TimeUnit.SECONDS);
+
+                Method          isVirtual = Thread.class.getMethod("isVirtual");
+
+                return (Boolean)isVirtual.invoke(Thread.currentThread());
+            }
+            catch(Exception e)
+            {
+                throw new IllegalStateException("calls did not all arrive", e);
+            }
+        }
+    }
+}